@@ -18,15 +18,18 @@
 package com.unionhole.zrag.config;
 
 import dev.langchain4j.data.document.DocumentSplitter;
-import dev.langchain4j.data.document.splitter.DocumentSplitters;
 import dev.langchain4j.model.embedding.EmbeddingModel;
 import dev.langchain4j.data.segment.TextSegment;
 import dev.langchain4j.model.chat.ChatLanguageModel;
+import dev.langchain4j.model.chat.StreamingChatLanguageModel;
 import dev.langchain4j.model.embedding.AllMiniLmL6V2EmbeddingModel;
+import dev.langchain4j.model.embedding.HuggingFaceTokenizer;
 import dev.langchain4j.model.openai.OpenAiChatModel;
 import dev.langchain4j.model.openai.OpenAiEmbeddingModel;
+import dev.langchain4j.model.openai.OpenAiStreamingChatModel;
 import dev.langchain4j.model.ollama.OllamaChatModel;
 import dev.langchain4j.model.ollama.OllamaEmbeddingModel;
+import dev.langchain4j.model.ollama.OllamaStreamingChatModel;
 import dev.langchain4j.rag.content.retriever.ContentRetriever;
 import dev.langchain4j.rag.content.retriever.EmbeddingStoreContentRetriever;
 import dev.langchain4j.store.embedding.EmbeddingStore;
@@ -35,15 +38,22 @@ import com.unionhole.zrag.store.MilvusEmbeddingStore;
 import com.unionhole.zrag.store.WeaviateEmbeddingStore;
 import com.unionhole.zrag.model.QwenChatModel;
 import com.unionhole.zrag.model.QwenEmbeddingModel;
+import com.unionhole.zrag.util.CodeChunker;
+import com.unionhole.zrag.util.RecursiveTextSplitter;
+import com.unionhole.zrag.util.TokenCounter;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
+import java.time.Duration;
+
 /**
  * RAG配置类
  * 支持多种模型提供商：OpenAI、千问、Ollama
  */
+@Slf4j
 @Configuration
 public class RagConfig {
 
@@ -87,6 +97,10 @@ public class RagConfig {
     @Value("${default.provider:qwen}")
     private String defaultProvider;
 
+    // 流式生成总超时
+    @Value("${generation.stream-timeout-seconds:120}")
+    private long streamTimeoutSeconds;
+
     // 重排配置
     @Value("${default.rerank.provider:qwen}")
     private String defaultRerankProvider;
@@ -95,6 +109,31 @@ public class RagConfig {
     @Value("${vector-store.type:milvus}")
     private String vectorStoreType;
 
+    // 文档分割配置
+    @Value("${splitter.unit:tokens}")
+    private String splitterUnit;
+
+    @Value("${splitter.tokenizer:auto}")
+    private String splitterTokenizer;
+
+    @Value("${splitter.default.max-tokens:256}")
+    private int defaultMaxTokens;
+
+    @Value("${splitter.default.overlap-tokens:32}")
+    private int defaultOverlapTokens;
+
+    @Value("${splitter.chinese.max-tokens:512}")
+    private int chineseMaxTokens;
+
+    @Value("${splitter.chinese.overlap-tokens:64}")
+    private int chineseOverlapTokens;
+
+    @Value("${splitter.code.max-tokens:512}")
+    private int codeMaxTokens;
+
+    @Value("${splitter.code.overlap-tokens:64}")
+    private int codeOverlapTokens;
+
     /**
      * 配置嵌入模型
      * 根据配置选择不同的嵌入模型
@@ -161,6 +200,42 @@ public class RagConfig {
         return createQwenChatModel();
     }
 
+    /**
+     * 配置流式聊天模型
+     * 与聊天模型使用相同的提供商，生成时逐个返回token；整个调用超过流式生成超时后关闭连接
+     */
+    @Bean
+    public StreamingChatLanguageModel streamingChatModel() {
+        switch (defaultProvider.toLowerCase()) {
+            case "openai":
+                if (openaiApiKey != null && !openaiApiKey.isEmpty()) {
+                    return OpenAiStreamingChatModel.builder()
+                            .apiKey(openaiApiKey)
+                            .baseUrl(openaiBaseUrl)
+                            .modelName(openaiModel)
+                            .temperature(0.7)
+                            .timeout(Duration.ofSeconds(streamTimeoutSeconds))
+                            .build();
+                }
+                break;
+            case "qwen":
+                if (qwenApiKey != null && !qwenApiKey.isEmpty()) {
+                    return new QwenChatModel();
+                }
+                break;
+            case "ollama":
+                return OllamaStreamingChatModel.builder()
+                        .baseUrl(ollamaBaseUrl)
+                        .modelName(ollamaModel)
+                        .temperature(0.7)
+                        .timeout(Duration.ofSeconds(streamTimeoutSeconds))
+                        .build();
+        }
+
+        // 默认使用千问模型（即使没有API Key也会返回，内部会使用模拟回答）
+        return new QwenChatModel();
+    }
+
     /**
      * 配置向量存储
      * 根据配置选择不同的向量存储
@@ -204,15 +279,18 @@ public class RagConfig {
 
     /**
      * 配置文档分割器
-     * 支持自定义分隔符和分割规则
+     * 支持自定义分隔符和分割规则，按token计量时块大小以嵌入模型的分词结果为准
      */
     @Bean
-    public DocumentSplitter documentSplitter() {
-        // 使用递归分割器，可以自定义分隔符
-        return DocumentSplitters.recursive(
-            300,  // 最大块大小
-            50    // 块之间重叠字符数
-        );
+    public DocumentSplitter documentSplitter(RecursiveTextSplitter.SizeEstimator splitterSizeEstimator) {
+        if (isCharacterUnit()) {
+            // 使用递归分割器，可以自定义分隔符
+            return new RecursiveTextSplitter(
+                300,  // 最大块大小
+                50    // 块之间重叠字符数
+            );
+        }
+        return new RecursiveTextSplitter(defaultMaxTokens, defaultOverlapTokens, splitterSizeEstimator);
     }
     
     /**
@@ -220,23 +298,74 @@ public class RagConfig {
      * 专门针对中文文档优化的分割器
      */
     @Bean("chineseDocumentSplitter")
-    public DocumentSplitter chineseDocumentSplitter() {
-        return DocumentSplitters.recursive(
-            500,  // 中文文档可以设置更大的块大小
-            100   // 增加重叠以提高上下文连续性
-        );
+    public DocumentSplitter chineseDocumentSplitter(RecursiveTextSplitter.SizeEstimator splitterSizeEstimator) {
+        if (isCharacterUnit()) {
+            return new RecursiveTextSplitter(
+                500,  // 中文文档可以设置更大的块大小
+                100   // 增加重叠以提高上下文连续性
+            );
+        }
+        return new RecursiveTextSplitter(chineseMaxTokens, chineseOverlapTokens, splitterSizeEstimator);
     }
     
     /**
      * 配置代码文档分割器
-     * 专门针对代码文档的分割器
+     * 按类、函数等声明边界分割代码，声明单元之间不重叠，重叠只用于切分超长单元
      */
     @Bean("codeDocumentSplitter")
-    public DocumentSplitter codeDocumentSplitter() {
-        return DocumentSplitters.recursive(
-            1000, // 代码文档可以设置更大的块大小
-            200   // 增加重叠以保持代码上下文
-        );
+    public DocumentSplitter codeDocumentSplitter(RecursiveTextSplitter.SizeEstimator splitterSizeEstimator) {
+        if (isCharacterUnit()) {
+            return new CodeChunker(
+                1000, // 代码文档可以设置更大的块大小
+                200   // 超长函数内部切分时的重叠
+            );
+        }
+        return new CodeChunker(codeMaxTokens, codeOverlapTokens, splitterSizeEstimator);
+    }
+
+    /**
+     * 配置分割器的token计量方式
+     * 与嵌入模型的分词方式对应：OpenAI、千问使用cl100k BPE分词，
+     * Ollama（nomic-embed-text等BERT系模型）和本地AllMiniLmL6V2使用WordPiece分词
+     */
+    @Bean
+    public RecursiveTextSplitter.SizeEstimator splitterSizeEstimator() {
+        if (isCharacterUnit()) {
+            return RecursiveTextSplitter.CHARACTERS;
+        }
+        String tokenizer = splitterTokenizer.toLowerCase();
+        if ("auto".equals(tokenizer)) {
+            tokenizer = isWordPieceEmbedding() ? "wordpiece" : "cl100k";
+        }
+        if ("wordpiece".equals(tokenizer)) {
+            try {
+                HuggingFaceTokenizer wordPiece = new HuggingFaceTokenizer();
+                log.info("文档分割按WordPiece token计量");
+                return (text, start, end) -> wordPiece.estimateTokenCountInText(text.subSequence(start, end).toString());
+            } catch (Throwable e) {
+                log.warn("WordPiece分词器加载失败，改用cl100k分词计量: {}", e.getMessage());
+            }
+        }
+        log.info("文档分割按cl100k token计量");
+        return (text, start, end) -> TokenCounter.count(text.subSequence(start, end).toString());
+    }
+
+    private boolean isCharacterUnit() {
+        return "chars".equalsIgnoreCase(splitterUnit);
+    }
+
+    /**
+     * 与 embeddingModel() 的选择逻辑一致：Ollama，或未配置API Key而退回本地模型时使用WordPiece分词
+     */
+    private boolean isWordPieceEmbedding() {
+        switch (defaultProvider.toLowerCase()) {
+            case "openai":
+                return openaiApiKey == null || openaiApiKey.isEmpty();
+            case "qwen":
+                return qwenApiKey == null || qwenApiKey.isEmpty();
+            default:
+                return true;
+        }
     }
 
     /**
@@ -24,19 +24,31 @@ import com.unionhole.zrag.service.RagService;
 import com.unionhole.zrag.service.RerankService;
 import com.unionhole.zrag.service.MinioStorageService;
 import com.unionhole.zrag.service.DocumentService;
+import com.unionhole.zrag.service.StreamingQueryExecutor;
 import com.unionhole.zrag.store.MilvusEmbeddingStore;
 import com.unionhole.zrag.util.StreamingUtils;
 import dev.langchain4j.data.document.Document;
+import io.minio.StatObjectResponse;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import org.springframework.http.ContentDisposition;
 import org.springframework.http.ResponseEntity;
 import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
 import org.springframework.web.multipart.MultipartFile;
 
-import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -51,10 +63,14 @@ import java.util.Map;
 @RequiredArgsConstructor
 public class RagController {
     
+    /** 流式下载的缓冲区大小 */
+    private static final int DOWNLOAD_BUFFER_SIZE = 64 * 1024;
+    
     private final RagService ragService;
     private final RerankService rerankService;
     private final MinioStorageService minioStorageService;
     private final DocumentService documentService;
+    private final StreamingQueryExecutor streamingQueryExecutor;
     
     /**
      * 上传文档
@@ -168,11 +184,10 @@ public class RagController {
      */
     @PostMapping("/query/stream")
     public SseEmitter queryStream(@RequestBody QueryRequest request) {
-        SseEmitter emitter = new SseEmitter(30000L); // 30秒超时
+        log.info("执行流式RAG查询: {}", request.getQuery());
         
-        try {
-            log.info("执行流式RAG查询: {}", request.getQuery());
-            
+        // 在流式查询执行器中运行，请求线程立即返回
+        return streamingQueryExecutor.submit("流式RAG查询", emitter -> {
             // 发送开始思考的响应
             StreamingUtils.sendThinking(emitter, "🤔 开始分析您的问题...");
             
@@ -187,14 +202,7 @@ public class RagController {
             } else {
                 ragService.queryStream(request.getQuery(), emitter);
             }
-            
-        } catch (Exception e) {
-            log.error("流式RAG查询失败", e);
-            StreamingUtils.sendError(emitter, "查询失败: " + e.getMessage());
-            emitter.complete();
-        }
-        
-        return emitter;
+        });
     }
     
     /**
@@ -204,11 +212,9 @@ public class RagController {
      */
     @PostMapping("/query/stream/stock")
     public SseEmitter queryStreamStock(@RequestBody QueryRequest request) {
-        SseEmitter emitter = new SseEmitter(30000L); // 30秒超时
+        log.info("执行股神投资流式RAG查询: {}", request.getQuery());
         
-        try {
-            log.info("执行股神投资流式RAG查询: {}", request.getQuery());
-            
+        return streamingQueryExecutor.submit("股神投资流式RAG查询", emitter -> {
             // 发送开始思考的响应
             StreamingUtils.sendThinking(emitter, "📈 正在分析投资问题...");
             
@@ -223,14 +229,25 @@ public class RagController {
             } else {
                 ragService.queryStreamStock(request.getQuery(), emitter);
             }
-            
-        } catch (Exception e) {
-            log.error("股神投资流式RAG查询失败", e);
-            StreamingUtils.sendError(emitter, "查询失败: " + e.getMessage());
-            emitter.complete();
-        }
-        
-        return emitter;
+        });
+    }
+    
+    /**
+     * 获取查询准入控制统计
+     * @return 当前并发上限、排队及拒绝数量
+     */
+    @GetMapping("/admission/stats")
+    public ResponseEntity<Map<String, Object>> getAdmissionStats() {
+        return ResponseEntity.ok(ragService.getAdmissionStats());
+    }
+    
+    /**
+     * 获取流式查询执行器统计
+     * @return 活跃、排队、取消、拒绝数量
+     */
+    @GetMapping("/query/stream/stats")
+    public ResponseEntity<Map<String, Object>> getStreamStats() {
+        return ResponseEntity.ok(streamingQueryExecutor.getStats());
     }
     
     /**
@@ -408,6 +425,15 @@ public class RagController {
         }
     }
     
+    /**
+     * 获取文档解析统计
+     * @return 解析线程池状态及按文档类型的解析耗时
+     */
+    @GetMapping("/converter/stats")
+    public ResponseEntity<Map<String, Object>> getConverterStats() {
+        return ResponseEntity.ok(documentService.getParseStats());
+    }
+    
     /**
      * 健康检查
      * @return 健康状态
@@ -515,37 +541,25 @@ public class RagController {
     
     /**
      * 直接预览PDF文件（返回PDF流）
+     * 支持Range请求，PDF.js可以按需加载页面
      * @param fileName 文件名
      * @return PDF文件流
      */
     @GetMapping("/storage/pdf")
-    public ResponseEntity<byte[]> previewPdfFile(@RequestParam String fileName) {
+    public ResponseEntity<StreamingResponseBody> previewPdfFile(@RequestParam String fileName,
+            @RequestHeader(value = HttpHeaders.RANGE, required = false) String range,
+            @RequestHeader(value = HttpHeaders.IF_RANGE, required = false) String ifRange,
+            WebRequest webRequest) {
         try {
-            log.info("预览PDF文件: {}", fileName);
+            log.info("预览PDF文件: {}, Range: {}", fileName, range);
             
             // 检查文件类型
             if (!fileName.toLowerCase().endsWith(".pdf")) {
                 return ResponseEntity.badRequest().build();
             }
             
-            // 获取PDF文件内容
-            InputStream inputStream = minioStorageService.downloadFile(fileName);
-            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-            byte[] buffer = new byte[1024];
-            int bytesRead;
-            while ((bytesRead = inputStream.read(buffer)) != -1) {
-                outputStream.write(buffer, 0, bytesRead);
-            }
-            inputStream.close();
-            outputStream.close();
-            
-            byte[] pdfBytes = outputStream.toByteArray();
-            
-            return ResponseEntity.ok()
-                    .header("Content-Type", "application/pdf")
-                    .header("Content-Disposition", "inline; filename=\"" + fileName + "\"")
-                    .header("Content-Length", String.valueOf(pdfBytes.length))
-                    .body(pdfBytes);
+            return streamObject(fileName, MediaType.APPLICATION_PDF,
+                    "inline; filename=\"" + fileName + "\"", range, ifRange, webRequest);
             
         } catch (Exception e) {
             log.error("预览PDF文件失败", e);
@@ -837,11 +851,12 @@ public class RagController {
     public ResponseEntity<Map<String, Object>> getKnowledgeChunks(
             @RequestParam(defaultValue = "0") int page,
             @RequestParam(defaultValue = "20") int size,
-            @RequestParam(required = false) String search) {
+            @RequestParam(required = false) String search,
+            @RequestParam(required = false) String fileId) {
         try {
-            log.info("获取知识片段列表，页码: {}, 大小: {}, 搜索: {}", page, size, search);
+            log.info("获取知识片段列表，页码: {}, 大小: {}, 搜索: {}, 文件: {}", page, size, search, fileId);
             
-            Map<String, Object> result = ragService.getKnowledgeChunks(page, size, search);
+            Map<String, Object> result = ragService.getKnowledgeChunks(page, size, search, fileId);
             return ResponseEntity.ok(result);
             
         } catch (Exception e) {
@@ -853,6 +868,23 @@ public class RagController {
         }
     }
     
+    /**
+     * 导出知识片段
+     * 以JSON Lines格式流式输出，每行一个片段
+     * @param fileId 文件ID（可选）
+     * @return 流式响应
+     */
+    @GetMapping("/knowledge/chunks/export")
+    public ResponseEntity<StreamingResponseBody> exportKnowledgeChunks(@RequestParam(required = false) String fileId) {
+        log.info("导出知识片段，文件: {}", fileId);
+        
+        StreamingResponseBody body = outputStream -> ragService.exportKnowledgeChunks(fileId, outputStream);
+        return ResponseEntity.ok()
+                .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"knowledge-chunks.jsonl\"")
+                .contentType(MediaType.parseMediaType("application/x-ndjson"))
+                .body(body);
+    }
+    
     /**
      * 获取向量数据信息
      * @return 向量数据信息
@@ -894,7 +926,41 @@ public class RagController {
             return ResponseEntity.badRequest().body(error);
         }
     }
-    
+
+    /**
+     * 获取缓存统计信息
+     * @return 各级缓存命中率
+     */
+    @GetMapping("/cache/stats")
+    public ResponseEntity<Map<String, Object>> getCacheStats() {
+        try {
+            return ResponseEntity.ok(ragService.getCacheStats());
+        } catch (Exception e) {
+            log.error("获取缓存统计失败", e);
+            Map<String, Object> error = new HashMap<>();
+            error.put("success", false);
+            error.put("message", "获取缓存统计失败: " + e.getMessage());
+            return ResponseEntity.badRequest().body(error);
+        }
+    }
+
+    /**
+     * 获取自适应重排策略统计
+     * @return 跳过率、候选池倍数及最近的决策记录
+     */
+    @GetMapping("/rerank/policy")
+    public ResponseEntity<Map<String, Object>> getRerankPolicyStats() {
+        try {
+            return ResponseEntity.ok(ragService.getRerankPolicyStats());
+        } catch (Exception e) {
+            log.error("获取重排策略统计失败", e);
+            Map<String, Object> error = new HashMap<>();
+            error.put("success", false);
+            error.put("message", "获取重排策略统计失败: " + e.getMessage());
+            return ResponseEntity.badRequest().body(error);
+        }
+    }
+
     /**
      * 刷新知识库
      * @return 刷新结果
@@ -1186,6 +1252,7 @@ public class RagController {
             if (documentService.getEmbeddingStore() instanceof MilvusEmbeddingStore) {
                 MilvusEmbeddingStore milvusStore = (MilvusEmbeddingStore) documentService.getEmbeddingStore();
                 milvusStore.forceRecreateCollection();
+                documentService.onStoreReset();
                 
                 Map<String, Object> result = new HashMap<>();
                 result.put("success", true);
@@ -1213,42 +1280,118 @@ public class RagController {
     
     /**
      * 下载文档文件
+     * 支持Range请求，可以断点续传
      * @param fileId 文件ID
      * @return 文件内容
      */
     @GetMapping("/download/{fileId}")
-    public ResponseEntity<byte[]> downloadDocument(@PathVariable String fileId) {
+    public ResponseEntity<StreamingResponseBody> downloadDocument(@PathVariable String fileId,
+            @RequestHeader(value = HttpHeaders.RANGE, required = false) String range,
+            @RequestHeader(value = HttpHeaders.IF_RANGE, required = false) String ifRange,
+            WebRequest webRequest) {
         try {
-            log.info("下载文档: {}", fileId);
+            log.info("下载文档: {}, Range: {}", fileId, range);
             
             // 根据fileId获取文件名（这里需要根据实际存储方式调整）
             // 暂时使用fileId作为文件名，实际应该从数据库查询
             String fileName = fileId;
             
-            // 获取文件内容
-            InputStream inputStream = minioStorageService.downloadFile(fileName);
-            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-            byte[] buffer = new byte[1024];
-            int bytesRead;
-            while ((bytesRead = inputStream.read(buffer)) != -1) {
-                outputStream.write(buffer, 0, bytesRead);
-            }
-            inputStream.close();
-            outputStream.close();
-            
-            byte[] fileBytes = outputStream.toByteArray();
-            
-            // 设置响应头
-            HttpHeaders headers = new HttpHeaders();
-            headers.setContentType(org.springframework.http.MediaType.APPLICATION_OCTET_STREAM);
-            headers.setContentDispositionFormData("attachment", fileName);
-            headers.setContentLength(fileBytes.length);
-            
-            return new ResponseEntity<>(fileBytes, headers, org.springframework.http.HttpStatus.OK);
+            return streamObject(fileName, MediaType.APPLICATION_OCTET_STREAM,
+                    ContentDisposition.attachment().filename(fileName, StandardCharsets.UTF_8).build().toString(),
+                    range, ifRange, webRequest);
             
         } catch (Exception e) {
             log.error("下载文档失败: {}", fileId, e);
             return ResponseEntity.badRequest().build();
         }
     }
+    
+    /**
+     * 从MinIO流式输出文件，不在内存中缓存整个文件
+     * 按ETag和修改时间处理条件请求（命中时返回304，由 checkNotModified 写入响应，返回null）；
+     * 支持单个Range（If-Range与当前版本一致时才生效），多个Range时返回整个文件
+     */
+    private ResponseEntity<StreamingResponseBody> streamObject(String objectName, MediaType contentType,
+            String contentDisposition, String range, String ifRange, WebRequest webRequest) {
+        StatObjectResponse stat = minioStorageService.statFile(objectName);
+        long size = stat.size();
+        String etag = "\"" + stat.etag().replace("\"", "") + "\"";
+        long lastModified = stat.lastModified().toInstant().toEpochMilli();
+        
+        // 同时在响应中写入ETag和Last-Modified
+        if (webRequest.checkNotModified(etag, lastModified)) {
+            return null;
+        }
+        
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(contentType);
+        headers.set(HttpHeaders.CONTENT_DISPOSITION, contentDisposition);
+        headers.set(HttpHeaders.ACCEPT_RANGES, "bytes");
+        
+        long start = 0;
+        long length = size;
+        HttpStatus status = HttpStatus.OK;
+        if (range != null && isCurrentVersion(ifRange, etag, lastModified)) {
+            List<HttpRange> ranges;
+            try {
+                ranges = HttpRange.parseRanges(range);
+            } catch (IllegalArgumentException e) {
+                log.debug("忽略无法解析的Range: {}", range);
+                ranges = Collections.emptyList();
+            }
+            if (ranges.size() == 1) {
+                try {
+                    start = ranges.get(0).getRangeStart(size);
+                    length = ranges.get(0).getRangeEnd(size) - start + 1;
+                } catch (IllegalArgumentException e) {
+                    headers.set(HttpHeaders.CONTENT_RANGE, "bytes */" + size);
+                    return new ResponseEntity<>(headers, HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE);
+                }
+                status = HttpStatus.PARTIAL_CONTENT;
+                headers.set(HttpHeaders.CONTENT_RANGE, "bytes " + start + "-" + (start + length - 1) + "/" + size);
+            }
+        }
+        headers.setContentLength(length);
+        
+        long offset = start;
+        long count = length;
+        boolean partial = status == HttpStatus.PARTIAL_CONTENT;
+        StreamingResponseBody body = outputStream -> {
+            if (count <= 0) {
+                return;
+            }
+            try (InputStream inputStream = partial
+                    ? minioStorageService.downloadFile(objectName, offset, count)
+                    : minioStorageService.downloadFile(objectName)) {
+                byte[] buffer = new byte[DOWNLOAD_BUFFER_SIZE];
+                int bytesRead;
+                while ((bytesRead = inputStream.read(buffer)) != -1) {
+                    outputStream.write(buffer, 0, bytesRead);
+                }
+            }
+        };
+        return new ResponseEntity<>(body, headers, status);
+    }
+    
+    /**
+     * If-Range 与文件当前的ETag（强比较）或修改时间一致，没有 If-Range 时视为一致
+     */
+    private static boolean isCurrentVersion(String ifRange, String etag, long lastModified) {
+        if (ifRange == null) {
+            return true;
+        }
+        String value = ifRange.trim();
+        if (value.startsWith("\"")) {
+            return value.equals(etag);
+        }
+        if (value.startsWith("W/")) {
+            return false;
+        }
+        try {
+            long date = ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+            return date / 1000 == lastModified / 1000;
+        } catch (DateTimeParseException e) {
+            return false;
+        }
+    }
 }
\ No newline at end of file
@@ -87,6 +87,18 @@ public class StreamingResponse {
                 .build();
     }
     
+    /**
+     * 创建回答片段响应（模型逐个返回的token）
+     */
+    public static StreamingResponse token(String content) {
+        return StreamingResponse.builder()
+                .type("token")
+                .content(content)
+                .finished(false)
+                .timestamp(System.currentTimeMillis())
+                .build();
+    }
+    
     /**
      * 创建最终答案响应
      */
@@ -17,30 +17,44 @@
 
 package com.unionhole.zrag.model;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import dev.langchain4j.data.message.ChatMessage;
 import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.model.StreamingResponseHandler;
 import dev.langchain4j.model.chat.ChatLanguageModel;
+import dev.langchain4j.model.chat.StreamingChatLanguageModel;
 import dev.langchain4j.model.output.Response;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.http.client.SimpleClientHttpRequestFactory;
 import org.springframework.stereotype.Component;
 import org.springframework.web.client.RestTemplate;
 
+import javax.annotation.PostConstruct;
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
 
 /**
  * 千问聊天模型实现
- * 基于阿里云千问API
+ * 基于阿里云千问API，流式生成时解析SSE响应逐个转发token
  */
 @Slf4j
 @Component
-public class QwenChatModel implements ChatLanguageModel {
+public class QwenChatModel implements ChatLanguageModel, StreamingChatLanguageModel {
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
 
     @Value("${models.qwen.api.key:}")
     private String apiKey;
@@ -51,7 +65,24 @@ public class QwenChatModel implements ChatLanguageModel {
     @Value("${models.qwen.model:qwen-turbo}")
     private String model;
 
-    private final RestTemplate restTemplate = new RestTemplate();
+    @Value("${models.qwen.connect-timeout-ms:10000}")
+    private int connectTimeoutMs;
+
+    @Value("${models.qwen.read-timeout-ms:60000}")
+    private int readTimeoutMs;
+
+    private RestTemplate restTemplate = new RestTemplate();
+
+    /**
+     * 设置连接和读取超时，避免上游无响应时流式生成一直占用线程
+     */
+    @PostConstruct
+    public void initialize() {
+        SimpleClientHttpRequestFactory requestFactory = new SimpleClientHttpRequestFactory();
+        requestFactory.setConnectTimeout(connectTimeoutMs);
+        requestFactory.setReadTimeout(readTimeoutMs);
+        restTemplate = new RestTemplate(requestFactory);
+    }
 
     @Override
     public Response<AiMessage> generate(List<ChatMessage> messages) {
@@ -76,19 +107,7 @@ public class QwenChatModel implements ChatLanguageModel {
             headers.setContentType(MediaType.APPLICATION_JSON);
             headers.set("Authorization", "Bearer " + apiKey);
 
-            // 使用OpenAI兼容的请求格式
-            Map<String, Object> requestBody = new HashMap<>();
-            requestBody.put("model", model);
-            
-            List<Map<String, String>> messages = new java.util.ArrayList<>();
-            Map<String, String> message = new HashMap<>();
-            message.put("role", "user");
-            message.put("content", userMessage);
-            messages.add(message);
-            requestBody.put("messages", messages);
-            
-            requestBody.put("temperature", 0.7);
-            requestBody.put("max_tokens", 2000);
+            Map<String, Object> requestBody = buildChatRequest(userMessage, false);
 
             HttpEntity<Map<String, Object>> request = new HttpEntity<>(requestBody, headers);
 
@@ -119,6 +138,83 @@ public class QwenChatModel implements ChatLanguageModel {
         }
     }
 
+    @Override
+    public void generate(List<ChatMessage> messages, StreamingResponseHandler<AiMessage> handler) {
+        // 提取最后一条用户消息
+        String userMessage = messages.get(messages.size() - 1).text();
+        if (apiKey == null || apiKey.isEmpty()) {
+            log.warn("千问API Key未配置，使用模拟回答");
+            String answer = "基于千问模型的回答：这是一个模拟回答，请配置正确的API Key。";
+            handler.onNext(answer);
+            handler.onComplete(Response.from(AiMessage.from(answer)));
+            return;
+        }
+
+        try {
+            String url = baseUrl + "/chat/completions";
+            Map<String, Object> requestBody = buildChatRequest(userMessage, true);
+            StringBuilder answer = new StringBuilder();
+
+            restTemplate.execute(url, HttpMethod.POST, request -> {
+                request.getHeaders().setContentType(MediaType.APPLICATION_JSON);
+                request.getHeaders().setAccept(Collections.singletonList(MediaType.TEXT_EVENT_STREAM));
+                request.getHeaders().set("Authorization", "Bearer " + apiKey);
+                OBJECT_MAPPER.writeValue(request.getBody(), requestBody);
+            }, response -> {
+                BufferedReader reader = new BufferedReader(
+                        new InputStreamReader(response.getBody(), StandardCharsets.UTF_8));
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    // SSE格式: 每个事件一行 "data: {...}"，以 "data: [DONE]" 结束
+                    if (!line.startsWith("data:")) {
+                        continue;
+                    }
+                    String data = line.substring(5).trim();
+                    if ("[DONE]".equals(data)) {
+                        break;
+                    }
+                    JsonNode content = OBJECT_MAPPER.readTree(data)
+                            .path("choices").path(0).path("delta").path("content");
+                    if (content.isTextual() && !content.asText().isEmpty()) {
+                        answer.append(content.asText());
+                        handler.onNext(content.asText());
+                    }
+                }
+                return null;
+            });
+
+            handler.onComplete(Response.from(AiMessage.from(answer.toString())));
+        } catch (CancellationException e) {
+            // 调用方已结束（超时或回退），抛出异常后连接已关闭
+            log.info("千问模型流式调用已取消: {}", e.getMessage());
+        } catch (Exception e) {
+            log.error("千问模型流式调用异常", e);
+            handler.onError(e);
+        }
+    }
+
+    /**
+     * 构建OpenAI兼容格式的对话请求
+     */
+    private Map<String, Object> buildChatRequest(String userMessage, boolean stream) {
+        Map<String, Object> requestBody = new HashMap<>();
+        requestBody.put("model", model);
+
+        List<Map<String, String>> messages = new java.util.ArrayList<>();
+        Map<String, String> message = new HashMap<>();
+        message.put("role", "user");
+        message.put("content", userMessage);
+        messages.add(message);
+        requestBody.put("messages", messages);
+
+        requestBody.put("temperature", 0.7);
+        requestBody.put("max_tokens", 2000);
+        if (stream) {
+            requestBody.put("stream", true);
+        }
+        return requestBody;
+    }
+
     public Response<String> generate(String userMessage, String systemMessage) {
         try {
             if (apiKey == null || apiKey.isEmpty()) {
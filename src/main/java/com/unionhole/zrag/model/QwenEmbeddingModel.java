@@ -17,6 +17,7 @@
 
 package com.unionhole.zrag.model;
 
+import com.unionhole.zrag.util.TextDecoder;
 import dev.langchain4j.data.embedding.Embedding;
 import dev.langchain4j.data.segment.TextSegment;
 import dev.langchain4j.model.embedding.EmbeddingModel;
@@ -222,160 +223,13 @@ public class QwenEmbeddingModel implements EmbeddingModel {
     
     /**
      * 安全地预览文本内容，避免乱码显示
+     * 只处理前 maxLength 个字符，不随输入长度扫描整段文本
      * 
      * @param text 原始文本
      * @param maxLength 最大长度
      * @return 安全的预览文本
      */
     private String getSafeTextPreview(String text, int maxLength) {
-        if (text == null || text.isEmpty()) {
-            return "[空文本]";
-        }
-        
-        try {
-            // 先尝试清理文本
-            String cleanedText = cleanTextForDisplay(text);
-            
-            // 检查是否仍然包含乱码
-            if (containsGarbledText(cleanedText)) {
-                // 尝试使用GBK编码重新处理
-                String gbkText = tryConvertWithGBK(text);
-                if (gbkText != null && !containsGarbledText(gbkText)) {
-                    cleanedText = gbkText;
-                } else {
-                    return "[检测到乱码，长度: " + text.length() + " 字符]";
-                }
-            }
-            
-            // 如果文本长度超过最大长度，截取并添加省略号
-            if (cleanedText.length() > maxLength) {
-                return cleanedText.substring(0, maxLength) + "...";
-            }
-            
-            return cleanedText;
-            
-        } catch (Exception e) {
-            log.debug("文本预览处理失败: {}", e.getMessage());
-            return "[文本预览失败，长度: " + text.length() + " 字符]";
-        }
-    }
-    
-    /**
-     * 检查文本是否包含乱码
-     * 
-     * @param text 待检查的文本
-     * @return 是否包含乱码
-     */
-    private boolean containsGarbledText(String text) {
-        if (text == null || text.isEmpty()) {
-            return false;
-        }
-        
-        // 检查常见的乱码模式
-        // 1. 包含替换字符
-        if (text.contains("")) {
-            return true;
-        }
-        
-        // 2. 检查是否有异常的控制字符
-        for (char c : text.toCharArray()) {
-            if (Character.isISOControl(c) && c != '\n' && c != '\r' && c != '\t') {
-                return true;
-            }
-        }
-        
-        // 3. 检查UTF-8有效性
-        try {
-            byte[] bytes = text.getBytes("UTF-8");
-            String reencoded = new String(bytes, "UTF-8");
-            return !text.equals(reencoded);
-        } catch (Exception e) {
-            return true;
-        }
-    }
-    
-    /**
-     * 清理文本用于显示
-     * 
-     * @param text 原始文本
-     * @return 清理后的文本
-     */
-    private String cleanTextForDisplay(String text) {
-        if (text == null || text.isEmpty()) {
-            return text;
-        }
-        
-        try {
-            // 移除BOM标记
-            if (text.startsWith("\uFEFF")) {
-                text = text.substring(1);
-            }
-            
-            // 替换替换字符
-            text = text.replace("", "");
-            
-            // 移除无效的控制字符
-            StringBuilder cleaned = new StringBuilder();
-            for (char c : text.toCharArray()) {
-                if (Character.isISOControl(c) && c != '\n' && c != '\r' && c != '\t') {
-                    cleaned.append(' ');
-                } else if (c == 0xFFFD) {
-                    cleaned.append('?');
-                } else {
-                    cleaned.append(c);
-                }
-            }
-            
-            return cleaned.toString().trim();
-            
-        } catch (Exception e) {
-            log.debug("文本清理失败: {}", e.getMessage());
-            return text;
-        }
-    }
-    
-    /**
-     * 尝试使用GBK编码转换文本
-     * 
-     * @param text 原始文本
-     * @return 转换后的文本，如果失败返回null
-     */
-    private String tryConvertWithGBK(String text) {
-        try {
-            // 将文本转换为字节数组，然后使用GBK解码
-            byte[] bytes = text.getBytes("ISO-8859-1");
-            String gbkText = new String(bytes, "GBK");
-            
-            // 检查转换结果是否包含中文字符
-            if (containsChineseCharacters(gbkText)) {
-                return gbkText;
-            }
-            
-            return null;
-        } catch (Exception e) {
-            log.debug("GBK转换失败: {}", e.getMessage());
-            return null;
-        }
-    }
-    
-    /**
-     * 检查文本是否包含中文字符
-     * 
-     * @param text 待检查的文本
-     * @return 是否包含中文字符
-     */
-    private boolean containsChineseCharacters(String text) {
-        if (text == null || text.isEmpty()) {
-            return false;
-        }
-        
-        for (char c : text.toCharArray()) {
-            // 检查是否为中文字符
-            if (Character.UnicodeScript.of(c) == Character.UnicodeScript.HAN) {
-                return true;
-            }
-        }
-        
-        return false;
+        return TextDecoder.preview(text, maxLength);
     }
 }
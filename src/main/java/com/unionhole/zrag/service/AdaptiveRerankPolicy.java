@@ -0,0 +1,351 @@
+/*
+ * Copyright 2025 james-zou
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.unionhole.zrag.service;
+
+import com.unionhole.zrag.util.HashUtils;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 自适应召回与重排策略
+ * 候选池大小：根据历史重排位移（最终结果在候选列表中的最深位置）的分位数确定向量检索数量；
+ * 跳过重排：保留结果与被淘汰结果之间的分数差距足够大时不调用重排。
+ * 每次查询的决策及其耗时记录下来，按比例抽样对本应跳过的查询仍执行重排，用于衡量跳过对结果的影响
+ */
+@Slf4j
+@Service
+public class AdaptiveRerankPolicy {
+
+    @Value("${rerank.adaptive.enabled:true}")
+    private boolean enabled;
+
+    @Value("${rerank.adaptive.skip-gap:0.15}")
+    private double skipGap;
+
+    @Value("${rerank.adaptive.skip-min-score:0.5}")
+    private double skipMinScore;
+
+    @Value("${rerank.adaptive.explore-rate:0.05}")
+    private double exploreRate;
+
+    @Value("${rerank.adaptive.window:200}")
+    private int window;
+
+    @Value("${rerank.adaptive.min-samples:20}")
+    private int minSamples;
+
+    @Value("${rerank.adaptive.percentile:0.95}")
+    private double percentile;
+
+    @Value("${rerank.adaptive.min-multiplier:1.5}")
+    private double minMultiplier;
+
+    @Value("${rerank.adaptive.max-multiplier:5}")
+    private double maxMultiplier;
+
+    @Value("${rerank.adaptive.history-size:100}")
+    private int historySize;
+
+    /** 最近若干次重排的位移深度比例（最深位置 / 返回数量） */
+    private final Deque<Double> depthRatios = new ArrayDeque<>();
+    private final Deque<Decision> history = new ArrayDeque<>();
+
+    private final AtomicLong reranked = new AtomicLong();
+    private final AtomicLong unscored = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong explored = new AtomicLong();
+    private final AtomicLong exploredAgreements = new AtomicLong();
+    private final AtomicLong rerankTimeTotal = new AtomicLong();
+
+    /**
+     * 单次查询的召回/重排决策
+     */
+    public static class Decision {
+        private final String queryHash;
+        private final String mode;
+        private final int maxResults;
+        private final int poolSize;
+        private final long timestamp = System.currentTimeMillis();
+        private int candidates;
+        private double gap;
+        private boolean rerank;
+        private boolean explore;
+        private String reason;
+        private long rerankMs;
+        private int depth;
+        private Double skipOverlap;
+        private boolean scored;
+
+        Decision(String queryHash, String mode, int maxResults, int poolSize) {
+            this.queryHash = queryHash;
+            this.mode = mode;
+            this.maxResults = maxResults;
+            this.poolSize = poolSize;
+        }
+
+        public boolean isRerank() {
+            return rerank;
+        }
+
+        public String getReason() {
+            return reason;
+        }
+
+        Map<String, Object> toMap() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("queryHash", queryHash.substring(0, 12));
+            map.put("mode", mode);
+            map.put("timestamp", timestamp);
+            map.put("maxResults", maxResults);
+            map.put("poolSize", poolSize);
+            map.put("candidates", candidates);
+            map.put("gap", gap);
+            map.put("rerank", rerank);
+            map.put("explore", explore);
+            map.put("scored", scored);
+            map.put("reason", reason);
+            map.put("rerankMs", rerankMs);
+            map.put("depth", depth);
+            map.put("skipOverlap", skipOverlap);
+            return map;
+        }
+    }
+
+    /**
+     * 计算向量检索的候选数量
+     * @param maxResults 最终返回数量
+     * @param defaultSize 样本不足或策略关闭时使用的数量
+     * @return 候选数量
+     */
+    public int candidatePoolSize(int maxResults, int defaultSize) {
+        if (!enabled) {
+            return defaultSize;
+        }
+        double[] ratios;
+        synchronized (depthRatios) {
+            if (depthRatios.size() < minSamples) {
+                return defaultSize;
+            }
+            ratios = depthRatios.stream().mapToDouble(Double::doubleValue).toArray();
+        }
+        Arrays.sort(ratios);
+        double ratio = ratios[Math.min(ratios.length - 1, (int) Math.ceil(percentile * ratios.length) - 1)];
+        double multiplier = Math.max(minMultiplier, Math.min(maxMultiplier, ratio));
+        return Math.max(maxResults + 1, (int) Math.ceil(maxResults * multiplier));
+    }
+
+    /**
+     * 判断是否需要重排
+     * 跳过重排时返回候选的前 maxResults 个，因此差距按候选顺序划分保留/淘汰两组，
+     * 只用向量相似度分数计算：保留组最低分减去淘汰组最高分。融合排序与向量分数不一致时差距为负，照常重排；
+     * 保留组含仅词法命中或淘汰组没有向量命中时分数不可比，照常重排
+     * @param query 查询文本
+     * @param mode 调用方式（sync/stream）
+     * @param maxResults 最终返回数量
+     * @param poolSize 向量检索数量
+     * @param candidates 候选结果（按召回或融合顺序）
+     * @param lexicalOnly 仅词法命中的片段，其分数不是向量相似度
+     * @return 决策
+     */
+    public Decision decide(String query, String mode, int maxResults, int poolSize,
+                           List<EmbeddingMatch<TextSegment>> candidates, Set<TextSegment> lexicalOnly) {
+        Decision decision = new Decision(HashUtils.sha256Hex(query), mode, maxResults, poolSize);
+        decision.candidates = candidates.size();
+        decision.rerank = true;
+        decision.reason = "默认重排";
+
+        if (!enabled) {
+            decision.reason = "自适应策略关闭";
+            return decision;
+        }
+        if (candidates.size() <= maxResults) {
+            decision.rerank = false;
+            decision.reason = "候选数不超过返回数量";
+            return decision;
+        }
+
+        double top = Double.NEGATIVE_INFINITY;
+        double lastKept = Double.POSITIVE_INFINITY;
+        for (EmbeddingMatch<TextSegment> match : candidates.subList(0, maxResults)) {
+            if (lexicalOnly.contains(match.embedded())) {
+                decision.reason = "保留结果含仅词法命中，分数不可比";
+                return decision;
+            }
+            top = Math.max(top, match.score());
+            lastKept = Math.min(lastKept, match.score());
+        }
+        double firstDropped = Double.NEGATIVE_INFINITY;
+        for (EmbeddingMatch<TextSegment> match : candidates.subList(maxResults, candidates.size())) {
+            if (!lexicalOnly.contains(match.embedded())) {
+                firstDropped = Math.max(firstDropped, match.score());
+            }
+        }
+        if (firstDropped == Double.NEGATIVE_INFINITY) {
+            decision.reason = "淘汰结果均为仅词法命中，无法计算分数差距";
+            return decision;
+        }
+        decision.gap = lastKept - firstDropped;
+
+        if (decision.gap >= skipGap && top >= skipMinScore) {
+            if (ThreadLocalRandom.current().nextDouble() < exploreRate) {
+                decision.explore = true;
+                decision.reason = "分数差距明显，抽样重排以评估跳过效果";
+            } else {
+                decision.rerank = false;
+                decision.reason = String.format("保留/淘汰分数差距 %.3f 达到阈值", decision.gap);
+            }
+        }
+        return decision;
+    }
+
+    /**
+     * 记录跳过重排的查询
+     */
+    public void recordSkip(Decision decision) {
+        skipped.incrementAndGet();
+        log.info("跳过重排: {}", decision.reason);
+        remember(decision);
+    }
+
+    /**
+     * 记录一次未经模型打分的重排（提供商未配置或调用失败，结果仅按向量分数排序）。
+     * 这类结果不反映真实位移，不计入深度样本和抽样一致率
+     */
+    public void recordUnscored(Decision decision, long rerankMs) {
+        reranked.incrementAndGet();
+        unscored.incrementAndGet();
+        rerankTimeTotal.addAndGet(rerankMs);
+        decision.rerankMs = rerankMs;
+        log.info("重排模型未打分，不计入位移统计");
+        remember(decision);
+    }
+
+    /**
+     * 记录一次重排结果，更新位移统计
+     * @param decision 决策
+     * @param candidates 重排前的候选（按召回顺序）
+     * @param reranked 重排后的结果
+     * @param rerankMs 重排耗时
+     */
+    public void recordRerank(Decision decision, List<EmbeddingMatch<TextSegment>> candidates,
+                             List<TextSegment> reranked, long rerankMs) {
+        this.reranked.incrementAndGet();
+        rerankTimeTotal.addAndGet(rerankMs);
+        decision.rerankMs = rerankMs;
+        decision.scored = true;
+
+        Map<TextSegment, Integer> positions = new IdentityHashMap<>();
+        for (int i = 0; i < candidates.size(); i++) {
+            positions.putIfAbsent(candidates.get(i).embedded(), i);
+        }
+        int depth = 0;
+        int overlap = 0;
+        for (TextSegment segment : reranked) {
+            Integer position = positions.get(segment);
+            if (position == null) {
+                continue;
+            }
+            depth = Math.max(depth, position + 1);
+            if (position < decision.maxResults) {
+                overlap++;
+            }
+        }
+        decision.depth = depth;
+
+        if (decision.explore && !reranked.isEmpty()) {
+            explored.incrementAndGet();
+            decision.skipOverlap = (double) overlap / reranked.size();
+            if (overlap == reranked.size()) {
+                exploredAgreements.incrementAndGet();
+            }
+        }
+
+        if (depth > 0 && decision.maxResults > 0) {
+            double ratio = (double) depth / decision.maxResults;
+            // 最深位置落在候选列表末尾时真实位移可能更深，放大比例使候选池增长
+            if (depth >= candidates.size()) {
+                ratio *= 1.5;
+            }
+            synchronized (depthRatios) {
+                depthRatios.addLast(ratio);
+                while (depthRatios.size() > window) {
+                    depthRatios.removeFirst();
+                }
+            }
+        }
+        remember(decision);
+    }
+
+    private void remember(Decision decision) {
+        synchronized (history) {
+            history.addLast(decision);
+            while (history.size() > historySize) {
+                history.removeFirst();
+            }
+        }
+    }
+
+    /**
+     * 获取策略统计信息与最近的决策记录
+     */
+    public Map<String, Object> getStats() {
+        long rerankCount = reranked.get();
+        long skipCount = skipped.get();
+        long exploreCount = explored.get();
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("enabled", enabled);
+        stats.put("reranked", rerankCount);
+        stats.put("skipped", skipCount);
+        stats.put("skipRate", rerankCount + skipCount > 0 ? (double) skipCount / (rerankCount + skipCount) : 0.0);
+        stats.put("avgRerankMs", rerankCount > 0 ? (double) rerankTimeTotal.get() / rerankCount : 0.0);
+        stats.put("unscored", unscored.get());
+        stats.put("explored", exploreCount);
+        // 抽样重排中，重排前后前N个结果集合完全一致的比例，即跳过重排不影响结果的比例
+        stats.put("skipAgreementRate", exploreCount > 0 ? (double) exploredAgreements.get() / exploreCount : null);
+        synchronized (depthRatios) {
+            stats.put("depthSamples", depthRatios.size());
+        }
+        int poolSize = candidatePoolSize(10, 0);
+        stats.put("poolMultiplier", poolSize > 0 ? poolSize / 10.0 : null);
+
+        List<Map<String, Object>> recent = new ArrayList<>();
+        synchronized (history) {
+            for (Decision decision : history) {
+                recent.add(decision.toMap());
+            }
+        }
+        stats.put("recentDecisions", recent);
+        return stats;
+    }
+}
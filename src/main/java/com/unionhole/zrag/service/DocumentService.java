@@ -19,24 +19,35 @@ package com.unionhole.zrag.service;
 
 import dev.langchain4j.data.document.Document;
 import dev.langchain4j.data.document.DocumentSplitter;
+import dev.langchain4j.data.document.Metadata;
 import dev.langchain4j.model.embedding.EmbeddingModel;
 import dev.langchain4j.data.embedding.Embedding;
 import dev.langchain4j.data.segment.TextSegment;
 import dev.langchain4j.store.embedding.EmbeddingStore;
-import dev.langchain4j.store.embedding.EmbeddingStoreIngestor;
 import com.unionhole.zrag.store.InMemoryEmbeddingStore;
 import com.unionhole.zrag.store.WeaviateEmbeddingStore;
 import com.unionhole.zrag.store.MilvusEmbeddingStore;
+import com.unionhole.zrag.util.CodeChunker;
+import com.unionhole.zrag.util.TextDecoder;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.InputStreamSource;
+import org.springframework.core.io.PathResource;
 import org.springframework.stereotype.Service;
+import org.springframework.util.StreamUtils;
 import org.springframework.web.multipart.MultipartFile;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
 import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * 文档处理服务
@@ -53,6 +64,10 @@ public class DocumentService {
     private final SmartDocumentSplitterService smartSplitterService;
     private final MinioStorageService minioStorageService;
     private final TikaDocumentParserService tikaParser;
+    private final ParallelDocumentExtractor parallelExtractor;
+    private final LexicalIndexService lexicalIndexService;
+    private final SemanticAnswerCache answerCache;
+    private final RetrievalCache retrievalCache;
 
     @Value("${storage.type:minio}")
     private String storageType;
@@ -72,18 +87,16 @@ public class DocumentService {
         log.info("开始处理 {} 个文档", documents.size());
         
         try {
-            // 使用注入的文档分割器
-            DocumentSplitter splitter = documentSplitter;
-            
-            // 创建嵌入存储摄取器
-            EmbeddingStoreIngestor ingestor = EmbeddingStoreIngestor.builder()
-                    .documentSplitter(splitter)
-                    .embeddingModel(embeddingModel)
-                    .embeddingStore(embeddingStore)
-                    .build();
-            
-            // 处理并存储文档
-            ingestor.ingest(documents);
+            // 分割、批量向量化并存储，保留返回的ID用于同步词法索引
+            List<TextSegment> segments = documentSplitter.splitAll(documents);
+            if (segments.isEmpty()) {
+                log.info("文档分割后无有效片段");
+                return;
+            }
+            List<Embedding> embeddings = embeddingModel.embedAll(segments).content();
+            List<String> ids = embeddingStore.addAll(embeddings, segments);
+            lexicalIndexService.indexAll(ids, segments);
+            retrievalCache.bumpVersion();
             
             log.info("文档处理完成，已存储到向量数据库");
         } catch (Exception e) {
@@ -118,18 +131,32 @@ public class DocumentService {
         try {
             log.info("处理上传文件: {}", file.getOriginalFilename());
             
-            // 存储文件到MinIO
-            String filePath = minioStorageService.uploadFile(file);
-            
             // 生成文件ID和租户ID
             String fileId = generateFileId(file.getOriginalFilename());
             String tenantId = getCurrentTenantId(); // 可以从安全上下文或配置中获取
             
-            // 处理文档并存储到向量数据库
-            processDocumentWithMetadata(file, fileId, tenantId);
+            // 上传内容只读取一次，同时存储到MinIO并解析入库
+            MinioStorageService.UploadResult upload;
+            try {
+                upload = minioStorageService.uploadFile(file,
+                        body -> processUploadedBody(file, body, fileId, tenantId));
+            } catch (RuntimeException e) {
+                // 上传或解析失败时已入库的片段没有对应的文件，一并删除
+                removeIndexedChunks(fileId, tenantId, file.getOriginalFilename());
+                throw e;
+            }
+            
+            if (upload.isDuplicate()) {
+                // 内容与已有文件相同：删除本次写入的片段和对象，返回已有对象
+                log.info("文件内容与已有文件相同，复用已有对象: {} -> {}, sha256={}",
+                        upload.getObjectName(), upload.getDuplicateOf(), upload.getSha256());
+                removeIndexedChunks(fileId, tenantId, file.getOriginalFilename());
+                minioStorageService.deleteFile(upload.getObjectName());
+                return upload.getDuplicateOf();
+            }
             
-            log.info("文件处理完成: {}", filePath);
-            return filePath;
+            log.info("文件处理完成: {}, sha256={}", upload.getObjectName(), upload.getSha256());
+            return upload.getObjectName();
             
         } catch (Exception e) {
             log.error("处理上传文件失败", e);
@@ -137,6 +164,27 @@ public class DocumentService {
         }
     }
 
+    /**
+     * 删除某个文件已写入向量库和词法索引的片段
+     */
+    private void removeIndexedChunks(String fileId, String tenantId, String fileName) {
+        try {
+            if (embeddingStore instanceof MilvusEmbeddingStore) {
+                ((MilvusEmbeddingStore) embeddingStore).deleteChunks(tenantId, fileId);
+            } else {
+                log.warn("当前向量存储不支持按文件删除，可能残留部分片段: fileId={}", fileId);
+            }
+            int removed = lexicalIndexService.removeFile(fileId);
+            log.info("已清理文件片段: fileId={}, 词法索引删除 {} 个", fileId, removed);
+        } catch (Exception e) {
+            log.error("清理文件片段失败: fileId={}", fileId, e);
+        } finally {
+            // 删除（包括部分失败）后，引用已删除片段的检索和回答缓存不能继续使用
+            answerCache.invalidateSources(java.util.Collections.singleton(fileName));
+            retrievalCache.bumpVersion();
+        }
+    }
+
     /**
      * 处理文本内容并存储
      * @param content 文本内容
@@ -175,6 +223,9 @@ public class DocumentService {
             } else if (embeddingStore instanceof WeaviateEmbeddingStore) {
                 WeaviateEmbeddingStore store = (WeaviateEmbeddingStore) embeddingStore;
                 return store.findAll().size();
+            } else if (embeddingStore instanceof MilvusEmbeddingStore) {
+                MilvusEmbeddingStore store = (MilvusEmbeddingStore) embeddingStore;
+                return Math.max(0, store.countChunks(null, null, null));
             }
             return 0;
         } catch (Exception e) {
@@ -183,6 +234,21 @@ public class DocumentService {
         }
     }
     
+    /**
+     * 获取向量数据库中的所有文档片段
+     * @return 文档片段列表
+     */
+    public List<TextSegment> findAllSegments() {
+        if (embeddingStore instanceof InMemoryEmbeddingStore) {
+            return ((InMemoryEmbeddingStore) embeddingStore).findAll();
+        } else if (embeddingStore instanceof WeaviateEmbeddingStore) {
+            return ((WeaviateEmbeddingStore) embeddingStore).findAll();
+        } else if (embeddingStore instanceof MilvusEmbeddingStore) {
+            return ((MilvusEmbeddingStore) embeddingStore).findAll();
+        }
+        return new ArrayList<>();
+    }
+    
     /**
      * 从向量库中获取文件名
      * @param objectName MinIO存储的对象名
@@ -220,12 +286,22 @@ public class DocumentService {
             } else {
                 log.warn("当前EmbeddingStore不支持清空操作");
             }
+            onStoreReset();
         } catch (Exception e) {
             log.error("清空向量数据库失败", e);
             throw new RuntimeException("清空向量数据库失败: " + e.getMessage(), e);
         }
     }
     
+    /**
+     * 向量库被清空或重建后调用，同步清空词法索引和各级缓存
+     */
+    public void onStoreReset() {
+        lexicalIndexService.clear();
+        answerCache.invalidateAll();
+        retrievalCache.bumpVersion();
+    }
+    
     /**
      * 处理带元数据的文档（支持多租户和文件ID）
      * @param document 文档对象
@@ -273,12 +349,18 @@ public class DocumentService {
                     // 使用新的方法存储带元数据的向量
                     storeDocumentVector(milvusStore, fileId, tenantId, chunkId, 
                                      embedding, segment.text(), metadata);
+                    indexSegment(chunkId, segment, metadata);
                 } else {
                     // 对于其他类型的存储，使用原有方法
-                    embeddingStore.add(embedding, segment);
+                    String id = embeddingStore.add(embedding, segment);
+                    lexicalIndexService.index(id, segment);
                 }
             }
             
+            // 同名文档重新入库，引用旧版本的缓存回答失效
+            answerCache.invalidateSources(java.util.Collections.singleton(fileName));
+            retrievalCache.bumpVersion();
+            
             log.info("文档处理完成: fileId={}, 处理了 {} 个片段", fileId, segments.size());
             
         } catch (Exception e) {
@@ -287,113 +369,132 @@ public class DocumentService {
         }
     }
     
+    /**
+     * 解析上传流并入库
+     * PDF/XLSX需要随机访问，先把上传流写入临时文件，并行提取和流式解析都直接读这个文件；
+     * 其他类型直接解析上传流。上传流只能读取一次，备用解析时重新读取上传的文件
+     */
+    private void processUploadedBody(MultipartFile file, InputStream body, String fileId, String tenantId)
+            throws IOException {
+        String fileName = file.getOriginalFilename();
+        if (parallelExtractor.supports(fileName)) {
+            String suffix = fileName.toLowerCase().endsWith(".pdf") ? ".pdf" : ".xlsx";
+            Path tempFile = Files.createTempFile("zrag-upload-", suffix);
+            try {
+                Files.copy(body, tempFile, StandardCopyOption.REPLACE_EXISTING);
+                processDocumentWithMetadata(file, new PathResource(tempFile), fileId, tenantId);
+            } finally {
+                Files.deleteIfExists(tempFile);
+            }
+            return;
+        }
+        AtomicBoolean bodyUsed = new AtomicBoolean();
+        InputStreamSource source = () -> bodyUsed.compareAndSet(false, true) ? body : file.getInputStream();
+        processDocumentWithMetadata(file, source, fileId, tenantId);
+    }
+    
     /**
      * 处理带元数据的文档（支持多租户和文件ID）
+     * 使用Tika单次流式解析，每输出一个文本窗口就立即分割、向量化并存储，文档全文不会整体驻留内存
      * @param file 上传的文件
      * @param fileId 文件ID
      * @param tenantId 租户ID
      */
     public void processDocumentWithMetadata(MultipartFile file, String fileId, String tenantId) {
+        processDocumentWithMetadata(file, file, fileId, tenantId);
+    }
+    
+    /**
+     * @param file 上传的文件，提供文件信息，并用于备用解析
+     * @param source 并行提取和流式解析读取的内容
+     */
+    private void processDocumentWithMetadata(MultipartFile file, InputStreamSource source, String fileId, String tenantId) {
         try {
+            String fileName = file.getOriginalFilename();
             log.info("=== RAG 索引阶段开始 ===");
             log.info("文件信息: fileId={}, tenantId={}, fileName={}, fileSize={} bytes", 
-                    fileId, tenantId, file.getOriginalFilename(), file.getSize());
+                    fileId, tenantId, fileName, file.getSize());
             
-            // 1. 文档读取阶段
-            log.info("--- 步骤1: 文档读取 ---");
+            IndexingStats stats = new IndexingStats();
             long startTime = System.currentTimeMillis();
-            String content = readFileWithCorrectEncoding(file);
-            Document document = Document.from(content);
-            long endTime = System.currentTimeMillis();
-            log.info("文档读取完成，内容长度: {} 字符，耗时: {} ms", 
-                    content.length(), (endTime - startTime));
-            
-            // 2. 文档分割阶段
-            log.info("--- 步骤2: 文档分割 ---");
-            log.info("开始使用智能分割器分割文档...");
-            startTime = System.currentTimeMillis();
-            List<TextSegment> segments = smartSplitterService.smartSplit(document, file.getOriginalFilename());
-            endTime = System.currentTimeMillis();
-            
-            log.info("文档分割完成，共 {} 个片段，耗时: {} ms", 
-                    segments.size(), (endTime - startTime));
-            log.info("分割统计: {}", smartSplitterService.getSplitterStats(segments));
             
-            // 3. 向量化和存储阶段
-            log.info("--- 步骤3: 向量化和存储 ---");
-            log.info("开始处理 {} 个文档片段...", segments.size());
+            // 分割器按第一段文本的内容选定，之后的文本沿用
+            DocumentSplitter[] splitter = new DocumentSplitter[1];
             
-            int successCount = 0;
-            int failCount = 0;
-            long totalVectorizationTime = 0;
-            long totalStorageTime = 0;
+            // 0. 代码文件读取原文整体分割，保留缩进，行号从文件开头计算
+            boolean streamed = false;
+            if (smartSplitterService.isCodeFile(fileName)) {
+                streamed = indexCodeFile(source, fileId, tenantId, fileName, stats);
+            }
             
-            for (int i = 0; i < segments.size(); i++) {
-                TextSegment segment = segments.get(i);
-                String chunkId = generateChunkId(fileId, i);
-                
+            // 1. 大型PDF/XLSX按页码区间或工作表并行提取，片段附带页码或工作表名
+            if (!streamed && parallelExtractor.supports(fileName)) {
                 try {
-                    // 3.1 生成嵌入向量
-                    log.info("处理片段 {}/{}: chunkId={}, textLength={}", 
-                            i + 1, segments.size(), chunkId, segment.text().length());
-                    
-                    long vectorStartTime = System.currentTimeMillis();
-                    Embedding embedding = embeddingModel.embed(segment).content();
-                    long vectorEndTime = System.currentTimeMillis();
-                    long vectorTime = vectorEndTime - vectorStartTime;
-                    totalVectorizationTime += vectorTime;
-                    
-                    log.info("向量化完成: chunkId={}, vectorSize={}, 耗时={}ms", 
-                            chunkId, embedding.vector().length, vectorTime);
-                    
-                    // 3.2 创建元数据
-                    Map<String, Object> metadata = new HashMap<>();
-                    metadata.put("file_id", fileId);
-                    metadata.put("tenant_id", tenantId);
-                    metadata.put("chunk_id", chunkId);
-                    metadata.put("file_name", file.getOriginalFilename());
-                    metadata.put("file_type", getFileType(file.getOriginalFilename()));
-                    metadata.put("chunk_index", i);
-                    metadata.put("total_chunks", segments.size());
-                    metadata.put("created_at", System.currentTimeMillis());
-                    
-                    log.debug("元数据: {}", metadata);
-                    
-                    // 3.3 存储到向量数据库
-                    long storageStartTime = System.currentTimeMillis();
-                    if (embeddingStore instanceof MilvusEmbeddingStore) {
-                        MilvusEmbeddingStore milvusStore = (MilvusEmbeddingStore) embeddingStore;
-                        // 使用新的方法存储带元数据的向量
-                        storeDocumentVector(milvusStore, fileId, tenantId, chunkId, 
-                                         embedding, segment.text(), metadata);
-                    } else {
-                        // 对于其他类型的存储，使用原有方法
-                        embeddingStore.add(embedding, segment);
+                    streamed = parallelExtractor.extract(source, fileName, part -> {
+                        if (splitter[0] == null) {
+                            splitter[0] = smartSplitterService.selectSplitter(part.getText(), fileName);
+                            log.info("为文档 {} 选择分割器: {}", fileName, splitter[0].getClass().getSimpleName());
+                        }
+                        List<TextSegment> segments = splitter[0].split(Document.from(part.getText()));
+                        indexSegments(segments, fileId, tenantId, fileName, -1, part.metadataFor(segments), stats);
+                    });
+                } catch (Exception e) {
+                    if (stats.chunkIndex > 0) {
+                        // 已有片段入库，不再使用其他方法重复写入
+                        throw e;
+                    }
+                    log.warn("并行提取失败，使用流式解析: {}", e.getMessage());
+                }
+            }
+            
+            // 2. 流式解析、分割与存储
+            if (!streamed) {
+                log.info("--- 步骤1: 流式解析、分割与存储 ---");
+                try {
+                    TikaDocumentParserService.StreamingParseResult result = tikaParser.parseStreaming(source, fileName, window -> {
+                        if (splitter[0] == null) {
+                            splitter[0] = smartSplitterService.selectSplitter(window, fileName);
+                            log.info("为文档 {} 选择分割器: {}", fileName, splitter[0].getClass().getSimpleName());
+                        }
+                        indexSegments(splitter[0].split(Document.from(window)), fileId, tenantId, fileName, -1, null, stats);
+                    });
+                    streamed = result.getTotalChars() > 0;
+                    if (!streamed) {
+                        log.warn("Tika流式解析没有提取到文本，使用备用方法");
                     }
-                    long storageEndTime = System.currentTimeMillis();
-                    long storageTime = storageEndTime - storageStartTime;
-                    totalStorageTime += storageTime;
-                    
-                    log.info("存储完成: chunkId={}, 耗时={}ms", chunkId, storageTime);
-                    successCount++;
-                    
                 } catch (Exception e) {
-                    log.error("处理片段失败: chunkId={}", chunkId, e);
-                    failCount++;
+                    if (stats.chunkIndex > 0) {
+                        // 已有片段入库，不再使用备用方法重复写入
+                        throw e;
+                    }
+                    log.warn("Tika流式解析失败，使用备用方法: {}", e.getMessage());
                 }
             }
             
+            // 3. 流式解析不可用时，整体读取文件后分割
+            if (!streamed) {
+                log.info("--- 步骤2: 备用解析 ---");
+                String content = readFileWithFallbackParser(file);
+                List<TextSegment> segments = smartSplitterService.smartSplit(Document.from(content), fileName);
+                log.info("分割统计: {}", smartSplitterService.getSplitterStats(segments));
+                indexSegments(segments, fileId, tenantId, fileName, segments.size(), null, stats);
+            }
+            
             // 4. 索引阶段总结
             log.info("--- 索引阶段总结 ---");
-            log.info("处理统计: 总片段数={}, 成功={}, 失败={}", 
-                    segments.size(), successCount, failCount);
+            log.info("处理统计: 总片段数={}, 成功={}, 失败={}, 总耗时={}ms", 
+                    stats.chunkIndex, stats.successCount, stats.failCount, System.currentTimeMillis() - startTime);
             log.info("性能统计: 总向量化耗时={}ms, 总存储耗时={}ms, 平均向量化耗时={}ms, 平均存储耗时={}ms", 
-                    totalVectorizationTime, totalStorageTime, 
-                    successCount > 0 ? totalVectorizationTime / successCount : 0,
-                    successCount > 0 ? totalStorageTime / successCount : 0);
+                    stats.vectorizationTime, stats.storageTime, 
+                    stats.successCount > 0 ? stats.vectorizationTime / stats.successCount : 0,
+                    stats.successCount > 0 ? stats.storageTime / stats.successCount : 0);
+            
+            // 同名文档重新入库，引用旧版本的缓存回答失效
+            answerCache.invalidateSources(java.util.Collections.singleton(fileName));
+            retrievalCache.bumpVersion();
             
             log.info("=== RAG 索引阶段完成 ===");
-            log.info("文档处理完成: fileId={}, 成功处理了 {} 个片段", fileId, successCount);
+            log.info("文档处理完成: fileId={}, 成功处理了 {} 个片段", fileId, stats.successCount);
             
         } catch (Exception e) {
             log.error("处理带元数据的文档失败", e);
@@ -401,6 +502,142 @@ public class DocumentService {
         }
     }
     
+    /**
+     * 索引过程中的统计信息，片段序号在多个窗口之间连续
+     */
+    private static class IndexingStats {
+        private int chunkIndex;
+        private int successCount;
+        private int failCount;
+        private long vectorizationTime;
+        private long storageTime;
+    }
+    
+    /**
+     * 代码文件直接解码原文后整体分割：Python、YAML的声明层级依赖缩进，片段行号需要从文件开头计算，
+     * 按窗口输出的流式解析会切断声明，因此不使用。代码文件通常较小，整体读入内存
+     * @return 是否已处理；读取失败或没有文本时返回false，由调用方使用流式解析
+     */
+    private boolean indexCodeFile(InputStreamSource source, String fileId, String tenantId, String fileName,
+                                  IndexingStats stats) {
+        TextDecoder.DecodedText decoded;
+        try (InputStream inputStream = source.getInputStream()) {
+            decoded = TextDecoder.decode(StreamUtils.copyToByteArray(inputStream), true);
+        } catch (Exception e) {
+            log.warn("读取代码文件失败，使用流式解析: {}, {}", fileName, e.getMessage());
+            return false;
+        }
+        String text = decoded.getText();
+        if (text.trim().isEmpty() || decoded.isGarbled()) {
+            log.warn("代码文件没有可用文本，使用流式解析: {}", fileName);
+            return false;
+        }
+        long maxTextLength = tikaParser.getMaxTextLength();
+        if (maxTextLength > 0 && text.length() > maxTextLength) {
+            log.warn("代码文件 {} 超过 {} 字符，其余内容已丢弃", fileName, maxTextLength);
+            text = text.substring(0, (int) maxTextLength);
+        }
+        
+        log.info("--- 步骤1: 代码文件分割与存储 ---");
+        DocumentSplitter splitter = smartSplitterService.selectSplitter(text, fileName);
+        log.info("为文档 {} 选择分割器: {}，编码: {}", fileName, splitter.getClass().getSimpleName(), decoded.getCharset());
+        List<TextSegment> segments = splitter.split(Document.from(text));
+        log.info("分割统计: {}", smartSplitterService.getSplitterStats(segments));
+        indexSegments(segments, fileId, tenantId, fileName, segments.size(), null, stats);
+        return true;
+    }
+    
+    /**
+     * 向量化并存储一批片段
+     * @param totalChunks 文档总片段数，流式处理时未知传-1
+     * @param extraMetadata 与片段一一对应的附加元数据（如页码），可为null
+     */
+    private void indexSegments(List<TextSegment> segments, String fileId, String tenantId, String fileName,
+                               int totalChunks, List<Map<String, Object>> extraMetadata, IndexingStats stats) {
+        int storedBefore = stats.successCount;
+        try {
+            storeSegments(segments, fileId, tenantId, fileName, totalChunks, extraMetadata, stats);
+        } finally {
+            // 流式入库按窗口写入，每个窗口写入后递增存储版本，避免检索缓存保留写入前的结果
+            if (stats.successCount > storedBefore) {
+                retrievalCache.bumpVersion();
+            }
+        }
+    }
+
+    /**
+     * 向量化并写入一批片段
+     */
+    private void storeSegments(List<TextSegment> segments, String fileId, String tenantId, String fileName,
+                              int totalChunks, List<Map<String, Object>> extraMetadata, IndexingStats stats) {
+        for (int i = 0; i < segments.size(); i++) {
+            TextSegment segment = segments.get(i);
+            int index = stats.chunkIndex++;
+            String chunkId = generateChunkId(fileId, index);
+            
+            try {
+                // 生成嵌入向量
+                log.info("处理片段 {}: chunkId={}, textLength={}", index + 1, chunkId, segment.text().length());
+                
+                long vectorStartTime = System.currentTimeMillis();
+                Embedding embedding = embeddingModel.embed(segment).content();
+                long vectorTime = System.currentTimeMillis() - vectorStartTime;
+                stats.vectorizationTime += vectorTime;
+                
+                log.info("向量化完成: chunkId={}, vectorSize={}, 耗时={}ms", 
+                        chunkId, embedding.vector().length, vectorTime);
+                
+                // 创建元数据
+                Map<String, Object> metadata = new HashMap<>();
+                metadata.put("file_id", fileId);
+                metadata.put("tenant_id", tenantId);
+                metadata.put("chunk_id", chunkId);
+                metadata.put("file_name", fileName);
+                metadata.put("file_type", getFileType(fileName));
+                metadata.put("chunk_index", index);
+                if (totalChunks > 0) {
+                    metadata.put("total_chunks", totalChunks);
+                }
+                metadata.put("created_at", System.currentTimeMillis());
+                // 代码分割器写入的符号和行号
+                for (String key : CodeChunker.METADATA_KEYS) {
+                    String value = segment.metadata().get(key);
+                    if (value != null) {
+                        metadata.put(key, value);
+                    }
+                }
+                if (extraMetadata != null) {
+                    metadata.putAll(extraMetadata.get(i));
+                }
+                
+                log.debug("元数据: {}", metadata);
+                
+                // 存储到向量数据库
+                long storageStartTime = System.currentTimeMillis();
+                if (embeddingStore instanceof MilvusEmbeddingStore) {
+                    MilvusEmbeddingStore milvusStore = (MilvusEmbeddingStore) embeddingStore;
+                    // 使用新的方法存储带元数据的向量
+                    storeDocumentVector(milvusStore, fileId, tenantId, chunkId, 
+                                     embedding, segment.text(), metadata);
+                    indexSegment(chunkId, segment, metadata);
+                } else {
+                    // 对于其他类型的存储，使用原有方法
+                    String id = embeddingStore.add(embedding, segment);
+                    lexicalIndexService.index(id, segment);
+                }
+                long storageTime = System.currentTimeMillis() - storageStartTime;
+                stats.storageTime += storageTime;
+                
+                log.info("存储完成: chunkId={}, 耗时={}ms", chunkId, storageTime);
+                stats.successCount++;
+                
+            } catch (Exception e) {
+                log.error("处理片段失败: chunkId={}", chunkId, e);
+                stats.failCount++;
+            }
+        }
+    }
+    
     /**
      * 存储文档向量到Milvus
      */
@@ -431,6 +668,7 @@ public class DocumentService {
                 try {
                     log.info("尝试重新创建Milvus集合...");
                     milvusStore.forceRecreateCollection();
+                    onStoreReset();
                     
                     // 重新尝试存储
                     log.info("重新尝试存储文档向量...");
@@ -459,6 +697,19 @@ public class DocumentService {
         }
     }
     
+    /**
+     * 同步写入词法索引，元数据与Milvus中保存的一致
+     */
+    private void indexSegment(String chunkId, TextSegment segment, Map<String, Object> metadata) {
+        Map<String, Object> stringMetadata = new HashMap<>();
+        for (Map.Entry<String, Object> entry : metadata.entrySet()) {
+            if (entry.getValue() != null) {
+                stringMetadata.put(entry.getKey(), String.valueOf(entry.getValue()));
+            }
+        }
+        lexicalIndexService.index(chunkId, TextSegment.from(segment.text(), Metadata.from(stringMetadata)));
+    }
+    
     /**
      * 生成文件ID
      */
@@ -493,12 +744,12 @@ public class DocumentService {
     }
     
     /**
-     * 使用Apache Tika统一解析文档为文本格式
+     * Tika流式解析不可用时的备用解析：按编码检测读取文本文件，或从二进制文件中提取文本
      * 
      * @param file 上传的文件
      * @return 解析后的文本内容
      */
-    private String readFileWithCorrectEncoding(MultipartFile file) {
+    private String readFileWithFallbackParser(MultipartFile file) {
         try {
             String fileName = file.getOriginalFilename();
             String contentType = file.getContentType();
@@ -508,26 +759,6 @@ public class DocumentService {
             log.info("文件信息: fileName={}, contentType={}, size={} bytes", 
                     fileName, contentType, fileBytes.length);
             
-            // 检测文档类型
-            String detectedType = tikaParser.detectDocumentType(file);
-            log.info("检测到文档类型: {}", detectedType);
-            
-            // 优先使用Tika解析，支持更多文档类型
-            log.info("尝试使用Tika解析文档: {}", fileName);
-            try {
-                String parsedText = tikaParser.parseDocument(file);
-                if (parsedText != null && !parsedText.trim().isEmpty() && 
-                    !parsedText.startsWith("[文档解析失败") && 
-                    !parsedText.startsWith("[文档解析异常")) {
-                    log.info("Tika解析成功，文本长度: {} 字符", parsedText.length());
-                    return parsedText;
-                } else {
-                    log.warn("Tika解析返回空结果或失败信息，使用备用方法");
-                }
-            } catch (Exception e) {
-                log.warn("Tika解析过程中发生异常，使用备用方法: {}", e.getMessage());
-            }
-            
             // 备用方法：使用原有的编码检测和文本提取逻辑
             log.info("使用备用方法处理文档: {}", fileName);
             
@@ -552,14 +783,15 @@ public class DocumentService {
                 return extractedText;
             }
             
-            // 对于文本文件，智能检测编码
-            String content = detectAndReadTextFile(fileBytes, fileName);
-            log.info("文本文件读取完成，原始长度: {} 字符", content.length());
-            log.debug("原始文本预览: {}", content.substring(0, Math.min(200, content.length())));
-            
-            // 清理文本，确保UTF-8有效性
-            String cleanedContent = cleanTextForUTF8(content);
-            log.info("文本清理完成，清理后长度: {} 字符", cleanedContent.length());
+            // 对于文本文件，在样本上检测编码后只解码一次，清理与统计在同一次遍历中完成
+            TextDecoder.DecodedText decoded = TextDecoder.decode(fileBytes, smartSplitterService.isCodeFile(fileName));
+            String cleanedContent = decoded.getText();
+            log.info("文本文件读取完成: {}，编码: {}，长度: {} 字符，中文字符: {}，替换字符: {}，控制字符: {}",
+                    fileName, decoded.getCharset(), cleanedContent.length(), decoded.getHanChars(),
+                    decoded.getReplacementChars(), decoded.getControlChars());
+            if (decoded.isGarbled()) {
+                log.warn("文本包含较多无法识别的字节，编码判断可能不准确: {}", fileName);
+            }
             log.debug("清理后文本预览: {}", cleanedContent.substring(0, Math.min(200, cleanedContent.length())));
             
             log.info("=== 文档解析处理完成 ===");
@@ -571,164 +803,6 @@ public class DocumentService {
         }
     }
     
-    /**
-     * 清理文本以确保UTF-8有效性
-     * 移除或替换无效的UTF-8字符
-     * 
-     * @param text 原始文本
-     * @return 清理后的文本
-     */
-    private String cleanTextForUTF8(String text) {
-        if (text == null || text.isEmpty()) {
-            return text;
-        }
-        
-        try {
-            log.debug("开始清理文本，原始长度: {} 字符", text.length());
-            
-            // 1. 移除BOM标记
-            if (text.startsWith("\uFEFF")) {
-                text = text.substring(1);
-                log.debug("移除了UTF-8 BOM标记");
-            }
-            
-            // 2. 替换替换字符（）
-            int replacementCount = 0;
-            text = text.replace("", "");
-            if (text.length() != text.replace("", "").length()) {
-                replacementCount = text.length() - text.replace("", "").length();
-                text = text.replace("", "");
-                log.debug("替换了 {} 个替换字符", replacementCount);
-            }
-            
-            // 3. 移除或替换无效的控制字符和二进制数据
-            StringBuilder cleaned = new StringBuilder();
-            int controlCharCount = 0;
-            int binaryCharCount = 0;
-            
-            for (char c : text.toCharArray()) {
-                if (Character.isISOControl(c) && c != '\n' && c != '\r' && c != '\t') {
-                    // 替换无效控制字符为空格
-                    cleaned.append(' ');
-                    controlCharCount++;
-                } else if (c == 0xFFFD) {
-                    // 替换替换字符
-                    cleaned.append('?');
-                    controlCharCount++;
-                } else if (c < 32 || c > 126) {
-                    // 检查是否为非ASCII字符，但保留有效的Unicode字符
-                    if (Character.isValidCodePoint(c) && Character.isDefined(c)) {
-                        cleaned.append(c);
-                    } else {
-                        // 无效的Unicode字符，替换为问号
-                        cleaned.append('?');
-                        binaryCharCount++;
-                    }
-                } else {
-                    cleaned.append(c);
-                }
-            }
-            
-            String result = cleaned.toString();
-            log.debug("文本清理统计: 控制字符={}, 二进制字符={}, 清理后长度={}", 
-                    controlCharCount, binaryCharCount, result.length());
-            
-            // 4. 验证UTF-8有效性
-            if (!isValidUTF8(result)) {
-                log.warn("文本仍包含无效UTF-8字符，尝试GBK编码转换");
-                String gbkResult = tryConvertWithGBK(result);
-                if (gbkResult != null && !containsGarbledText(gbkResult)) {
-                    result = gbkResult;
-                    log.info("成功使用GBK编码转换文本");
-                } else {
-                    log.warn("GBK转换失败，进行强制UTF-8转换");
-                    result = forceUTF8Conversion(result);
-                }
-            }
-            
-            // 5. 清理多余的空白字符
-            result = result.replaceAll("\\s+", " ").trim();
-            
-            log.debug("文本清理完成，最终长度: {} 字符", result.length());
-            return result;
-            
-        } catch (Exception e) {
-            log.error("文本清理失败，返回原始文本", e);
-            return text;
-        }
-    }
-    
-    /**
-     * 强制转换为有效的UTF-8
-     * 
-     * @param text 原始文本
-     * @return 有效的UTF-8文本
-     */
-    private String forceUTF8Conversion(String text) {
-        try {
-            // 将文本转换为字节数组，然后重新解码为UTF-8
-            byte[] bytes = text.getBytes("UTF-8");
-            return new String(bytes, "UTF-8");
-        } catch (Exception e) {
-            log.warn("强制UTF-8转换失败，使用ASCII清理", e);
-            // 如果UTF-8转换失败，使用ASCII清理
-            return text.replaceAll("[^\\x00-\\x7F]", "?");
-        }
-    }
-    
-    /**
-     * 验证字符串是否为有效的UTF-8
-     * 
-     * @param text 待验证的文本
-     * @return 是否为有效的UTF-8
-     */
-    private boolean isValidUTF8(String text) {
-        try {
-            if (text == null || text.isEmpty()) {
-                return true;
-            }
-            
-            // 1. 检查是否包含替换字符
-            if (text.contains("")) {
-                log.debug("文本包含替换字符，UTF-8无效");
-                return false;
-            }
-            
-            // 2. 检查是否包含无效的Unicode字符
-            for (int i = 0; i < text.length(); i++) {
-                char c = text.charAt(i);
-                if (c == 0xFFFD) { // 替换字符
-                    log.debug("文本包含替换字符，UTF-8无效");
-                    return false;
-                }
-                if (Character.isHighSurrogate(c) || Character.isLowSurrogate(c)) {
-                    // 检查代理对是否有效
-                    if (i + 1 >= text.length() || !Character.isSurrogatePair(c, text.charAt(i + 1))) {
-                        log.debug("文本包含无效的代理对，UTF-8无效");
-                        return false;
-                    }
-                    i++; // 跳过下一个字符
-                }
-            }
-            
-            // 3. 尝试重新编码验证
-            byte[] bytes = text.getBytes("UTF-8");
-            String reencoded = new String(bytes, "UTF-8");
-            boolean isValid = text.equals(reencoded);
-            
-            if (!isValid) {
-                log.debug("文本重新编码后不匹配，UTF-8无效");
-            }
-            
-            return isValid;
-            
-        } catch (Exception e) {
-            log.debug("UTF-8验证异常: {}", e.getMessage());
-            return false;
-        }
-    }
-    
-    
     /**
      * 检查文件是否为二进制文件
      * 
@@ -906,67 +980,43 @@ public class DocumentService {
      */
     private String extractTextFromDocxSimple(byte[] fileBytes) {
         try {
-            // 尝试不同的编码来读取DOCX文件内容
-            String[] encodings = {"UTF-8", "GBK", "GB2312", "ISO-8859-1"};
-            String bestContent = null;
-            int maxTextLength = 0;
+            // 检测编码后只解码一次
+            String content = TextDecoder.decode(fileBytes).getText();
             
-            for (String encoding : encodings) {
-                try {
-                    String content = new String(fileBytes, encoding);
-                    log.debug("使用编码 {} 读取DOCX，长度: {} 字符", encoding, content.length());
-                    
-                    // 查找document.xml中的文本内容
-                    StringBuilder text = new StringBuilder();
-                    
-                    // 查找<w:t>标签中的文本内容
-                    String[] lines = content.split("\n");
-                    for (String line : lines) {
-                        if (line.contains("<w:t>") && line.contains("</w:t>")) {
-                            // 提取<w:t>和</w:t>之间的文本
-                            int start = line.indexOf("<w:t>") + 5;
-                            int end = line.indexOf("</w:t>", start);
-                            if (start < end) {
-                                String textContent = line.substring(start, end);
-                                // 解码XML实体
-                                textContent = textContent.replace("&lt;", "<")
-                                                       .replace("&gt;", ">")
-                                                       .replace("&amp;", "&")
-                                                       .replace("&quot;", "\"")
-                                                       .replace("&apos;", "'");
-                                text.append(textContent).append(" ");
-                            }
-                        }
-                    }
-                    
-                    String result = text.toString().trim();
-                    if (result.length() > maxTextLength) {
-                        maxTextLength = result.length();
-                        bestContent = result;
-                        log.debug("编码 {} 提取到 {} 字符文本", encoding, result.length());
-                    }
-                    
-                } catch (Exception e) {
-                    log.debug("使用编码 {} 解析DOCX失败: {}", encoding, e.getMessage());
+            // 查找<w:t>标签中的文本内容
+            StringBuilder text = new StringBuilder();
+            int from = 0;
+            while (true) {
+                int start = content.indexOf("<w:t>", from);
+                if (start < 0) {
+                    break;
                 }
+                start += 5;
+                int end = content.indexOf("</w:t>", start);
+                if (end < 0) {
+                    break;
+                }
+                // 解码XML实体
+                String textContent = content.substring(start, end)
+                                           .replace("&lt;", "<")
+                                           .replace("&gt;", ">")
+                                           .replace("&amp;", "&")
+                                           .replace("&quot;", "\"")
+                                           .replace("&apos;", "'");
+                text.append(textContent).append(" ");
+                from = end + 6;
             }
             
-            if (bestContent != null && !bestContent.isEmpty()) {
-                return bestContent;
+            String result = text.toString().trim();
+            if (!result.isEmpty()) {
+                return result;
             }
             
-            // 如果所有编码都失败，尝试查找其他可能的文本标签
-            for (String encoding : encodings) {
-                try {
-                    String content = new String(fileBytes, encoding);
-                    String result = extractTextFromXmlTags(content);
-                    if (result != null && !result.trim().isEmpty()) {
-                        log.debug("使用编码 {} 通过XML标签提取到文本", encoding);
-                        return result;
-                    }
-                } catch (Exception e) {
-                    // 继续尝试下一个编码
-                }
+            // 尝试查找其他可能的文本标签
+            result = extractTextFromXmlTags(content);
+            if (result != null && !result.trim().isEmpty()) {
+                log.debug("通过XML标签提取到文本");
+                return result;
             }
             
             return null;
@@ -1059,158 +1109,6 @@ public class DocumentService {
         return result;
     }
     
-    /**
-     * 智能检测文本文件编码并读取
-     * 
-     * @param fileBytes 文件字节数组
-     * @param fileName 文件名
-     * @return 读取的文本内容
-     */
-    private String detectAndReadTextFile(byte[] fileBytes, String fileName) {
-        try {
-            // 尝试检测BOM
-            if (fileBytes.length >= 3) {
-                // UTF-8 BOM
-                if (fileBytes[0] == (byte) 0xEF && fileBytes[1] == (byte) 0xBB && fileBytes[2] == (byte) 0xBF) {
-                    return new String(fileBytes, 3, fileBytes.length - 3, "UTF-8");
-                }
-            }
-            
-            if (fileBytes.length >= 2) {
-                // UTF-16 LE BOM
-                if (fileBytes[0] == (byte) 0xFF && fileBytes[1] == (byte) 0xFE) {
-                    return new String(fileBytes, 2, fileBytes.length - 2, "UTF-16LE");
-                }
-                // UTF-16 BE BOM
-                if (fileBytes[0] == (byte) 0xFE && fileBytes[1] == (byte) 0xFF) {
-                    return new String(fileBytes, 2, fileBytes.length - 2, "UTF-16BE");
-                }
-            }
-            
-            // 尝试不同的编码，优先使用中文编码
-            String[] encodings = {"UTF-8", "GBK", "GB2312", "GB18030", "ISO-8859-1", "Windows-1252"};
-            
-            for (String encoding : encodings) {
-                try {
-                    String content = new String(fileBytes, encoding);
-                    // 检查是否包含替换字符，如果有则说明编码不正确
-                    if (!content.contains("")) {
-                        // 对于中文编码，额外检查是否包含中文字符
-                        if (encoding.startsWith("GB") || encoding.equals("UTF-8")) {
-                            if (containsChineseCharacters(content)) {
-                                log.info("成功使用编码 {} 读取文件，检测到中文字符: {}", encoding, fileName);
-                                return content;
-                            }
-                        } else {
-                            log.info("成功使用编码 {} 读取文件: {}", encoding, fileName);
-                            return content;
-                        }
-                    }
-                } catch (Exception e) {
-                    // 继续尝试下一个编码
-                }
-            }
-            
-            // 如果所有编码都失败，使用UTF-8作为默认
-            log.warn("无法确定文件编码，使用UTF-8作为默认: {}", fileName);
-            try {
-                return new String(fileBytes, "UTF-8");
-            } catch (java.io.UnsupportedEncodingException e) {
-                // UTF-8应该总是支持的，如果失败则使用系统默认编码
-                log.warn("UTF-8编码不可用，使用系统默认编码: {}", e.getMessage());
-                return new String(fileBytes);
-            }
-            
-        } catch (Exception e) {
-            log.error("检测文件编码失败: {}", e.getMessage());
-            try {
-                return new String(fileBytes, "UTF-8");
-            } catch (java.io.UnsupportedEncodingException ex) {
-                log.warn("UTF-8编码不可用，使用系统默认编码: {}", ex.getMessage());
-                return new String(fileBytes);
-            }
-        }
-    }
-    
-    /**
-     * 检查文本是否包含中文字符
-     * 
-     * @param text 待检查的文本
-     * @return 是否包含中文字符
-     */
-    private boolean containsChineseCharacters(String text) {
-        if (text == null || text.isEmpty()) {
-            return false;
-        }
-        
-        for (char c : text.toCharArray()) {
-            // 检查是否为中文字符
-            if (Character.UnicodeScript.of(c) == Character.UnicodeScript.HAN) {
-                return true;
-            }
-        }
-        
-        return false;
-    }
-    
-    /**
-     * 尝试使用GBK编码转换文本
-     * 
-     * @param text 原始文本
-     * @return 转换后的文本，如果失败返回null
-     */
-    private String tryConvertWithGBK(String text) {
-        try {
-            // 将文本转换为字节数组，然后使用GBK解码
-            byte[] bytes = text.getBytes("ISO-8859-1");
-            String gbkText = new String(bytes, "GBK");
-            
-            // 检查转换结果是否包含中文字符且没有乱码
-            if (containsChineseCharacters(gbkText) && !containsGarbledText(gbkText)) {
-                return gbkText;
-            }
-            
-            return null;
-        } catch (Exception e) {
-            log.debug("GBK转换失败: {}", e.getMessage());
-            return null;
-        }
-    }
-    
-    /**
-     * 检查文本是否包含乱码
-     * 
-     * @param text 待检查的文本
-     * @return 是否包含乱码
-     */
-    private boolean containsGarbledText(String text) {
-        if (text == null || text.isEmpty()) {
-            return false;
-        }
-        
-        // 检查常见的乱码模式
-        // 1. 包含替换字符
-        if (text.contains("")) {
-            return true;
-        }
-        
-        // 2. 检查是否有异常的控制字符
-        for (char c : text.toCharArray()) {
-            if (Character.isISOControl(c) && c != '\n' && c != '\r' && c != '\t') {
-                return true;
-            }
-        }
-        
-        // 3. 检查UTF-8有效性
-        try {
-            byte[] bytes = text.getBytes("UTF-8");
-            String reencoded = new String(bytes, "UTF-8");
-            return !text.equals(reencoded);
-        } catch (Exception e) {
-            return true;
-        }
-    }
-    
     /**
      * 将字节数组转换为十六进制字符串
      * 
@@ -1234,6 +1132,14 @@ public class DocumentService {
         return sb.toString();
     }
     
+    /**
+     * 获取文档解析统计信息
+     * @return 解析线程池状态及按文档类型的解析耗时
+     */
+    public Map<String, Object> getParseStats() {
+        return tikaParser.getParseStats();
+    }
+    
     /**
      * 检查Tika是否可用
      * @return 是否可用
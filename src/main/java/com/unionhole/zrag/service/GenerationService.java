@@ -18,17 +18,34 @@
 package com.unionhole.zrag.service;
 
 import com.unionhole.zrag.util.StreamingUtils;
+import dev.langchain4j.data.message.AiMessage;
 import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.StreamingResponseHandler;
 import dev.langchain4j.model.chat.ChatLanguageModel;
+import dev.langchain4j.model.chat.StreamingChatLanguageModel;
+import dev.langchain4j.model.output.Response;
 import dev.langchain4j.rag.content.retriever.ContentRetriever;
 import dev.langchain4j.rag.query.Query;
 import dev.langchain4j.service.AiServices;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * 生成服务
@@ -40,6 +57,31 @@ import java.util.List;
 public class GenerationService {
 
     private final ChatLanguageModel chatModel;
+    private final StreamingChatLanguageModel streamingChatModel;
+    private final PromptContextBuilder contextBuilder;
+
+    @Value("${generation.stream-timeout-seconds:120}")
+    private long streamTimeoutSeconds;
+
+    /** 发起流式调用的线程，千问的流式调用会在调用线程中读完整个响应 */
+    private ExecutorService streamExecutor;
+
+    @PostConstruct
+    public void initialize() {
+        AtomicInteger threadIndex = new AtomicInteger();
+        streamExecutor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "generation-stream-" + threadIndex.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (streamExecutor != null) {
+            streamExecutor.shutdownNow();
+        }
+    }
 
     /**
      * 基于检索到的文档生成回答
@@ -59,9 +101,10 @@ public class GenerationService {
             StringBuilder context = new StringBuilder();
             context.append("基于以下文档内容回答用户的问题：\n\n");
             
-            for (int i = 0; i < retrievedDocuments.size(); i++) {
+            List<String> passages = contextBuilder.buildFromTexts(retrievedDocuments).getPassages();
+            for (int i = 0; i < passages.size(); i++) {
                 context.append("文档片段 ").append(i + 1).append(":\n");
-                context.append(retrievedDocuments.get(i)).append("\n\n");
+                context.append(passages.get(i)).append("\n\n");
             }
             
             // 构建提示词
@@ -183,10 +226,11 @@ public class GenerationService {
             StringBuilder context = new StringBuilder();
             context.append("基于以下文档内容回答问题：\n\n");
             
-            for (int i = 0; i < relevantSegments.size(); i++) {
-                TextSegment segment = relevantSegments.get(i);
+            PromptContextBuilder.Context promptContext = contextBuilder.build(relevantSegments);
+            List<String> passages = promptContext.getPassages();
+            for (int i = 0; i < passages.size(); i++) {
                 context.append("文档片段 ").append(i + 1).append(":\n");
-                context.append(segment.text()).append("\n\n");
+                context.append(passages.get(i)).append("\n\n");
             }
             
             context.append("问题: ").append(query).append("\n\n");
@@ -194,7 +238,8 @@ public class GenerationService {
             
             // 发送生成进度
             StreamingUtils.sendGeneration(emitter, "📝 正在构建上下文...");
-            StreamingUtils.sendGeneration(emitter, String.format("📚 已加载 %d 个相关文档片段", relevantSegments.size()));
+            StreamingUtils.sendGeneration(emitter, String.format("📚 已加载 %d 个相关文档片段，合并为 %d 段上下文（%d tokens）",
+                    relevantSegments.size(), passages.size(), promptContext.getTokens()));
             StreamingUtils.sendGeneration(emitter, "🤖 正在调用AI模型生成回答...");
             
             // 记录完整的prompt
@@ -204,7 +249,7 @@ public class GenerationService {
             
             // 生成回答
             long startTime = System.currentTimeMillis();
-            String answer = chatModel.generate(context.toString());
+            String answer = generateWithTokenStreaming(context.toString(), emitter);
             long endTime = System.currentTimeMillis();
             
             log.info("回答生成完成，耗时: {} ms", endTime - startTime);
@@ -221,6 +266,90 @@ public class GenerationService {
         }
     }
 
+    /**
+     * 流式调用模型生成回答，token到达后立即通过SSE转发；首个token之前失败时回退到阻塞调用。
+     * 模型调用在独立线程中发起，超时从发起调用时开始计算；超时、失败或回退后不再转发token，
+     * 之后到达的token在回调中抛出 CancellationException，使上游停止读取并关闭连接
+     * @param prompt 提示词
+     * @param emitter 流式响应发射器
+     * @return 完整回答
+     */
+    private String generateWithTokenStreaming(String prompt, SseEmitter emitter) throws Exception {
+        if (streamingChatModel == null) {
+            return chatModel.generate(prompt);
+        }
+
+        long startTime = System.currentTimeMillis();
+        StringBuilder answer = new StringBuilder();
+        AtomicInteger tokenCount = new AtomicInteger();
+        AtomicBoolean done = new AtomicBoolean();
+        CompletableFuture<String> completion = new CompletableFuture<>();
+
+        StreamingResponseHandler<AiMessage> handler = new StreamingResponseHandler<AiMessage>() {
+            @Override
+            public void onNext(String token) {
+                synchronized (answer) {
+                    if (done.get()) {
+                        throw new CancellationException("流式生成已结束");
+                    }
+                    if (tokenCount.getAndIncrement() == 0) {
+                        log.info("首个token到达，耗时: {} ms", System.currentTimeMillis() - startTime);
+                    }
+                    answer.append(token);
+                    StreamingUtils.sendToken(emitter, token);
+                }
+            }
+
+            @Override
+            public void onComplete(Response<AiMessage> response) {
+                AiMessage message = response == null ? null : response.content();
+                synchronized (answer) {
+                    completion.complete(message != null && message.text() != null ? message.text() : answer.toString());
+                }
+            }
+
+            @Override
+            public void onError(Throwable error) {
+                completion.completeExceptionally(error);
+            }
+        };
+
+        try {
+            streamExecutor.execute(() -> {
+                try {
+                    streamingChatModel.generate(prompt, handler);
+                } catch (Exception e) {
+                    completion.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            completion.completeExceptionally(e);
+        }
+
+        try {
+            String result = completion.get(streamTimeoutSeconds, TimeUnit.SECONDS);
+            log.info("流式生成完成，token数: {}, 耗时: {} ms", tokenCount.get(), System.currentTimeMillis() - startTime);
+            return result;
+        } catch (ExecutionException | TimeoutException | InterruptedException e) {
+            Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+            int tokens;
+            synchronized (answer) {
+                // 之后到达的token不再转发，上游在下一个token时停止
+                done.set(true);
+                tokens = tokenCount.get();
+            }
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+                throw e;
+            }
+            if (tokens == 0) {
+                log.warn("流式生成失败，回退到阻塞调用: {}", cause.getMessage());
+                return chatModel.generate(prompt);
+            }
+            throw new RuntimeException("流式生成中断: " + cause.getMessage(), cause);
+        }
+    }
+
     /**
      * 生成股神投资主题回答
      * @param query 用户查询
@@ -240,9 +369,10 @@ public class GenerationService {
             context.append("你是一位专业的投资顾问，具有丰富的股票、基金、债券等投资经验。");
             context.append("请基于以下投资相关文档内容，以专业投资顾问的身份回答用户的问题：\n\n");
             
-            for (int i = 0; i < retrievedDocuments.size(); i++) {
+            List<String> passages = contextBuilder.buildFromTexts(retrievedDocuments).getPassages();
+            for (int i = 0; i < passages.size(); i++) {
                 context.append("投资文档片段 ").append(i + 1).append(":\n");
-                context.append(retrievedDocuments.get(i)).append("\n\n");
+                context.append(passages.get(i)).append("\n\n");
             }
             
             // 构建投资主题提示词
@@ -349,7 +479,7 @@ public class GenerationService {
             
             // 生成回答
             long startTime = System.currentTimeMillis();
-            String answer = chatModel.generate(prompt);
+            String answer = generateWithTokenStreaming(prompt, emitter);
             long endTime = System.currentTimeMillis();
             
             log.info("无知识AI检索回答生成完成，耗时: {} ms", endTime - startTime);
@@ -391,27 +521,23 @@ public class GenerationService {
             StringBuilder context = new StringBuilder();
             context.append("基于以下文档内容回答问题：\n\n");
             
-            // 收集引用文件信息
-            java.util.List<java.util.Map<String, String>> referencedDocuments = new java.util.ArrayList<>();
-            
-            for (int i = 0; i < relevantSegments.size(); i++) {
-                TextSegment segment = relevantSegments.get(i);
+            PromptContextBuilder.Context promptContext = contextBuilder.build(relevantSegments);
+            List<String> passages = promptContext.getPassages();
+            for (int i = 0; i < passages.size(); i++) {
                 context.append("文档片段 ").append(i + 1).append(":\n");
-                context.append(segment.text()).append("\n\n");
-                
-                // 提取详细文档信息
-                java.util.Map<String, String> docInfo = extractDocumentInfo(segment);
-                if (docInfo != null && !docInfo.isEmpty()) {
-                    referencedDocuments.add(docInfo);
-                }
+                context.append(passages.get(i)).append("\n\n");
             }
             
+            // 收集引用文件信息
+            java.util.List<java.util.Map<String, String>> referencedDocuments = extractReferencedDocuments(relevantSegments);
+            
             context.append("问题: ").append(query).append("\n\n");
             context.append("请基于上述文档内容，提供准确、详细的回答。如果文档中没有相关信息，请明确说明。");
             
             // 发送生成进度
             StreamingUtils.sendGeneration(emitter, "📝 正在构建上下文...");
-            StreamingUtils.sendGeneration(emitter, String.format("📚 已加载 %d 个相关文档片段", relevantSegments.size()));
+            StreamingUtils.sendGeneration(emitter, String.format("📚 已加载 %d 个相关文档片段，合并为 %d 段上下文（%d tokens）",
+                    relevantSegments.size(), passages.size(), promptContext.getTokens()));
             StreamingUtils.sendGeneration(emitter, "🤖 正在调用AI模型生成回答...");
             
             // 记录完整的prompt
@@ -421,35 +547,13 @@ public class GenerationService {
             
             // 生成回答
             long startTime = System.currentTimeMillis();
-            String answer = chatModel.generate(context.toString());
+            String answer = generateWithTokenStreaming(context.toString(), emitter);
             long endTime = System.currentTimeMillis();
             
             log.info("带引用信息的回答生成完成，耗时: {} ms", endTime - startTime);
             
             // 发送引用信息
-            if (!referencedDocuments.isEmpty()) {
-                StringBuilder references = new StringBuilder();
-                references.append("**📚 引用来源：**\n");
-                for (java.util.Map<String, String> docInfo : referencedDocuments) {
-                    String fileName = docInfo.get("fileName");
-                    String fileId = docInfo.get("fileId");
-                    String chunkIndex = docInfo.get("chunkIndex");
-                    references.append("• ").append(fileName);
-                    if (chunkIndex != null) {
-                        references.append(" (片段 ").append(chunkIndex).append(")");
-                    }
-                    references.append("\n");
-                }
-                StreamingUtils.sendReferences(emitter, references.toString());
-                
-                // 发送详细文档信息供前端使用
-                log.info("发送文档详情信息，文档数量: {}", referencedDocuments.size());
-                for (java.util.Map<String, String> doc : referencedDocuments) {
-                    log.info("文档详情: fileName={}, fileId={}, chunkIndex={}", 
-                        doc.get("fileName"), doc.get("fileId"), doc.get("chunkIndex"));
-                }
-                StreamingUtils.sendDocumentDetails(emitter, referencedDocuments);
-            }
+            sendReferenceInfo(emitter, referencedDocuments);
             
             // 发送生成完成信息
             StreamingUtils.sendGeneration(emitter, String.format("✅ 回答生成完成，耗时 %d ms", endTime - startTime));
@@ -463,6 +567,53 @@ public class GenerationService {
         }
     }
 
+    /**
+     * 提取文档片段的引用信息
+     * @param segments 文档片段
+     * @return 引用文档信息列表
+     */
+    public java.util.List<java.util.Map<String, String>> extractReferencedDocuments(List<TextSegment> segments) {
+        java.util.List<java.util.Map<String, String>> referencedDocuments = new java.util.ArrayList<>();
+        for (TextSegment segment : segments) {
+            java.util.Map<String, String> docInfo = extractDocumentInfo(segment);
+            if (docInfo != null && !docInfo.isEmpty()) {
+                referencedDocuments.add(docInfo);
+            }
+        }
+        return referencedDocuments;
+    }
+    
+    /**
+     * 发送引用来源及文档详情
+     * @param emitter 流式响应发射器
+     * @param referencedDocuments 引用文档信息列表
+     */
+    public void sendReferenceInfo(SseEmitter emitter, java.util.List<java.util.Map<String, String>> referencedDocuments) {
+        if (referencedDocuments.isEmpty()) {
+            return;
+        }
+        StringBuilder references = new StringBuilder();
+        references.append("**📚 引用来源：**\n");
+        for (java.util.Map<String, String> docInfo : referencedDocuments) {
+            String fileName = docInfo.get("fileName");
+            String chunkIndex = docInfo.get("chunkIndex");
+            references.append("• ").append(fileName);
+            if (chunkIndex != null) {
+                references.append(" (片段 ").append(chunkIndex).append(")");
+            }
+            references.append("\n");
+        }
+        StreamingUtils.sendReferences(emitter, references.toString());
+        
+        // 发送详细文档信息供前端使用
+        log.info("发送文档详情信息，文档数量: {}", referencedDocuments.size());
+        for (java.util.Map<String, String> doc : referencedDocuments) {
+            log.info("文档详情: fileName={}, fileId={}, chunkIndex={}", 
+                doc.get("fileName"), doc.get("fileId"), doc.get("chunkIndex"));
+        }
+        StreamingUtils.sendDocumentDetails(emitter, referencedDocuments);
+    }
+
     /**
      * 无知识时的股神投资AI检索回答生成
      * @param query 用户查询
@@ -503,7 +654,7 @@ public class GenerationService {
             
             // 生成回答
             long startTime = System.currentTimeMillis();
-            String answer = chatModel.generate(prompt);
+            String answer = generateWithTokenStreaming(prompt, emitter);
             long endTime = System.currentTimeMillis();
             
             log.info("无知识股神投资AI检索回答生成完成，耗时: {} ms", endTime - startTime);
@@ -549,11 +700,13 @@ public class GenerationService {
             // 收集引用文件信息
             java.util.List<java.util.Map<String, String>> referencedDocuments = new java.util.ArrayList<>();
             
-            for (int i = 0; i < relevantSegments.size(); i++) {
-                TextSegment segment = relevantSegments.get(i);
+            List<String> passages = contextBuilder.build(relevantSegments).getPassages();
+            for (int i = 0; i < passages.size(); i++) {
                 context.append("投资文档片段 ").append(i + 1).append(":\n");
-                context.append(segment.text()).append("\n\n");
-                
+                context.append(passages.get(i)).append("\n\n");
+            }
+            
+            for (TextSegment segment : relevantSegments) {
                 // 提取详细文档信息
                 java.util.Map<String, String> docInfo = extractDocumentInfo(segment);
                 if (docInfo != null && !docInfo.isEmpty()) {
@@ -582,7 +735,7 @@ public class GenerationService {
             
             // 生成回答
             long startTime = System.currentTimeMillis();
-            String answer = chatModel.generate(context.toString());
+            String answer = generateWithTokenStreaming(context.toString(), emitter);
             long endTime = System.currentTimeMillis();
             
             log.info("带引用信息的股神投资回答生成完成，耗时: {} ms", endTime - startTime);
@@ -0,0 +1,200 @@
+/*
+ * Copyright 2025 james-zou
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.unionhole.zrag.service;
+
+import com.unionhole.zrag.store.Bm25Index;
+import com.unionhole.zrag.store.InMemoryEmbeddingStore;
+import com.unionhole.zrag.store.MilvusEmbeddingStore;
+import com.unionhole.zrag.store.WeaviateEmbeddingStore;
+import com.unionhole.zrag.util.LexicalTokenizer;
+import dev.langchain4j.data.document.Metadata;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+import dev.langchain4j.store.embedding.EmbeddingStore;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * 词法索引服务
+ * 与向量存储并行维护 BM25 倒排索引，启动时从向量库回灌，写入/清空时同步更新
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class LexicalIndexService {
+
+    private final EmbeddingStore<TextSegment> embeddingStore;
+    private final LexicalTokenizer lexicalTokenizer;
+    private final SmartDocumentSplitterService smartSplitterService;
+
+    private Bm25Index index;
+
+    @Value("${hybrid.enabled:true}")
+    private boolean enabled;
+
+    @Value("${hybrid.phrase-boost:0.5}")
+    private double phraseBoost;
+
+    @PostConstruct
+    public void init() {
+        index = new Bm25Index(lexicalTokenizer);
+    }
+
+    /**
+     * 启动完成后从向量库回灌词法索引
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void rebuild() {
+        if (!enabled) {
+            log.info("混合检索未启用，跳过词法索引构建");
+            return;
+        }
+        try {
+            long startTime = System.currentTimeMillis();
+            index.clear();
+            if (embeddingStore instanceof MilvusEmbeddingStore) {
+                MilvusEmbeddingStore store = (MilvusEmbeddingStore) embeddingStore;
+                store.scanChunks(null, null, null, 0, -1, row -> {
+                    TextSegment segment = toSegment(store, row);
+                    if (segment != null) {
+                        index.add(rowId(row, segment), segment);
+                    }
+                    return true;
+                });
+            } else if (embeddingStore instanceof WeaviateEmbeddingStore) {
+                for (TextSegment segment : ((WeaviateEmbeddingStore) embeddingStore).findAll()) {
+                    index.add(contentId(segment), segment);
+                }
+            } else if (embeddingStore instanceof InMemoryEmbeddingStore) {
+                for (TextSegment segment : ((InMemoryEmbeddingStore) embeddingStore).findAll()) {
+                    index.add(contentId(segment), segment);
+                }
+            }
+            log.info("词法索引构建完成，文档片段数: {}, 耗时: {} ms",
+                    index.size(), System.currentTimeMillis() - startTime);
+        } catch (Exception e) {
+            // 回灌中途失败时索引不完整，清空后仅使用向量召回，避免词法召回偏向已回灌的部分
+            index.clear();
+            log.error("词法索引构建失败，混合检索将仅使用向量召回", e);
+        }
+    }
+
+    /**
+     * 索引单个文档片段
+     * @param id 片段ID（Milvus为chunk_id，其他存储为向量库返回的ID）
+     * @param segment 文档片段
+     */
+    public void index(String id, TextSegment segment) {
+        if (!enabled || segment == null) {
+            return;
+        }
+        index.add(id != null ? id : contentId(segment), segment);
+    }
+
+    /**
+     * 批量索引文档片段
+     * @param ids 片段ID列表，可为null
+     * @param segments 文档片段列表
+     */
+    public void indexAll(List<String> ids, List<TextSegment> segments) {
+        for (int i = 0; i < segments.size(); i++) {
+            index(ids != null && i < ids.size() ? ids.get(i) : null, segments.get(i));
+        }
+    }
+
+    /**
+     * 删除某个文件的全部片段（按片段元数据中的 file_id 匹配）
+     * @param fileId 文件ID
+     * @return 删除的片段数
+     */
+    public int removeFile(String fileId) {
+        if (fileId == null) {
+            return 0;
+        }
+        return index.removeIf(segment -> fileId.equals(segment.metadata().get("file_id")));
+    }
+
+    /**
+     * 清空词法索引
+     */
+    public void clear() {
+        index.clear();
+    }
+
+    /**
+     * BM25 检索
+     * @param query 查询文本
+     * @param topK 返回数量
+     * @return 匹配结果，分数为原始 BM25 分数（含短语加成）
+     */
+    public List<EmbeddingMatch<TextSegment>> search(String query, int topK) {
+        if (!enabled) {
+            return new ArrayList<>();
+        }
+        // 中文查询额外做短语匹配，完整命中查询短语的片段加分
+        double boost = smartSplitterService.isChineseContent(query) ? phraseBoost : 0;
+        return index.search(query, topK, boost);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public int size() {
+        return index.size();
+    }
+
+    private TextSegment toSegment(MilvusEmbeddingStore store, Map<String, Object> row) {
+        Object content = row.get("content");
+        if (content == null || String.valueOf(content).trim().isEmpty()) {
+            return null;
+        }
+        Map<String, Object> metadata = new HashMap<>();
+        for (Map.Entry<String, Object> entry : store.getMilvusUtils().parseMetadata(row.get("metadata")).entrySet()) {
+            if (entry.getValue() != null) {
+                metadata.put(entry.getKey(), String.valueOf(entry.getValue()));
+            }
+        }
+        return TextSegment.from(String.valueOf(content), Metadata.from(metadata));
+    }
+
+    private String rowId(Map<String, Object> row, TextSegment segment) {
+        Object chunkId = row.get("chunk_id");
+        if (chunkId != null && !String.valueOf(chunkId).isEmpty()) {
+            return String.valueOf(chunkId);
+        }
+        Object id = row.get("id");
+        return id != null ? String.valueOf(id) : contentId(segment);
+    }
+
+    private String contentId(TextSegment segment) {
+        return UUID.nameUUIDFromBytes(segment.text().getBytes(StandardCharsets.UTF_8)).toString();
+    }
+}
@@ -0,0 +1,272 @@
+/*
+ * Copyright 2025 james-zou
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.unionhole.zrag.service;
+
+import ai.djl.huggingface.tokenizers.Encoding;
+import ai.djl.huggingface.tokenizers.HuggingFaceTokenizer;
+import ai.djl.util.PairList;
+import ai.onnxruntime.OnnxTensor;
+import ai.onnxruntime.OrtEnvironment;
+import ai.onnxruntime.OrtException;
+import ai.onnxruntime.OrtSession;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 本地交叉编码器重排
+ * 使用 ONNX Runtime 在进程内运行交叉编码器模型（如 bge-reranker、ms-marco-MiniLM），
+ * 查询与片段成对编码后分批推理，不依赖网络。模型在首次使用时加载，会话放在池中复用
+ */
+@Slf4j
+@Service
+public class LocalCrossEncoderReranker {
+
+    private static final String CLASSPATH_PREFIX = "classpath:";
+
+    @Value("${rerank.local.model-path:classpath:rerank/model.onnx}")
+    private String modelPath;
+
+    @Value("${rerank.local.tokenizer-path:classpath:rerank/tokenizer.json}")
+    private String tokenizerPath;
+
+    @Value("${rerank.local.max-length:512}")
+    private int maxLength;
+
+    @Value("${rerank.local.batch-size:16}")
+    private int batchSize;
+
+    @Value("${rerank.local.pool-size:2}")
+    private int poolSize;
+
+    @Value("${rerank.local.intra-op-threads:2}")
+    private int intraOpThreads;
+
+    @Value("${rerank.local.acquire-timeout-ms:5000}")
+    private long acquireTimeoutMs;
+
+    private volatile boolean loaded;
+    private volatile boolean loadFailed;
+    private HuggingFaceTokenizer tokenizer;
+    private BlockingQueue<OrtSession> sessions;
+    private boolean hasTokenTypeIds;
+
+    /**
+     * 模型是否可用，首次调用时加载模型；加载失败后不再重试
+     */
+    public boolean isAvailable() {
+        if (loaded) {
+            return true;
+        }
+        if (loadFailed) {
+            return false;
+        }
+        synchronized (this) {
+            if (!loaded && !loadFailed) {
+                load();
+            }
+        }
+        return loaded;
+    }
+
+    private void load() {
+        long startTime = System.currentTimeMillis();
+        try {
+            byte[] model = readResource(modelPath);
+            try (InputStream tokenizerStream = openResource(tokenizerPath)) {
+                Map<String, String> options = new HashMap<>();
+                options.put("truncation", "only_second");
+                options.put("padding", "false");
+                options.put("maxLength", String.valueOf(maxLength));
+                tokenizer = HuggingFaceTokenizer.newInstance(tokenizerStream, options);
+            }
+
+            OrtEnvironment env = OrtEnvironment.getEnvironment();
+            int size = Math.max(1, poolSize);
+            sessions = new ArrayBlockingQueue<>(size);
+            for (int i = 0; i < size; i++) {
+                OrtSession.SessionOptions sessionOptions = new OrtSession.SessionOptions();
+                sessionOptions.setIntraOpNumThreads(Math.max(1, intraOpThreads));
+                sessionOptions.setOptimizationLevel(OrtSession.SessionOptions.OptLevel.ALL_OPT);
+                sessions.add(env.createSession(model, sessionOptions));
+            }
+            hasTokenTypeIds = sessions.peek().getInputNames().contains("token_type_ids");
+            loaded = true;
+            log.info("本地重排模型加载完成: {}, 会话数: {}, 最大长度: {}, 耗时: {} ms",
+                    modelPath, size, maxLength, System.currentTimeMillis() - startTime);
+        } catch (Exception e) {
+            loadFailed = true;
+            log.error("本地重排模型加载失败: {}", e.getMessage(), e);
+            close();
+        }
+    }
+
+    /**
+     * 计算查询与每个片段的相关性分数
+     * @param query 查询文本
+     * @param passages 候选片段文本
+     * @return 与输入顺序一致的分数（0~1），模型不可用时返回null
+     */
+    public double[] score(String query, List<String> passages) {
+        if (!isAvailable()) {
+            return null;
+        }
+        OrtSession session;
+        try {
+            session = sessions.poll(acquireTimeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        if (session == null) {
+            log.warn("等待本地重排会话超时: {} ms", acquireTimeoutMs);
+            return null;
+        }
+
+        try {
+            double[] scores = new double[passages.size()];
+            for (int from = 0; from < passages.size(); from += batchSize) {
+                int to = Math.min(passages.size(), from + batchSize);
+                PairList<String, String> pairs = new PairList<>(to - from);
+                for (int i = from; i < to; i++) {
+                    pairs.add(query, passages.get(i));
+                }
+                float[] batchScores = runBatch(session, tokenizer.batchEncode(pairs));
+                for (int i = from; i < to; i++) {
+                    scores[i] = batchScores[i - from];
+                }
+            }
+            return scores;
+        } catch (Exception e) {
+            log.error("本地重排推理失败: {}", e.getMessage(), e);
+            return null;
+        } finally {
+            sessions.offer(session);
+        }
+    }
+
+    /**
+     * 批内按最长序列补齐后推理，输出单列时取sigmoid，两列时取正类softmax
+     */
+    private float[] runBatch(OrtSession session, Encoding[] encodings) throws OrtException {
+        int length = 0;
+        for (Encoding encoding : encodings) {
+            length = Math.max(length, encoding.getIds().length);
+        }
+        long[][] inputIds = new long[encodings.length][length];
+        long[][] attentionMask = new long[encodings.length][length];
+        long[][] tokenTypeIds = new long[encodings.length][length];
+        for (int i = 0; i < encodings.length; i++) {
+            long[] ids = encodings[i].getIds();
+            System.arraycopy(ids, 0, inputIds[i], 0, ids.length);
+            System.arraycopy(encodings[i].getAttentionMask(), 0, attentionMask[i], 0, ids.length);
+            System.arraycopy(encodings[i].getTypeIds(), 0, tokenTypeIds[i], 0, ids.length);
+        }
+
+        OrtEnvironment env = OrtEnvironment.getEnvironment();
+        Map<String, OnnxTensor> inputs = new HashMap<>();
+        try {
+            inputs.put("input_ids", OnnxTensor.createTensor(env, inputIds));
+            inputs.put("attention_mask", OnnxTensor.createTensor(env, attentionMask));
+            if (hasTokenTypeIds) {
+                inputs.put("token_type_ids", OnnxTensor.createTensor(env, tokenTypeIds));
+            }
+            try (OrtSession.Result result = session.run(inputs)) {
+                float[][] logits = (float[][]) result.get(0).getValue();
+                float[] scores = new float[logits.length];
+                for (int i = 0; i < logits.length; i++) {
+                    if (logits[i].length == 1) {
+                        scores[i] = (float) (1.0 / (1.0 + Math.exp(-logits[i][0])));
+                    } else {
+                        double positive = Math.exp(logits[i][1] - logits[i][0]);
+                        scores[i] = (float) (positive / (1.0 + positive));
+                    }
+                }
+                return scores;
+            }
+        } finally {
+            for (OnnxTensor tensor : inputs.values()) {
+                tensor.close();
+            }
+        }
+    }
+
+    private byte[] readResource(String location) throws Exception {
+        try (InputStream inputStream = openResource(location)) {
+            return readAll(inputStream);
+        }
+    }
+
+    private InputStream openResource(String location) throws Exception {
+        if (location.startsWith(CLASSPATH_PREFIX)) {
+            String name = location.substring(CLASSPATH_PREFIX.length());
+            InputStream inputStream = getClass().getClassLoader().getResourceAsStream(name);
+            if (inputStream == null) {
+                throw new IllegalStateException("类路径资源不存在: " + name);
+            }
+            return inputStream;
+        }
+        Path path = Paths.get(location);
+        if (!Files.exists(path)) {
+            throw new IllegalStateException("文件不存在: " + location);
+        }
+        return Files.newInputStream(path);
+    }
+
+    private byte[] readAll(InputStream inputStream) throws Exception {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = inputStream.read(buffer)) != -1) {
+            outputStream.write(buffer, 0, read);
+        }
+        return outputStream.toByteArray();
+    }
+
+    @PreDestroy
+    public synchronized void close() {
+        if (sessions != null) {
+            List<OrtSession> all = new ArrayList<>();
+            sessions.drainTo(all);
+            for (OrtSession session : all) {
+                try {
+                    session.close();
+                } catch (OrtException e) {
+                    log.warn("关闭本地重排会话失败: {}", e.getMessage());
+                }
+            }
+        }
+        if (tokenizer != null) {
+            tokenizer.close();
+        }
+    }
+}
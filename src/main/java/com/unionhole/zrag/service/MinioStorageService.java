@@ -17,6 +17,7 @@
 
 package com.unionhole.zrag.service;
 
+import com.unionhole.zrag.util.StreamTee;
 import io.minio.*;
 import io.minio.messages.Item;
 import lombok.RequiredArgsConstructor;
@@ -25,16 +26,26 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.springframework.web.multipart.MultipartFile;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
 
 // Apache POI imports for Office document processing
 import org.apache.poi.xwpf.usermodel.XWPFDocument;
@@ -64,6 +75,109 @@ public class MinioStorageService {
     @Value("${storage.minio.prefix:''}")
     private String prefix;
     
+    @Value("${minio.upload.part-size-mb:16}")
+    private int partSizeMb;
+    
+    @Value("${minio.upload.buffer-chunks:16}")
+    private int bufferChunks;
+    
+    @Value("${minio.upload.dedupe-entries:10000}")
+    private int dedupeEntries;
+    
+    @Value("${minio.upload.max-concurrent:8}")
+    private int maxConcurrentUploads;
+    
+    /** MinIO分片上传的最小分片大小 */
+    private static final long MIN_PART_SIZE = 5L * 1024 * 1024;
+    /** 边上传边解析时每次读取的块大小 */
+    private static final int TEE_CHUNK_SIZE = 64 * 1024;
+    
+    private ExecutorService uploadExecutor;
+    
+    /** 同时进行的边上传边解析数量，每个上传占用上传线程池中的两个线程 */
+    private Semaphore uploadPermits;
+    
+    /** 内容SHA-256 → 对象名称，用于识别重复上传 */
+    private Map<String, String> contentIndex;
+    
+    /**
+     * 上传内容的接收者，在调用线程中读取上传流
+     */
+    @FunctionalInterface
+    public interface UploadBodyConsumer {
+        void accept(InputStream body) throws Exception;
+    }
+    
+    /**
+     * 边上传边处理的结果
+     */
+    public static class UploadResult {
+        private final String objectName;
+        private final String sha256;
+        private final long size;
+        private final String duplicateOf;
+        
+        UploadResult(String objectName, String sha256, long size, String duplicateOf) {
+            this.objectName = objectName;
+            this.sha256 = sha256;
+            this.size = size;
+            this.duplicateOf = duplicateOf;
+        }
+        
+        public String getObjectName() {
+            return objectName;
+        }
+        
+        public String getSha256() {
+            return sha256;
+        }
+        
+        public long getSize() {
+            return size;
+        }
+        
+        /**
+         * 内容与之前上传的文件相同
+         */
+        public boolean isDuplicate() {
+            return duplicateOf != null;
+        }
+        
+        /**
+         * 内容相同的已有对象名称，不重复时为null
+         */
+        public String getDuplicateOf() {
+            return duplicateOf;
+        }
+    }
+    
+    @PostConstruct
+    public void initialize() {
+        int concurrency = Math.max(1, maxConcurrentUploads);
+        uploadPermits = new Semaphore(concurrency);
+        AtomicInteger threadIndex = new AtomicInteger();
+        // 每个上传需要上传和分发两个任务同时运行，线程数按并发上传数的两倍配置
+        uploadExecutor = Executors.newFixedThreadPool(concurrency * 2, runnable -> {
+            Thread thread = new Thread(runnable, "minio-upload-" + threadIndex.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        int capacity = Math.max(1, dedupeEntries);
+        contentIndex = new LinkedHashMap<String, String>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+    
+    @PreDestroy
+    public void shutdown() {
+        if (uploadExecutor != null) {
+            uploadExecutor.shutdownNow();
+        }
+    }
+    
     /**
      * 初始化MinIO存储
      */
@@ -123,6 +237,140 @@ public class MinioStorageService {
         }
     }
     
+    /**
+     * 边上传边处理文件：上传内容只读取一次，按块同时交给MinIO分片上传和接收者，读取时计算SHA-256；
+     * 内存占用与分片大小相关，与文件大小无关。上传失败时中止接收者的读取并抛出异常，调用方负责清理接收者已写入的数据；
+     * 接收者失败时删除本次上传的对象。内容与之前上传的文件相同时在结果中记录已有对象，由调用方决定是否删除本次上传的对象。
+     * 同时进行的上传数受 minio.upload.max-concurrent 限制，超出时在调用线程中等待
+     * @param file 文件
+     * @param consumer 上传内容的接收者（如解析入库），在调用线程中执行
+     * @return 上传结果
+     */
+    public UploadResult uploadFile(MultipartFile file, UploadBodyConsumer consumer) {
+        String objectName = prefix + generateFileName(file.getOriginalFilename());
+        long partSize = Math.max(MIN_PART_SIZE, partSizeMb * 1024L * 1024L);
+        
+        InputStream source;
+        try {
+            source = file.getInputStream();
+        } catch (IOException e) {
+            log.error("文件上传失败", e);
+            throw new RuntimeException("文件上传失败: " + e.getMessage(), e);
+        }
+        try {
+            uploadPermits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            closeQuietly(source);
+            throw new RuntimeException("文件上传失败: 等待上传线程时被中断", e);
+        }
+        try {
+            return teeUpload(file, consumer, objectName, partSize, source);
+        } finally {
+            uploadPermits.release();
+        }
+    }
+    
+    private UploadResult teeUpload(MultipartFile file, UploadBodyConsumer consumer, String objectName,
+                                   long partSize, InputStream source) {
+        StreamTee tee = new StreamTee(source, 2, TEE_CHUNK_SIZE, bufferChunks);
+        
+        Future<?> upload = uploadExecutor.submit(() -> {
+            try (InputStream body = tee.branch(0)) {
+                minioClient.putObject(
+                        PutObjectArgs.builder()
+                                .bucket(bucketName)
+                                .object(objectName)
+                                .stream(body, file.getSize(), partSize)
+                                .contentType(file.getContentType())
+                                .build()
+                );
+            } catch (Exception e) {
+                // 上传失败时让接收者尽快结束
+                tee.abort(new IOException("文件上传失败: " + e.getMessage(), e));
+                throw e;
+            }
+            return null;
+        });
+        Future<Long> pump = uploadExecutor.submit(() -> {
+            try {
+                return tee.pump();
+            } finally {
+                source.close();
+            }
+        });
+        
+        Exception consumerFailure = null;
+        try (InputStream body = tee.branch(1)) {
+            consumer.accept(body);
+        } catch (Exception e) {
+            consumerFailure = e;
+        }
+        
+        long size;
+        try {
+            size = pump.get();
+            upload.get();
+        } catch (Exception e) {
+            // 取消仍在运行的另一个任务，避免许可释放后它继续占用上传线程
+            upload.cancel(true);
+            pump.cancel(true);
+            Throwable cause = e instanceof ExecutionException && e.getCause() != null ? e.getCause() : e;
+            log.error("文件上传失败: {}", objectName, cause);
+            throw new RuntimeException("文件上传失败: " + cause.getMessage(), cause);
+        }
+        if (consumerFailure != null) {
+            log.error("上传文件处理失败: {}", objectName, consumerFailure);
+            try {
+                deleteFile(objectName);
+            } catch (RuntimeException e) {
+                consumerFailure.addSuppressed(e);
+            }
+            throw new RuntimeException("上传文件处理失败: " + consumerFailure.getMessage(), consumerFailure);
+        }
+        
+        String sha256 = tee.sha256Hex();
+        String existing = findDuplicate(sha256, objectName);
+        if (existing != null) {
+            log.info("文件内容与已有对象相同: {} -> {}, sha256={}", objectName, existing, sha256);
+        }
+        log.info("文件上传成功: {}, 大小: {} bytes, 分片大小: {} MB, sha256={}",
+                objectName, size, partSize / (1024 * 1024), sha256);
+        return new UploadResult(objectName, sha256, size, existing);
+    }
+    
+    /**
+     * 查找内容相同且仍然存在的对象，没有时登记当前对象；有时仍指向最早的对象
+     */
+    private String findDuplicate(String sha256, String objectName) {
+        String existing;
+        synchronized (contentIndex) {
+            existing = contentIndex.get(sha256);
+            if (existing == null) {
+                contentIndex.put(sha256, objectName);
+                return null;
+            }
+        }
+        try {
+            minioClient.statObject(StatObjectArgs.builder().bucket(bucketName).object(existing).build());
+            return existing;
+        } catch (Exception e) {
+            log.debug("重复内容对应的对象已不存在: {}", existing);
+            synchronized (contentIndex) {
+                contentIndex.put(sha256, objectName);
+            }
+            return null;
+        }
+    }
+    
+    private void closeQuietly(InputStream stream) {
+        try {
+            stream.close();
+        } catch (IOException e) {
+            log.debug("关闭上传流失败: {}", e.getMessage());
+        }
+    }
+    
     /**
      * 上传文本内容
      * @param content 文本内容
@@ -172,6 +420,48 @@ public class MinioStorageService {
         }
     }
     
+    /**
+     * 下载文件的一段
+     * @param objectName 对象名称
+     * @param offset 起始字节
+     * @param length 字节数
+     * @return 文件输入流
+     */
+    public InputStream downloadFile(String objectName, long offset, long length) {
+        try {
+            return minioClient.getObject(
+                    GetObjectArgs.builder()
+                            .bucket(bucketName)
+                            .object(objectName)
+                            .offset(offset)
+                            .length(length)
+                            .build()
+            );
+        } catch (Exception e) {
+            log.error("文件下载失败: {}, 范围: {}+{}", objectName, offset, length, e);
+            throw new RuntimeException("文件下载失败: " + e.getMessage(), e);
+        }
+    }
+    
+    /**
+     * 获取文件的大小、ETag和修改时间
+     * @param objectName 对象名称
+     * @return 对象元数据
+     */
+    public StatObjectResponse statFile(String objectName) {
+        try {
+            return minioClient.statObject(
+                    StatObjectArgs.builder()
+                            .bucket(bucketName)
+                            .object(objectName)
+                            .build()
+            );
+        } catch (Exception e) {
+            log.error("获取文件信息失败: {}", objectName, e);
+            throw new RuntimeException("获取文件信息失败: " + e.getMessage(), e);
+        }
+    }
+    
     /**
      * 删除文件
      * @param objectName 对象名称
@@ -184,6 +474,9 @@ public class MinioStorageService {
                             .object(objectName)
                             .build()
             );
+            synchronized (contentIndex) {
+                contentIndex.values().remove(objectName);
+            }
             log.info("文件删除成功: {}", objectName);
         } catch (Exception e) {
             log.error("文件删除失败: {}", objectName, e);
@@ -0,0 +1,408 @@
+/*
+ * Copyright 2025 james-zou
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.unionhole.zrag.service;
+
+import dev.langchain4j.data.segment.TextSegment;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.text.PDFTextStripper;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.apache.poi.ss.usermodel.DataFormatter;
+import org.apache.poi.util.XMLHelper;
+import org.apache.poi.xssf.eventusermodel.ReadOnlySharedStringsTable;
+import org.apache.poi.xssf.eventusermodel.XSSFReader;
+import org.apache.poi.xssf.eventusermodel.XSSFSheetXMLHandler;
+import org.apache.poi.xssf.model.StylesTable;
+import org.apache.poi.xssf.usermodel.XSSFComment;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.InputStreamSource;
+import org.springframework.core.io.Resource;
+import org.springframework.stereotype.Service;
+import org.springframework.web.multipart.MultipartFile;
+import org.xml.sax.InputSource;
+import org.xml.sax.XMLReader;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+
+/**
+ * 大文档并行提取
+ * PDF按页码区间、XLSX按工作表拆分，在解析线程池中并发提取，按原顺序交给下游；
+ * 同时在途的分片数有上限，内存占用不随文档大小增长。PDF分片记录每页的起始位置，用于给片段标注页码
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class ParallelDocumentExtractor {
+
+    private final TikaDocumentParserService tikaParser;
+
+    @Value("${extraction.parallel.enabled:true}")
+    private boolean enabled;
+
+    @Value("${extraction.parallel.pdf-min-pages:40}")
+    private int pdfMinPages;
+
+    @Value("${extraction.parallel.pages-per-task:20}")
+    private int pagesPerTask;
+
+    @Value("${extraction.parallel.max-in-flight:8}")
+    private int maxInFlight;
+
+    /**
+     * 提取出的一个分片（若干页或一个工作表）
+     */
+    public static class ExtractedPart {
+        private final String text;
+        private final int firstPage;
+        /** 第 firstPage + i 页在文本中的起始位置 */
+        private final int[] pageOffsets;
+        private final Map<String, Object> metadata;
+
+        ExtractedPart(String text, int firstPage, int[] pageOffsets, Map<String, Object> metadata) {
+            this.text = text;
+            this.firstPage = firstPage;
+            this.pageOffsets = pageOffsets;
+            this.metadata = metadata;
+        }
+
+        public String getText() {
+            return text;
+        }
+
+        /**
+         * 为分片中切出的片段生成附加元数据（页码范围、工作表名）
+         * 片段按顺序在分片文本中定位，找不到时使用整个分片的页码范围
+         * @param segments 由本分片文本切出的片段
+         * @return 与片段一一对应的元数据
+         */
+        public List<Map<String, Object>> metadataFor(List<TextSegment> segments) {
+            List<Map<String, Object>> result = new ArrayList<>();
+            int cursor = 0;
+            for (TextSegment segment : segments) {
+                Map<String, Object> segmentMetadata = new HashMap<>(metadata);
+                if (pageOffsets.length > 0) {
+                    int start = text.indexOf(segment.text(), cursor);
+                    int pageStart;
+                    int pageEnd;
+                    if (start >= 0) {
+                        cursor = start + 1;
+                        pageStart = pageAt(start);
+                        pageEnd = pageAt(start + Math.max(0, segment.text().length() - 1));
+                    } else {
+                        pageStart = firstPage;
+                        pageEnd = firstPage + pageOffsets.length - 1;
+                    }
+                    segmentMetadata.put("page_start", pageStart);
+                    segmentMetadata.put("page_end", pageEnd);
+                }
+                result.add(segmentMetadata);
+            }
+            return result;
+        }
+
+        private int pageAt(int offset) {
+            int index = Arrays.binarySearch(pageOffsets, offset);
+            if (index < 0) {
+                index = -index - 2;
+            }
+            return firstPage + Math.max(0, index);
+        }
+    }
+
+    /**
+     * 是否支持并行提取该文件
+     */
+    public boolean supports(String fileName) {
+        if (!enabled || fileName == null) {
+            return false;
+        }
+        String lowerFileName = fileName.toLowerCase();
+        return lowerFileName.endsWith(".pdf") || lowerFileName.endsWith(".xlsx");
+    }
+
+    /**
+     * 并行提取文档文本，按原顺序把分片交给接收者
+     * @param file 上传的文件
+     * @param partConsumer 分片接收者（在调用线程中执行）
+     * @return 是否已提取；文档较小不值得拆分时返回false，由调用方使用流式解析
+     * @throws Exception 提取失败或超时
+     */
+    public boolean extract(MultipartFile file, Consumer<ExtractedPart> partConsumer) throws Exception {
+        return extract(file, file.getOriginalFilename(), partConsumer);
+    }
+
+    /**
+     * 并行提取文档文本，来源是本地文件时直接读取，否则先复制到临时文件
+     * @param source 内容来源
+     * @param fileName 文件名
+     * @param partConsumer 分片接收者（在调用线程中执行）
+     * @return 是否已提取；文档较小不值得拆分时返回false，由调用方使用流式解析
+     * @throws Exception 提取失败或超时
+     */
+    public boolean extract(InputStreamSource source, String fileName, Consumer<ExtractedPart> partConsumer) throws Exception {
+        String lowerFileName = fileName == null ? "" : fileName.toLowerCase();
+        if (source instanceof Resource && ((Resource) source).isFile()) {
+            return extract(((Resource) source).getFile().toPath(), fileName, lowerFileName, partConsumer);
+        }
+        Path tempFile = Files.createTempFile("zrag-extract-", lowerFileName.endsWith(".pdf") ? ".pdf" : ".xlsx");
+        try {
+            try (InputStream inputStream = source.getInputStream()) {
+                Files.copy(inputStream, tempFile, StandardCopyOption.REPLACE_EXISTING);
+            }
+            return extract(tempFile, fileName, lowerFileName, partConsumer);
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    private boolean extract(Path file, String fileName, String lowerFileName,
+                            Consumer<ExtractedPart> partConsumer) throws Exception {
+        if (lowerFileName.endsWith(".pdf")) {
+            return extractPdf(file, fileName, partConsumer);
+        }
+        return extractXlsx(file, fileName, partConsumer);
+    }
+
+    private boolean extractPdf(Path pdfFile, String fileName, Consumer<ExtractedPart> partConsumer) throws Exception {
+        int pageCount;
+        try (PDDocument document = PDDocument.load(pdfFile.toFile(), MemoryUsageSetting.setupTempFileOnly())) {
+            pageCount = document.getNumberOfPages();
+        }
+        if (pageCount < pdfMinPages) {
+            log.debug("PDF {} 共 {} 页，少于 {} 页，不拆分", fileName, pageCount, pdfMinPages);
+            return false;
+        }
+
+        int step = Math.max(1, pagesPerTask);
+        log.info("并行提取PDF: {}, 共 {} 页, 每个分片 {} 页", fileName, pageCount, step);
+        List<Callable<ExtractedPart>> tasks = new ArrayList<>();
+        for (int from = 1; from <= pageCount; from += step) {
+            int first = from;
+            int last = Math.min(pageCount, from + step - 1);
+            tasks.add(() -> extractPdfPages(pdfFile, first, last));
+        }
+        runOrdered(tasks.iterator(), partConsumer, fileName, "application/pdf");
+        return true;
+    }
+
+    /**
+     * 提取PDF的一个页码区间，每个分片单独打开文档（PDDocument不是线程安全的）
+     */
+    private ExtractedPart extractPdfPages(Path pdfFile, int firstPage, int lastPage) throws Exception {
+        try (PDDocument document = PDDocument.load(pdfFile.toFile(), MemoryUsageSetting.setupTempFileOnly())) {
+            PDFTextStripper stripper = new PDFTextStripper();
+            StringBuilder text = new StringBuilder();
+            int[] pageOffsets = new int[lastPage - firstPage + 1];
+            for (int page = firstPage; page <= lastPage; page++) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new CancellationException("PDF提取已取消");
+                }
+                stripper.setStartPage(page);
+                stripper.setEndPage(page);
+                pageOffsets[page - firstPage] = text.length();
+                String pageText = stripper.getText(document).trim();
+                if (!pageText.isEmpty()) {
+                    text.append(pageText).append("\n\n");
+                }
+            }
+            return new ExtractedPart(text.toString().trim(), firstPage, pageOffsets, Collections.emptyMap());
+        }
+    }
+
+    private boolean extractXlsx(Path xlsxFile, String fileName, Consumer<ExtractedPart> partConsumer) throws Exception {
+        try (OPCPackage opcPackage = OPCPackage.open(xlsxFile.toFile(), PackageAccess.READ)) {
+            XSSFReader reader = new XSSFReader(opcPackage);
+            ReadOnlySharedStringsTable sharedStrings = new ReadOnlySharedStringsTable(opcPackage);
+            StylesTable styles = reader.getStylesTable();
+            XSSFReader.SheetIterator sheets = (XSSFReader.SheetIterator) reader.getSheetsData();
+            log.info("并行提取XLSX: {}", fileName);
+
+            // 工作表内容在提交分片时才读取，同时只有在途分片的数据驻留内存
+            Iterator<Callable<ExtractedPart>> tasks = new Iterator<Callable<ExtractedPart>>() {
+                @Override
+                public boolean hasNext() {
+                    return sheets.hasNext();
+                }
+
+                @Override
+                public Callable<ExtractedPart> next() {
+                    if (!sheets.hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    byte[] sheetData;
+                    try (InputStream sheetStream = sheets.next()) {
+                        sheetData = readAll(sheetStream);
+                    } catch (Exception e) {
+                        throw new IllegalStateException("读取工作表失败: " + e.getMessage(), e);
+                    }
+                    String sheetName = sheets.getSheetName();
+                    return () -> extractSheet(sheetName, sheetData, styles, sharedStrings);
+                }
+            };
+            runOrdered(tasks, partConsumer, fileName,
+                    "application/vnd.openxmlformats-officedocument.spreadsheetml.sheet");
+            return true;
+        }
+    }
+
+    /**
+     * 提取一个工作表，每行的单元格以制表符分隔
+     */
+    private ExtractedPart extractSheet(String sheetName, byte[] sheetData, StylesTable styles,
+                                       ReadOnlySharedStringsTable sharedStrings) throws Exception {
+        StringBuilder text = new StringBuilder();
+        text.append("工作表: ").append(sheetName).append("\n");
+        XSSFSheetXMLHandler.SheetContentsHandler contentsHandler = new XSSFSheetXMLHandler.SheetContentsHandler() {
+            private boolean firstCell;
+
+            @Override
+            public void startRow(int rowNum) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new CancellationException("XLSX提取已取消");
+                }
+                firstCell = true;
+            }
+
+            @Override
+            public void endRow(int rowNum) {
+                text.append('\n');
+            }
+
+            @Override
+            public void cell(String cellReference, String formattedValue, XSSFComment comment) {
+                if (!firstCell) {
+                    text.append('\t');
+                }
+                firstCell = false;
+                if (formattedValue != null) {
+                    text.append(formattedValue);
+                }
+            }
+        };
+
+        XMLReader xmlReader = XMLHelper.newXMLReader();
+        xmlReader.setContentHandler(new XSSFSheetXMLHandler(styles, sharedStrings, contentsHandler,
+                new DataFormatter(), false));
+        xmlReader.parse(new InputSource(new ByteArrayInputStream(sheetData)));
+
+        Map<String, Object> metadata = new HashMap<>();
+        metadata.put("sheet_name", sheetName);
+        return new ExtractedPart(text.toString().trim(), 1, new int[0], metadata);
+    }
+
+    /**
+     * 在解析线程池中执行分片，同时在途的分片数不超过 maxInFlight 和解析线程数，按提交顺序取结果交给接收者；
+     * 线程池已满时在调用线程中执行
+     */
+    private void runOrdered(Iterator<Callable<ExtractedPart>> tasks, Consumer<ExtractedPart> partConsumer,
+                            String fileName, String contentType) throws Exception {
+        long startTime = System.currentTimeMillis();
+        long maxChars = tikaParser.getMaxTextLength();
+        long totalChars = 0;
+        int partCount = 0;
+        boolean truncated = false;
+        // 单个文档的分片不超过解析线程数，避免占满共享队列导致其他文档的解析被拒绝
+        int limit = Math.max(1, Math.min(maxInFlight, tikaParser.getParsePoolSize()));
+        Deque<Future<ExtractedPart>> inFlight = new ArrayDeque<>();
+        try {
+            while (tasks.hasNext() || !inFlight.isEmpty()) {
+                while (tasks.hasNext() && inFlight.size() < limit) {
+                    inFlight.addLast(submit(tasks.next()));
+                }
+                ExtractedPart part = await(inFlight.removeFirst());
+                if (part.getText().isEmpty()) {
+                    continue;
+                }
+                partConsumer.accept(part);
+                partCount++;
+                totalChars += part.getText().length();
+                if (maxChars > 0 && totalChars >= maxChars) {
+                    truncated = true;
+                    log.warn("文档 {} 提取的文本达到上限 {} 字符，其余内容已丢弃", fileName, maxChars);
+                    break;
+                }
+            }
+        } catch (Exception e) {
+            tikaParser.recordParseFailure(contentType, e instanceof TimeoutException);
+            throw e;
+        } finally {
+            for (Future<ExtractedPart> future : inFlight) {
+                future.cancel(true);
+            }
+        }
+        long elapsed = System.currentTimeMillis() - startTime;
+        tikaParser.recordParse(contentType, elapsed, totalChars, truncated);
+        log.info("并行提取完成: {}, 分片数: {}, 文本长度: {} 字符, 耗时: {} ms", fileName, partCount, totalChars, elapsed);
+    }
+
+    private Future<ExtractedPart> submit(Callable<ExtractedPart> task) {
+        try {
+            return tikaParser.submitParseTask(task);
+        } catch (RejectedExecutionException e) {
+            FutureTask<ExtractedPart> futureTask = new FutureTask<>(task);
+            futureTask.run();
+            return futureTask;
+        }
+    }
+
+    private ExtractedPart await(Future<ExtractedPart> future) throws Exception {
+        try {
+            return future.get(tikaParser.getTimeoutMs(), TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof Exception ? (Exception) cause : e;
+        }
+    }
+
+    private byte[] readAll(InputStream inputStream) throws Exception {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = inputStream.read(buffer)) != -1) {
+            outputStream.write(buffer, 0, read);
+        }
+        return outputStream.toByteArray();
+    }
+}
@@ -0,0 +1,373 @@
+/*
+ * Copyright 2025 james-zou
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.unionhole.zrag.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.unionhole.zrag.util.TokenCounter;
+import dev.langchain4j.data.segment.TextSegment;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * 提示词上下文构建
+ * 按检索排序处理片段：同一文件相邻的片段合并并去掉分块重叠部分，内容高度重复的片段丢弃，
+ * 再按排序依次放入上下文直到达到token预算，超出预算的片段截断或舍弃
+ */
+@Slf4j
+@Service
+public class PromptContextBuilder {
+
+    /** 每个片段的标题行（如"文档片段 1:"）和换行的估算token数 */
+    private static final int BLOCK_OVERHEAD_TOKENS = 8;
+    /** 重叠部分至少达到该长度才去除，避免误删偶然相同的少量字符 */
+    private static final int MIN_OVERLAP_CHARS = 8;
+    private static final int SHINGLE_SIZE = 4;
+
+    private static final Pattern TRAILING_SPACES = Pattern.compile("[ \\t\\x0B\\f\\r]+\\n");
+    private static final Pattern BLANK_LINES = Pattern.compile("\\n{3,}");
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    @Value("${context.enabled:true}")
+    private boolean enabled;
+
+    @Value("${context.max-tokens:3000}")
+    private int maxTokens;
+
+    @Value("${context.min-block-tokens:64}")
+    private int minBlockTokens;
+
+    @Value("${context.duplicate-threshold:0.85}")
+    private double duplicateThreshold;
+
+    @Value("${context.max-overlap-chars:500}")
+    private int maxOverlapChars;
+
+    /**
+     * 构建结果
+     */
+    public static class Context {
+        private final List<String> passages;
+        private final int tokens;
+        private final int originalTokens;
+        private final int segmentCount;
+
+        Context(List<String> passages, int tokens, int originalTokens, int segmentCount) {
+            this.passages = passages;
+            this.tokens = tokens;
+            this.originalTokens = originalTokens;
+            this.segmentCount = segmentCount;
+        }
+
+        /** 放入上下文的文本，按相关性排序 */
+        public List<String> getPassages() {
+            return passages;
+        }
+
+        public int getTokens() {
+            return tokens;
+        }
+
+        /** 原始片段直接拼接时的token数 */
+        public int getOriginalTokens() {
+            return originalTokens;
+        }
+
+        public int getSegmentCount() {
+            return segmentCount;
+        }
+    }
+
+    /**
+     * 合并后的上下文块
+     */
+    private static class Block {
+        private final String fileKey;
+        private int rank;
+        private Integer firstIndex;
+        private Integer lastIndex;
+        private String text;
+        private Set<Integer> shingles;
+
+        Block(String fileKey, Integer chunkIndex, int rank, String text) {
+            this.fileKey = fileKey;
+            this.firstIndex = chunkIndex;
+            this.lastIndex = chunkIndex;
+            this.rank = rank;
+            this.text = text;
+        }
+    }
+
+    /**
+     * 由检索到的片段构建上下文
+     * @param segments 按相关性排序的片段
+     * @return 上下文
+     */
+    public Context build(List<TextSegment> segments) {
+        List<Block> blocks = new ArrayList<>();
+        int originalTokens = 0;
+        for (int i = 0; i < segments.size(); i++) {
+            TextSegment segment = segments.get(i);
+            if (segment == null || segment.text() == null || segment.text().trim().isEmpty()) {
+                continue;
+            }
+            originalTokens += TokenCounter.count(segment.text()) + BLOCK_OVERHEAD_TOKENS;
+            if (!enabled) {
+                blocks.add(new Block(null, null, i, segment.text()));
+                continue;
+            }
+            String fileKey = metadataValue(segment, "file_id");
+            if (fileKey == null) {
+                fileKey = metadataValue(segment, "file_name");
+            }
+            addSegment(blocks, fileKey, parseIndex(metadataValue(segment, "chunk_index")), i, compress(segment.text()));
+        }
+        if (!enabled) {
+            List<String> passages = new ArrayList<>();
+            for (Block block : blocks) {
+                passages.add(block.text);
+            }
+            return new Context(passages, originalTokens, originalTokens, segments.size());
+        }
+
+        blocks.sort((a, b) -> Integer.compare(a.rank, b.rank));
+        List<Block> unique = removeDuplicates(blocks);
+
+        List<String> passages = new ArrayList<>();
+        int tokens = 0;
+        for (Block block : unique) {
+            int remaining = maxTokens - tokens - BLOCK_OVERHEAD_TOKENS;
+            if (remaining < minBlockTokens) {
+                break;
+            }
+            int blockTokens = TokenCounter.count(block.text);
+            if (blockTokens > remaining) {
+                passages.add(TokenCounter.truncate(block.text, remaining));
+                tokens += remaining + BLOCK_OVERHEAD_TOKENS;
+                break;
+            }
+            passages.add(block.text);
+            tokens += blockTokens + BLOCK_OVERHEAD_TOKENS;
+        }
+
+        log.info("上下文构建完成: {} 个片段 -> {} 个上下文块，token {} -> {}（预算 {}）",
+                segments.size(), passages.size(), originalTokens, tokens, maxTokens);
+        return new Context(passages, tokens, originalTokens, segments.size());
+    }
+
+    /**
+     * 由纯文本构建上下文（没有文件信息，不做相邻合并）
+     * @param texts 按相关性排序的文本
+     * @return 上下文
+     */
+    public Context buildFromTexts(List<String> texts) {
+        List<TextSegment> segments = new ArrayList<>();
+        for (String text : texts) {
+            if (text != null) {
+                segments.add(TextSegment.from(text));
+            }
+        }
+        return build(segments);
+    }
+
+    /**
+     * 把片段加入已有块：同一文件中与某个块相邻的片段拼接到块的首尾，已被块包含的片段忽略，否则新建块
+     */
+    private void addSegment(List<Block> blocks, String fileKey, Integer chunkIndex, int rank, String text) {
+        if (fileKey == null || chunkIndex == null) {
+            blocks.add(new Block(fileKey, chunkIndex, rank, text));
+            return;
+        }
+        for (Block block : blocks) {
+            if (!fileKey.equals(block.fileKey) || block.firstIndex == null) {
+                continue;
+            }
+            if (chunkIndex >= block.firstIndex && chunkIndex <= block.lastIndex) {
+                return;
+            }
+            if (chunkIndex == block.lastIndex + 1) {
+                block.text = joinOverlapping(block.text, text);
+                block.lastIndex = chunkIndex;
+                mergeFollowing(blocks, block);
+                return;
+            }
+            if (chunkIndex == block.firstIndex - 1) {
+                block.text = joinOverlapping(text, block.text);
+                block.firstIndex = chunkIndex;
+                mergePreceding(blocks, block);
+                return;
+            }
+        }
+        blocks.add(new Block(fileKey, chunkIndex, rank, text));
+    }
+
+    /**
+     * 块向后扩展后，与紧随其后的块合并（如先取到片段1、3，再取到片段2）；合并后的块取两者中较高的排序
+     */
+    private void mergeFollowing(List<Block> blocks, Block block) {
+        for (Block other : blocks) {
+            if (other != block && block.fileKey.equals(other.fileKey)
+                    && other.firstIndex != null && other.firstIndex == block.lastIndex + 1) {
+                block.text = joinOverlapping(block.text, other.text);
+                block.lastIndex = other.lastIndex;
+                block.rank = Math.min(block.rank, other.rank);
+                blocks.remove(other);
+                return;
+            }
+        }
+    }
+
+    /**
+     * 块向前扩展后，与紧邻其前的块合并
+     */
+    private void mergePreceding(List<Block> blocks, Block block) {
+        for (Block other : blocks) {
+            if (other != block && block.fileKey.equals(other.fileKey)
+                    && other.lastIndex != null && other.lastIndex == block.firstIndex - 1) {
+                other.text = joinOverlapping(other.text, block.text);
+                other.lastIndex = block.lastIndex;
+                other.rank = Math.min(block.rank, other.rank);
+                blocks.remove(block);
+                return;
+            }
+        }
+    }
+
+    /**
+     * 拼接两段文本，去掉前一段末尾与后一段开头重复的部分（分块重叠）
+     */
+    private String joinOverlapping(String first, String second) {
+        int limit = Math.min(maxOverlapChars, Math.min(first.length(), second.length()));
+        for (int length = limit; length >= MIN_OVERLAP_CHARS; length--) {
+            if (first.regionMatches(first.length() - length, second, 0, length)) {
+                return first + second.substring(length);
+            }
+        }
+        return first + "\n" + second;
+    }
+
+    /**
+     * 按排序保留块，与已保留块的字符片段重合度达到阈值的块视为重复丢弃
+     */
+    private List<Block> removeDuplicates(List<Block> blocks) {
+        List<Block> kept = new ArrayList<>();
+        for (Block block : blocks) {
+            block.shingles = shingles(block.text);
+            boolean duplicate = false;
+            for (Block existing : kept) {
+                if (containment(block.shingles, existing.shingles) >= duplicateThreshold) {
+                    duplicate = true;
+                    break;
+                }
+            }
+            if (duplicate) {
+                log.debug("丢弃重复的上下文片段，排序: {}", block.rank + 1);
+            } else {
+                kept.add(block);
+            }
+        }
+        return kept;
+    }
+
+    private Set<Integer> shingles(String text) {
+        String normalized = text.replaceAll("\\s+", "");
+        Set<Integer> shingles = new HashSet<>();
+        for (int i = 0; i + SHINGLE_SIZE <= normalized.length(); i++) {
+            shingles.add(normalized.substring(i, i + SHINGLE_SIZE).hashCode());
+        }
+        if (shingles.isEmpty() && !normalized.isEmpty()) {
+            shingles.add(normalized.hashCode());
+        }
+        return shingles;
+    }
+
+    /**
+     * 重合度：交集大小 / 较小集合大小，能识别一个片段被另一个片段包含的情况
+     */
+    private double containment(Set<Integer> a, Set<Integer> b) {
+        if (a.isEmpty() || b.isEmpty()) {
+            return 0.0;
+        }
+        Set<Integer> smaller = a.size() <= b.size() ? a : b;
+        Set<Integer> larger = smaller == a ? b : a;
+        int common = 0;
+        for (Integer shingle : smaller) {
+            if (larger.contains(shingle)) {
+                common++;
+            }
+        }
+        return (double) common / smaller.size();
+    }
+
+    /**
+     * 压缩空白：去掉行尾空白，连续空行合并为一个，保留行首缩进
+     */
+    private String compress(String text) {
+        String compressed = TRAILING_SPACES.matcher(text).replaceAll("\n");
+        return BLANK_LINES.matcher(compressed).replaceAll("\n\n").trim();
+    }
+
+    /**
+     * 读取元数据字段，兼容直接存储和Milvus的source JSON两种格式
+     */
+    private String metadataValue(TextSegment segment, String key) {
+        if (segment.metadata() == null) {
+            return null;
+        }
+        String value = segment.metadata().get(key);
+        if (value != null && !value.isEmpty()) {
+            return value;
+        }
+        String source = segment.metadata().get("source");
+        if (source == null || source.isEmpty()) {
+            return null;
+        }
+        String json = source;
+        if (json.startsWith("\"") && json.endsWith("\"") && json.length() > 1) {
+            json = json.substring(1, json.length() - 1).replace("\\\"", "\"");
+        }
+        if (!json.startsWith("{")) {
+            return null;
+        }
+        try {
+            JsonNode node = OBJECT_MAPPER.readTree(json);
+            return node.has(key) ? node.get(key).asText() : null;
+        } catch (Exception e) {
+            log.debug("解析source JSON失败: {}", e.getMessage());
+            return null;
+        }
+    }
+
+    private Integer parseIndex(String value) {
+        if (value == null) {
+            return null;
+        }
+        try {
+            return Integer.valueOf(value.trim());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
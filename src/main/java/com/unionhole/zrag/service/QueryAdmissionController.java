@@ -0,0 +1,280 @@
+/*
+ * Copyright 2025 james-zou
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.unionhole.zrag.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 查询准入控制
+ * 全局并发上限按观测到的查询延迟自适应调整（AIMD）：短期平均延迟明显高于长期平均时乘性减小，
+ * 否则在并发被用满时加性增大；可为每个租户另设固定并发上限（默认不限制）。
+ * 超出上限的查询进入短等待队列，队列已满或预计等待超过截止时间时立即拒绝，避免过载时超时连锁扩散
+ */
+@Slf4j
+@Service
+public class QueryAdmissionController {
+
+    @Value("${admission.enabled:true}")
+    private boolean enabled;
+
+    @Value("${admission.initial-limit:16}")
+    private int initialLimit;
+
+    @Value("${admission.min-limit:2}")
+    private int minLimit;
+
+    @Value("${admission.max-limit:64}")
+    private int maxLimit;
+
+    /** 每个租户的并发上限，默认为初始全局上限的一半，防止单个租户占满全局并发；不大于0时不单独限制 */
+    @Value("${admission.tenant-limit:8}")
+    private int tenantLimit;
+
+    @Value("${admission.max-queue:32}")
+    private int maxQueue;
+
+    @Value("${admission.max-wait-ms:3000}")
+    private long maxWaitMs;
+
+    @Value("${admission.latency-tolerance:2.0}")
+    private double latencyTolerance;
+
+    @Value("${admission.backoff-ratio:0.8}")
+    private double backoffRatio;
+
+    private final ReentrantLock lock = new ReentrantLock(true);
+    private final Condition available = lock.newCondition();
+    private final Map<String, Integer> tenantInFlight = new HashMap<>();
+
+    private double limit;
+    private int inFlight;
+    private int waiting;
+    /** 短期/长期平均延迟（毫秒） */
+    private double shortLatency;
+    private double longLatency;
+    private long lastDecreaseAt;
+
+    private final AtomicLong admitted = new AtomicLong();
+    private final AtomicLong queued = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * 准入被拒绝
+     */
+    public static class AdmissionRejectedException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        public AdmissionRejectedException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * 准入许可，查询结束后必须释放
+     */
+    public class Permit {
+        private final String tenantId;
+        private final long startTime = System.currentTimeMillis();
+        private boolean released;
+
+        Permit(String tenantId) {
+            this.tenantId = tenantId;
+        }
+
+        /**
+         * 释放许可并反馈本次查询的延迟
+         * @param success 查询是否成功
+         */
+        public void release(boolean success) {
+            if (released) {
+                return;
+            }
+            released = true;
+            onRelease(tenantId, System.currentTimeMillis() - startTime, success, true);
+        }
+
+        /**
+         * 释放许可但不反馈延迟，用于客户端取消、命中缓存等不反映后端负载的情况
+         */
+        public void releaseWithoutFeedback() {
+            if (released) {
+                return;
+            }
+            released = true;
+            onRelease(tenantId, 0, true, false);
+        }
+    }
+
+    @PostConstruct
+    public void initialize() {
+        limit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+        if (tenantLimit > 0 && tenantLimit < limit) {
+            // 单租户部署时全局并发到不了上限，加性增大不会触发，可将 tenant-limit 设为0
+            log.info("租户并发上限 {} 小于全局并发上限 {}，单个租户最多使用 {} 个并发", tenantLimit, (int) limit, tenantLimit);
+        }
+    }
+
+    /**
+     * 申请准入，截止时间为当前时间加最大等待时间
+     * @param tenantId 租户ID
+     * @return 许可
+     */
+    public Permit acquire(String tenantId) {
+        return acquire(tenantId, System.currentTimeMillis() + maxWaitMs);
+    }
+
+    /**
+     * 申请准入
+     * @param tenantId 租户ID
+     * @param deadline 截止时间（毫秒时间戳），超过后不再等待
+     * @return 许可
+     * @throws AdmissionRejectedException 队列已满、预计等待超过截止时间或等待超时
+     */
+    public Permit acquire(String tenantId, long deadline) {
+        if (!enabled) {
+            return new Permit(null);
+        }
+        long waitUntil = Math.min(deadline, System.currentTimeMillis() + maxWaitMs);
+        lock.lock();
+        try {
+            if (canAdmit(tenantId)) {
+                return admit(tenantId);
+            }
+            if (waiting >= maxQueue) {
+                throw reject("等待队列已满");
+            }
+            // 按平均延迟和当前并发上限估算排队时间，赶不上截止时间就不排队
+            long estimatedWait = (long) (shortLatency * (waiting + 1) / Math.max(1.0, limit));
+            if (System.currentTimeMillis() + estimatedWait > waitUntil) {
+                throw reject("预计等待 " + estimatedWait + " ms，超过截止时间");
+            }
+
+            queued.incrementAndGet();
+            waiting++;
+            try {
+                while (!canAdmit(tenantId)) {
+                    long remaining = waitUntil - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        throw reject("等待超时");
+                    }
+                    available.await(remaining, TimeUnit.MILLISECONDS);
+                }
+                return admit(tenantId);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw reject("等待被中断");
+            } finally {
+                waiting--;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean canAdmit(String tenantId) {
+        return inFlight < (int) limit
+                && (tenantLimit <= 0 || tenantInFlight.getOrDefault(tenantId, 0) < tenantLimit);
+    }
+
+    private Permit admit(String tenantId) {
+        inFlight++;
+        tenantInFlight.merge(tenantId, 1, Integer::sum);
+        admitted.incrementAndGet();
+        return new Permit(tenantId);
+    }
+
+    private AdmissionRejectedException reject(String reason) {
+        rejected.incrementAndGet();
+        log.warn("查询准入被拒绝: {}，并发: {}/{}，排队: {}", reason, inFlight, (int) limit, waiting);
+        return new AdmissionRejectedException("系统繁忙，请稍后重试（" + reason + "）");
+    }
+
+    private void onRelease(String tenantId, long latencyMs, boolean success, boolean feedback) {
+        if (tenantId == null) {
+            return;
+        }
+        lock.lock();
+        try {
+            boolean saturated = inFlight >= (int) limit;
+            inFlight--;
+            tenantInFlight.computeIfPresent(tenantId, (key, count) -> count > 1 ? count - 1 : null);
+            if (!feedback) {
+                available.signalAll();
+                return;
+            }
+
+            if (longLatency == 0) {
+                shortLatency = latencyMs;
+                longLatency = latencyMs;
+            } else {
+                shortLatency = 0.8 * shortLatency + 0.2 * latencyMs;
+                longLatency = 0.98 * longLatency + 0.02 * latencyMs;
+            }
+
+            long now = System.currentTimeMillis();
+            if (!success || shortLatency > longLatency * latencyTolerance) {
+                // 每个延迟周期内最多减小一次，避免同一批慢请求把上限压到底
+                if (now - lastDecreaseAt > shortLatency) {
+                    limit = Math.max(minLimit, limit * backoffRatio);
+                    lastDecreaseAt = now;
+                    log.info("查询延迟升高，并发上限降至 {}（短期 {} ms，长期 {} ms）",
+                            (int) limit, (long) shortLatency, (long) longLatency);
+                }
+            } else if (saturated) {
+                limit = Math.min(maxLimit, limit + 1.0 / limit);
+            }
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 获取准入控制统计信息
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("enabled", enabled);
+        lock.lock();
+        try {
+            stats.put("limit", (int) limit);
+            stats.put("inFlight", inFlight);
+            stats.put("waiting", waiting);
+            stats.put("tenants", new HashMap<>(tenantInFlight));
+            stats.put("shortLatencyMs", (long) shortLatency);
+            stats.put("longLatencyMs", (long) longLatency);
+        } finally {
+            lock.unlock();
+        }
+        stats.put("tenantLimit", tenantLimit);
+        stats.put("admitted", admitted.get());
+        stats.put("queued", queued.get());
+        stats.put("rejected", rejected.get());
+        return stats;
+    }
+}
@@ -17,22 +17,33 @@
 
 package com.unionhole.zrag.service;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.unionhole.zrag.store.MilvusEmbeddingStore;
+import com.unionhole.zrag.util.CancellableSseEmitter;
 import com.unionhole.zrag.util.StreamingUtils;
 import dev.langchain4j.data.document.Document;
 import dev.langchain4j.data.segment.TextSegment;
 import dev.langchain4j.model.chat.ChatLanguageModel;
 import dev.langchain4j.rag.content.retriever.ContentRetriever;
 import dev.langchain4j.store.embedding.EmbeddingMatch;
+import dev.langchain4j.store.embedding.EmbeddingStore;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Service;
 import org.springframework.web.multipart.MultipartFile;
 import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
 import java.util.ArrayList;
+import java.util.concurrent.CancellationException;
 
 /**
  * RAG核心服务
@@ -48,6 +59,10 @@ public class RagService {
     private final GenerationService generationService;
     private final ChatLanguageModel chatModel;
     private final ContentRetriever contentRetriever;
+    private final SemanticAnswerCache answerCache;
+    private final RetrievalCache retrievalCache;
+    private final RerankScoreCache rerankScoreCache;
+    private final QueryAdmissionController admissionController;
 
     /**
      * 处理文档并存储到向量数据库
@@ -79,30 +94,7 @@ public class RagService {
      * @return RAG回答
      */
     public String query(String query) {
-        log.info("执行RAG查询: {}", query);
-        
-        try {
-            // 1. 检索相关文档
-            List<EmbeddingMatch<TextSegment>> matches = retrievalService.retrieve(query);
-            
-            if (matches.isEmpty()) {
-                return "抱歉，没有找到与您查询相关的文档内容。";
-            }
-            
-            // 2. 提取文档内容
-            List<String> retrievedDocuments = matches.stream()
-                    .map(match -> match.embedded().text())
-                    .collect(java.util.stream.Collectors.toList());
-            
-            // 3. 生成回答
-            String answer = generationService.generateAnswer(query, retrievedDocuments);
-            
-            log.info("RAG查询完成");
-            return answer;
-        } catch (Exception e) {
-            log.error("RAG查询失败", e);
-            return "查询失败: " + e.getMessage();
-        }
+        return query(query, 5, 0.6);
     }
 
     /**
@@ -116,29 +108,64 @@ public class RagService {
         log.info("执行RAG查询: {} (maxResults: {}, minScore: {})", query, maxResults, minScore);
         
         try {
-            // 1. 检索相关文档
-            List<EmbeddingMatch<TextSegment>> matches = retrievalService.retrieve(query, maxResults, minScore);
-            
-            if (matches.isEmpty()) {
-                return "抱歉，没有找到与您查询相关的文档内容。";
+            // 0. 查询回答缓存，精确命中不调用模型
+            String cacheScope = "query|" + maxResults + "|" + minScore;
+            SemanticAnswerCache.CachedAnswer cached = answerCache.lookup(cacheScope, query, null);
+            if (cached != null) {
+                return cached.getAnswer();
             }
             
-            // 2. 提取文档内容
-            List<String> retrievedDocuments = matches.stream()
-                    .map(match -> match.embedded().text())
-                    .collect(java.util.stream.Collectors.toList());
-            
-            // 3. 生成回答
-            String answer = generationService.generateAnswer(query, retrievedDocuments);
-            
-            log.info("RAG查询完成");
-            return answer;
+            // 语义缓存需要向量化查询，和后续检索、生成一样先经过准入控制
+            QueryAdmissionController.Permit permit = admissionController.acquire(retrievalService.getCurrentTenantId());
+            boolean success = false;
+            try {
+                cached = answerCache.lookup(cacheScope, query, () -> retrievalService.embedQuery(query));
+                if (cached != null) {
+                    permit.releaseWithoutFeedback();
+                    return cached.getAnswer();
+                }
+                String answer = answerWithRetrieval(query, maxResults, minScore, cacheScope);
+                success = true;
+                return answer;
+            } finally {
+                permit.release(success);
+            }
+        } catch (QueryAdmissionController.AdmissionRejectedException e) {
+            return e.getMessage();
         } catch (Exception e) {
             log.error("RAG查询失败", e);
             return "查询失败: " + e.getMessage();
         }
     }
 
+    private String answerWithRetrieval(String query, int maxResults, double minScore, String cacheScope) {
+        // 1. 检索相关文档
+        List<EmbeddingMatch<TextSegment>> matches = retrievalService.retrieve(query, maxResults, minScore);
+        
+        if (matches.isEmpty()) {
+            return "抱歉，没有找到与您查询相关的文档内容。";
+        }
+        
+        // 2. 提取文档内容
+        List<String> retrievedDocuments = matches.stream()
+                .map(match -> match.embedded().text())
+                .collect(java.util.stream.Collectors.toList());
+        
+        // 3. 生成回答
+        String answer = generationService.generateAnswer(query, retrievedDocuments);
+        
+        // 4. 写入回答缓存
+        if (isCacheableAnswer(answer)) {
+            List<TextSegment> segments = matches.stream()
+                    .map(EmbeddingMatch::embedded)
+                    .collect(java.util.stream.Collectors.toList());
+            answerCache.put(cacheScope, query, retrievalService.embedQuery(query), answer, segments);
+        }
+        
+        log.info("RAG查询完成");
+        return answer;
+    }
+
     /**
      * 使用内容检索器执行RAG查询
      * @param query 用户查询
@@ -163,6 +190,14 @@ public class RagService {
     public void queryStreamStock(String query, SseEmitter emitter) {
         log.info("执行股神投资主题流式RAG查询: {}", query);
         
+        QueryAdmissionController.Permit permit;
+        try {
+            permit = admissionController.acquire(retrievalService.getCurrentTenantId());
+        } catch (QueryAdmissionController.AdmissionRejectedException e) {
+            StreamingUtils.sendError(emitter, e.getMessage());
+            return;
+        }
+        boolean success = false;
         try {
             // 发送RAG过程开始日志
             StreamingUtils.sendDetailedRagLog(emitter, "RAG_START", "开始执行股神投资主题RAG查询");
@@ -183,6 +218,7 @@ public class RagService {
                 String answer = generationService.generateStockAnswerWithoutKnowledge(query, emitter);
                 StreamingUtils.sendAnswer(emitter, answer);
                 StreamingUtils.sendDetailedRagLog(emitter, "RAG_END", "RAG查询完成（AI直接分析模式）");
+                success = true;
                 return;
             }
             
@@ -215,11 +251,14 @@ public class RagService {
             StreamingUtils.sendAnswer(emitter, answer);
             StreamingUtils.sendDetailedRagLog(emitter, "RAG_END", "RAG查询完成，回答已生成");
             
+            success = true;
             log.info("股神投资主题流式RAG查询完成");
         } catch (Exception e) {
             log.error("股神投资主题流式RAG查询失败", e);
             StreamingUtils.sendDetailedRagLog(emitter, "ERROR", "RAG查询失败: " + e.getMessage());
             StreamingUtils.sendError(emitter, "投资分析失败: " + e.getMessage());
+        } finally {
+            releasePermit(permit, success, emitter);
         }
     }
 
@@ -233,6 +272,14 @@ public class RagService {
     public void queryStreamStock(String query, int maxResults, double minScore, SseEmitter emitter) {
         log.info("执行股神投资主题流式RAG查询: {} (maxResults: {}, minScore: {})", query, maxResults, minScore);
         
+        QueryAdmissionController.Permit permit;
+        try {
+            permit = admissionController.acquire(retrievalService.getCurrentTenantId());
+        } catch (QueryAdmissionController.AdmissionRejectedException e) {
+            StreamingUtils.sendError(emitter, e.getMessage());
+            return;
+        }
+        boolean success = false;
         try {
             // 发送RAG过程开始日志
             StreamingUtils.sendDetailedRagLog(emitter, "RAG_START", "开始执行股神投资主题RAG查询（带参数）");
@@ -253,6 +300,7 @@ public class RagService {
                 String answer = generationService.generateStockAnswerWithoutKnowledge(query, emitter);
                 StreamingUtils.sendAnswer(emitter, answer);
                 StreamingUtils.sendDetailedRagLog(emitter, "RAG_END", "RAG查询完成（AI直接分析模式）");
+                success = true;
                 return;
             }
             
@@ -285,11 +333,14 @@ public class RagService {
             StreamingUtils.sendAnswer(emitter, answer);
             StreamingUtils.sendDetailedRagLog(emitter, "RAG_END", "RAG查询完成，回答已生成");
             
+            success = true;
             log.info("股神投资主题流式RAG查询完成");
         } catch (Exception e) {
             log.error("股神投资主题流式RAG查询失败", e);
             StreamingUtils.sendDetailedRagLog(emitter, "ERROR", "RAG查询失败: " + e.getMessage());
             StreamingUtils.sendError(emitter, "投资分析失败: " + e.getMessage());
+        } finally {
+            releasePermit(permit, success, emitter);
         }
     }
 
@@ -309,34 +360,67 @@ public class RagService {
      * @return 知识片段列表
      */
     public Map<String, Object> getKnowledgeChunks(int page, int size, String search) {
+        return getKnowledgeChunks(page, size, search, null);
+    }
+
+    /**
+     * 获取知识片段列表（按文件过滤）
+     * Milvus存储通过查询迭代器只拉取当前页数据，其他存储在内存中分页
+     * @param page 页码
+     * @param size 每页大小
+     * @param search 搜索关键词
+     * @param fileId 文件ID（可选）
+     * @return 知识片段列表
+     */
+    public Map<String, Object> getKnowledgeChunks(int page, int size, String search, String fileId) {
         try {
-            log.info("获取知识片段列表，页码: {}, 大小: {}, 搜索: {}", page, size, search);
+            log.info("获取知识片段列表，页码: {}, 大小: {}, 搜索: {}, 文件: {}", page, size, search, fileId);
             
-            // 这里应该从向量数据库中获取实际的片段数据
-            // 目前返回模拟数据
             List<Map<String, Object>> chunks = new ArrayList<>();
-            
-            // 模拟数据
-            for (int i = 0; i < Math.min(size, 20); i++) {
-                Map<String, Object> chunk = new HashMap<>();
-                chunk.put("id", "chunk_" + (page * size + i + 1));
-                chunk.put("content", "这是第 " + (page * size + i + 1) + " 个知识片段的内容。包含相关的信息和数据，用于RAG系统的检索和问答。");
-                chunk.put("source", "文档_" + (i % 5 + 1) + ".pdf");
-                chunk.put("chunkIndex", i + 1);
-                chunk.put("totalChunks", 10);
-                chunk.put("createdAt", System.currentTimeMillis() - (i * 1000 * 60 * 60)); // 模拟时间
-                chunk.put("similarity", 0.85 + (Math.random() * 0.1)); // 模拟相似度
-                chunks.add(chunk);
+            long totalElements;
+            
+            EmbeddingStore<TextSegment> embeddingStore = retrievalService.getEmbeddingStore();
+            if (embeddingStore instanceof MilvusEmbeddingStore) {
+                MilvusEmbeddingStore milvusStore = (MilvusEmbeddingStore) embeddingStore;
+                String tenantId = getCurrentTenantId();
+                totalElements = Math.max(0, milvusStore.countChunks(tenantId, fileId, search));
+                milvusStore.scanChunks(tenantId, fileId, search, (long) page * size, size, row -> {
+                    chunks.add(toChunk(milvusStore, row));
+                    return true;
+                });
+            } else {
+                List<TextSegment> segments = documentService.findAllSegments();
+                List<TextSegment> filtered = new ArrayList<>();
+                for (TextSegment segment : segments) {
+                    if (search == null || search.trim().isEmpty() || segment.text().contains(search.trim())) {
+                        filtered.add(segment);
+                    }
+                }
+                totalElements = filtered.size();
+                int from = Math.min(page * size, filtered.size());
+                int to = Math.min(from + size, filtered.size());
+                for (int i = from; i < to; i++) {
+                    TextSegment segment = filtered.get(i);
+                    Map<String, Object> chunk = new HashMap<>();
+                    chunk.put("id", "chunk_" + (i + 1));
+                    chunk.put("content", segment.text());
+                    chunk.put("source", segment.metadata().get("file_name"));
+                    chunk.put("chunkIndex", i + 1);
+                    chunk.put("totalChunks", filtered.size());
+                    chunks.add(chunk);
+                }
             }
             
+            int totalPages = size > 0 ? (int) ((totalElements + size - 1) / size) : 0;
+            
             Map<String, Object> result = new HashMap<>();
             result.put("content", chunks);
-            result.put("totalElements", 100); // 模拟总数
-            result.put("totalPages", 5);
+            result.put("totalElements", totalElements);
+            result.put("totalPages", totalPages);
             result.put("currentPage", page);
             result.put("size", size);
             result.put("first", page == 0);
-            result.put("last", page >= 4);
+            result.put("last", page >= totalPages - 1);
             result.put("numberOfElements", chunks.size());
             
             return result;
@@ -346,6 +430,80 @@ public class RagService {
         }
     }
 
+    /**
+     * 导出知识片段
+     * 逐行写出JSON Lines，Milvus存储下内存占用与集合规模无关
+     * @param fileId 文件ID（可选）
+     * @param outputStream 输出流
+     * @return 导出的片段数量
+     */
+    public long exportKnowledgeChunks(String fileId, OutputStream outputStream) throws IOException {
+        log.info("导出知识片段，文件: {}", fileId);
+        
+        ObjectMapper mapper = new ObjectMapper();
+        Writer writer = new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8));
+        long exported;
+        
+        EmbeddingStore<TextSegment> embeddingStore = retrievalService.getEmbeddingStore();
+        if (embeddingStore instanceof MilvusEmbeddingStore) {
+            MilvusEmbeddingStore milvusStore = (MilvusEmbeddingStore) embeddingStore;
+            IOException[] failure = new IOException[1];
+            try {
+                exported = milvusStore.scanChunks(getCurrentTenantId(), fileId, null, 0, 0, row -> {
+                    try {
+                        writer.write(mapper.writeValueAsString(toChunk(milvusStore, row)));
+                        writer.write('\n');
+                        return true;
+                    } catch (IOException e) {
+                        failure[0] = e;
+                        return false;
+                    }
+                });
+            } catch (RuntimeException e) {
+                // 已写出的内容不完整，中断响应而不是返回截断的文件
+                log.error("知识片段导出失败", e);
+                throw new IOException("知识片段导出失败: " + e.getMessage(), e);
+            }
+            if (failure[0] != null) {
+                throw failure[0];
+            }
+        } else {
+            exported = 0;
+            for (TextSegment segment : documentService.findAllSegments()) {
+                Map<String, Object> chunk = new HashMap<>();
+                chunk.put("content", segment.text());
+                chunk.put("metadata", segment.metadata().asMap());
+                writer.write(mapper.writeValueAsString(chunk));
+                writer.write('\n');
+                exported++;
+            }
+        }
+        
+        writer.flush();
+        log.info("知识片段导出完成，共 {} 条", exported);
+        return exported;
+    }
+
+    /**
+     * 将Milvus行数据转换为知识片段
+     */
+    private Map<String, Object> toChunk(MilvusEmbeddingStore milvusStore, Map<String, Object> row) {
+        Map<String, Object> metadata = milvusStore.getMilvusUtils().parseMetadata(row.get("metadata"));
+        
+        Map<String, Object> chunk = new HashMap<>();
+        chunk.put("id", String.valueOf(row.get("id")));
+        chunk.put("content", row.get("content"));
+        chunk.put("fileId", row.get("file_id"));
+        chunk.put("chunkId", row.get("chunk_id"));
+        chunk.put("source", metadata.containsKey("file_name") ? metadata.get("file_name") : row.get("file_id"));
+        Object chunkIndex = metadata.get("chunk_index");
+        chunk.put("chunkIndex", chunkIndex instanceof Number ? ((Number) chunkIndex).intValue() + 1 : null);
+        Object totalChunks = metadata.get("total_chunks");
+        chunk.put("totalChunks", totalChunks instanceof Number ? ((Number) totalChunks).intValue() : null);
+        chunk.put("createdAt", row.get("created_at"));
+        return chunk;
+    }
+
     /**
      * 获取向量数据信息
      * @return 向量数据信息
@@ -407,6 +565,7 @@ public class RagService {
             result.put("queryStats", queryStats);
             result.put("documentStats", documentStats);
             result.put("dailyStats", dailyStats);
+            result.put("cacheStats", getCacheStats());
             result.put("lastUpdated", System.currentTimeMillis());
             
             return result;
@@ -550,39 +709,7 @@ public class RagService {
      * @param emitter 流式响应发射器
      */
     public void queryStream(String query, SseEmitter emitter) {
-        try {
-            log.info("执行流式RAG查询: {}", query);
-            
-            // 发送思考步骤
-            StreamingUtils.sendThinking(emitter, "🔍 正在检索相关文档...");
-            
-            // 执行检索
-            List<TextSegment> relevantSegments = retrievalService.retrieveStream(query, emitter);
-            
-            if (relevantSegments.isEmpty()) {
-                // 没有命中知识，使用AI进行检索
-                StreamingUtils.sendThinking(emitter, "📚 未找到相关知识，正在使用AI进行检索...");
-                String answer = generationService.generateAnswerWithoutKnowledge(query, emitter);
-                StreamingUtils.sendAnswer(emitter, answer);
-                emitter.complete();
-                return;
-            }
-            
-            // 发送生成步骤
-            StreamingUtils.sendGeneration(emitter, "🤖 正在基于知识库生成回答...");
-            
-            // 生成带引用信息的回答
-            String answer = generationService.generateStreamWithReferences(query, relevantSegments, emitter);
-            
-            // 发送最终答案
-            StreamingUtils.sendAnswer(emitter, answer);
-            emitter.complete();
-            
-        } catch (Exception e) {
-            log.error("流式RAG查询失败", e);
-            StreamingUtils.sendError(emitter, "查询失败: " + e.getMessage());
-            emitter.completeWithError(e);
-        }
+        queryStream(query, 5, 0.6, emitter);
     }
     
     /**
@@ -596,31 +723,36 @@ public class RagService {
         try {
             log.info("执行流式RAG查询: {}", query);
             
-            // 发送思考步骤
-            StreamingUtils.sendThinking(emitter, "🔍 正在检索相关文档...");
-            
-            // 执行检索
-            List<TextSegment> relevantSegments = retrievalService.retrieveStream(query, maxResults, minScore, emitter);
-            
-            if (relevantSegments.isEmpty()) {
-                // 没有命中知识，使用AI进行检索
-                StreamingUtils.sendThinking(emitter, "📚 未找到相关知识，正在使用AI进行检索...");
-                String answer = generationService.generateAnswerWithoutKnowledge(query, emitter);
-                StreamingUtils.sendAnswer(emitter, answer);
-                emitter.complete();
+            // 查询回答缓存，精确命中时直接回放引用信息和答案，不调用模型
+            String cacheScope = "stream|" + maxResults + "|" + minScore;
+            SemanticAnswerCache.CachedAnswer cached = answerCache.lookup(cacheScope, query, null);
+            if (cached != null) {
+                replayCachedAnswer(cached, emitter);
                 return;
             }
             
-            // 发送生成步骤
-            StreamingUtils.sendGeneration(emitter, "🤖 正在基于知识库生成回答...");
-            
-            // 生成带引用信息的回答
-            String answer = generationService.generateStreamWithReferences(query, relevantSegments, emitter);
+            // 语义缓存需要向量化查询，和后续检索、生成一样先经过准入控制
+            QueryAdmissionController.Permit permit = admissionController.acquire(retrievalService.getCurrentTenantId());
+            boolean success = false;
+            try {
+                cached = answerCache.lookup(cacheScope, query, () -> retrievalService.embedQuery(query));
+                if (cached != null) {
+                    permit.releaseWithoutFeedback();
+                    replayCachedAnswer(cached, emitter);
+                    return;
+                }
+                answerStreamWithRetrieval(query, maxResults, minScore, cacheScope, emitter);
+                success = true;
+            } finally {
+                releasePermit(permit, success, emitter);
+            }
             
-            // 发送最终答案
-            StreamingUtils.sendAnswer(emitter, answer);
+        } catch (QueryAdmissionController.AdmissionRejectedException e) {
+            StreamingUtils.sendError(emitter, e.getMessage());
             emitter.complete();
-            
+        } catch (CancellationException e) {
+            log.info("流式RAG查询已取消: {}", e.getMessage());
+            throw e;
         } catch (Exception e) {
             log.error("流式RAG查询失败", e);
             StreamingUtils.sendError(emitter, "查询失败: " + e.getMessage());
@@ -628,6 +760,94 @@ public class RagService {
         }
     }
     
+    private void replayCachedAnswer(SemanticAnswerCache.CachedAnswer cached, SseEmitter emitter) {
+        StreamingUtils.sendThinking(emitter, "⚡ 命中回答缓存");
+        generationService.sendReferenceInfo(emitter,
+                generationService.extractReferencedDocuments(cached.getSegments()));
+        StreamingUtils.sendAnswer(emitter, cached.getAnswer());
+        emitter.complete();
+    }
+    
+    /**
+     * 释放准入许可，客户端断开导致的中止不反映后端负载，不参与并发上限调整
+     */
+    private void releasePermit(QueryAdmissionController.Permit permit, boolean success, SseEmitter emitter) {
+        boolean cancelled = Thread.currentThread().isInterrupted()
+                || emitter instanceof CancellableSseEmitter && ((CancellableSseEmitter) emitter).isCancelled();
+        if (!success && cancelled) {
+            permit.releaseWithoutFeedback();
+        } else {
+            permit.release(success);
+        }
+    }
+    
+    private void answerStreamWithRetrieval(String query, Integer maxResults, Double minScore, String cacheScope,
+                                           SseEmitter emitter) {
+        // 发送思考步骤
+        StreamingUtils.sendThinking(emitter, "🔍 正在检索相关文档...");
+        
+        // 执行检索
+        List<TextSegment> relevantSegments = retrievalService.retrieveStream(query, maxResults, minScore, emitter);
+        
+        if (relevantSegments.isEmpty()) {
+            // 没有命中知识，使用AI进行检索
+            StreamingUtils.sendThinking(emitter, "📚 未找到相关知识，正在使用AI进行检索...");
+            String answer = generationService.generateAnswerWithoutKnowledge(query, emitter);
+            StreamingUtils.sendAnswer(emitter, answer);
+            emitter.complete();
+            return;
+        }
+        
+        // 发送生成步骤
+        StreamingUtils.sendGeneration(emitter, "🤖 正在基于知识库生成回答...");
+        
+        // 生成带引用信息的回答
+        String answer = generationService.generateStreamWithReferences(query, relevantSegments, emitter);
+        if (isCacheableAnswer(answer)) {
+            answerCache.put(cacheScope, query, retrievalService.embedQuery(query), answer, relevantSegments);
+        }
+        
+        // 发送最终答案
+        StreamingUtils.sendAnswer(emitter, answer);
+        emitter.complete();
+    }
+    
+    /**
+     * 判断回答是否可以缓存（排除生成失败和模拟模型的回答）
+     */
+    private boolean isCacheableAnswer(String answer) {
+        return answer != null && !answer.trim().isEmpty()
+                && !answer.startsWith("生成回答失败")
+                && !answer.startsWith("聊天模型未配置")
+                && !answer.contains("这是使用模拟模型生成的回答");
+    }
+    
+    /**
+     * 获取缓存统计信息
+     * @return 各级缓存的命中率等统计
+     */
+    public Map<String, Object> getCacheStats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("answerCache", answerCache.getStats());
+        stats.put("retrievalCache", retrievalCache.getStats());
+        stats.put("rerankCache", rerankScoreCache.getStats());
+        return stats;
+    }
+    
+    /**
+     * 获取自适应重排策略统计与最近的决策记录
+     */
+    public Map<String, Object> getRerankPolicyStats() {
+        return retrievalService.getRerankPolicyStats();
+    }
+    
+    /**
+     * 获取查询准入控制统计
+     */
+    public Map<String, Object> getAdmissionStats() {
+        return admissionController.getStats();
+    }
+    
     /**
      * 获取EmbeddingStore实例
      * @return EmbeddingStore实例
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2025 james-zou
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.unionhole.zrag.service;
+
+import com.unionhole.zrag.util.HashUtils;
+import dev.langchain4j.data.segment.TextSegment;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 重排分数缓存
+ * 按（模型、查询哈希、片段）缓存重排分数，重排时只把未缓存的候选发送给重排模型。
+ * 片段以内容指纹标识：同一片段经向量召回和词法召回得到的ID不同，但内容一致
+ */
+@Slf4j
+@Service
+public class RerankScoreCache {
+
+    @Value("${rerank.cache.enabled:true}")
+    private boolean enabled;
+
+    @Value("${rerank.cache.max-entries:20000}")
+    private int maxEntries;
+
+    @Value("${rerank.cache.ttl-seconds:3600}")
+    private long ttlSeconds;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    private final LinkedHashMap<String, CachedScore> entries = new LinkedHashMap<String, CachedScore>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CachedScore> eldest) {
+            return size() > maxEntries;
+        }
+    };
+
+    private static class CachedScore {
+        final double score;
+        final long expireAt;
+
+        CachedScore(double score, long expireAt) {
+            this.score = score;
+            this.expireAt = expireAt;
+        }
+    }
+
+    /**
+     * 计算查询部分的键前缀，同一次重排内复用
+     * @param model 重排模型
+     * @param query 查询文本
+     * @return 键前缀
+     */
+    public String queryKey(String model, String query) {
+        return model + "|" + HashUtils.sha256Hex(query);
+    }
+
+    /**
+     * 读取缓存分数
+     * @param queryKey 查询键前缀
+     * @param segment 候选片段
+     * @return 分数，未命中返回null
+     */
+    public Double get(String queryKey, TextSegment segment) {
+        if (!enabled) {
+            return null;
+        }
+        String key = queryKey + "|" + HashUtils.sha256Hex(segment.text());
+        synchronized (entries) {
+            CachedScore cached = entries.get(key);
+            if (cached != null && System.currentTimeMillis() < cached.expireAt) {
+                hits.incrementAndGet();
+                return cached.score;
+            }
+            if (cached != null) {
+                entries.remove(key);
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * 写入分数
+     * @param queryKey 查询键前缀
+     * @param segment 候选片段
+     * @param score 重排分数
+     */
+    public void put(String queryKey, TextSegment segment, double score) {
+        if (!enabled) {
+            return;
+        }
+        String key = queryKey + "|" + HashUtils.sha256Hex(segment.text());
+        synchronized (entries) {
+            entries.put(key, new CachedScore(score, System.currentTimeMillis() + ttlSeconds * 1000));
+        }
+    }
+
+    /**
+     * 获取缓存统计信息
+     * @return 命中次数、命中率等
+     */
+    public Map<String, Object> getStats() {
+        long hit = hits.get();
+        long miss = misses.get();
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("enabled", enabled);
+        synchronized (entries) {
+            stats.put("size", entries.size());
+        }
+        stats.put("maxEntries", maxEntries);
+        stats.put("hits", hit);
+        stats.put("misses", miss);
+        stats.put("hitRate", hit + miss > 0 ? (double) hit / (hit + miss) : 0.0);
+        return stats;
+    }
+}
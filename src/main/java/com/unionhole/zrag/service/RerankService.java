@@ -27,11 +27,24 @@ import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.http.client.SimpleClientHttpRequestFactory;
 import org.springframework.stereotype.Service;
 import org.springframework.web.client.RestTemplate;
 import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import java.util.*;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
 /**
@@ -67,25 +80,115 @@ public class RerankService {
     @Value("${rerank.ollama.model:qwen2.5:7b}")
     private String ollamaModel;
 
+    @Value("${rerank.ollama.concurrency:4}")
+    private int ollamaConcurrency;
+
+    @Value("${rerank.ollama.timeout-ms:15000}")
+    private long ollamaTimeoutMs;
+
+    @Value("${rerank.ollama.connect-timeout-ms:3000}")
+    private int ollamaConnectTimeoutMs;
+
+    @Value("${rerank.http.connect-timeout-ms:5000}")
+    private int connectTimeoutMs;
+
+    @Value("${rerank.http.read-timeout-ms:30000}")
+    private int readTimeoutMs;
+
+    @Value("${rerank.ollama.early-stop-score:0.9}")
+    private double ollamaEarlyStopScore;
+
+    @Value("${rerank.ollama.max-chars:1500}")
+    private int ollamaMaxChars;
+
     @Value("${default.rerank.provider:qwen}")
     private String defaultRerankProvider;
 
-    private final RestTemplate restTemplate = new RestTemplate();
+    private final RerankScoreCache rerankScoreCache;
+    private final LocalCrossEncoderReranker localCrossEncoderReranker;
+
+    private RestTemplate restTemplate = new RestTemplate();
+
+    /** Ollama逐条打分专用，读超时不超过单次重排总超时，取消打分任务后线程最迟在读超时后释放 */
+    private RestTemplate ollamaRestTemplate = new RestTemplate();
+
+    private static final Pattern SCORE_PATTERN = Pattern.compile("\\d+(\\.\\d+)?");
+
+    private ExecutorService ollamaExecutor;
+
+    @PostConstruct
+    public void initialize() {
+        restTemplate = new RestTemplate(requestFactory(connectTimeoutMs, readTimeoutMs));
+        ollamaRestTemplate = new RestTemplate(requestFactory(ollamaConnectTimeoutMs, (int) ollamaTimeoutMs));
+        AtomicInteger threadIndex = new AtomicInteger();
+        ollamaExecutor = Executors.newFixedThreadPool(Math.max(1, ollamaConcurrency), runnable -> {
+            Thread thread = new Thread(runnable, "ollama-rerank-" + threadIndex.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private SimpleClientHttpRequestFactory requestFactory(int connectTimeout, int readTimeout) {
+        SimpleClientHttpRequestFactory requestFactory = new SimpleClientHttpRequestFactory();
+        requestFactory.setConnectTimeout(connectTimeout);
+        requestFactory.setReadTimeout(readTimeout);
+        return requestFactory;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (ollamaExecutor != null) {
+            ollamaExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * 重排结果
+     */
+    public static class RerankResult<T> {
+        private final List<T> results;
+        private final boolean scored;
+
+        private RerankResult(List<T> results, boolean scored) {
+            this.results = results;
+            this.scored = scored;
+        }
+
+        static <T> RerankResult<T> scored(List<T> results) {
+            return new RerankResult<>(results, true);
+        }
+
+        static <T> RerankResult<T> unscored(List<T> results) {
+            return new RerankResult<>(results, false);
+        }
+
+        public List<T> getResults() {
+            return results;
+        }
+
+        /**
+         * 结果是否由重排模型实际打分；未配置API Key、提供商调用失败等降级情况下为false，
+         * 此时结果只是按向量分数排序
+         */
+        public boolean isScored() {
+            return scored;
+        }
+    }
 
     /**
      * 重排检索结果
      * @param query 查询文本
      * @param matches 检索到的匹配结果
      * @param maxResults 最大返回结果数
-     * @return 重排后的结果
+     * @return 重排后的结果，模型未配置或调用失败时为按向量分数排序的降级结果
      */
-    public List<EmbeddingMatch<TextSegment>> rerank(String query, 
+    public RerankResult<EmbeddingMatch<TextSegment>> rerank(String query, 
                                                    List<EmbeddingMatch<TextSegment>> matches, 
                                                    int maxResults) {
         if (matches == null || matches.isEmpty()) {
             log.info("=== 重排服务 ===");
             log.info("输入匹配结果为空，跳过重排");
-            return matches;
+            return RerankResult.unscored(matches);
         }
 
         log.info("=== 重排服务开始 ===");
@@ -95,7 +198,7 @@ public class RerankService {
         log.info("使用重排提供商: {}", defaultRerankProvider);
 
         try {
-            List<EmbeddingMatch<TextSegment>> result;
+            RerankResult<EmbeddingMatch<TextSegment>> result;
             switch (defaultRerankProvider.toLowerCase()) {
                 case "qwen":
                     result = rerankWithQwen(query, matches, maxResults);
@@ -106,33 +209,102 @@ public class RerankService {
                 case "ollama":
                     result = rerankWithOllama(query, matches, maxResults);
                     break;
+                case "local":
+                    result = rerankWithLocal(query, matches, maxResults);
+                    break;
                 default:
-                    result = rerankWithDefault(query, matches, maxResults);
+                    result = fallback(matches, maxResults);
                     break;
             }
             
-            log.info("重排完成，返回结果数量: {}", result.size());
+            log.info("重排完成，返回结果数量: {}，模型打分: {}", result.getResults().size(), result.isScored());
             log.info("=== 重排服务结束 ===");
             return result;
         } catch (Exception e) {
             log.error("重排失败，使用默认排序", e);
-            return rerankWithDefault(query, matches, maxResults);
+            return fallback(matches, maxResults);
         }
     }
 
     /**
      * 使用千问重排模型
      */
-    private List<EmbeddingMatch<TextSegment>> rerankWithQwen(String query, 
+    private RerankResult<EmbeddingMatch<TextSegment>> rerankWithQwen(String query, 
                                                             List<EmbeddingMatch<TextSegment>> matches, 
                                                             int maxResults) {
         if (qwenApiKey == null || qwenApiKey.isEmpty()) {
             log.warn("千问API Key未配置，使用默认排序");
-            return rerankWithDefault(query, matches, maxResults);
+            return fallback(matches, maxResults);
+        }
+
+        List<EmbeddingMatch<TextSegment>> scored = scoreWithQwen(query, matches);
+        if (scored == null) {
+            return fallback(matches, maxResults);
+        }
+        return RerankResult.scored(scored.stream().limit(maxResults).collect(Collectors.toList()));
+    }
+
+    /**
+     * 使用千问重排模型为候选打分，已缓存的(查询, 片段)分数直接复用，只发送未缓存的候选
+     * @return 按重排分数降序排列的全部候选，调用失败返回null
+     */
+    private List<EmbeddingMatch<TextSegment>> scoreWithQwen(String query, List<EmbeddingMatch<TextSegment>> matches) {
+        String queryKey = rerankScoreCache.queryKey(qwenModel, query);
+        Double[] scores = new Double[matches.size()];
+        List<Integer> uncached = new ArrayList<>();
+        for (int i = 0; i < matches.size(); i++) {
+            scores[i] = rerankScoreCache.get(queryKey, matches.get(i).embedded());
+            if (scores[i] == null) {
+                uncached.add(i);
+            }
+        }
+        log.info("重排分数缓存: 命中 {} 个，需请求 {} 个", matches.size() - uncached.size(), uncached.size());
+
+        if (!uncached.isEmpty()) {
+            List<String> documents = new ArrayList<>(uncached.size());
+            for (Integer index : uncached) {
+                documents.add(matches.get(index).embedded().text());
+            }
+            Map<Integer, Double> freshScores = requestQwenScores(query, documents);
+            if (freshScores == null) {
+                return null;
+            }
+            for (Map.Entry<Integer, Double> entry : freshScores.entrySet()) {
+                int index = uncached.get(entry.getKey());
+                scores[index] = entry.getValue();
+                rerankScoreCache.put(queryKey, matches.get(index).embedded(), entry.getValue());
+            }
+        }
+
+        List<EmbeddingMatch<TextSegment>> rerankedMatches = new ArrayList<>();
+        for (int i = 0; i < matches.size(); i++) {
+            if (scores[i] == null) {
+                continue;
+            }
+            EmbeddingMatch<TextSegment> originalMatch = matches.get(i);
+            rerankedMatches.add(new EmbeddingMatch<>(
+                scores[i],
+                originalMatch.embeddingId(),
+                originalMatch.embedding(),
+                originalMatch.embedded()
+            ));
+        }
+        if (rerankedMatches.isEmpty()) {
+            log.warn("重排结果为空");
+            return null;
         }
+        rerankedMatches.sort((a, b) -> Double.compare(b.score(), a.score()));
+        return rerankedMatches;
+    }
 
+    /**
+     * 调用千问重排API
+     * @param query 查询文本
+     * @param documents 待打分的文档
+     * @return 文档下标 -> 相关性分数，调用失败返回null
+     */
+    private Map<Integer, Double> requestQwenScores(String query, List<String> documents) {
         try {
-            // 构建重排请求 - 使用正确的千问重排API端点
             String url = qwenBaseUrl;
             
             HttpHeaders headers = new HttpHeaders();
@@ -143,22 +315,16 @@ public class RerankService {
             Map<String, Object> requestBody = new HashMap<>();
             requestBody.put("model", qwenModel);
             
-            // 构建input对象
+            // 构建input对象 - 根据官方文档，documents应该是字符串数组
             Map<String, Object> input = new HashMap<>();
             input.put("query", query);
-            
-            // 构建文档列表 - 根据官方文档，documents应该是字符串数组
-            List<String> documents = new ArrayList<>();
-            for (EmbeddingMatch<TextSegment> match : matches) {
-                documents.add(match.embedded().text());
-            }
             input.put("documents", documents);
             requestBody.put("input", input);
             
-            // 重排参数
+            // 需要全部文档的分数用于缓存，且不回传文档内容
             Map<String, Object> parameters = new HashMap<>();
-            parameters.put("top_n", Math.min(maxResults, matches.size()));
-            parameters.put("return_documents", true);
+            parameters.put("top_n", documents.size());
+            parameters.put("return_documents", false);
             requestBody.put("parameters", parameters);
 
             HttpEntity<Map<String, Object>> request = new HttpEntity<>(requestBody, headers);
@@ -167,7 +333,6 @@ public class RerankService {
             log.info("=== 千问重排模型调用 ===");
             log.info("模型名称: {}", qwenModel);
             log.info("API地址: {}", url);
-            log.info("请求参数: {}", requestBody);
             log.info("查询文本: {}", query);
             log.info("文档数量: {}", documents.size());
             
@@ -188,129 +353,246 @@ public class RerankService {
                     List<Map<String, Object>> results = (List<Map<String, Object>>) output.get("results");
                     
                     if (results != null && !results.isEmpty()) {
-                        // 解析重排结果
-                        List<EmbeddingMatch<TextSegment>> rerankedMatches = new ArrayList<>();
-                        
+                        Map<Integer, Double> scores = new HashMap<>();
                         for (Map<String, Object> result : results) {
-                            Integer index = (Integer) result.get("index");
-                            Double score = (Double) result.get("relevance_score");
-                            
-                            if (index != null && index >= 0 && index < matches.size()) {
-                                // 更新相似度分数
-                                EmbeddingMatch<TextSegment> originalMatch = matches.get(index);
-                                EmbeddingMatch<TextSegment> rerankedMatch = new EmbeddingMatch<>(
-                                    score != null ? score : originalMatch.score(),
-                                    originalMatch.embeddingId(),
-                                    originalMatch.embedding(),
-                                    originalMatch.embedded()
-                                );
-                                rerankedMatches.add(rerankedMatch);
+                            Object index = result.get("index");
+                            Object score = result.get("relevance_score");
+                            if (index instanceof Number && score instanceof Number) {
+                                int i = ((Number) index).intValue();
+                                if (i >= 0 && i < documents.size()) {
+                                    scores.put(i, ((Number) score).doubleValue());
+                                }
                             }
                         }
-                        
-                        // 如果重排结果为空，返回原始顺序
-                        if (rerankedMatches.isEmpty()) {
-                            log.warn("重排结果为空，返回原始顺序");
-                            return matches.stream().limit(maxResults).collect(Collectors.toList());
-                        }
-                        
-                        return rerankedMatches.stream().limit(maxResults).collect(Collectors.toList());
+                        return scores;
                     }
                 }
             }
 
             log.error("千问重排API调用失败: {}", response.getStatusCode());
-            return rerankWithDefault(query, matches, maxResults);
+            return null;
 
         } catch (Exception e) {
             log.error("千问重排模型调用异常", e);
-            return rerankWithDefault(query, matches, maxResults);
+            return null;
+        }
+    }
+
+    /**
+     * 使用本地交叉编码器重排
+     */
+    private RerankResult<EmbeddingMatch<TextSegment>> rerankWithLocal(String query,
+                                                             List<EmbeddingMatch<TextSegment>> matches,
+                                                             int maxResults) {
+        long startTime = System.currentTimeMillis();
+        List<String> passages = matches.stream()
+                .map(match -> match.embedded().text())
+                .collect(Collectors.toList());
+        double[] scores = localCrossEncoderReranker.score(query, passages);
+        if (scores == null) {
+            log.warn("本地重排模型不可用，使用默认排序");
+            return fallback(matches, maxResults);
+        }
+
+        List<EmbeddingMatch<TextSegment>> rerankedMatches = new ArrayList<>(matches.size());
+        for (int i = 0; i < matches.size(); i++) {
+            EmbeddingMatch<TextSegment> originalMatch = matches.get(i);
+            rerankedMatches.add(new EmbeddingMatch<>(
+                scores[i],
+                originalMatch.embeddingId(),
+                originalMatch.embedding(),
+                originalMatch.embedded()
+            ));
         }
+        log.info("本地重排完成，候选数: {}, 耗时: {} ms", matches.size(), System.currentTimeMillis() - startTime);
+        return RerankResult.scored(rerankedMatches.stream()
+                .sorted((a, b) -> Double.compare(b.score(), a.score()))
+                .limit(maxResults)
+                .collect(Collectors.toList()));
     }
 
     /**
      * 使用OpenAI重排模型
      */
-    private List<EmbeddingMatch<TextSegment>> rerankWithOpenAI(String query, 
+    private RerankResult<EmbeddingMatch<TextSegment>> rerankWithOpenAI(String query, 
                                                               List<EmbeddingMatch<TextSegment>> matches, 
                                                               int maxResults) {
         if (openaiApiKey == null || openaiApiKey.isEmpty()) {
             log.warn("OpenAI API Key未配置，使用默认排序");
-            return rerankWithDefault(query, matches, maxResults);
+            return fallback(matches, maxResults);
         }
 
         // 使用OpenAI的嵌入模型进行重排
         try {
             // 这里可以实现基于OpenAI嵌入模型的重排逻辑
             // 暂时使用默认排序
-            return rerankWithDefault(query, matches, maxResults);
+            return fallback(matches, maxResults);
         } catch (Exception e) {
             log.error("OpenAI重排模型调用异常", e);
-            return rerankWithDefault(query, matches, maxResults);
+            return fallback(matches, maxResults);
         }
     }
 
     /**
      * 使用Ollama重排模型
      */
-    private List<EmbeddingMatch<TextSegment>> rerankWithOllama(String query, 
+    private RerankResult<EmbeddingMatch<TextSegment>> rerankWithOllama(String query, 
                                                               List<EmbeddingMatch<TextSegment>> matches, 
                                                               int maxResults) {
+        List<EmbeddingMatch<TextSegment>> scored = scoreWithOllama(query, matches, maxResults);
+        if (scored == null) {
+            return fallback(matches, maxResults);
+        }
+        return RerankResult.scored(scored.stream().limit(maxResults).collect(Collectors.toList()));
+    }
+
+    /**
+     * 使用Ollama逐条打分：每个候选单独请求一次，按向量分数从高到低提交到有界线程池并行执行。
+     * 已有 maxResults 个候选达到提前结束分数，或超过总超时时间后，取消剩余请求
+     * @return 按重排分数降序排列的全部候选（未打分的排在最后），全部失败返回null
+     */
+    private List<EmbeddingMatch<TextSegment>> scoreWithOllama(String query, List<EmbeddingMatch<TextSegment>> matches,
+                                                              int maxResults) {
+        long startTime = System.currentTimeMillis();
+        String queryKey = rerankScoreCache.queryKey(ollamaModel, query);
+        Double[] scores = new Double[matches.size()];
+        int confident = 0;
+
+        List<Integer> pending = new ArrayList<>();
+        for (int i = 0; i < matches.size(); i++) {
+            scores[i] = rerankScoreCache.get(queryKey, matches.get(i).embedded());
+            if (scores[i] == null) {
+                pending.add(i);
+            } else if (scores[i] >= ollamaEarlyStopScore) {
+                confident++;
+            }
+        }
+        pending.sort((a, b) -> Double.compare(matches.get(b).score(), matches.get(a).score()));
+
+        log.info("=== Ollama逐条重排 ===");
+        log.info("模型名称: {}, 候选数: {}, 缓存命中: {}, 并发上限: {}",
+                ollamaModel, matches.size(), matches.size() - pending.size(), ollamaConcurrency);
+
+        if (!pending.isEmpty() && confident < maxResults) {
+            CompletionService<double[]> completionService = new ExecutorCompletionService<>(ollamaExecutor);
+            List<Future<double[]>> futures = new ArrayList<>(pending.size());
+            for (Integer index : pending) {
+                String text = matches.get(index).embedded().text();
+                futures.add(completionService.submit(() -> {
+                    Double score = requestOllamaScore(query, text);
+                    return score == null ? null : new double[]{index, score};
+                }));
+            }
+
+            long deadline = startTime + ollamaTimeoutMs;
+            try {
+                for (int received = 0; received < futures.size() && confident < maxResults; received++) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    Future<double[]> future = remaining > 0 ? completionService.poll(remaining, TimeUnit.MILLISECONDS) : null;
+                    if (future == null) {
+                        log.warn("Ollama重排超时: {} ms，已完成 {}/{}", ollamaTimeoutMs, received, futures.size());
+                        break;
+                    }
+                    double[] result;
+                    try {
+                        result = future.get();
+                    } catch (ExecutionException e) {
+                        log.warn("Ollama打分任务异常: {}", e.getMessage());
+                        continue;
+                    }
+                    if (result == null) {
+                        continue;
+                    }
+                    int index = (int) result[0];
+                    scores[index] = result[1];
+                    rerankScoreCache.put(queryKey, matches.get(index).embedded(), result[1]);
+                    if (result[1] >= ollamaEarlyStopScore) {
+                        confident++;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                // 提前结束或超时后，排队中的请求不再执行；执行中的HTTP请求无法中断，由读超时结束
+                for (Future<double[]> future : futures) {
+                    future.cancel(true);
+                }
+            }
+        }
+
+        List<EmbeddingMatch<TextSegment>> scoredMatches = new ArrayList<>();
+        List<EmbeddingMatch<TextSegment>> unscoredMatches = new ArrayList<>();
+        for (int i = 0; i < matches.size(); i++) {
+            EmbeddingMatch<TextSegment> originalMatch = matches.get(i);
+            if (scores[i] == null) {
+                unscoredMatches.add(originalMatch);
+                continue;
+            }
+            scoredMatches.add(new EmbeddingMatch<>(
+                scores[i],
+                originalMatch.embeddingId(),
+                originalMatch.embedding(),
+                originalMatch.embedded()
+            ));
+        }
+        if (scoredMatches.isEmpty()) {
+            log.warn("Ollama重排没有得到任何分数");
+            return null;
+        }
+
+        // 分数相同按原始顺序（向量分数）保持稳定
+        scoredMatches.sort((a, b) -> Double.compare(b.score(), a.score()));
+        unscoredMatches.sort((a, b) -> Double.compare(b.score(), a.score()));
+        scoredMatches.addAll(unscoredMatches);
+        log.info("Ollama逐条重排完成，已打分: {}, 未打分: {}, 耗时: {} ms",
+                scoredMatches.size() - unscoredMatches.size(), unscoredMatches.size(),
+                System.currentTimeMillis() - startTime);
+        return scoredMatches;
+    }
+
+    /**
+     * 请求Ollama对单个候选打分
+     * @return 0~1之间的分数，失败返回null
+     */
+    private Double requestOllamaScore(String query, String text) {
         try {
-            // 使用Ollama本地模型进行重排
             String url = ollamaBaseUrl + "/api/generate";
-            
+
             HttpHeaders headers = new HttpHeaders();
             headers.setContentType(MediaType.APPLICATION_JSON);
 
-            // 构建重排提示词
-            StringBuilder prompt = new StringBuilder();
-            prompt.append("请根据查询内容对以下文档片段进行相关性排序，返回最相关的文档。\n\n");
-            prompt.append("查询: ").append(query).append("\n\n");
-            prompt.append("文档片段:\n");
-            
-            for (int i = 0; i < matches.size(); i++) {
-                prompt.append(i + 1).append(". ").append(matches.get(i).embedded().text()).append("\n");
-            }
-            
-            prompt.append("\n请返回最相关的文档编号，用逗号分隔，按相关性从高到低排序。");
+            String passage = text.length() > ollamaMaxChars ? text.substring(0, ollamaMaxChars) : text;
+            String prompt = "请判断文档片段与查询的相关程度，只输出0到10之间的一个整数，10表示完全回答了查询，0表示完全无关。\n\n"
+                    + "查询: " + query + "\n\n"
+                    + "文档片段: " + passage + "\n\n"
+                    + "分数:";
+
+            Map<String, Object> options = new HashMap<>();
+            options.put("temperature", 0);
+            options.put("num_predict", 4);
 
             Map<String, Object> requestBody = new HashMap<>();
             requestBody.put("model", ollamaModel);
-            requestBody.put("prompt", prompt.toString());
+            requestBody.put("prompt", prompt);
             requestBody.put("stream", false);
+            requestBody.put("options", options);
 
-            HttpEntity<Map<String, Object>> request = new HttpEntity<>(requestBody, headers);
-
-            // 打印Ollama重排模型信息
-            log.info("=== Ollama重排模型调用 ===");
-            log.info("模型名称: {}", ollamaModel);
-            log.info("API地址: {}", url);
-            log.info("请求参数: {}", requestBody);
-            log.info("提示词长度: {} 字符", prompt.length());
-            log.info("提示词预览: {}", prompt.length() > 200 ? prompt.substring(0, 200) + "..." : prompt.toString());
-            
-            long startTime = System.currentTimeMillis();
-            ResponseEntity<Map> response = restTemplate.postForEntity(url, request, Map.class);
-            long endTime = System.currentTimeMillis();
-            
-            // 打印响应结果
-            log.info("响应状态码: {}", response.getStatusCode());
-            log.info("响应耗时: {} ms", (endTime - startTime));
-            log.info("响应体: {}", response.getBody());
-
+            ResponseEntity<Map> response = ollamaRestTemplate.postForEntity(url, new HttpEntity<>(requestBody, headers), Map.class);
             if (response.getStatusCode().is2xxSuccessful() && response.getBody() != null) {
-                Map<String, Object> responseBody = response.getBody();
-                String rankedIndices = (String) responseBody.get("response");
-                return rerankByIndices(matches, rankedIndices, maxResults);
+                Object answer = response.getBody().get("response");
+                Matcher matcher = SCORE_PATTERN.matcher(answer == null ? "" : answer.toString());
+                if (matcher.find()) {
+                    double grade = Double.parseDouble(matcher.group());
+                    return Math.max(0, Math.min(10, grade)) / 10.0;
+                }
+                log.warn("无法解析Ollama打分结果: {}", answer);
+                return null;
             }
-
-            log.error("Ollama重排API调用失败: {}", response.getStatusCode());
-            return rerankWithDefault(query, matches, maxResults);
-
+            log.warn("Ollama打分请求失败: {}", response.getStatusCode());
+            return null;
         } catch (Exception e) {
-            log.error("Ollama重排模型调用异常", e);
-            return rerankWithDefault(query, matches, maxResults);
+            log.warn("Ollama打分请求异常: {}", e.getMessage());
+            return null;
         }
     }
 
@@ -327,40 +609,19 @@ public class RerankService {
     }
 
     /**
-     * 根据模型返回的索引进行重排
+     * 降级为默认排序，结果未经重排模型打分
      */
-    private List<EmbeddingMatch<TextSegment>> rerankByIndices(List<EmbeddingMatch<TextSegment>> matches, 
-                                                             String rankedIndices, 
-                                                             int maxResults) {
-        try {
-            // 解析模型返回的索引
-            String[] indices = rankedIndices.trim().split("[,\\s]+");
-            List<EmbeddingMatch<TextSegment>> rerankedMatches = new ArrayList<>();
-            
-            for (String indexStr : indices) {
-                try {
-                    int index = Integer.parseInt(indexStr.trim()) - 1; // 转换为0基索引
-                    if (index >= 0 && index < matches.size()) {
-                        rerankedMatches.add(matches.get(index));
-                    }
-                } catch (NumberFormatException e) {
-                    log.warn("无法解析索引: {}", indexStr);
-                }
-            }
-            
-            // 如果解析失败，使用默认排序
-            if (rerankedMatches.isEmpty()) {
-                return rerankWithDefault("", matches, maxResults);
-            }
-            
-            return rerankedMatches.stream()
-                    .limit(maxResults)
-                    .collect(Collectors.toList());
-                    
-        } catch (Exception e) {
-            log.error("解析重排结果失败", e);
-            return rerankWithDefault("", matches, maxResults);
-        }
+    private RerankResult<EmbeddingMatch<TextSegment>> fallback(List<EmbeddingMatch<TextSegment>> matches, int maxResults) {
+        return RerankResult.unscored(rerankWithDefault("", matches, maxResults));
+    }
+
+    /**
+     * 降级为默认排序（流式），结果未经重排模型打分
+     */
+    private RerankResult<TextSegment> fallbackSegments(List<EmbeddingMatch<TextSegment>> matches, int maxResults) {
+        return RerankResult.unscored(rerankWithDefault("", matches, maxResults).stream()
+                .map(EmbeddingMatch::embedded)
+                .collect(Collectors.toList()));
     }
 
     /**
@@ -382,9 +643,9 @@ public class RerankService {
      * @param matches 匹配结果
      * @param maxResults 最大结果数
      * @param emitter 流式响应发射器
-     * @return 重排后的结果
+     * @return 重排后的结果，模型未配置或调用失败时为按向量分数排序的降级结果
      */
-    public List<TextSegment> rerankStream(String query, List<EmbeddingMatch<TextSegment>> matches, int maxResults, SseEmitter emitter) {
+    public RerankResult<TextSegment> rerankStream(String query, List<EmbeddingMatch<TextSegment>> matches, int maxResults, SseEmitter emitter) {
         try {
             log.info("=== 重排服务开始 ===");
             log.info("查询文本: {}", query);
@@ -395,21 +656,21 @@ public class RerankService {
             if (matches.isEmpty()) {
                 StreamingUtils.sendRerank(emitter, "❌ 没有需要重排的结果");
                 log.info("没有需要重排的结果");
-                return new ArrayList<>();
+                return RerankResult.unscored(new ArrayList<>());
             }
             
             if (matches.size() <= maxResults) {
                 StreamingUtils.sendRerank(emitter, String.format("✅ 结果数量(%d)不超过最大限制(%d)，无需重排", matches.size(), maxResults));
                 log.info("结果数量不超过最大限制，无需重排");
-                return matches.stream()
+                return RerankResult.unscored(matches.stream()
                         .map(EmbeddingMatch::embedded)
-                        .collect(Collectors.toList());
+                        .collect(Collectors.toList()));
             }
             
             // 发送重排进度
             StreamingUtils.sendRerank(emitter, String.format("🔄 正在对 %d 个结果进行重排...", matches.size()));
             
-            List<TextSegment> rerankedSegments;
+            RerankResult<TextSegment> rerankedSegments;
             
             switch (defaultRerankProvider.toLowerCase()) {
                 case "qwen":
@@ -421,15 +682,16 @@ public class RerankService {
                 case "ollama":
                     rerankedSegments = rerankWithOllamaStream(query, matches, maxResults, emitter);
                     break;
+                case "local":
+                    rerankedSegments = rerankWithLocalStream(query, matches, maxResults, emitter);
+                    break;
                 default:
                     log.warn("未知的重排提供商: {}，使用默认重排", defaultRerankProvider);
-                    rerankedSegments = rerankWithDefault("", matches, maxResults).stream()
-                            .map(EmbeddingMatch::embedded)
-                            .collect(Collectors.toList());
+                    rerankedSegments = fallbackSegments(matches, maxResults);
                     break;
             }
             
-            log.info("重排完成，返回结果数量: {}", rerankedSegments.size());
+            log.info("重排完成，返回结果数量: {}，模型打分: {}", rerankedSegments.getResults().size(), rerankedSegments.isScored());
             log.info("=== 重排服务结束 ===");
             
             return rerankedSegments;
@@ -437,137 +699,105 @@ public class RerankService {
         } catch (Exception e) {
             log.error("流式重排失败", e);
             StreamingUtils.sendError(emitter, "重排失败: " + e.getMessage());
-            return Collections.emptyList();
+            return RerankResult.unscored(Collections.emptyList());
         }
     }
     
     /**
      * 使用千问进行流式重排
      */
-    private List<TextSegment> rerankWithQwenStream(String query, List<EmbeddingMatch<TextSegment>> matches, int maxResults, SseEmitter emitter) {
+    private RerankResult<TextSegment> rerankWithQwenStream(String query, List<EmbeddingMatch<TextSegment>> matches, int maxResults, SseEmitter emitter) {
         try {
             StreamingUtils.sendRerank(emitter, "🤖 使用千问模型进行重排...");
             
-            // 构建重排请求
-            String url = qwenBaseUrl;
-            
-            Map<String, Object> requestBody = new HashMap<>();
-            requestBody.put("model", qwenModel);
-            
-            // 构建input对象
-            Map<String, Object> input = new HashMap<>();
-            input.put("query", query);
-            
-            // 构建文档列表 - 根据官方文档，documents应该是字符串数组
-            List<String> documents = new ArrayList<>();
-            for (EmbeddingMatch<TextSegment> match : matches) {
-                documents.add(match.embedded().text());
+            if (qwenApiKey == null || qwenApiKey.isEmpty()) {
+                log.warn("千问API Key未配置，使用默认排序");
+                StreamingUtils.sendRerank(emitter, "⚠️ 千问API Key未配置，使用默认重排");
+                return fallbackSegments(matches, maxResults);
             }
-            input.put("documents", documents);
-            requestBody.put("input", input);
-            
-            Map<String, Object> parameters = new HashMap<>();
-            parameters.put("top_n", maxResults);
-            parameters.put("return_documents", true);
-            requestBody.put("parameters", parameters);
-            
-            log.info("=== 千问重排模型调用 ===");
-            log.info("模型名称: {}", qwenModel);
-            log.info("API地址: {}", url);
-            log.info("请求参数: {}", requestBody);
-            
-            HttpHeaders headers = new HttpHeaders();
-            headers.setContentType(MediaType.APPLICATION_JSON);
-            headers.set("Authorization", "Bearer " + qwenApiKey);
-            
-            HttpEntity<Map<String, Object>> request = new HttpEntity<>(requestBody, headers);
-            
-            long startTime = System.currentTimeMillis();
-            ResponseEntity<Map> response = restTemplate.postForEntity(url, request, Map.class);
-            long endTime = System.currentTimeMillis();
-            
-            log.info("千问重排API调用完成，耗时: {} ms", endTime - startTime);
             
-            if (response.getStatusCode().is2xxSuccessful() && response.getBody() != null) {
-                Map<String, Object> responseBody = response.getBody();
-                Map<String, Object> output = (Map<String, Object>) responseBody.get("output");
-                
-                if (output != null) {
-                    List<Map<String, Object>> results = (List<Map<String, Object>>) output.get("results");
-                    
-                    if (results != null && !results.isEmpty()) {
-                        List<TextSegment> rerankedSegments = new ArrayList<>();
-                        for (Map<String, Object> result : results) {
-                            Integer index = (Integer) result.get("index");
-                            if (index != null && index < matches.size()) {
-                                rerankedSegments.add(matches.get(index).embedded());
-                            }
-                        }
-                        
-                        StreamingUtils.sendRerank(emitter, String.format("✅ 千问重排完成，返回 %d 个结果", rerankedSegments.size()));
-                        return rerankedSegments;
-                    }
-                }
+            List<EmbeddingMatch<TextSegment>> scored = scoreWithQwen(query, matches);
+            if (scored != null) {
+                List<TextSegment> rerankedSegments = scored.stream()
+                        .limit(maxResults)
+                        .map(EmbeddingMatch::embedded)
+                        .collect(Collectors.toList());
+                StreamingUtils.sendRerank(emitter, String.format("✅ 千问重排完成，返回 %d 个结果", rerankedSegments.size()));
+                return RerankResult.scored(rerankedSegments);
             }
             
             // 如果API调用失败，使用默认重排
             StreamingUtils.sendRerank(emitter, "⚠️ 千问重排失败，使用默认重排");
-            return rerankWithDefault("", matches, maxResults).stream()
-                    .map(EmbeddingMatch::embedded)
-                    .collect(Collectors.toList());
+            return fallbackSegments(matches, maxResults);
             
         } catch (Exception e) {
             log.error("千问重排模型调用异常", e);
             StreamingUtils.sendRerank(emitter, "⚠️ 千问重排异常，使用默认重排");
-            return rerankWithDefault("", matches, maxResults).stream()
-                    .map(EmbeddingMatch::embedded)
-                    .collect(Collectors.toList());
+            return fallbackSegments(matches, maxResults);
         }
     }
     
+    /**
+     * 使用本地交叉编码器进行流式重排
+     */
+    private RerankResult<TextSegment> rerankWithLocalStream(String query, List<EmbeddingMatch<TextSegment>> matches, int maxResults, SseEmitter emitter) {
+        StreamingUtils.sendRerank(emitter, "🤖 使用本地交叉编码器进行重排...");
+        long startTime = System.currentTimeMillis();
+        if (!localCrossEncoderReranker.isAvailable()) {
+            StreamingUtils.sendRerank(emitter, "⚠️ 本地重排模型不可用，使用默认重排");
+        }
+        RerankResult<EmbeddingMatch<TextSegment>> result = rerankWithLocal(query, matches, maxResults);
+        List<TextSegment> rerankedSegments = result.getResults().stream()
+                .map(EmbeddingMatch::embedded)
+                .collect(Collectors.toList());
+        StreamingUtils.sendRerank(emitter, String.format("✅ 本地重排完成，返回 %d 个结果，耗时 %d ms",
+                rerankedSegments.size(), System.currentTimeMillis() - startTime));
+        return result.isScored() ? RerankResult.scored(rerankedSegments) : RerankResult.unscored(rerankedSegments);
+    }
+    
     /**
      * 使用OpenAI进行流式重排
      */
-    private List<TextSegment> rerankWithOpenAIStream(String query, List<EmbeddingMatch<TextSegment>> matches, int maxResults, SseEmitter emitter) {
+    private RerankResult<TextSegment> rerankWithOpenAIStream(String query, List<EmbeddingMatch<TextSegment>> matches, int maxResults, SseEmitter emitter) {
         try {
             StreamingUtils.sendRerank(emitter, "🤖 使用OpenAI模型进行重排...");
             
             // 这里可以实现OpenAI的重排逻辑
             // 暂时使用默认重排
             StreamingUtils.sendRerank(emitter, "⚠️ OpenAI重排暂未实现，使用默认重排");
-            return rerankWithDefault("", matches, maxResults).stream()
-                    .map(EmbeddingMatch::embedded)
-                    .collect(Collectors.toList());
+            return fallbackSegments(matches, maxResults);
             
         } catch (Exception e) {
             log.error("OpenAI重排失败", e);
             StreamingUtils.sendRerank(emitter, "⚠️ OpenAI重排失败，使用默认重排");
-            return rerankWithDefault("", matches, maxResults).stream()
-                    .map(EmbeddingMatch::embedded)
-                    .collect(Collectors.toList());
+            return fallbackSegments(matches, maxResults);
         }
     }
     
     /**
      * 使用Ollama进行流式重排
      */
-    private List<TextSegment> rerankWithOllamaStream(String query, List<EmbeddingMatch<TextSegment>> matches, int maxResults, SseEmitter emitter) {
+    private RerankResult<TextSegment> rerankWithOllamaStream(String query, List<EmbeddingMatch<TextSegment>> matches, int maxResults, SseEmitter emitter) {
         try {
             StreamingUtils.sendRerank(emitter, "🤖 使用Ollama模型进行重排...");
             
-            // 这里可以实现Ollama的重排逻辑
-            // 暂时使用默认重排
-            StreamingUtils.sendRerank(emitter, "⚠️ Ollama重排暂未实现，使用默认重排");
-            return rerankWithDefault("", matches, maxResults).stream()
-                    .map(EmbeddingMatch::embedded)
-                    .collect(Collectors.toList());
+            List<EmbeddingMatch<TextSegment>> scored = scoreWithOllama(query, matches, maxResults);
+            if (scored != null) {
+                List<TextSegment> rerankedSegments = scored.stream()
+                        .limit(maxResults)
+                        .map(EmbeddingMatch::embedded)
+                        .collect(Collectors.toList());
+                StreamingUtils.sendRerank(emitter, String.format("✅ Ollama重排完成，返回 %d 个结果", rerankedSegments.size()));
+                return RerankResult.scored(rerankedSegments);
+            }
+            
+            StreamingUtils.sendRerank(emitter, "⚠️ Ollama重排失败，使用默认重排");
+            return fallbackSegments(matches, maxResults);
             
         } catch (Exception e) {
             log.error("Ollama重排失败", e);
             StreamingUtils.sendRerank(emitter, "⚠️ Ollama重排失败，使用默认重排");
-            return rerankWithDefault("", matches, maxResults).stream()
-                    .map(EmbeddingMatch::embedded)
-                    .collect(Collectors.toList());
+            return fallbackSegments(matches, maxResults);
         }
     }
 }
@@ -0,0 +1,234 @@
+/*
+ * Copyright 2025 james-zou
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.unionhole.zrag.service;
+
+import com.unionhole.zrag.util.HashUtils;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * 检索结果缓存
+ * 按（租户、查询哈希、检索参数、存储版本）缓存召回结果；存储版本在任何写入/删除时单调递增，
+ * 版本变化后旧结果不再命中。按估算字节数做 LRU 淘汰，同一查询并发请求只访问一次向量库
+ */
+@Slf4j
+@Service
+public class RetrievalCache {
+
+    /** 每个条目的固定开销估算（对象头、引用、分数等） */
+    private static final int ENTRY_OVERHEAD = 128;
+    private static final int MATCH_OVERHEAD = 96;
+
+    @Value("${retrieval-cache.enabled:true}")
+    private boolean enabled;
+
+    @Value("${retrieval-cache.max-bytes:67108864}")
+    private long maxBytes;
+
+    @Value("${retrieval-cache.ttl-seconds:600}")
+    private long ttlSeconds;
+
+    private final AtomicLong storeVersion = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    private final LinkedHashMap<String, CachedResult> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, CompletableFuture<List<EmbeddingMatch<TextSegment>>>> inFlight = new ConcurrentHashMap<>();
+    private long totalBytes;
+
+    private static class CachedResult {
+        final List<EmbeddingMatch<TextSegment>> matches;
+        final long bytes;
+        final long expireAt;
+
+        CachedResult(List<EmbeddingMatch<TextSegment>> matches, long bytes, long expireAt) {
+            this.matches = matches;
+            this.bytes = bytes;
+            this.expireAt = expireAt;
+        }
+    }
+
+    /**
+     * 获取当前存储版本
+     */
+    public long currentVersion() {
+        return storeVersion.get();
+    }
+
+    /**
+     * 存储内容变更（写入、删除、清空）后调用，递增版本并丢弃旧结果
+     */
+    public void bumpVersion() {
+        long version = storeVersion.incrementAndGet();
+        synchronized (entries) {
+            entries.clear();
+            totalBytes = 0;
+        }
+        log.debug("向量存储版本更新: {}", version);
+    }
+
+    /**
+     * 读取缓存，未命中时执行检索并写入缓存
+     * @param tenantId 租户ID
+     * @param query 查询文本
+     * @param maxResults 最大返回结果数
+     * @param minScore 最小相似度分数
+     * @param loader 实际检索逻辑
+     * @return 检索结果
+     */
+    public List<EmbeddingMatch<TextSegment>> getOrLoad(String tenantId, String query, int maxResults, double minScore,
+                                                       Supplier<List<EmbeddingMatch<TextSegment>>> loader) {
+        if (!enabled) {
+            return loader.get();
+        }
+        // 版本在检索前取得，检索期间发生写入时结果以旧版本入缓存，不会被新版本命中
+        long version = storeVersion.get();
+        String key = tenantId + "|" + version + "|" + maxResults + "|" + minScore + "|" + HashUtils.sha256Hex(query);
+
+        synchronized (entries) {
+            CachedResult cached = entries.get(key);
+            if (cached != null && System.currentTimeMillis() < cached.expireAt) {
+                hits.incrementAndGet();
+                log.info("检索结果缓存命中: version={}, 结果数={}", version, cached.matches.size());
+                return new ArrayList<>(cached.matches);
+            }
+            if (cached != null) {
+                entries.remove(key);
+                totalBytes -= cached.bytes;
+            }
+        }
+
+        CompletableFuture<List<EmbeddingMatch<TextSegment>>> future = new CompletableFuture<>();
+        CompletableFuture<List<EmbeddingMatch<TextSegment>>> existing = inFlight.putIfAbsent(key, future);
+        if (existing != null) {
+            // 相同查询正在检索，等待其结果
+            hits.incrementAndGet();
+            try {
+                return new ArrayList<>(existing.join());
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+            }
+        }
+
+        misses.incrementAndGet();
+        try {
+            List<EmbeddingMatch<TextSegment>> matches = loader.get();
+            List<EmbeddingMatch<TextSegment>> stored = compact(matches);
+            future.complete(stored);
+            put(key, version, stored);
+            return matches;
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, future);
+        }
+    }
+
+    private void put(String key, long version, List<EmbeddingMatch<TextSegment>> matches) {
+        long bytes = estimateBytes(key, matches);
+        if (bytes > maxBytes) {
+            return;
+        }
+        synchronized (entries) {
+            if (version != storeVersion.get()) {
+                return;
+            }
+            CachedResult previous = entries.put(key, new CachedResult(matches, bytes,
+                    System.currentTimeMillis() + ttlSeconds * 1000));
+            if (previous != null) {
+                totalBytes -= previous.bytes;
+            }
+            totalBytes += bytes;
+            Iterator<CachedResult> iterator = entries.values().iterator();
+            while (totalBytes > maxBytes && iterator.hasNext()) {
+                totalBytes -= iterator.next().bytes;
+                iterator.remove();
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * 缓存副本不保留向量，结果只用于文本和元数据
+     */
+    private List<EmbeddingMatch<TextSegment>> compact(List<EmbeddingMatch<TextSegment>> matches) {
+        List<EmbeddingMatch<TextSegment>> compacted = new ArrayList<>(matches.size());
+        for (EmbeddingMatch<TextSegment> match : matches) {
+            compacted.add(new EmbeddingMatch<>(match.score(), match.embeddingId(), null, match.embedded()));
+        }
+        return Collections.unmodifiableList(compacted);
+    }
+
+    private long estimateBytes(String key, List<EmbeddingMatch<TextSegment>> matches) {
+        long bytes = ENTRY_OVERHEAD + 2L * key.length();
+        for (EmbeddingMatch<TextSegment> match : matches) {
+            bytes += MATCH_OVERHEAD;
+            if (match.embeddingId() != null) {
+                bytes += 2L * match.embeddingId().length();
+            }
+            TextSegment segment = match.embedded();
+            if (segment != null) {
+                bytes += 2L * segment.text().length();
+                for (Map.Entry<String, String> entry : segment.metadata().asMap().entrySet()) {
+                    bytes += 64 + 2L * (entry.getKey().length() + (entry.getValue() == null ? 0 : entry.getValue().length()));
+                }
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * 获取缓存统计信息
+     * @return 命中次数、命中率、占用字节等
+     */
+    public Map<String, Object> getStats() {
+        long hit = hits.get();
+        long miss = misses.get();
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("enabled", enabled);
+        stats.put("storeVersion", storeVersion.get());
+        synchronized (entries) {
+            stats.put("size", entries.size());
+            stats.put("bytes", totalBytes);
+        }
+        stats.put("maxBytes", maxBytes);
+        stats.put("hits", hit);
+        stats.put("misses", miss);
+        stats.put("evictions", evictions.get());
+        stats.put("hitRate", hit + miss > 0 ? (double) hit / (hit + miss) : 0.0);
+        return stats;
+    }
+}
@@ -26,12 +26,18 @@ import dev.langchain4j.store.embedding.EmbeddingMatch;
 import dev.langchain4j.store.embedding.EmbeddingStore;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
 
 /**
  * 检索服务
@@ -45,6 +51,34 @@ public class RetrievalService {
     private final EmbeddingModel embeddingModel;
     private final EmbeddingStore<TextSegment> embeddingStore;
     private final RerankService rerankService;
+    private final LexicalIndexService lexicalIndexService;
+    private final RetrievalCache retrievalCache;
+    private final AdaptiveRerankPolicy adaptiveRerankPolicy;
+
+    @Value("${hybrid.fusion:rrf}")
+    private String fusionMode;
+
+    @Value("${hybrid.rrf-k:60}")
+    private int rrfK;
+
+    @Value("${hybrid.lexical-top-k:20}")
+    private int lexicalTopK;
+
+    @Value("${hybrid.dense-weight:0.7}")
+    private double denseWeight;
+
+    /** 仅词法命中的候选归一化BM25分数（相对最高BM25分数）下限 */
+    @Value("${hybrid.lexical-min-score:0.5}")
+    private double lexicalMinScore;
+
+    /** 最近查询的向量，避免语义缓存与检索对同一查询重复向量化 */
+    private final Map<String, dev.langchain4j.data.embedding.Embedding> queryEmbeddings =
+            Collections.synchronizedMap(new LinkedHashMap<String, dev.langchain4j.data.embedding.Embedding>(64, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, dev.langchain4j.data.embedding.Embedding> eldest) {
+                    return size() > 256;
+                }
+            });
 
     /**
      * 根据查询检索相关文档片段
@@ -54,6 +88,11 @@ public class RetrievalService {
      * @return 相关文档片段列表
      */
     public List<EmbeddingMatch<TextSegment>> retrieve(String query, int maxResults, double minScore) {
+        return retrievalCache.getOrLoad(getCurrentTenantId(), query, maxResults, minScore,
+                () -> doRetrieve(query, maxResults, minScore));
+    }
+
+    private List<EmbeddingMatch<TextSegment>> doRetrieve(String query, int maxResults, double minScore) {
         log.info("=== RAG 召回阶段开始 ===");
         log.info("查询文本: {}", query);
         log.info("最大返回结果数: {}", maxResults);
@@ -65,7 +104,7 @@ public class RetrievalService {
             log.info("开始将查询文本转换为向量...");
             long startTime = System.currentTimeMillis();
             
-            dev.langchain4j.data.embedding.Embedding queryEmbedding = embeddingModel.embed(query).content();
+            dev.langchain4j.data.embedding.Embedding queryEmbedding = embedQuery(query);
             
             long endTime = System.currentTimeMillis();
             log.info("查询向量化完成，向量维度: {}, 耗时: {} ms", 
@@ -76,7 +115,8 @@ public class RetrievalService {
             
             // 2. 向量搜索阶段
             log.info("--- 步骤2: 向量数据库搜索 ---");
-            int searchResults = Math.max(maxResults * 2, 10); // 获取更多结果用于重排
+            // 获取更多结果用于重排，数量按历史重排位移自适应调整
+            int searchResults = adaptiveRerankPolicy.candidatePoolSize(maxResults, Math.max(maxResults * 2, 10));
             log.info("在向量数据库中搜索相似文档，搜索数量: {}", searchResults);
             
             startTime = System.currentTimeMillis();
@@ -90,6 +130,10 @@ public class RetrievalService {
             log.info("向量搜索完成，找到 {} 个候选文档片段，耗时: {} ms", 
                     matches.size(), (endTime - startTime));
             
+            // 融合词法召回结果
+            Set<TextSegment> lexicalOnly = Collections.newSetFromMap(new IdentityHashMap<>());
+            matches = fuseWithLexical(query, matches, lexicalOnly);
+            
             if (!matches.isEmpty()) {
                 log.info("最高相似度分数: {}", matches.get(0).score());
                 log.info("最低相似度分数: {}", matches.get(matches.size() - 1).score());
@@ -107,8 +151,24 @@ public class RetrievalService {
             log.info("开始对 {} 个候选结果进行重排...", matches.size());
             
             startTime = System.currentTimeMillis();
-            List<EmbeddingMatch<TextSegment>> rerankedMatches = rerankService.rerank(
-                    query, matches, maxResults);
+            AdaptiveRerankPolicy.Decision decision = adaptiveRerankPolicy.decide(
+                    query, "sync", maxResults, searchResults, matches, lexicalOnly);
+            List<EmbeddingMatch<TextSegment>> rerankedMatches;
+            if (decision.isRerank()) {
+                RerankService.RerankResult<EmbeddingMatch<TextSegment>> rerankResult =
+                        rerankService.rerank(query, matches, maxResults);
+                rerankedMatches = rerankResult.getResults();
+                if (rerankResult.isScored()) {
+                    adaptiveRerankPolicy.recordRerank(decision, matches, rerankedMatches.stream()
+                            .map(EmbeddingMatch::embedded)
+                            .collect(Collectors.toList()), System.currentTimeMillis() - startTime);
+                } else {
+                    adaptiveRerankPolicy.recordUnscored(decision, System.currentTimeMillis() - startTime);
+                }
+            } else {
+                rerankedMatches = topCandidates(matches, maxResults);
+                adaptiveRerankPolicy.recordSkip(decision);
+            }
             endTime = System.currentTimeMillis();
             
             log.info("重排完成，返回 {} 个最终结果，耗时: {} ms", 
@@ -134,6 +194,21 @@ public class RetrievalService {
         }
     }
 
+    /**
+     * 查询向量化，复用最近查询的向量
+     * @param query 查询文本
+     * @return 查询向量
+     */
+    public dev.langchain4j.data.embedding.Embedding embedQuery(String query) {
+        dev.langchain4j.data.embedding.Embedding cached = queryEmbeddings.get(query);
+        if (cached != null) {
+            return cached;
+        }
+        dev.langchain4j.data.embedding.Embedding embedding = embeddingModel.embed(query).content();
+        queryEmbeddings.put(query, embedding);
+        return embedding;
+    }
+
     /**
      * 根据查询检索相关文档片段（使用默认参数）
      * @param query 查询文本
@@ -228,7 +303,7 @@ public class RetrievalService {
             log.info("开始将查询文本转换为向量...");
             
             long startTime = System.currentTimeMillis();
-            dev.langchain4j.data.embedding.Embedding queryEmbedding = embeddingModel.embed(query).content();
+            dev.langchain4j.data.embedding.Embedding queryEmbedding = embedQuery(query);
             float[] queryVectorArray = queryEmbedding.vector();
             List<Float> queryVector = new ArrayList<>();
             for (float f : queryVectorArray) {
@@ -244,16 +319,21 @@ public class RetrievalService {
             // 发送步骤2：向量数据库搜索
             StreamingUtils.sendRetrieval(emitter, "🔍 步骤2: 在向量数据库中搜索相似文档...");
             log.info("--- 步骤2: 向量数据库搜索 ---");
-            log.info("在向量数据库中搜索相似文档，搜索数量: {}", maxResults * 2);
+            int searchResults = adaptiveRerankPolicy.candidatePoolSize(maxResults, maxResults * 3);
+            log.info("在向量数据库中搜索相似文档，搜索数量: {}", searchResults);
             
             startTime = System.currentTimeMillis();
             // 降低过滤阈值，让更多候选进入重排序阶段
             double relaxedMinScore = Math.max(0.0, minScore - 0.2);
-            List<EmbeddingMatch<TextSegment>> matches = embeddingStore.findRelevant(queryEmbedding, maxResults * 3, relaxedMinScore);
+            List<EmbeddingMatch<TextSegment>> matches = embeddingStore.findRelevant(queryEmbedding, searchResults, relaxedMinScore);
             long searchTime = System.currentTimeMillis() - startTime;
             
             log.info("向量搜索完成，找到 {} 个候选文档片段，耗时: {} ms", matches.size(), searchTime);
             
+            // 融合词法召回结果
+            Set<TextSegment> lexicalOnly = Collections.newSetFromMap(new IdentityHashMap<>());
+            matches = fuseWithLexical(query, matches, lexicalOnly);
+            
             if (matches.isEmpty()) {
                 StreamingUtils.sendRetrieval(emitter, "❌ 未找到相关文档");
                 log.info("未找到相关文档");
@@ -273,7 +353,26 @@ public class RetrievalService {
             log.info("开始对 {} 个候选结果进行重排...", matches.size());
             
             startTime = System.currentTimeMillis();
-            List<TextSegment> rerankedSegments = rerankService.rerankStream(query, matches, maxResults, emitter);
+            AdaptiveRerankPolicy.Decision decision = adaptiveRerankPolicy.decide(
+                    query, "stream", maxResults, searchResults, matches, lexicalOnly);
+            List<TextSegment> rerankedSegments;
+            if (decision.isRerank()) {
+                RerankService.RerankResult<TextSegment> rerankResult =
+                        rerankService.rerankStream(query, matches, maxResults, emitter);
+                rerankedSegments = rerankResult.getResults();
+                if (rerankResult.isScored()) {
+                    adaptiveRerankPolicy.recordRerank(decision, matches, rerankedSegments,
+                            System.currentTimeMillis() - startTime);
+                } else {
+                    adaptiveRerankPolicy.recordUnscored(decision, System.currentTimeMillis() - startTime);
+                }
+            } else {
+                StreamingUtils.sendRerank(emitter, "⚡ " + decision.getReason() + "，跳过重排");
+                rerankedSegments = topCandidates(matches, maxResults).stream()
+                        .map(EmbeddingMatch::embedded)
+                        .collect(Collectors.toList());
+                adaptiveRerankPolicy.recordSkip(decision);
+            }
             long rerankTime = System.currentTimeMillis() - startTime;
             
             log.info("重排完成，返回 {} 个最终结果，耗时: {} ms", rerankedSegments.size(), rerankTime);
@@ -297,6 +396,91 @@ public class RetrievalService {
         }
     }
     
+    /**
+     * 取前N个候选，跳过重排时使用
+     * 候选已按向量分数或融合分数排好序，融合后各候选的分数不可直接比较，不再按分数重排
+     */
+    private List<EmbeddingMatch<TextSegment>> topCandidates(List<EmbeddingMatch<TextSegment>> matches, int maxResults) {
+        return matches.stream()
+                .limit(maxResults)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * 获取自适应重排策略统计与最近的决策记录
+     */
+    public Map<String, Object> getRerankPolicyStats() {
+        return adaptiveRerankPolicy.getStats();
+    }
+
+    /**
+     * 融合向量召回与BM25词法召回的候选结果
+     * rrf: 倒数排名融合；weighted: 向量分数与归一化BM25分数加权。融合分数只用于排序，
+     * 候选保留原有分数：向量命中保留相似度分数，仅词法命中使用相对最高BM25分数归一化的分数，
+     * 低于 hybrid.lexical-min-score 的仅词法命中被丢弃（向量命中已经过 minScore 过滤）
+     * @param query 查询文本
+     * @param denseMatches 向量召回结果
+     * @param lexicalOnly 输出参数，收集仅词法命中的片段
+     * @return 按融合分数降序排列的候选结果
+     */
+    private List<EmbeddingMatch<TextSegment>> fuseWithLexical(String query, List<EmbeddingMatch<TextSegment>> denseMatches,
+                                                              Set<TextSegment> lexicalOnly) {
+        if (!lexicalIndexService.isEnabled()) {
+            return denseMatches;
+        }
+        long startTime = System.currentTimeMillis();
+        List<EmbeddingMatch<TextSegment>> lexicalMatches = lexicalIndexService.search(query, lexicalTopK);
+        if (lexicalMatches.isEmpty()) {
+            log.info("词法召回无结果，仅使用向量召回");
+            return denseMatches;
+        }
+
+        boolean weighted = "weighted".equalsIgnoreCase(fusionMode);
+        double maxLexicalScore = lexicalMatches.get(0).score();
+        Map<String, Double> scores = new LinkedHashMap<>();
+        Map<String, EmbeddingMatch<TextSegment>> candidates = new LinkedHashMap<>();
+
+        for (int i = 0; i < denseMatches.size(); i++) {
+            EmbeddingMatch<TextSegment> match = denseMatches.get(i);
+            String key = match.embedded().text();
+            double score = weighted ? denseWeight * match.score() : 1.0 / (rrfK + i + 1);
+            scores.merge(key, score, Double::sum);
+            candidates.putIfAbsent(key, match);
+        }
+        int belowFloor = 0;
+        for (int i = 0; i < lexicalMatches.size(); i++) {
+            EmbeddingMatch<TextSegment> match = lexicalMatches.get(i);
+            String key = match.embedded().text();
+            double normalized = maxLexicalScore > 0 ? match.score() / maxLexicalScore : 0;
+            if (!candidates.containsKey(key)) {
+                if (normalized < lexicalMinScore) {
+                    belowFloor++;
+                    continue;
+                }
+                candidates.put(key, new EmbeddingMatch<>(normalized,
+                        match.embeddingId(), match.embedding(), match.embedded()));
+                lexicalOnly.add(match.embedded());
+            }
+            double score = weighted ? (1 - denseWeight) * normalized : 1.0 / (rrfK + i + 1);
+            scores.merge(key, score, Double::sum);
+        }
+
+        List<EmbeddingMatch<TextSegment>> fused = new ArrayList<>(candidates.values());
+        fused.sort((a, b) -> Double.compare(scores.get(b.embedded().text()), scores.get(a.embedded().text())));
+
+        log.info("混合检索融合完成: 方式={}, 向量候选={}, 词法候选={}, 仅词法命中={}, 低于词法下限={}, 融合后={}, 耗时: {} ms",
+                weighted ? "weighted" : "rrf", denseMatches.size(), lexicalMatches.size(), lexicalOnly.size(), belowFloor,
+                fused.size(), System.currentTimeMillis() - startTime);
+        return fused;
+    }
+    
+    /**
+     * 获取当前租户ID（与DocumentService保持一致，暂时使用默认值）
+     */
+    public String getCurrentTenantId() {
+        return "default_tenant";
+    }
+    
     /**
      * 获取EmbeddingStore实例
      * @return EmbeddingStore实例
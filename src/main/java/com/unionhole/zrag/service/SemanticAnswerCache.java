@@ -0,0 +1,332 @@
+/*
+ * Copyright 2025 james-zou
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.unionhole.zrag.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import dev.langchain4j.data.document.Metadata;
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.text.Normalizer;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * 语义回答缓存
+ * 精确层：按归一化查询文本命中；语义层：与近期查询向量的余弦相似度超过阈值时命中。
+ * 条目记录引用片段的来源文件，来源文档变更时失效
+ */
+@Slf4j
+@Service
+public class SemanticAnswerCache {
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    @Value("${answer-cache.enabled:true}")
+    private boolean enabled;
+
+    @Value("${answer-cache.max-entries:1000}")
+    private int maxEntries;
+
+    @Value("${answer-cache.ttl-seconds:3600}")
+    private long ttlSeconds;
+
+    @Value("${answer-cache.semantic-enabled:true}")
+    private boolean semanticEnabled;
+
+    @Value("${answer-cache.similarity-threshold:0.95}")
+    private double similarityThreshold;
+
+    private final AtomicLong exactHits = new AtomicLong();
+    private final AtomicLong semanticHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    /** 精确层，按访问顺序淘汰 */
+    private final LinkedHashMap<String, CachedAnswer> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * 缓存的回答
+     */
+    public static class CachedAnswer {
+        private final String scope;
+        private final String answer;
+        private final List<TextSegment> segments;
+        private final Set<String> sources;
+        private final float[] vector;
+        private final long expireAt;
+        private volatile boolean valid = true;
+
+        CachedAnswer(String scope, String answer, List<TextSegment> segments, Set<String> sources,
+                     float[] vector, long expireAt) {
+            this.scope = scope;
+            this.answer = answer;
+            this.segments = segments;
+            this.sources = sources;
+            this.vector = vector;
+            this.expireAt = expireAt;
+        }
+
+        public String getAnswer() {
+            return answer;
+        }
+
+        public List<TextSegment> getSegments() {
+            return segments;
+        }
+
+        boolean isAlive(long now) {
+            return valid && now < expireAt;
+        }
+    }
+
+    /**
+     * 查找缓存
+     * @param scope 缓存范围（调用类型及检索参数）
+     * @param query 查询文本
+     * @param embeddingSupplier 查询向量提供者，仅在精确层未命中时调用
+     * @return 命中的回答，未命中返回null
+     */
+    public CachedAnswer lookup(String scope, String query, Supplier<Embedding> embeddingSupplier) {
+        if (!enabled) {
+            return null;
+        }
+        long startTime = System.nanoTime();
+        long now = System.currentTimeMillis();
+        String key = scope + "|" + normalize(query);
+
+        synchronized (entries) {
+            CachedAnswer cached = entries.get(key);
+            if (cached != null && cached.isAlive(now)) {
+                exactHits.incrementAndGet();
+                log.info("回答缓存精确命中: scope={}, 耗时: {} μs", scope, (System.nanoTime() - startTime) / 1000);
+                return cached;
+            }
+            if (cached != null) {
+                entries.remove(key);
+            }
+        }
+
+        if (semanticEnabled && embeddingSupplier != null) {
+            float[] vector = normalizeVector(embeddingSupplier.get().vector());
+            CachedAnswer best = null;
+            double bestSimilarity = similarityThreshold;
+            synchronized (entries) {
+                for (CachedAnswer candidate : entries.values()) {
+                    if (!candidate.scope.equals(scope) || candidate.vector == null
+                            || candidate.vector.length != vector.length || !candidate.isAlive(now)) {
+                        continue;
+                    }
+                    double similarity = dot(vector, candidate.vector);
+                    if (similarity >= bestSimilarity) {
+                        bestSimilarity = similarity;
+                        best = candidate;
+                    }
+                }
+            }
+            if (best != null) {
+                semanticHits.incrementAndGet();
+                log.info("回答缓存语义命中: scope={}, 相似度: {}, 耗时: {} μs",
+                        scope, String.format("%.4f", bestSimilarity), (System.nanoTime() - startTime) / 1000);
+                return best;
+            }
+        }
+
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * 写入缓存
+     * @param scope 缓存范围
+     * @param query 查询文本
+     * @param embedding 查询向量，可为null（仅写入精确层）
+     * @param answer 回答
+     * @param segments 回答引用的文档片段
+     */
+    public void put(String scope, String query, Embedding embedding, String answer, List<TextSegment> segments) {
+        if (!enabled || answer == null || answer.trim().isEmpty()) {
+            return;
+        }
+        Set<String> sources = extractSources(segments);
+        if (sources.isEmpty()) {
+            // 没有来源的回答无法随文件变更精确失效，不缓存
+            log.debug("回答未引用任何文件，跳过缓存: scope={}", scope);
+            return;
+        }
+        float[] vector = semanticEnabled && embedding != null ? normalizeVector(embedding.vector()) : null;
+        CachedAnswer cached = new CachedAnswer(scope, answer, Collections.unmodifiableList(segments),
+                sources, vector, System.currentTimeMillis() + ttlSeconds * 1000);
+        synchronized (entries) {
+            entries.put(scope + "|" + normalize(query), cached);
+            Iterator<CachedAnswer> iterator = entries.values().iterator();
+            while (entries.size() > maxEntries && iterator.hasNext()) {
+                iterator.next().valid = false;
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * 使引用了指定来源（文件ID或文件名）的缓存失效
+     * @param sources 来源标识
+     */
+    public void invalidateSources(Collection<String> sources) {
+        if (sources == null || sources.isEmpty()) {
+            return;
+        }
+        int removed = 0;
+        synchronized (entries) {
+            Iterator<CachedAnswer> iterator = entries.values().iterator();
+            while (iterator.hasNext()) {
+                CachedAnswer cached = iterator.next();
+                if (!Collections.disjoint(cached.sources, sources)) {
+                    cached.valid = false;
+                    iterator.remove();
+                    removed++;
+                }
+            }
+        }
+        if (removed > 0) {
+            invalidations.addAndGet(removed);
+            log.info("来源文档变更，失效回答缓存 {} 条: {}", removed, sources);
+        }
+    }
+
+    /**
+     * 清空缓存
+     */
+    public void invalidateAll() {
+        synchronized (entries) {
+            for (CachedAnswer cached : entries.values()) {
+                cached.valid = false;
+            }
+            invalidations.addAndGet(entries.size());
+            entries.clear();
+        }
+        log.info("回答缓存已清空");
+    }
+
+    /**
+     * 获取缓存统计信息
+     * @return 命中次数、命中率等
+     */
+    public Map<String, Object> getStats() {
+        long exact = exactHits.get();
+        long semantic = semanticHits.get();
+        long miss = misses.get();
+        long total = exact + semantic + miss;
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("enabled", enabled);
+        synchronized (entries) {
+            stats.put("size", entries.size());
+        }
+        stats.put("maxEntries", maxEntries);
+        stats.put("exactHits", exact);
+        stats.put("semanticHits", semantic);
+        stats.put("misses", miss);
+        stats.put("invalidations", invalidations.get());
+        stats.put("hitRate", total > 0 ? (double) (exact + semantic) / total : 0.0);
+        return stats;
+    }
+
+    /**
+     * 查询文本归一化：全半角统一、小写、合并空白、去掉末尾标点
+     */
+    private String normalize(String query) {
+        String text = Normalizer.normalize(query == null ? "" : query, Normalizer.Form.NFKC)
+                .toLowerCase()
+                .replaceAll("\\s+", " ")
+                .trim();
+        int end = text.length();
+        while (end > 0 && "?？。.!！~～".indexOf(text.charAt(end - 1)) >= 0) {
+            end--;
+        }
+        return text.substring(0, end);
+    }
+
+    /**
+     * 提取片段来源标识：file_id、file_name，兼容Milvus写入的source JSON
+     */
+    private Set<String> extractSources(List<TextSegment> segments) {
+        Set<String> sources = new HashSet<>();
+        for (TextSegment segment : segments) {
+            Metadata metadata = segment.metadata();
+            if (metadata == null) {
+                continue;
+            }
+            addSource(sources, metadata.get("file_id"));
+            addSource(sources, metadata.get("file_name"));
+            String source = metadata.get("source");
+            if (source != null && source.contains("{")) {
+                try {
+                    JsonNode node = OBJECT_MAPPER.readTree(source.substring(source.indexOf('{'), source.lastIndexOf('}') + 1)
+                            .replace("\\\"", "\""));
+                    addSource(sources, node.path("file_id").asText(null));
+                    addSource(sources, node.path("file_name").asText(null));
+                } catch (Exception e) {
+                    log.debug("解析片段来源失败: {}", e.getMessage());
+                }
+            }
+        }
+        return sources;
+    }
+
+    private void addSource(Set<String> sources, String source) {
+        if (source != null && !source.isEmpty()) {
+            sources.add(source);
+        }
+    }
+
+    private float[] normalizeVector(float[] vector) {
+        double norm = 0;
+        for (float v : vector) {
+            norm += v * v;
+        }
+        norm = Math.sqrt(norm);
+        float[] result = new float[vector.length];
+        if (norm == 0) {
+            return result;
+        }
+        for (int i = 0; i < vector.length; i++) {
+            result[i] = (float) (vector[i] / norm);
+        }
+        return result;
+    }
+
+    private double dot(float[] a, float[] b) {
+        double sum = 0;
+        for (int i = 0; i < a.length; i++) {
+            sum += a[i] * b[i];
+        }
+        return sum;
+    }
+}
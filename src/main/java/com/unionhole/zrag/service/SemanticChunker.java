@@ -0,0 +1,275 @@
+/*
+ * Copyright 2025 james-zou
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.unionhole.zrag.service;
+
+import com.unionhole.zrag.util.RecursiveTextSplitter;
+import dev.langchain4j.data.document.Document;
+import dev.langchain4j.data.document.DocumentSplitter;
+import dev.langchain4j.data.document.Metadata;
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.embedding.AllMiniLmL6V2EmbeddingModel;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * 语义分割器
+ * 按句子顺序分批用本地MiniLM模型计算句向量，当前句与前几句向量均值的距离明显高于文档内的平均水平时切分；
+ * 距离的均值和标准差在分割过程中增量统计，只保留当前块的偏移、一批句向量和滑动窗口内的向量，内存与文档长度无关。
+ * 块大小仍受上下限约束，模型不可用时退回递归分割
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class SemanticChunker implements DocumentSplitter {
+
+    /** 收集到足够的距离样本后才按统计值判断切分点 */
+    private static final int WARMUP_SENTENCES = 4;
+    /** 标准差下限，避免样本少或句子高度相似时把细微波动当作切分点 */
+    private static final double MIN_STDDEV = 0.05;
+    private static final String SENTENCE_ENDS = "。！？；!?;\n";
+
+    private final RecursiveTextSplitter.SizeEstimator splitterSizeEstimator;
+
+    @Value("${splitter.semantic.enabled:false}")
+    private boolean enabled;
+
+    @Value("${splitter.semantic.batch-size:32}")
+    private int batchSize;
+
+    @Value("${splitter.semantic.window:3}")
+    private int window;
+
+    @Value("${splitter.semantic.breakpoint-stddev:1.0}")
+    private double breakpointStddev;
+
+    @Value("${splitter.semantic.min-size:128}")
+    private int minSize;
+
+    @Value("${splitter.semantic.max-size:512}")
+    private int maxSize;
+
+    @Value("${splitter.semantic.min-sentence-chars:20}")
+    private int minSentenceChars;
+
+    @Value("${splitter.semantic.max-sentence-chars:500}")
+    private int maxSentenceChars;
+
+    /**
+     * 本地MiniLM模型，首次语义分割时加载，之后复用
+     */
+    private static class LocalModelHolder {
+        private static final EmbeddingModel MODEL = new AllMiniLmL6V2EmbeddingModel();
+    }
+
+    /**
+     * 分割过程中的状态
+     */
+    private class State {
+        private final Document document;
+        private final String text;
+        private final List<TextSegment> segments = new ArrayList<>();
+        private final Deque<float[]> recent = new ArrayDeque<>();
+        private int chunkStart = -1;
+        private int chunkEnd;
+        private long chunkSize;
+        private long distanceCount;
+        private double distanceMean;
+        private double distanceM2;
+
+        State(Document document) {
+            this.document = document;
+            this.text = document.text();
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @Override
+    public List<TextSegment> split(Document document) {
+        long startTime = System.currentTimeMillis();
+        try {
+            State state = new State(document);
+            String text = state.text;
+            List<int[]> batch = new ArrayList<>(batchSize);
+            int pos = 0;
+            while (pos < text.length()) {
+                int end = nextSentenceEnd(text, pos);
+                // 过短的句子并入下一句，减少向量计算并避免标题、编号单独成句
+                while (end < text.length() && end - pos < minSentenceChars) {
+                    end = nextSentenceEnd(text, end);
+                }
+                if (!text.substring(pos, end).trim().isEmpty()) {
+                    batch.add(new int[]{pos, end});
+                }
+                pos = end;
+                if (batch.size() >= batchSize) {
+                    processBatch(state, batch);
+                    batch.clear();
+                }
+            }
+            if (!batch.isEmpty()) {
+                processBatch(state, batch);
+            }
+            emitChunk(state);
+            log.info("语义分割完成: {} 字符 -> {} 个片段，耗时 {}ms",
+                    text.length(), state.segments.size(), System.currentTimeMillis() - startTime);
+            return state.segments;
+        } catch (Exception e) {
+            log.warn("语义分割失败，使用递归分割: {}", e.getMessage());
+            return new RecursiveTextSplitter(maxSize, 0, splitterSizeEstimator).split(document);
+        }
+    }
+
+    /**
+     * 批量计算句向量，逐句判断是否在该句之前切分
+     */
+    private void processBatch(State state, List<int[]> sentences) {
+        List<TextSegment> inputs = new ArrayList<>(sentences.size());
+        for (int[] sentence : sentences) {
+            inputs.add(TextSegment.from(state.text.substring(sentence[0], sentence[1]).trim()));
+        }
+        List<Embedding> embeddings = LocalModelHolder.MODEL.embedAll(inputs).content();
+
+        for (int i = 0; i < sentences.size(); i++) {
+            int start = sentences.get(i)[0];
+            int end = sentences.get(i)[1];
+            float[] vector = embeddings.get(i).vector();
+            int size = splitterSizeEstimator.size(state.text, start, end);
+
+            boolean semanticBreak = false;
+            if (!state.recent.isEmpty()) {
+                double distance = 1.0 - cosine(centroid(state.recent), vector);
+                if (state.distanceCount >= WARMUP_SENTENCES) {
+                    double stddev = Math.max(MIN_STDDEV, Math.sqrt(state.distanceM2 / (state.distanceCount - 1)));
+                    semanticBreak = distance > state.distanceMean + breakpointStddev * stddev;
+                }
+                // Welford 增量统计距离的均值和方差
+                state.distanceCount++;
+                double delta = distance - state.distanceMean;
+                state.distanceMean += delta / state.distanceCount;
+                state.distanceM2 += delta * (distance - state.distanceMean);
+            }
+
+            if (size > maxSize) {
+                // 单句超过块大小时单独切分
+                emitChunk(state);
+                for (RecursiveTextSplitter.TextSpan span : new RecursiveTextSplitter(maxSize, 0, splitterSizeEstimator)
+                        .splitSpans(state.text.substring(start, end))) {
+                    addSegment(state, start + span.getStart(), start + span.getEnd());
+                }
+            } else if (state.chunkStart < 0) {
+                state.chunkStart = start;
+                state.chunkEnd = end;
+                state.chunkSize = size;
+            } else if (state.chunkSize + size > maxSize || (semanticBreak && state.chunkSize >= minSize)) {
+                emitChunk(state);
+                state.chunkStart = start;
+                state.chunkEnd = end;
+                state.chunkSize = size;
+            } else {
+                state.chunkEnd = end;
+                state.chunkSize += size;
+            }
+
+            state.recent.addLast(vector);
+            while (state.recent.size() > Math.max(1, window)) {
+                state.recent.removeFirst();
+            }
+        }
+    }
+
+    private void emitChunk(State state) {
+        if (state.chunkStart >= 0) {
+            addSegment(state, state.chunkStart, state.chunkEnd);
+        }
+        state.chunkStart = -1;
+        state.chunkSize = 0;
+    }
+
+    private void addSegment(State state, int start, int end) {
+        String chunk = state.text.substring(start, end).trim();
+        if (chunk.isEmpty()) {
+            return;
+        }
+        Metadata metadata = state.document.metadata().copy().add("index", String.valueOf(state.segments.size()));
+        state.segments.add(TextSegment.from(chunk, metadata));
+    }
+
+    /**
+     * 下一个句子的结束位置：句末标点或换行之后（连同紧跟的引号、括号和空白），
+     * 英文句点后须跟空白；句子过长时按长度截断
+     */
+    private int nextSentenceEnd(String text, int start) {
+        int limit = Math.min(text.length(), start + Math.max(1, maxSentenceChars));
+        int i = start;
+        while (i < limit) {
+            char c = text.charAt(i++);
+            boolean end = SENTENCE_ENDS.indexOf(c) >= 0
+                    || (c == '.' && (i >= text.length() || Character.isWhitespace(text.charAt(i))));
+            if (end) {
+                while (i < text.length() && ("”’\"')）」』".indexOf(text.charAt(i)) >= 0 || Character.isWhitespace(text.charAt(i)))) {
+                    i++;
+                }
+                return i;
+            }
+        }
+        if (i < text.length() && Character.isLowSurrogate(text.charAt(i)) && i - 1 > start) {
+            i--;
+        }
+        return i;
+    }
+
+    private static float[] centroid(Deque<float[]> vectors) {
+        float[] centroid = null;
+        for (float[] vector : vectors) {
+            if (centroid == null) {
+                centroid = new float[vector.length];
+            }
+            for (int d = 0; d < vector.length; d++) {
+                centroid[d] += vector[d];
+            }
+        }
+        return centroid;
+    }
+
+    private static double cosine(float[] a, float[] b) {
+        double dot = 0;
+        double normA = 0;
+        double normB = 0;
+        for (int d = 0; d < a.length; d++) {
+            dot += a[d] * b[d];
+            normA += a[d] * a[d];
+            normB += b[d] * b[d];
+        }
+        if (normA == 0 || normB == 0) {
+            return 0.0;
+        }
+        return dot / (Math.sqrt(normA) * Math.sqrt(normB));
+    }
+}
@@ -16,9 +16,10 @@
 
 package com.unionhole.zrag.service;
 
+import com.unionhole.zrag.util.CodeChunker;
+import com.unionhole.zrag.util.RecursiveTextSplitter;
 import dev.langchain4j.data.document.Document;
 import dev.langchain4j.data.document.DocumentSplitter;
-import dev.langchain4j.data.document.splitter.DocumentSplitters;
 import dev.langchain4j.data.segment.TextSegment;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -38,15 +39,18 @@ public class  SmartDocumentSplitterService {
     private final DocumentSplitter defaultSplitter;
     private final DocumentSplitter chineseSplitter;
     private final DocumentSplitter codeSplitter;
+    private final SemanticChunker semanticChunker;
     
     @Autowired
     public SmartDocumentSplitterService(
             @Qualifier("documentSplitter") DocumentSplitter defaultSplitter,
             @Qualifier("chineseDocumentSplitter") DocumentSplitter chineseSplitter,
-            @Qualifier("codeDocumentSplitter") DocumentSplitter codeSplitter) {
+            @Qualifier("codeDocumentSplitter") DocumentSplitter codeSplitter,
+            SemanticChunker semanticChunker) {
         this.defaultSplitter = defaultSplitter;
         this.chineseSplitter = chineseSplitter;
         this.codeSplitter = codeSplitter;
+        this.semanticChunker = semanticChunker;
     }
     
     /**
@@ -76,6 +80,19 @@ public class  SmartDocumentSplitterService {
         }
     }
     
+    /**
+     * 语义分割文档
+     * 在相邻句子语义相似度明显下降处切分，不受 splitter.semantic.enabled 开关限制
+     * 
+     * @param document 文档对象
+     * @return 分割后的文本片段列表
+     */
+    public List<TextSegment> semanticSplit(Document document) {
+        List<TextSegment> segments = semanticChunker.split(document);
+        log.info("语义分割统计: {}", getSplitterStats(segments));
+        return segments;
+    }
+    
     /**
      * 动态分割文档
      * 支持自定义分割参数
@@ -116,14 +133,25 @@ public class  SmartDocumentSplitterService {
      */
     private DocumentSplitter createCustomSplitter(int chunkSize, int chunkOverlap, String... customSeparators) {
         if (customSeparators != null && customSeparators.length > 0) {
-            // 使用自定义分隔符创建分割器
-            return DocumentSplitters.recursive(chunkSize, chunkOverlap);
+            // 使用自定义分隔符创建分割器，请求参数中的转义写法（如 \\n）还原为实际字符
+            String[] separators = new String[customSeparators.length];
+            for (int i = 0; i < customSeparators.length; i++) {
+                separators[i] = unescape(customSeparators[i]);
+            }
+            return new RecursiveTextSplitter(chunkSize, chunkOverlap, separators);
         } else {
             // 使用默认分隔符
-            return DocumentSplitters.recursive(chunkSize, chunkOverlap);
+            return new RecursiveTextSplitter(chunkSize, chunkOverlap);
         }
     }
     
+    private String unescape(String separator) {
+        if (separator == null) {
+            return null;
+        }
+        return separator.replace("\\n", "\n").replace("\\r", "\r").replace("\\t", "\t");
+    }
+    
     /**
      * 按文件类型分割文档
      * 
@@ -141,7 +169,7 @@ public class  SmartDocumentSplitterService {
             DocumentSplitter selectedSplitter;
             
             if (isCodeFile(fileName)) {
-                selectedSplitter = createCustomSplitter(chunkSize, chunkOverlap);
+                selectedSplitter = new CodeChunker(chunkSize, chunkOverlap).forFile(fileName);
                 log.info("使用代码文件分割器");
             } else if (isChineseContent(document.text())) {
                 selectedSplitter = createCustomSplitter(chunkSize, chunkOverlap);
@@ -169,26 +197,35 @@ public class  SmartDocumentSplitterService {
      * @param fileName 文件名
      * @return 选中的分割器
      */
-    private DocumentSplitter selectSplitter(String content, String fileName) {
+    public DocumentSplitter selectSplitter(String content, String fileName) {
         // 1. 根据文件扩展名判断
         if (isCodeFile(fileName)) {
             log.debug("检测到代码文件，使用代码分割器: {}", fileName);
+            if (codeSplitter instanceof CodeChunker) {
+                return ((CodeChunker) codeSplitter).forFile(fileName);
+            }
             return codeSplitter;
         }
         
-        // 2. 根据内容特征判断
+        // 2. 启用语义分割时，非代码文档按语义边界分割
+        if (semanticChunker.isEnabled()) {
+            log.debug("使用语义分割器: {}", fileName);
+            return semanticChunker;
+        }
+        
+        // 3. 根据内容特征判断
         if (isChineseContent(content)) {
             log.debug("检测到中文内容，使用中文分割器: {}", fileName);
             return chineseSplitter;
         }
         
-        // 3. 根据内容长度判断
+        // 4. 根据内容长度判断
         if (content.length() > 5000) {
             log.debug("检测到长文档，使用中文分割器: {}", fileName);
             return chineseSplitter;
         }
         
-        // 4. 默认使用标准分割器
+        // 5. 默认使用标准分割器
         log.debug("使用默认分割器: {}", fileName);
         return defaultSplitter;
     }
@@ -199,7 +236,7 @@ public class  SmartDocumentSplitterService {
      * @param fileName 文件名
      * @return 是否为代码文件
      */
-    private boolean isCodeFile(String fileName) {
+    public boolean isCodeFile(String fileName) {
         if (fileName == null) return false;
         
         String lowerFileName = fileName.toLowerCase();
@@ -234,7 +271,7 @@ public class  SmartDocumentSplitterService {
      * @param content 文档内容
      * @return 是否为中文内容
      */
-    private boolean isChineseContent(String content) {
+    public boolean isChineseContent(String content) {
         if (content == null || content.isEmpty()) return false;
         
         int chineseCharCount = 0;
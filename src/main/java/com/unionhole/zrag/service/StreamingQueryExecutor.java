@@ -0,0 +1,162 @@
+/*
+ * Copyright 2025 james-zou
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.unionhole.zrag.service;
+
+import com.unionhole.zrag.util.CancellableSseEmitter;
+import com.unionhole.zrag.util.StreamingUtils;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * 流式查询执行器
+ * 在有界线程池中执行流式查询，控制器立即返回SSE发射器，Tomcat请求线程不被占用。
+ * 客户端断开、超时或出错时取消任务：排队中的任务不再执行，执行中的任务被中断，并在下一次发送时中止
+ */
+@Slf4j
+@Service
+public class StreamingQueryExecutor {
+
+    @Value("${sse.timeout-ms:120000}")
+    private long timeoutMs;
+
+    @Value("${sse.executor.pool-size:8}")
+    private int poolSize;
+
+    @Value("${sse.executor.queue-capacity:50}")
+    private int queueCapacity;
+
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong cancelled = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    private ThreadPoolExecutor executor;
+
+    @PostConstruct
+    public void initialize() {
+        AtomicInteger threadIndex = new AtomicInteger();
+        ThreadFactory threadFactory = runnable -> {
+            Thread thread = new Thread(runnable, "sse-query-" + threadIndex.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        executor = new ThreadPoolExecutor(poolSize, poolSize, 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, queueCapacity)), threadFactory, new ThreadPoolExecutor.AbortPolicy());
+        log.info("流式查询执行器初始化完成，线程数: {}, 队列容量: {}, 超时: {} ms", poolSize, queueCapacity, timeoutMs);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * 提交流式查询
+     * @param name 查询名称（用于日志）
+     * @param task 查询逻辑，通过发射器发送结果
+     * @return SSE发射器
+     */
+    public SseEmitter submit(String name, Consumer<SseEmitter> task) {
+        CancellableSseEmitter emitter = new CancellableSseEmitter(timeoutMs);
+        AtomicBoolean finished = new AtomicBoolean();
+        Future<?> future;
+        try {
+            future = executor.submit(() -> run(name, emitter, task, finished));
+        } catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            log.warn("{}被拒绝，执行器已满: 活跃 {}, 排队 {}", name, executor.getActiveCount(), executor.getQueue().size());
+            StreamingUtils.sendError(emitter, "系统繁忙，请稍后重试");
+            emitter.complete();
+            return emitter;
+        }
+
+        // 任务自己调用 complete 时也会触发完成回调，此时任务正常结束，不能中断也不计为取消
+        Runnable cancel = () -> {
+            if (!finished.get() && !emitter.isCompleted() && !future.isDone()) {
+                emitter.cancel();
+                future.cancel(true);
+                cancelled.incrementAndGet();
+                log.info("{}已取消", name);
+            }
+        };
+        emitter.onTimeout(() -> {
+            log.warn("{}超时: {} ms", name, timeoutMs);
+            cancel.run();
+            emitter.complete();
+        });
+        emitter.onError(error -> cancel.run());
+        emitter.onCompletion(cancel);
+        return emitter;
+    }
+
+    private void run(String name, CancellableSseEmitter emitter, Consumer<SseEmitter> task, AtomicBoolean finished) {
+        try {
+            task.accept(emitter);
+            completed.incrementAndGet();
+        } catch (CancellationException e) {
+            log.info("{}已中止: {}", name, e.getMessage());
+        } catch (Exception e) {
+            if (emitter.isCancelled()) {
+                log.info("{}已中止: {}", name, e.getMessage());
+            } else {
+                failed.incrementAndGet();
+                log.error("{}失败", name, e);
+                StreamingUtils.sendError(emitter, "查询失败: " + e.getMessage());
+            }
+        } finally {
+            finished.set(true);
+            emitter.complete();
+        }
+    }
+
+    /**
+     * 获取执行器统计信息
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("poolSize", poolSize);
+        stats.put("active", executor.getActiveCount());
+        stats.put("queued", executor.getQueue().size());
+        stats.put("queueCapacity", queueCapacity);
+        stats.put("completed", completed.get());
+        stats.put("cancelled", cancelled.get());
+        stats.put("rejected", rejected.get());
+        stats.put("failed", failed.get());
+        return stats;
+    }
+}
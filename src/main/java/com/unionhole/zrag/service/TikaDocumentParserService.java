@@ -16,21 +16,49 @@
 
 package com.unionhole.zrag.service;
 
+import com.unionhole.zrag.util.WindowedTextContentHandler;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.tika.Tika;
+import org.apache.tika.fork.ForkParser;
+import org.apache.tika.io.TikaInputStream;
 import org.apache.tika.metadata.Metadata;
+import org.apache.tika.metadata.TikaCoreProperties;
 import org.apache.tika.parser.AutoDetectParser;
 import org.apache.tika.parser.ParseContext;
 import org.apache.tika.parser.Parser;
 import org.apache.tika.sax.BodyContentHandler;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.InputStreamSource;
+import org.springframework.core.io.Resource;
 import org.springframework.stereotype.Service;
 import org.springframework.web.multipart.MultipartFile;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
 /**
  * Apache Tika文档解析服务
- * 使用Tika统一处理各种文档格式的文本提取和编码问题
+ * 使用Tika统一处理各种文档格式的文本提取和编码问题。
+ * 流式解析在独立的有界线程池中执行，每个文档有解析超时和提取字符上限，超时后取消；
+ * 可选在子JVM中解析，隔离不可信文件导致的内存溢出或崩溃
  */
 @Slf4j
 @Service
@@ -39,11 +67,74 @@ public class TikaDocumentParserService {
     private final Tika tika;
     private final AutoDetectParser parser;
 
+    /** 解析结束标记 */
+    private static final Object END_OF_DOCUMENT = new Object();
+
+    @Value("${tika.window-chars:20000}")
+    private int windowChars;
+
+    @Value("${tika.timeout:30000}")
+    private long timeoutMs;
+
+    @Value("${tika.max-text-length:10000000}")
+    private long maxTextLength;
+
+    @Value("${tika.executor.pool-size:0}")
+    private int poolSize;
+
+    @Value("${tika.executor.queue-capacity:16}")
+    private int queueCapacity;
+
+    @Value("${tika.fork.enabled:false}")
+    private boolean forkEnabled;
+
+    @Value("${tika.fork.java-command:java -Xmx512m}")
+    private String forkJavaCommand;
+
+    @Value("${tika.fork.pool-size:2}")
+    private int forkPoolSize;
+
+    private ThreadPoolExecutor parseExecutor;
+    private ForkParser forkParser;
+    private final Map<String, ParseMetrics> metricsByType = new ConcurrentHashMap<>();
+
     public TikaDocumentParserService() {
         this.tika = new Tika();
         this.parser = new AutoDetectParser();
     }
 
+    @PostConstruct
+    public void initialize() {
+        int threads = poolSize > 0 ? poolSize : Runtime.getRuntime().availableProcessors();
+        AtomicInteger threadIndex = new AtomicInteger();
+        parseExecutor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, queueCapacity)), runnable -> {
+                    Thread thread = new Thread(runnable, "tika-parse-" + threadIndex.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }, new ThreadPoolExecutor.AbortPolicy());
+
+        if (forkEnabled) {
+            forkParser = new ForkParser(TikaDocumentParserService.class.getClassLoader(), new AutoDetectParser());
+            // 按空白拆分为命令和参数，路径中不能含空格
+            forkParser.setJavaCommand(Arrays.asList(forkJavaCommand.trim().split("\\s+")));
+            forkParser.setPoolSize(Math.max(1, forkPoolSize));
+            forkParser.setServerParseTimeoutMillis(timeoutMs);
+        }
+        log.info("文档解析线程池初始化完成，线程数: {}, 队列容量: {}, 超时: {} ms, 字符上限: {}, 子JVM解析: {}",
+                threads, queueCapacity, timeoutMs, maxTextLength, forkEnabled);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (parseExecutor != null) {
+            parseExecutor.shutdownNow();
+        }
+        if (forkParser != null) {
+            forkParser.close();
+        }
+    }
+
     /**
      * 解析文档并提取文本内容
      * 
@@ -92,15 +183,275 @@ public class TikaDocumentParserService {
         }
     }
     
+    /**
+     * 流式解析文档，单次解析过程中按窗口输出文本
+     * 解析在解析线程池中执行，窗口通过有界队列交给调用线程处理，文本不会整体保存在内存中。
+     * 超时只计算调用线程等待解析的时间，不包括下游处理窗口的时间
+     *
+     * @param file 上传的文件
+     * @param windowConsumer 窗口文本的接收者（在调用线程中执行）
+     * @return 解析结果（检测到的类型、字符数、窗口数）
+     * @throws Exception 解析失败、超时或解析队列已满
+     */
+    public StreamingParseResult parseStreaming(MultipartFile file, Consumer<String> windowConsumer) throws Exception {
+        return parseStreaming(file, file.getOriginalFilename(), windowConsumer);
+    }
+
+    /**
+     * 流式解析任意来源的内容，如边上传边解析时的上传流；来源是本地文件时直接按文件解析
+     *
+     * @param source 内容来源
+     * @param fileName 文件名，用于类型检测
+     * @param windowConsumer 窗口文本的接收者（在调用线程中执行）
+     * @return 解析结果（检测到的类型、字符数、窗口数）
+     * @throws Exception 解析失败、超时或解析队列已满
+     */
+    public StreamingParseResult parseStreaming(InputStreamSource source, String fileName,
+                                               Consumer<String> windowConsumer) throws Exception {
+        long startTime = System.currentTimeMillis();
+        Metadata metadata = new Metadata();
+        metadata.set(TikaCoreProperties.RESOURCE_NAME_KEY, fileName);
+
+        BlockingQueue<Object> windows = new ArrayBlockingQueue<>(2);
+        WindowedTextContentHandler windowHandler = new WindowedTextContentHandler(windowChars, maxTextLength,
+                window -> deliver(windows, window, null));
+        Future<?> future;
+        try {
+            future = parseExecutor.submit(() -> runParse(source, windowHandler, metadata, windows));
+        } catch (RejectedExecutionException e) {
+            metrics(detectType(fileName)).rejected.incrementAndGet();
+            log.warn("文档解析队列已满: {}, 活跃 {}, 排队 {}", fileName,
+                    parseExecutor.getActiveCount(), parseExecutor.getQueue().size());
+            throw new IllegalStateException("文档解析繁忙，请稍后重试", e);
+        }
+
+        long parseMs = 0;
+        try {
+            while (true) {
+                long waitStart = System.currentTimeMillis();
+                Object item = windows.poll(Math.max(0, timeoutMs - parseMs), TimeUnit.MILLISECONDS);
+                parseMs += System.currentTimeMillis() - waitStart;
+                if (item == null) {
+                    throw new TimeoutException("文档解析超时: " + timeoutMs + " ms");
+                }
+                if (item == END_OF_DOCUMENT) {
+                    break;
+                }
+                if (item instanceof Exception) {
+                    throw (Exception) item;
+                }
+                windowConsumer.accept((String) item);
+            }
+        } catch (Exception e) {
+            windowHandler.cancel();
+            future.cancel(true);
+            recordParseFailure(metadata.get(Metadata.CONTENT_TYPE), e instanceof TimeoutException);
+            log.warn("Tika流式解析失败: {}, 已解析 {} ms, {}", fileName, parseMs, e.getMessage());
+            throw e;
+        }
+
+        StreamingParseResult result = new StreamingParseResult(metadata.get(Metadata.CONTENT_TYPE),
+                windowHandler.getTotalChars(), windowHandler.getWindowCount());
+        recordParse(result.getContentType(), parseMs, result.getTotalChars(), windowHandler.isLimitReached());
+        if (windowHandler.isLimitReached()) {
+            log.warn("文档 {} 提取的文本达到上限 {} 字符，其余内容已丢弃", fileName, maxTextLength);
+        }
+        log.info("Tika流式解析完成: {}, 类型: {}, 文本长度: {} 字符, 窗口数: {}, 解析耗时: {} ms, 总耗时: {} ms",
+                fileName, result.getContentType(), result.getTotalChars(),
+                result.getWindowCount(), parseMs, System.currentTimeMillis() - startTime);
+        return result;
+    }
+
+    /**
+     * 向解析线程池提交解析任务（如并行提取的分片）
+     * @throws RejectedExecutionException 解析队列已满
+     */
+    public <T> Future<T> submitParseTask(Callable<T> task) {
+        return parseExecutor.submit(task);
+    }
+
+    /**
+     * 解析线程池的线程数
+     */
+    public int getParsePoolSize() {
+        return parseExecutor.getCorePoolSize();
+    }
+
+    public long getTimeoutMs() {
+        return timeoutMs;
+    }
+
+    public long getMaxTextLength() {
+        return maxTextLength;
+    }
+
+    /**
+     * 记录一次成功的解析
+     */
+    public void recordParse(String contentType, long parseMs, long chars, boolean truncated) {
+        metrics(contentType).record(parseMs, chars, truncated);
+    }
+
+    /**
+     * 记录一次失败的解析
+     */
+    public void recordParseFailure(String contentType, boolean timeout) {
+        ParseMetrics metrics = metrics(contentType);
+        if (timeout) {
+            metrics.timeouts.incrementAndGet();
+        } else {
+            metrics.failures.incrementAndGet();
+        }
+    }
+
+    /**
+     * 在解析线程中执行解析，窗口、异常和结束标记都通过队列交给调用线程
+     */
+    private void runParse(InputStreamSource source, WindowedTextContentHandler windowHandler, Metadata metadata,
+                          BlockingQueue<Object> windows) {
+        ParseContext parseContext = new ParseContext();
+        parseContext.set(Parser.class, parser);
+        Parser activeParser = forkParser != null ? forkParser : parser;
+        try (InputStream inputStream = openStream(source)) {
+            activeParser.parse(inputStream, new BodyContentHandler(windowHandler), metadata, parseContext);
+            windowHandler.flush();
+        } catch (Exception e) {
+            // 达到字符上限时处理器已输出剩余文本，按正常结束处理
+            if (!windowHandler.isLimitReached()) {
+                deliver(windows, e, windowHandler);
+                return;
+            }
+        }
+        deliver(windows, END_OF_DOCUMENT, windowHandler);
+    }
+
+    /**
+     * 向调用线程交付数据，队列已满时等待；调用方已取消时放弃
+     */
+    private void deliver(BlockingQueue<Object> windows, Object item, WindowedTextContentHandler windowHandler) {
+        try {
+            while (!windows.offer(item, 100, TimeUnit.MILLISECONDS)) {
+                if (windowHandler != null && windowHandler.isCancelled()) {
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("解析已取消");
+        }
+    }
+
+    /**
+     * 本地文件按路径打开，解析器可以随机访问，不必先复制到临时文件
+     */
+    private static InputStream openStream(InputStreamSource source) throws Exception {
+        if (source instanceof Resource && ((Resource) source).isFile()) {
+            return TikaInputStream.get(((Resource) source).getFile().toPath());
+        }
+        return TikaInputStream.get(source.getInputStream());
+    }
+
+    private String detectType(String fileName) {
+        try {
+            return tika.detect(fileName);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private ParseMetrics metrics(String contentType) {
+        String type = contentType == null ? "unknown" : contentType.split(";")[0].trim().toLowerCase();
+        return metricsByType.computeIfAbsent(type, key -> new ParseMetrics());
+    }
+
+    /**
+     * 单个文档类型的解析统计
+     */
+    private static class ParseMetrics {
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong totalMs = new AtomicLong();
+        private final AtomicLong maxMs = new AtomicLong();
+        private final AtomicLong totalChars = new AtomicLong();
+        private final AtomicLong truncated = new AtomicLong();
+        private final AtomicLong failures = new AtomicLong();
+        private final AtomicLong timeouts = new AtomicLong();
+        private final AtomicLong rejected = new AtomicLong();
+
+        void record(long parseMs, long chars, boolean limitReached) {
+            count.incrementAndGet();
+            totalMs.addAndGet(parseMs);
+            maxMs.accumulateAndGet(parseMs, Math::max);
+            totalChars.addAndGet(chars);
+            if (limitReached) {
+                truncated.incrementAndGet();
+            }
+        }
+
+        Map<String, Object> toMap() {
+            long parsed = count.get();
+            Map<String, Object> map = new HashMap<>();
+            map.put("count", parsed);
+            map.put("avgMs", parsed > 0 ? (double) totalMs.get() / parsed : 0.0);
+            map.put("maxMs", maxMs.get());
+            map.put("totalChars", totalChars.get());
+            map.put("truncated", truncated.get());
+            map.put("failures", failures.get());
+            map.put("timeouts", timeouts.get());
+            map.put("rejected", rejected.get());
+            return map;
+        }
+    }
+
+    /**
+     * 获取解析统计信息（线程池状态及按文档类型的解析耗时）
+     */
+    public Map<String, Object> getParseStats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("poolSize", parseExecutor.getCorePoolSize());
+        stats.put("active", parseExecutor.getActiveCount());
+        stats.put("queued", parseExecutor.getQueue().size());
+        stats.put("queueCapacity", queueCapacity);
+        stats.put("timeoutMs", timeoutMs);
+        stats.put("maxTextLength", maxTextLength);
+        stats.put("forkEnabled", forkEnabled);
+        Map<String, Object> byType = new TreeMap<>();
+        metricsByType.forEach((type, metrics) -> byType.put(type, metrics.toMap()));
+        stats.put("byType", byType);
+        return stats;
+    }
+
+    /**
+     * 流式解析结果
+     */
+    public static class StreamingParseResult {
+        private final String contentType;
+        private final long totalChars;
+        private final int windowCount;
+
+        StreamingParseResult(String contentType, long totalChars, int windowCount) {
+            this.contentType = contentType;
+            this.totalChars = totalChars;
+            this.windowCount = windowCount;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+
+        public long getTotalChars() {
+            return totalChars;
+        }
+
+        public int getWindowCount() {
+            return windowCount;
+        }
+    }
+    
     /**
      * 使用Tika简单API解析文档
      */
     private String parseWithTikaSimple(MultipartFile file) {
         try {
-            // 检测文档类型
-            String detectedType = tika.detect(file.getBytes());
-            log.debug("检测到文档类型: {}", detectedType);
-            
             // 创建Tika实例并设置编码
             Tika tikaWithEncoding = new Tika();
             tikaWithEncoding.setMaxStringLength(-1); // 无限制长度
@@ -193,8 +544,9 @@ public class TikaDocumentParserService {
      * 检测文档类型
      */
     public String detectDocumentType(MultipartFile file) {
-        try {
-            String detectedType = tika.detect(file.getBytes());
+        // 类型检测只读取文件头部，不把整个文件读入内存
+        try (InputStream inputStream = TikaInputStream.get(file.getInputStream())) {
+            String detectedType = tika.detect(inputStream, file.getOriginalFilename());
             log.info("检测到文档类型: {}", detectedType);
             return detectedType;
         } catch (Exception e) {
@@ -262,28 +614,26 @@ public class TikaDocumentParserService {
     
     /**
      * 检测文本是否包含乱码
+     * 中文等非ASCII文本不算乱码，只统计解码失败产生的替换字符和异常控制字符
      */
     private boolean containsGarbledText(String text) {
         if (text == null || text.isEmpty()) {
             return false;
         }
         
-        // 检查是否包含大量非ASCII字符（可能是乱码）
-        int nonAsciiCount = 0;
+        int badChars = 0;
         int totalChars = text.length();
-        
-        for (char c : text.toCharArray()) {
-            if (c > 127) {
-                nonAsciiCount++;
+        for (int i = 0; i < totalChars; i++) {
+            char c = text.charAt(i);
+            if (c == '\uFFFD' || (Character.isISOControl(c) && c != '\n' && c != '\r' && c != '\t')) {
+                badChars++;
             }
         }
         
-        // 如果非ASCII字符超过50%，可能是乱码
-        double nonAsciiRatio = (double) nonAsciiCount / totalChars;
-        boolean isGarbled = nonAsciiRatio > 0.5;
-        
+        // 异常字符超过1%，可能是乱码
+        boolean isGarbled = badChars * 100 > totalChars;
         if (isGarbled) {
-            log.warn("检测到可能的乱码: 非ASCII字符比例: {:.2f}%", nonAsciiRatio * 100);
+            log.warn("检测到可能的乱码: 异常字符 {} / {}", badChars, totalChars);
         }
         
         return isGarbled;
@@ -0,0 +1,461 @@
+/*
+ * Copyright 2025 james-zou
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.unionhole.zrag.store;
+
+import com.unionhole.zrag.util.LexicalTokenizer;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+
+import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
+
+/**
+ * 内存倒排索引 + BM25 打分
+ * 与向量存储并行维护，用于产品编码、股票代码、条款编号及中文关键词的召回。
+ * 倒排表按文档序号差值 + 词频、位置差值分两段做 varint 压缩，打分时只解码文档/词频段，短语匹配时才解码位置段
+ */
+public class Bm25Index {
+
+    private static final int COMPACT_MIN_DOCS = 1024;
+
+    private final LexicalTokenizer tokenizer;
+    private final double k1;
+    private final double b;
+
+    /** 词项ID -> 倒排表 */
+    private final Map<Long, PostingList> postings = new HashMap<>();
+    /** 文档序号 -> 文档，删除后置为 null */
+    private final List<IndexedDoc> docs = new ArrayList<>();
+    /** 外部ID -> 文档序号 */
+    private final Map<String, Integer> idToOrdinal = new HashMap<>();
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /** 查询打分的累加数组按线程复用，避免每次查询分配 */
+    private final ThreadLocal<float[]> scoreScratch = ThreadLocal.withInitial(() -> new float[0]);
+    private final ThreadLocal<int[]> touchedScratch = ThreadLocal.withInitial(() -> new int[0]);
+
+    private int liveDocs;
+    private long totalLength;
+
+    public Bm25Index(LexicalTokenizer tokenizer) {
+        this(tokenizer, 1.2, 0.75);
+    }
+
+    public Bm25Index(LexicalTokenizer tokenizer, double k1, double b) {
+        this.tokenizer = tokenizer;
+        this.k1 = k1;
+        this.b = b;
+    }
+
+    /**
+     * 添加或替换文档
+     * @param id 文档片段ID
+     * @param segment 文档片段
+     */
+    public void add(String id, TextSegment segment) {
+        if (id == null || segment == null || segment.text() == null) {
+            return;
+        }
+        // 分词在锁外完成
+        Map<Long, IntList> termPositions = new HashMap<>();
+        int length = tokenizer.tokenize(segment.text(),
+                (term, position) -> termPositions.computeIfAbsent(term, k -> new IntList()).add(position));
+
+        lock.writeLock().lock();
+        try {
+            removeInternal(id);
+            appendInternal(id, segment, length, termPositions);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void appendInternal(String id, TextSegment segment, int length, Map<Long, IntList> termPositions) {
+        int ordinal = docs.size();
+        long[] terms = new long[termPositions.size()];
+        int t = 0;
+        for (Map.Entry<Long, IntList> entry : termPositions.entrySet()) {
+            terms[t++] = entry.getKey();
+            postings.computeIfAbsent(entry.getKey(), k -> new PostingList()).append(ordinal, entry.getValue());
+        }
+        docs.add(new IndexedDoc(id, segment, length, terms));
+        idToOrdinal.put(id, ordinal);
+        liveDocs++;
+        totalLength += length;
+    }
+
+    /**
+     * 删除文档
+     * @param id 文档片段ID
+     */
+    public void remove(String id) {
+        lock.writeLock().lock();
+        try {
+            removeInternal(id);
+            if (docs.size() > COMPACT_MIN_DOCS && liveDocs < docs.size() / 2) {
+                compact();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 删除满足条件的文档
+     * @param filter 文档片段过滤条件
+     * @return 删除的文档数
+     */
+    public int removeIf(Predicate<TextSegment> filter) {
+        lock.writeLock().lock();
+        try {
+            List<String> ids = new ArrayList<>();
+            for (IndexedDoc doc : docs) {
+                if (doc != null && filter.test(doc.segment)) {
+                    ids.add(doc.id);
+                }
+            }
+            for (String id : ids) {
+                removeInternal(id);
+            }
+            if (docs.size() > COMPACT_MIN_DOCS && liveDocs < docs.size() / 2) {
+                compact();
+            }
+            return ids.size();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void removeInternal(String id) {
+        Integer ordinal = idToOrdinal.remove(id);
+        if (ordinal == null) {
+            return;
+        }
+        IndexedDoc doc = docs.get(ordinal);
+        for (long term : doc.terms) {
+            PostingList list = postings.get(term);
+            if (list != null && --list.liveDf <= 0) {
+                postings.remove(term);
+            }
+        }
+        docs.set(ordinal, null);
+        liveDocs--;
+        totalLength -= doc.length;
+    }
+
+    /**
+     * 删除过多时重建倒排表，回收已删除文档占用的空间
+     */
+    private void compact() {
+        List<IndexedDoc> live = new ArrayList<>(liveDocs);
+        for (IndexedDoc doc : docs) {
+            if (doc != null) {
+                live.add(doc);
+            }
+        }
+        postings.clear();
+        docs.clear();
+        idToOrdinal.clear();
+        liveDocs = 0;
+        totalLength = 0;
+        for (IndexedDoc doc : live) {
+            Map<Long, IntList> termPositions = new HashMap<>();
+            int length = tokenizer.tokenize(doc.segment.text(),
+                    (term, position) -> termPositions.computeIfAbsent(term, k -> new IntList()).add(position));
+            appendInternal(doc.id, doc.segment, length, termPositions);
+        }
+    }
+
+    /**
+     * 清空索引
+     */
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            postings.clear();
+            docs.clear();
+            idToOrdinal.clear();
+            liveDocs = 0;
+            totalLength = 0;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 文档数量
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return liveDocs;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * BM25 检索
+     * @param query 查询文本
+     * @param topK 返回数量
+     * @param phraseBoost 中文短语完整命中时的分数加成比例，0表示不做短语匹配
+     * @return 按分数降序排列的匹配结果（分数未归一化，不含向量）
+     */
+    public List<EmbeddingMatch<TextSegment>> search(String query, int topK, double phraseBoost) {
+        if (query == null || topK <= 0) {
+            return new ArrayList<>();
+        }
+        Set<Long> queryTerms = new LinkedHashSet<>();
+        tokenizer.tokenize(query, (term, position) -> queryTerms.add(term));
+        if (queryTerms.isEmpty()) {
+            return new ArrayList<>();
+        }
+        List<long[]> phrases = phraseBoost > 0 ? tokenizer.phraseBigrams(query) : Collections.emptyList();
+
+        lock.readLock().lock();
+        try {
+            if (liveDocs == 0) {
+                return new ArrayList<>();
+            }
+            int docCount = docs.size();
+            float[] scores = scoreScratch.get();
+            int[] touched = touchedScratch.get();
+            if (scores.length < docCount) {
+                scores = new float[docCount];
+                touched = new int[docCount];
+                scoreScratch.set(scores);
+                touchedScratch.set(touched);
+            }
+            int touchedCount = 0;
+
+            double avgLength = (double) totalLength / liveDocs;
+            for (Long term : queryTerms) {
+                PostingList list = postings.get(term);
+                if (list == null) {
+                    continue;
+                }
+                double idf = Math.log(1 + (liveDocs - list.liveDf + 0.5) / (list.liveDf + 0.5));
+                int[] cursor = new int[1];
+                int doc = -1;
+                while (cursor[0] < list.docSize) {
+                    doc += PostingList.readVarint(list.docData, cursor);
+                    int tf = PostingList.readVarint(list.docData, cursor);
+
+                    IndexedDoc indexed = docs.get(doc);
+                    if (indexed == null) {
+                        continue;
+                    }
+                    if (scores[doc] == 0) {
+                        touched[touchedCount++] = doc;
+                    }
+                    double norm = k1 * (1 - b + b * indexed.length / avgLength);
+                    scores[doc] += (float) (idf * tf * (k1 + 1) / (tf + norm));
+                }
+            }
+
+            // 小顶堆取候选，短语加成前多取一些
+            int candidateCount = phrases.isEmpty() ? topK : topK * 3;
+            PriorityQueue<long[]> heap = new PriorityQueue<>(Comparator.comparingDouble(e -> Double.longBitsToDouble(e[1])));
+            for (int i = 0; i < touchedCount; i++) {
+                int doc = touched[i];
+                double score = scores[doc];
+                scores[doc] = 0;
+                if (heap.size() < candidateCount) {
+                    heap.offer(new long[]{doc, Double.doubleToLongBits(score)});
+                } else if (score > Double.longBitsToDouble(heap.peek()[1])) {
+                    heap.poll();
+                    heap.offer(new long[]{doc, Double.doubleToLongBits(score)});
+                }
+            }
+
+            List<long[]> candidates = new ArrayList<>(heap);
+            if (!phrases.isEmpty()) {
+                applyPhraseBoost(candidates, phrases, phraseBoost);
+            }
+            candidates.sort((x, y) -> Double.compare(Double.longBitsToDouble(y[1]), Double.longBitsToDouble(x[1])));
+
+            List<EmbeddingMatch<TextSegment>> results = new ArrayList<>(Math.min(topK, candidates.size()));
+            for (int i = 0; i < candidates.size() && i < topK; i++) {
+                IndexedDoc doc = docs.get((int) candidates.get(i)[0]);
+                results.add(new EmbeddingMatch<>(Double.longBitsToDouble(candidates.get(i)[1]), doc.id, null, doc.segment));
+            }
+            return results;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 对完整包含查询中文短语（二元组位置连续）的候选文档加分
+     */
+    private void applyPhraseBoost(List<long[]> candidates, List<long[]> phrases, double phraseBoost) {
+        Set<Integer> candidateDocs = new HashSet<>();
+        for (long[] candidate : candidates) {
+            candidateDocs.add((int) candidate[0]);
+        }
+        for (long[] phrase : phrases) {
+            Map<Integer, int[]> first = null;
+            List<Map<Integer, int[]>> rest = new ArrayList<>(phrase.length - 1);
+            boolean missing = false;
+            for (int i = 0; i < phrase.length; i++) {
+                PostingList list = postings.get(phrase[i]);
+                if (list == null) {
+                    missing = true;
+                    break;
+                }
+                Map<Integer, int[]> positions = list.positions(candidateDocs);
+                if (i == 0) {
+                    first = positions;
+                } else {
+                    rest.add(positions);
+                }
+            }
+            if (missing) {
+                continue;
+            }
+            for (long[] candidate : candidates) {
+                int doc = (int) candidate[0];
+                int[] starts = first.get(doc);
+                if (starts != null && containsPhrase(doc, starts, rest)) {
+                    double score = Double.longBitsToDouble(candidate[1]) * (1 + phraseBoost);
+                    candidate[1] = Double.doubleToLongBits(score);
+                }
+            }
+        }
+    }
+
+    private boolean containsPhrase(int doc, int[] starts, List<Map<Integer, int[]>> rest) {
+        for (int start : starts) {
+            boolean matched = true;
+            for (int i = 0; i < rest.size() && matched; i++) {
+                int[] positions = rest.get(i).get(doc);
+                matched = positions != null && Arrays.binarySearch(positions, start + i + 1) >= 0;
+            }
+            if (matched) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 压缩倒排表：docData 依次存放 [文档序号差值, 词频]，posData 依次存放每个文档的位置差值
+     */
+    private static final class PostingList {
+        private byte[] docData = new byte[8];
+        private int docSize;
+        private byte[] posData = new byte[8];
+        private int posSize;
+        private int lastDoc = -1;
+        private int liveDf;
+
+        void append(int doc, IntList positions) {
+            docData = ensure(docData, docSize + 10);
+            docSize = writeVarint(docData, docSize, doc - lastDoc);
+            docSize = writeVarint(docData, docSize, positions.size);
+            posData = ensure(posData, posSize + positions.size * 5);
+            int previous = 0;
+            for (int i = 0; i < positions.size; i++) {
+                posSize = writeVarint(posData, posSize, positions.values[i] - previous);
+                previous = positions.values[i];
+            }
+            lastDoc = doc;
+            liveDf++;
+        }
+
+        /**
+         * 解码指定文档的位置列表
+         */
+        Map<Integer, int[]> positions(Set<Integer> targetDocs) {
+            Map<Integer, int[]> result = new HashMap<>();
+            int[] cursor = new int[1];
+            int[] posCursor = new int[1];
+            int doc = -1;
+            while (cursor[0] < docSize) {
+                doc += readVarint(docData, cursor);
+                int tf = readVarint(docData, cursor);
+                if (targetDocs.contains(doc)) {
+                    int[] positions = new int[tf];
+                    int previous = 0;
+                    for (int i = 0; i < tf; i++) {
+                        previous += readVarint(posData, posCursor);
+                        positions[i] = previous;
+                    }
+                    result.put(doc, positions);
+                } else {
+                    for (int i = 0; i < tf; i++) {
+                        readVarint(posData, posCursor);
+                    }
+                }
+            }
+            return result;
+        }
+
+        private static byte[] ensure(byte[] data, int required) {
+            return required <= data.length ? data : Arrays.copyOf(data, Math.max(required, data.length + (data.length >> 1)));
+        }
+
+        private static int writeVarint(byte[] data, int offset, int value) {
+            while ((value & ~0x7F) != 0) {
+                data[offset++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            data[offset++] = (byte) value;
+            return offset;
+        }
+
+        private static int readVarint(byte[] data, int[] cursor) {
+            int value = 0;
+            int shift = 0;
+            byte current;
+            do {
+                current = data[cursor[0]++];
+                value |= (current & 0x7F) << shift;
+                shift += 7;
+            } while (current < 0);
+            return value;
+        }
+    }
+
+    private static final class IntList {
+        private int[] values = new int[4];
+        private int size;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size << 1);
+            }
+            values[size++] = value;
+        }
+    }
+
+    private static class IndexedDoc {
+        final String id;
+        final TextSegment segment;
+        final int length;
+        final long[] terms;
+
+        IndexedDoc(String id, TextSegment segment, int length, long[] terms) {
+            this.id = id;
+            this.segment = segment;
+            this.length = length;
+            this.terms = terms;
+        }
+    }
+}
@@ -27,6 +27,7 @@ import org.springframework.stereotype.Component;
 
 import javax.annotation.PostConstruct;
 import java.util.*;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
 /**
@@ -44,6 +45,9 @@ public class MilvusEmbeddingStore implements EmbeddingStore<TextSegment> {
     
     @Value("${milvus.vector-dimension:1536}")
     private Integer vectorDimension;
+    
+    @Value("${milvus.iterator-batch-size:500}")
+    private Integer iteratorBatchSize;
 
     public MilvusEmbeddingStore(MilvusLLMUtils milvusUtils) {
         this.milvusUtils = milvusUtils;
@@ -270,6 +274,49 @@ public class MilvusEmbeddingStore implements EmbeddingStore<TextSegment> {
         }
     }
 
+    /**
+     * 流式遍历知识片段
+     * 基于Milvus查询迭代器分批拉取，不返回向量字段
+     * @param tenantId 租户ID（可选）
+     * @param fileId 文件ID（可选）
+     * @param keyword 内容关键词（可选）
+     * @param offset 跳过的行数
+     * @param limit 最多返回的行数，小于等于0表示不限制
+     * @param consumer 行处理器，返回false时提前结束遍历
+     * @return 实际处理的行数
+     * @throws RuntimeException 遍历中途失败
+     */
+    public long scanChunks(String tenantId, String fileId, String keyword, long offset, long limit,
+                           Predicate<Map<String, Object>> consumer) {
+        String filter = milvusUtils.buildChunkFilter(tenantId, fileId, keyword);
+        return milvusUtils.iterateRows(collectionName, MilvusLLMUtils.CHUNK_OUTPUT_FIELDS, filter,
+                iteratorBatchSize, offset, limit, consumer);
+    }
+
+    /**
+     * 统计知识片段数量
+     * @param tenantId 租户ID（可选）
+     * @param fileId 文件ID（可选）
+     * @param keyword 内容关键词（可选）
+     * @return 片段数量，失败返回-1
+     */
+    public long countChunks(String tenantId, String fileId, String keyword) {
+        return milvusUtils.countRows(collectionName, milvusUtils.buildChunkFilter(tenantId, fileId, keyword));
+    }
+
+    /**
+     * 删除某个文件的全部片段
+     * @param tenantId 租户ID（可选）
+     * @param fileId 文件ID
+     * @return 是否删除成功
+     */
+    public boolean deleteChunks(String tenantId, String fileId) {
+        if (fileId == null || fileId.isEmpty()) {
+            throw new IllegalArgumentException("文件ID不能为空");
+        }
+        return milvusUtils.deleteRows(collectionName, milvusUtils.buildChunkFilter(tenantId, fileId, null));
+    }
+
     public void clear() {
         try {
             log.info("开始清空Milvus数据");
@@ -16,11 +16,14 @@
 
 package com.unionhole.zrag.store;
 
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import dev.langchain4j.data.embedding.Embedding;
 import dev.langchain4j.data.segment.TextSegment;
 import dev.langchain4j.store.embedding.EmbeddingMatch;
 import dev.langchain4j.store.embedding.EmbeddingStore;
 import com.unionhole.zrag.util.WeaviateLLMUtils;
+import io.weaviate.client.v1.data.model.WeaviateObject;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
@@ -28,8 +31,12 @@ import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.stereotype.Component;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Weaviate向量存储实现
@@ -40,6 +47,8 @@ import java.util.stream.Collectors;
 @ConditionalOnProperty(name = "vector-store.type", havingValue = "weaviate")
 public class WeaviateEmbeddingStore implements EmbeddingStore<TextSegment> {
 
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
     private final WeaviateLLMUtils weaviateUtils;
     
     @Value("${weaviate.class-name:ZRAGDocument}")
@@ -56,6 +65,17 @@ public class WeaviateEmbeddingStore implements EmbeddingStore<TextSegment> {
     
     @Value("${weaviate.scheme:http}")
     private String scheme;
+    
+    @Value("${weaviate.batch.size:100}")
+    private Integer batchSize;
+    
+    @Value("${weaviate.batch.concurrency:2}")
+    private Integer batchConcurrency;
+    
+    @Value("${weaviate.page-size:500}")
+    private Integer pageSize;
+    
+    private ExecutorService batchExecutor;
 
     public WeaviateEmbeddingStore(@Autowired(required = false) WeaviateLLMUtils weaviateUtils) {
         this.weaviateUtils = weaviateUtils;
@@ -65,11 +85,19 @@ public class WeaviateEmbeddingStore implements EmbeddingStore<TextSegment> {
     public void initialize() {
         if (weaviateUtils != null) {
             createClassIfNotExists();
+            batchExecutor = Executors.newFixedThreadPool(Math.max(1, batchConcurrency));
         } else {
             log.warn("WeaviateLLMUtils 不可用，跳过 Weaviate 初始化");
         }
     }
 
+    @PreDestroy
+    public void shutdown() {
+        if (batchExecutor != null) {
+            batchExecutor.shutdown();
+        }
+    }
+
     @Override
     public String add(Embedding embedding) {
         String id = UUID.randomUUID().toString();
@@ -96,18 +124,8 @@ public class WeaviateEmbeddingStore implements EmbeddingStore<TextSegment> {
         }
         
         try {
-            Map<String, Object> properties = new HashMap<>();
-            properties.put("text", textSegment != null ? textSegment.text() : "");
-            properties.put("metadata", textSegment != null ? textSegment.metadata().asMap() : new HashMap<>());
-            
-            // 转换float[]为Float[]
-            Float[] vector = new Float[embedding.vector().length];
-            for (int i = 0; i < embedding.vector().length; i++) {
-                vector[i] = embedding.vector()[i];
-            }
-            
             // 使用WeaviateUtils添加对象
-            boolean success = weaviateUtils.addObject(className, id, properties, vector);
+            boolean success = weaviateUtils.addObject(className, id, toProperties(textSegment), toVector(embedding));
             if (success) {
                 log.debug("成功添加向量到Weaviate: {}", id);
             } else {
@@ -126,10 +144,48 @@ public class WeaviateEmbeddingStore implements EmbeddingStore<TextSegment> {
 
     @Override
     public List<String> addAll(List<Embedding> embeddings, List<TextSegment> textSegments) {
-        List<String> ids = new ArrayList<>();
+        if (weaviateUtils == null) {
+            log.warn("WeaviateLLMUtils 不可用，无法添加向量");
+            return Collections.emptyList();
+        }
+        
+        List<String> ids = new ArrayList<>(embeddings.size());
+        List<WeaviateObject> objects = new ArrayList<>(embeddings.size());
         for (int i = 0; i < embeddings.size(); i++) {
+            String id = UUID.randomUUID().toString();
             TextSegment textSegment = i < textSegments.size() ? textSegments.get(i) : null;
-            ids.add(add(embeddings.get(i), textSegment));
+            ids.add(id);
+            objects.add(WeaviateObject.builder()
+                    .className(className)
+                    .id(id)
+                    .properties(toProperties(textSegment))
+                    .vector(toVector(embeddings.get(i)))
+                    .build());
+        }
+        
+        // 按批次大小切分，并发提交到Weaviate批量导入API
+        int size = Math.max(1, batchSize);
+        List<Future<Integer>> futures = new ArrayList<>();
+        for (int from = 0; from < objects.size(); from += size) {
+            List<WeaviateObject> batch = objects.subList(from, Math.min(from + size, objects.size()));
+            futures.add(batchExecutor.submit(() -> weaviateUtils.batchAddObjects(batch)));
+        }
+        
+        int successCount = 0;
+        try {
+            for (Future<Integer> future : futures) {
+                successCount += future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("批量添加向量被中断", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("批量添加向量失败: " + e.getCause().getMessage(), e.getCause());
+        }
+        
+        log.info("批量添加向量到Weaviate完成: {}/{}, 批次数: {}", successCount, objects.size(), futures.size());
+        if (successCount < objects.size()) {
+            throw new RuntimeException(String.format("批量添加向量失败: %d/%d 条写入成功", successCount, objects.size()));
         }
         return ids;
     }
@@ -149,47 +205,38 @@ public class WeaviateEmbeddingStore implements EmbeddingStore<TextSegment> {
         try {
             log.info("执行Weaviate向量查询，maxResults: {}, minScore: {}", maxResults, minScore);
             
-            // 使用WeaviateLLMUtils查询对象
-            List<io.weaviate.client.v1.data.model.WeaviateObject> objects = weaviateUtils.queryObjects(className, maxResults);
+            // 余弦距离 distance = 1 - cosine，将minScore映射为服务端距离阈值
+            Double maxDistance = minScore > 0.0 ? 1.0 - minScore : null;
+            List<Map<String, Object>> results = weaviateUtils.searchNearVector(
+                    className, referenceEmbedding.vector(), maxResults, maxDistance);
             
             List<EmbeddingMatch<TextSegment>> matches = new ArrayList<>();
-            
-            if (objects != null) {
-                for (io.weaviate.client.v1.data.model.WeaviateObject obj : objects) {
-                    try {
-                        Map<String, Object> properties = obj.getProperties();
-                        Float[] objVector = obj.getVector();
-                        
-                        if (objVector != null && properties != null) {
-                            // 计算相似度分数
-                            double similarity = calculateCosineSimilarity(referenceEmbedding.vector(), objVector);
-                            
-                            if (similarity >= minScore) {
-                                String text = (String) properties.get("text");
-                                Map<String, Object> metadata = (Map<String, Object>) properties.get("metadata");
-                                
-                                TextSegment textSegment = TextSegment.from(text, 
-                                    dev.langchain4j.data.document.Metadata.from(metadata != null ? metadata : new HashMap<>()));
-                                
-                                Embedding embedding = new Embedding(new float[vectorDimension]);
-                                EmbeddingMatch<TextSegment> match = new EmbeddingMatch<>(similarity, obj.getId(), embedding, textSegment);
-                                matches.add(match);
-                            }
-                        }
-                    } catch (Exception e) {
-                        log.warn("处理Weaviate对象失败", e);
+            for (Map<String, Object> result : results) {
+                try {
+                    Double distance = (Double) result.get("distance");
+                    double similarity = distance != null ? 1.0 - distance : 0.0;
+                    if (similarity < minScore) {
+                        continue;
                     }
+                    
+                    String text = (String) result.get("text");
+                    
+                    TextSegment textSegment = TextSegment.from(text != null ? text : "", 
+                        dev.langchain4j.data.document.Metadata.from(parseMetadata(result.get("metadata"))));
+                    
+                    Embedding embedding = new Embedding(new float[vectorDimension]);
+                    matches.add(new EmbeddingMatch<>(similarity, (String) result.get("id"), embedding, textSegment));
+                } catch (Exception e) {
+                    log.warn("处理Weaviate搜索结果失败", e);
                 }
             }
             
-            // 按相似度排序
-            matches.sort((a, b) -> Double.compare(b.score(), a.score()));
-            
-            return matches.stream().limit(maxResults).collect(Collectors.toList());
+            log.info("Weaviate向量查询完成，返回 {} 个结果", matches.size());
+            return matches;
 
         } catch (Exception e) {
             log.error("Weaviate查询失败", e);
-            return Collections.emptyList();
+            throw new RuntimeException("Weaviate查询失败: " + e.getMessage(), e);
         }
     }
 
@@ -200,36 +247,38 @@ public class WeaviateEmbeddingStore implements EmbeddingStore<TextSegment> {
         }
         
         try {
-            log.info("执行Weaviate findAll查询");
-            
-            // 使用WeaviateLLMUtils查询所有对象
-            List<io.weaviate.client.v1.data.model.WeaviateObject> objects = weaviateUtils.queryObjects(className, 10000);
+            log.info("执行Weaviate findAll查询，分页大小: {}", pageSize);
             
+            // 使用after游标逐页遍历，避免单次超大响应
             List<TextSegment> textSegments = new ArrayList<>();
-            
-            if (objects != null) {
-                for (io.weaviate.client.v1.data.model.WeaviateObject obj : objects) {
+            String afterId = null;
+            while (true) {
+                List<WeaviateObject> page = weaviateUtils.listObjects(className, pageSize, afterId);
+                for (WeaviateObject obj : page) {
                     try {
                         Map<String, Object> properties = obj.getProperties();
                         if (properties != null) {
                             String text = (String) properties.get("text");
-                            Map<String, Object> metadata = (Map<String, Object>) properties.get("metadata");
                             
                             TextSegment textSegment = TextSegment.from(text, 
-                                dev.langchain4j.data.document.Metadata.from(metadata != null ? metadata : new HashMap<>()));
+                                dev.langchain4j.data.document.Metadata.from(parseMetadata(properties.get("metadata"))));
                             textSegments.add(textSegment);
                         }
                     } catch (Exception e) {
                         log.warn("处理Weaviate对象失败", e);
                     }
                 }
+                if (page.size() < pageSize) {
+                    break;
+                }
+                afterId = page.get(page.size() - 1).getId();
             }
             
             return textSegments;
 
         } catch (Exception e) {
             log.error("Weaviate查询所有数据失败", e);
-            return Collections.emptyList();
+            throw new RuntimeException("Weaviate查询所有数据失败: " + e.getMessage(), e);
         }
     }
 
@@ -242,20 +291,13 @@ public class WeaviateEmbeddingStore implements EmbeddingStore<TextSegment> {
         try {
             log.info("开始清空Weaviate数据");
             
-            // 先获取所有对象
-            List<io.weaviate.client.v1.data.model.WeaviateObject> objects = weaviateUtils.queryObjects(className, 10000);
-            
-            if (objects != null) {
-                // 删除每个对象
-                for (io.weaviate.client.v1.data.model.WeaviateObject obj : objects) {
-                    String objectId = obj.getId();
-                    if (objectId != null) {
-                        weaviateUtils.deleteObject(className, objectId);
-                    }
-                }
+            // 按过滤条件批量删除，无需先拉取对象列表
+            long deleted = weaviateUtils.deleteAllObjects(className);
+            if (deleted < 0) {
+                throw new RuntimeException("批量删除对象失败");
             }
             
-            log.info("成功清空Weaviate数据");
+            log.info("成功清空Weaviate数据，删除 {} 条", deleted);
         } catch (Exception e) {
             log.error("清空Weaviate数据失败", e);
             throw new RuntimeException("清空数据失败: " + e.getMessage(), e);
@@ -271,6 +313,11 @@ public class WeaviateEmbeddingStore implements EmbeddingStore<TextSegment> {
                 createClass();
             } else {
                 log.info("Weaviate类已存在: {}", className);
+                String metadataType = weaviateUtils.getPropertyDataType(className, "metadata");
+                if (metadataType != null && !"text".equals(metadataType)) {
+                    log.error("Weaviate类 {} 的metadata属性类型为 {}，当前版本按JSON文本存储元数据，请导出数据后删除并重建该类",
+                            className, metadataType);
+                }
             }
         } catch (Exception e) {
             log.error("检查Weaviate类存在性失败", e);
@@ -291,29 +338,46 @@ public class WeaviateEmbeddingStore implements EmbeddingStore<TextSegment> {
         }
     }
 
+    private Map<String, Object> toProperties(TextSegment textSegment) {
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("text", textSegment != null ? textSegment.text() : "");
+        properties.put("metadata", toMetadataJson(textSegment != null ? textSegment.metadata().asMap() : new HashMap<>()));
+        return properties;
+    }
+
+    private String toMetadataJson(Map<String, ?> metadata) {
+        try {
+            return OBJECT_MAPPER.writeValueAsString(metadata);
+        } catch (Exception e) {
+            throw new IllegalArgumentException("元数据序列化失败: " + e.getMessage(), e);
+        }
+    }
+
     /**
-     * 计算余弦相似度
+     * 解析元数据，兼容JSON文本和对象两种返回形式
      */
-    private double calculateCosineSimilarity(float[] vector1, Float[] vector2) {
-        if (vector1.length != vector2.length) {
-            return 0.0;
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> parseMetadata(Object value) {
+        if (value instanceof Map) {
+            return (Map<String, Object>) value;
         }
-
-        double dotProduct = 0.0;
-        double norm1 = 0.0;
-        double norm2 = 0.0;
-
-        for (int i = 0; i < vector1.length; i++) {
-            dotProduct += vector1[i] * vector2[i];
-            norm1 += vector1[i] * vector1[i];
-            norm2 += vector2[i] * vector2[i];
+        if (value instanceof String && !((String) value).isEmpty()) {
+            try {
+                return OBJECT_MAPPER.readValue((String) value, new TypeReference<Map<String, Object>>() {});
+            } catch (Exception e) {
+                log.warn("解析Weaviate元数据失败: {}", e.getMessage());
+            }
         }
+        return new HashMap<>();
+    }
 
-        if (norm1 == 0.0 || norm2 == 0.0) {
-            return 0.0;
+    private Float[] toVector(Embedding embedding) {
+        float[] source = embedding.vector();
+        Float[] vector = new Float[source.length];
+        for (int i = 0; i < source.length; i++) {
+            vector[i] = source[i];
         }
-
-        return dotProduct / (Math.sqrt(norm1) * Math.sqrt(norm2));
+        return vector;
     }
 
 }
@@ -0,0 +1,51 @@
+package com.unionhole.zrag.util;
+
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+/**
+ * 可取消的SSE发射器
+ * 客户端断开、超时或出错后标记为已取消，后续发送会抛出 CancellationException 以中止下游调用；
+ * 重复调用 complete 时忽略；由服务端主动结束的发射器记为已完成，其完成回调不应再当作取消处理
+ */
+public class CancellableSseEmitter extends SseEmitter {
+
+    private volatile boolean cancelled;
+    private volatile boolean completed;
+
+    public CancellableSseEmitter(Long timeout) {
+        super(timeout);
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * 是否已由服务端调用 complete 或 completeWithError 结束
+     */
+    public boolean isCompleted() {
+        return completed;
+    }
+
+    public void cancel() {
+        cancelled = true;
+    }
+
+    @Override
+    public synchronized void complete() {
+        if (completed) {
+            return;
+        }
+        completed = true;
+        super.complete();
+    }
+
+    @Override
+    public synchronized void completeWithError(Throwable ex) {
+        if (completed) {
+            return;
+        }
+        completed = true;
+        super.completeWithError(ex);
+    }
+}
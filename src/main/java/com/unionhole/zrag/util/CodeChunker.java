@@ -0,0 +1,540 @@
+package com.unionhole.zrag.util;
+
+import dev.langchain4j.data.document.Document;
+import dev.langchain4j.data.document.DocumentSplitter;
+import dev.langchain4j.data.document.Metadata;
+import dev.langchain4j.data.segment.TextSegment;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 按代码结构分割的分割器
+ * 按语言用轻量规则识别类、函数、方法（Markdown按标题、SQL按语句、YAML按顶层键）的起始行，
+ * 声明前的注释、注解、装饰器归入该声明；相邻的声明单元合并到块大小为止，单元之间不重叠，
+ * 只有超过块大小的单元才用 {@link RecursiveTextSplitter} 按行继续切分并保留少量重叠。
+ * 每个片段的元数据记录语言、符号名和起止行号
+ */
+public class CodeChunker implements DocumentSplitter {
+
+    /** 写入片段元数据的字段 */
+    public static final String[] METADATA_KEYS = {"language", "symbol", "symbols", "start_line", "end_line"};
+
+    /** 一个片段最多记录的符号数 */
+    private static final int MAX_SYMBOLS = 8;
+    /** 花括号语言中识别声明的最大嵌套深度（命名空间 → 类 → 方法） */
+    private static final int MAX_DECLARATION_DEPTH = 2;
+
+    private static final Pattern TYPE_DECLARATION = Pattern.compile(
+            "\\b(?:class|interface|enum|record|struct|trait|object|impl|namespace|module|protocol|extension)\\s+([A-Za-z_$][\\w$]*)");
+    private static final Pattern GO_TYPE = Pattern.compile("^type\\s+([A-Za-z_]\\w*)\\s+(?:struct|interface)\\b");
+    private static final Pattern LEADING_MODIFIERS = Pattern.compile(
+            "^(?:(?:public|private|protected|internal|static|final|abstract|async|export|default|override|open|suspend|inline|pub(?:\\([^)]*\\))?|unsafe|extern|const)\\s+)*");
+    private static final Pattern KEYWORD_FUNCTION = Pattern.compile(
+            "\\b(?:func|fn|function|fun|def)\\s*\\*?\\s*(?:\\([^)]*\\)\\s*)?(?:<[^>]*>\\s*)?(?:[A-Za-z_$][\\w$]*\\.)?([A-Za-z_$][\\w$]*)");
+    private static final Pattern ARROW_FUNCTION = Pattern.compile(
+            "^(?:export\\s+)?(?:const|let|var)\\s+([A-Za-z_$][\\w$]*)\\s*=\\s*(?:async\\s*)?(?:function\\b|\\([^)]*\\)\\s*=>|[A-Za-z_$][\\w$]*\\s*=>)");
+    private static final Pattern C_LIKE_FUNCTION = Pattern.compile(
+            "^[\\w$<>\\[\\],.?*&:~\\s]*?([A-Za-z_~][\\w$]*)\\s*\\([^;]*$");
+    private static final Pattern PYTHON_DECLARATION = Pattern.compile("^(\\s*)(?:async\\s+def|def|class)\\s+([A-Za-z_]\\w*)");
+    private static final Pattern RUBY_DECLARATION = Pattern.compile("^(\\s*)(?:def|class|module)\\s+(?:self\\.)?([A-Za-z_][\\w:?!=]*)");
+    private static final Pattern MARKDOWN_HEADING = Pattern.compile("^#{1,6}\\s+(.+?)\\s*#*\\s*$");
+    private static final Pattern SQL_OBJECT = Pattern.compile(
+            "^(?i)(?:create|alter|drop)\\s+(?:or\\s+replace\\s+)?(?:\\w+\\s+)*?(?:table|view|function|procedure|index|trigger|sequence|type)\\s+(?:if\\s+(?:not\\s+)?exists\\s+)?([\\w.\"`]+)");
+    private static final Pattern SQL_STATEMENT = Pattern.compile(
+            "^(?i)(?:create|alter|drop|insert|update|delete|select|with|grant|revoke|begin|truncate|merge)\\b");
+    private static final Pattern YAML_KEY = Pattern.compile("^([A-Za-z_][\\w.-]*):");
+
+    private static final Set<String> CONTROL_KEYWORDS = new HashSet<>(Arrays.asList(
+            "if", "for", "while", "switch", "catch", "return", "else", "new", "throw", "do", "try",
+            "synchronized", "case", "when", "foreach", "using", "lock", "await", "sizeof", "elif", "assert", "super", "this"));
+
+    /**
+     * 按结构分割的语言类别
+     */
+    public enum Language {
+        BRACE, PYTHON, RUBY, MARKDOWN, SQL, YAML, PLAIN
+    }
+
+    private final int maxSize;
+    private final RecursiveTextSplitter.SizeEstimator estimator;
+    private final RecursiveTextSplitter fallbackSplitter;
+
+    /**
+     * 声明单元：从声明（含前置注释）开始到下一个声明之前
+     */
+    private static class Unit {
+        private final int start;
+        private final int end;
+        private final String symbol;
+        private int size;
+
+        Unit(int start, int end, String symbol) {
+            this.start = start;
+            this.end = end;
+            this.symbol = symbol;
+        }
+    }
+
+    /**
+     * @param maxChars 块大小（字符数）
+     * @param overlapChars 超长单元内部切分时的重叠字符数
+     */
+    public CodeChunker(int maxChars, int overlapChars) {
+        this(maxChars, overlapChars, RecursiveTextSplitter.CHARACTERS);
+    }
+
+    /**
+     * @param maxSize 块大小
+     * @param overlapSize 超长单元内部切分时的重叠大小
+     * @param estimator 块大小的计量方式
+     */
+    public CodeChunker(int maxSize, int overlapSize, RecursiveTextSplitter.SizeEstimator estimator) {
+        this.maxSize = maxSize;
+        this.estimator = estimator;
+        this.fallbackSplitter = new RecursiveTextSplitter(maxSize, overlapSize, estimator);
+    }
+
+    /**
+     * 按文件名确定语言的分割器
+     * @param fileName 文件名
+     * @return 分割器
+     */
+    public DocumentSplitter forFile(String fileName) {
+        return new LanguageCodeChunker(languageOf(fileName));
+    }
+
+    /**
+     * 绑定语言的代码分割器
+     */
+    private class LanguageCodeChunker implements DocumentSplitter {
+        private final Language language;
+
+        LanguageCodeChunker(Language language) {
+            this.language = language;
+        }
+
+        @Override
+        public List<TextSegment> split(Document document) {
+            return CodeChunker.this.split(document, language);
+        }
+    }
+
+    /**
+     * 分割文档，语言按元数据中的 file_name 判断，没有时按花括号语言处理
+     */
+    @Override
+    public List<TextSegment> split(Document document) {
+        String fileName = document.metadata().get("file_name");
+        return split(document, fileName != null ? languageOf(fileName) : Language.BRACE);
+    }
+
+    /**
+     * 按指定语言分割文档
+     * @param document 文档
+     * @param language 语言
+     * @return 片段
+     */
+    public List<TextSegment> split(Document document, Language language) {
+        String text = document.text();
+        List<TextSegment> segments = new ArrayList<>();
+        if (text == null || text.trim().isEmpty()) {
+            return segments;
+        }
+        int[] lineStarts = lineStarts(text);
+        List<Unit> units = units(text, lineStarts, language);
+        for (Unit unit : units) {
+            unit.size = estimator.size(text, unit.start, unit.end);
+        }
+
+        int i = 0;
+        while (i < units.size()) {
+            Unit first = units.get(i);
+            if (first.size > maxSize) {
+                // 超长单元按行切分，每个片段都标记所属符号
+                for (RecursiveTextSplitter.TextSpan span : fallbackSplitter.splitSpans(
+                        new RecursiveTextSplitter.TextSpan(text, first.start, first.end))) {
+                    int start = first.start + span.getStart();
+                    int end = first.start + span.getEnd();
+                    addSegment(document, text, lineStarts, language, start, end,
+                            first.symbol == null ? new LinkedHashSet<>() : new LinkedHashSet<>(Arrays.asList(first.symbol)), segments);
+                }
+                i++;
+                continue;
+            }
+            int j = i;
+            long size = 0;
+            Set<String> symbols = new LinkedHashSet<>();
+            while (j < units.size() && units.get(j).size <= maxSize && size + units.get(j).size <= maxSize) {
+                size += units.get(j).size;
+                if (units.get(j).symbol != null && symbols.size() < MAX_SYMBOLS) {
+                    symbols.add(units.get(j).symbol);
+                }
+                j++;
+            }
+            addSegment(document, text, lineStarts, language, first.start, units.get(j - 1).end, symbols, segments);
+            i = j;
+        }
+        return segments;
+    }
+
+    /**
+     * 按文件扩展名判断语言
+     * @param fileName 文件名
+     * @return 语言
+     */
+    public static Language languageOf(String fileName) {
+        if (fileName == null) {
+            return Language.PLAIN;
+        }
+        String lower = fileName.toLowerCase();
+        String extension = lower.contains(".") ? lower.substring(lower.lastIndexOf('.') + 1) : "";
+        switch (extension) {
+            case "py":
+                return Language.PYTHON;
+            case "rb":
+                return Language.RUBY;
+            case "md":
+            case "markdown":
+                return Language.MARKDOWN;
+            case "sql":
+                return Language.SQL;
+            case "yml":
+            case "yaml":
+                return Language.YAML;
+            case "java":
+            case "js":
+            case "jsx":
+            case "ts":
+            case "tsx":
+            case "c":
+            case "cc":
+            case "cpp":
+            case "h":
+            case "hpp":
+            case "cs":
+            case "go":
+            case "rs":
+            case "php":
+            case "swift":
+            case "kt":
+            case "kts":
+            case "scala":
+            case "groovy":
+            case "dart":
+            case "sh":
+                return Language.BRACE;
+            default:
+                return Language.PLAIN;
+        }
+    }
+
+    private void addSegment(Document document, String text, int[] lineStarts, Language language,
+                            int start, int end, Set<String> symbols, List<TextSegment> segments) {
+        while (start < end && Character.isWhitespace(text.charAt(start))) {
+            start++;
+        }
+        while (end > start && Character.isWhitespace(text.charAt(end - 1))) {
+            end--;
+        }
+        if (start >= end) {
+            return;
+        }
+        Metadata metadata = document.metadata().copy()
+                .add("index", String.valueOf(segments.size()))
+                .add("language", language.name().toLowerCase())
+                .add("start_line", String.valueOf(lineOf(lineStarts, start)))
+                .add("end_line", String.valueOf(lineOf(lineStarts, end - 1)));
+        if (!symbols.isEmpty()) {
+            metadata.add("symbol", symbols.iterator().next());
+            metadata.add("symbols", String.join(",", symbols));
+        }
+        segments.add(TextSegment.from(text.substring(start, end), metadata));
+    }
+
+    /**
+     * 把文本划分为声明单元，第一个声明之前的内容（包声明、导入等）作为没有符号的单元
+     */
+    private List<Unit> units(String text, int[] lineStarts, Language language) {
+        int lineCount = lineStarts.length;
+        int[] boundaryLines = new int[lineCount];
+        String[] boundarySymbols = new String[lineCount];
+        int boundaries = detectBoundaries(text, lineStarts, language, boundaryLines, boundarySymbols);
+
+        List<Unit> units = new ArrayList<>();
+        int previousStart = 0;
+        String previousSymbol = null;
+        int previousLine = -1;
+        for (int b = 0; b < boundaries; b++) {
+            int line = attachLeadingComments(text, lineStarts, boundaryLines[b], previousLine, language);
+            int start = lineStarts[line];
+            if (start > previousStart) {
+                units.add(new Unit(previousStart, start, previousSymbol));
+            }
+            previousStart = Math.max(previousStart, start);
+            previousSymbol = boundarySymbols[b];
+            previousLine = boundaryLines[b];
+        }
+        if (previousStart < text.length()) {
+            units.add(new Unit(previousStart, text.length(), previousSymbol));
+        }
+        return units;
+    }
+
+    /**
+     * 识别声明起始行，返回数量
+     */
+    private int detectBoundaries(String text, int[] lineStarts, Language language, int[] lines, String[] symbols) {
+        int count = 0;
+        int depth = 0;
+        boolean inBlockComment = false;
+        boolean inFence = false;
+        String[] containers = new String[MAX_DECLARATION_DEPTH + 2];
+        String pythonClass = null;
+        boolean previousStatementEnded = true;
+
+        for (int line = 0; line < lineStarts.length; line++) {
+            int start = lineStarts[line];
+            int end = line + 1 < lineStarts.length ? lineStarts[line + 1] : text.length();
+            String content = text.substring(start, end).replaceAll("[\\r\\n]+$", "");
+            String trimmed = content.trim();
+            if (trimmed.isEmpty()) {
+                continue;
+            }
+            String symbol = null;
+            switch (language) {
+                case BRACE:
+                    if (!inBlockComment && depth <= MAX_DECLARATION_DEPTH) {
+                        for (int d = depth; d < containers.length; d++) {
+                            containers[d] = null;
+                        }
+                    }
+                    // 只在顶层和类型体内识别声明，函数体内的语句不作为边界
+                    if (!inBlockComment && depth <= MAX_DECLARATION_DEPTH && (depth == 0 || containers[depth - 1] != null)) {
+                        String typeName = isCommentLine(trimmed) || trimmed.endsWith(";") ? null : typeName(trimmed);
+                        if (typeName != null) {
+                            symbol = qualify(containers, depth, typeName);
+                            containers[depth] = typeName;
+                        } else {
+                            String name = functionName(trimmed);
+                            if (name != null) {
+                                symbol = qualify(containers, depth, name);
+                            }
+                        }
+                    }
+                    int[] state = scanBraces(content, depth, inBlockComment);
+                    depth = state[0];
+                    inBlockComment = state[1] == 1;
+                    break;
+                case PYTHON:
+                case RUBY:
+                    Matcher declaration = (language == Language.PYTHON ? PYTHON_DECLARATION : RUBY_DECLARATION).matcher(content);
+                    if (declaration.find()) {
+                        int indent = declaration.group(1).replace("\t", "    ").length();
+                        String name = declaration.group(2);
+                        if (indent == 0) {
+                            symbol = name;
+                            pythonClass = trimmed.startsWith("class ") || trimmed.startsWith("module ") ? name : null;
+                        } else if (indent <= 4) {
+                            symbol = pythonClass != null ? pythonClass + "." + name : name;
+                        }
+                    } else if (!Character.isWhitespace(content.charAt(0)) && !trimmed.startsWith("#") && !trimmed.startsWith("@")) {
+                        pythonClass = null;
+                    }
+                    break;
+                case MARKDOWN:
+                    if (trimmed.startsWith("```") || trimmed.startsWith("~~~")) {
+                        inFence = !inFence;
+                    } else if (!inFence) {
+                        Matcher heading = MARKDOWN_HEADING.matcher(content);
+                        if (heading.find()) {
+                            symbol = heading.group(1);
+                        }
+                    }
+                    break;
+                case SQL:
+                    if (previousStatementEnded && SQL_STATEMENT.matcher(trimmed).find()) {
+                        Matcher object = SQL_OBJECT.matcher(trimmed);
+                        symbol = object.find() ? object.group(1).replaceAll("[\"`]", "") : trimmed.split("\\s+")[0].toUpperCase();
+                    }
+                    if (!trimmed.startsWith("--")) {
+                        previousStatementEnded = trimmed.endsWith(";");
+                    }
+                    break;
+                case YAML:
+                    Matcher key = YAML_KEY.matcher(content);
+                    if (key.find()) {
+                        symbol = key.group(1);
+                    }
+                    break;
+                default:
+                    break;
+            }
+            if (symbol != null) {
+                lines[count] = line;
+                symbols[count] = symbol;
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 识别类型声明（类、接口、结构体等），返回类型名
+     */
+    private String typeName(String trimmed) {
+        Matcher matcher = GO_TYPE.matcher(trimmed);
+        if (matcher.find()) {
+            return matcher.group(1);
+        }
+        matcher = TYPE_DECLARATION.matcher(trimmed);
+        return matcher.find() ? matcher.group(1) : null;
+    }
+
+    /**
+     * 识别花括号语言中的函数或方法声明，返回函数名
+     */
+    private String functionName(String trimmed) {
+        if (isCommentLine(trimmed) || trimmed.startsWith("}") || trimmed.startsWith(".") || trimmed.startsWith(")")) {
+            return null;
+        }
+        Matcher matcher = KEYWORD_FUNCTION.matcher(trimmed);
+        if (matcher.find() && matcher.start() == leadingModifiersEnd(trimmed)) {
+            return matcher.group(1);
+        }
+        matcher = ARROW_FUNCTION.matcher(trimmed);
+        if (matcher.find()) {
+            return matcher.group(1);
+        }
+        matcher = C_LIKE_FUNCTION.matcher(trimmed);
+        if (matcher.find()) {
+            String name = matcher.group(1);
+            String firstWord = trimmed.split("[\\s(]", 2)[0];
+            int paren = trimmed.indexOf('(');
+            int assign = trimmed.indexOf('=');
+            if (CONTROL_KEYWORDS.contains(name) || CONTROL_KEYWORDS.contains(firstWord)
+                    || (assign >= 0 && assign < paren) || !name.matches(".*[A-Za-z].*")) {
+                return null;
+            }
+            return name;
+        }
+        return null;
+    }
+
+    /**
+     * 跳过行首的修饰符（public、static、async、export 等），函数关键字必须紧随其后
+     */
+    private int leadingModifiersEnd(String trimmed) {
+        Matcher matcher = LEADING_MODIFIERS.matcher(trimmed);
+        return matcher.find() ? matcher.end() : 0;
+    }
+
+    private String qualify(String[] containers, int depth, String name) {
+        StringBuilder qualified = new StringBuilder();
+        for (int d = 0; d < depth && d < containers.length; d++) {
+            if (containers[d] != null) {
+                qualified.append(containers[d]).append('.');
+            }
+        }
+        return qualified.append(name).toString();
+    }
+
+    /**
+     * 统计一行中的花括号，跳过字符串和注释，返回 {新的深度, 是否仍在块注释中}
+     */
+    private int[] scanBraces(String line, int depth, boolean inBlockComment) {
+        int length = line.length();
+        for (int i = 0; i < length; i++) {
+            char c = line.charAt(i);
+            char next = i + 1 < length ? line.charAt(i + 1) : 0;
+            if (inBlockComment) {
+                if (c == '*' && next == '/') {
+                    inBlockComment = false;
+                    i++;
+                }
+                continue;
+            }
+            if (c == '/' && next == '/') {
+                break;
+            }
+            if (c == '/' && next == '*') {
+                inBlockComment = true;
+                i++;
+                continue;
+            }
+            if (c == '"' || c == '\'' || c == '`') {
+                // 同一行内找不到结束引号时不当作字符串（如Rust生命周期 'a）
+                int close = i + 1;
+                while (close < length && line.charAt(close) != c) {
+                    close += line.charAt(close) == '\\' ? 2 : 1;
+                }
+                if (close < length) {
+                    i = close;
+                }
+                continue;
+            }
+            if (c == '{') {
+                depth++;
+            } else if (c == '}') {
+                depth = Math.max(0, depth - 1);
+            }
+        }
+        return new int[]{depth, inBlockComment ? 1 : 0};
+    }
+
+    /**
+     * 声明前紧邻的注释、注解、装饰器行归入该声明
+     */
+    private int attachLeadingComments(String text, int[] lineStarts, int line, int previousBoundaryLine, Language language) {
+        if (language == Language.MARKDOWN || language == Language.YAML) {
+            return line;
+        }
+        int start = line;
+        while (start - 1 > previousBoundaryLine) {
+            int from = lineStarts[start - 1];
+            int to = lineStarts[start];
+            String previous = text.substring(from, to).trim();
+            if (previous.isEmpty() || !(isCommentLine(previous) || previous.startsWith("@") || previous.startsWith("#["))) {
+                break;
+            }
+            start--;
+        }
+        return start;
+    }
+
+    private static boolean isCommentLine(String trimmed) {
+        return trimmed.startsWith("//") || trimmed.startsWith("/*") || trimmed.startsWith("*")
+                || trimmed.startsWith("#") || trimmed.startsWith("--");
+    }
+
+    private static int[] lineStarts(String text) {
+        int count = 1;
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) == '\n') {
+                count++;
+            }
+        }
+        int[] starts = new int[count];
+        int line = 1;
+        for (int i = 0; i < text.length() && line < count; i++) {
+            if (text.charAt(i) == '\n') {
+                starts[line++] = i + 1;
+            }
+        }
+        return starts;
+    }
+
+    /**
+     * 偏移所在的行号（从1开始）
+     */
+    private static int lineOf(int[] lineStarts, int offset) {
+        int index = Arrays.binarySearch(lineStarts, offset);
+        return (index >= 0 ? index : -index - 2) + 1;
+    }
+}
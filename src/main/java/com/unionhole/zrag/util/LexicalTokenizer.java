@@ -0,0 +1,308 @@
+/*
+ * Copyright 2025 james-zou
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.unionhole.zrag.util;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.BufferedReader;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 词法检索分词工具类
+ * 中文按二元组（bigram）切分并叠加词典最长匹配；英文/数字按连续字符切分并转小写，保留产品编码、股票代码、条款编号等复合词。
+ * 词项直接编码为 long 型ID（二元组按字符打包，其余按 FNV-1a 哈希），分词过程不创建字符串
+ */
+@Slf4j
+@Component
+public class LexicalTokenizer {
+
+    /**
+     * 词项回调，position 为词项在原文中的起始字符偏移
+     */
+    public interface TermSink {
+        void accept(long term, int position);
+    }
+
+    private static final long BIGRAM = 1L << 32;
+    private static final long UNIGRAM = 2L << 32;
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    private static final String BUILTIN_DICTIONARY = "lexicon/zh_dict.txt";
+
+    @Value("${hybrid.dictionary-path:}")
+    private String dictionaryPath;
+
+    private volatile LongSet dictionary = new LongSet(16);
+    private volatile int maxWordLength = 0;
+
+    @PostConstruct
+    public void init() {
+        LongSet words = new LongSet(1024);
+        int[] maxLength = {0};
+        try {
+            ClassPathResource builtin = new ClassPathResource(BUILTIN_DICTIONARY);
+            if (builtin.exists()) {
+                try (InputStream in = builtin.getInputStream()) {
+                    loadWords(in, words, maxLength);
+                }
+            }
+            if (dictionaryPath != null && !dictionaryPath.trim().isEmpty()) {
+                Path path = Paths.get(dictionaryPath.trim());
+                try (InputStream in = Files.newInputStream(path)) {
+                    loadWords(in, words, maxLength);
+                }
+            }
+            log.info("中文词典加载完成，词条数: {}, 最大词长: {}", words.size(), maxLength[0]);
+        } catch (Exception e) {
+            log.warn("加载中文词典失败，仅使用二元组切分: {}", e.getMessage());
+        }
+        this.dictionary = words;
+        this.maxWordLength = maxLength[0];
+    }
+
+    private void loadWords(InputStream in, LongSet words, int[] maxLength) throws Exception {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String word = line.trim();
+                // 二字词与二元组重合，无需重复收录
+                if (word.length() < 3 || word.startsWith("#")) {
+                    continue;
+                }
+                words.add(hash(word, 0, word.length()));
+                maxLength[0] = Math.max(maxLength[0], word.length());
+            }
+        }
+    }
+
+    /**
+     * 分词
+     * @param text 文本
+     * @param sink 词项回调
+     * @return 输出的词项数量
+     */
+    public int tokenize(CharSequence text, TermSink sink) {
+        if (text == null) {
+            return 0;
+        }
+        int count = 0;
+        int length = text.length();
+        int i = 0;
+        while (i < length) {
+            char c = text.charAt(i);
+            if (isCjk(c)) {
+                int end = i + 1;
+                while (end < length && isCjk(text.charAt(end))) {
+                    end++;
+                }
+                count += tokenizeCjkRun(text, i, end, sink);
+                i = end;
+            } else if (isWordChar(c)) {
+                int end = i + 1;
+                boolean compound = false;
+                while (end < length) {
+                    char ch = text.charAt(end);
+                    if (isWordChar(ch)) {
+                        end++;
+                    } else if (isConnector(ch) && end + 1 < length && isWordChar(text.charAt(end + 1))) {
+                        // 连接符两侧都是字母数字时视为复合词，如 ABC-123、600519.SH、12.3
+                        compound = true;
+                        end++;
+                    } else {
+                        break;
+                    }
+                }
+                sink.accept(hash(text, i, end), i);
+                count++;
+                if (compound) {
+                    // 复合词同时输出各组成部分，便于部分匹配
+                    int start = i;
+                    for (int p = i; p <= end; p++) {
+                        if (p == end || isConnector(text.charAt(p))) {
+                            if (p > start) {
+                                sink.accept(hash(text, start, p), start);
+                                count++;
+                            }
+                            start = p + 1;
+                        }
+                    }
+                }
+                i = end;
+            } else {
+                i++;
+            }
+        }
+        return count;
+    }
+
+    private int tokenizeCjkRun(CharSequence text, int start, int end, TermSink sink) {
+        if (end - start == 1) {
+            sink.accept(UNIGRAM | text.charAt(start), start);
+            return 1;
+        }
+        int count = 0;
+        LongSet words = dictionary;
+        int maxLength = maxWordLength;
+        for (int p = start; p < end - 1; p++) {
+            sink.accept(BIGRAM | ((long) text.charAt(p) << 16) | text.charAt(p + 1), p);
+            count++;
+            if (maxLength >= 3) {
+                // 从当前位置做词典最长匹配，哈希增量计算
+                long h = FNV_OFFSET;
+                long matched = 0;
+                int limit = Math.min(end, p + maxLength);
+                for (int q = p; q < limit; q++) {
+                    h = (h ^ text.charAt(q)) * FNV_PRIME;
+                    if (q - p >= 2 && words.contains(h | Long.MIN_VALUE)) {
+                        matched = h | Long.MIN_VALUE;
+                    }
+                }
+                if (matched != 0) {
+                    sink.accept(matched, p);
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 提取查询中的中文短语，每个短语为按顺序排列的二元组词项
+     * @param text 查询文本
+     * @return 长度不少于3个汉字的短语二元组列表
+     */
+    public List<long[]> phraseBigrams(CharSequence text) {
+        List<long[]> phrases = new ArrayList<>();
+        if (text == null) {
+            return phrases;
+        }
+        int length = text.length();
+        int i = 0;
+        while (i < length) {
+            if (!isCjk(text.charAt(i))) {
+                i++;
+                continue;
+            }
+            int end = i + 1;
+            while (end < length && isCjk(text.charAt(end))) {
+                end++;
+            }
+            if (end - i >= 3) {
+                long[] bigrams = new long[end - i - 1];
+                for (int p = i; p < end - 1; p++) {
+                    bigrams[p - i] = BIGRAM | ((long) text.charAt(p) << 16) | text.charAt(p + 1);
+                }
+                phrases.add(bigrams);
+            }
+            i = end;
+        }
+        return phrases;
+    }
+
+    /**
+     * FNV-1a 哈希（小写化），最高位置1以区别于二元组/单字编码
+     */
+    private static long hash(CharSequence text, int start, int end) {
+        long h = FNV_OFFSET;
+        for (int i = start; i < end; i++) {
+            h = (h ^ Character.toLowerCase(text.charAt(i))) * FNV_PRIME;
+        }
+        return h | Long.MIN_VALUE;
+    }
+
+    private static boolean isWordChar(char c) {
+        return Character.isLetterOrDigit(c) && !isCjk(c);
+    }
+
+    private static boolean isConnector(char c) {
+        return c == '-' || c == '_' || c == '.' || c == '/' || c == ':';
+    }
+
+    /**
+     * 判断是否为中日韩统一表意文字
+     */
+    public static boolean isCjk(char c) {
+        return (c >= 0x4E00 && c <= 0x9FFF) || (c >= 0x3400 && c <= 0x4DBF) || (c >= 0xF900 && c <= 0xFAFF);
+    }
+
+    /**
+     * 开放寻址 long 集合，避免词典查找时装箱
+     */
+    private static final class LongSet {
+        private long[] table;
+        private int size;
+
+        LongSet(int capacity) {
+            table = new long[Integer.highestOneBit(Math.max(16, capacity) * 2 - 1) << 1];
+        }
+
+        void add(long value) {
+            if (size * 2 >= table.length) {
+                long[] old = table;
+                table = new long[old.length << 1];
+                size = 0;
+                for (long v : old) {
+                    if (v != 0) {
+                        add(v);
+                    }
+                }
+            }
+            int mask = table.length - 1;
+            int slot = mix(value) & mask;
+            while (table[slot] != 0) {
+                if (table[slot] == value) {
+                    return;
+                }
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = value;
+            size++;
+        }
+
+        boolean contains(long value) {
+            int mask = table.length - 1;
+            int slot = mix(value) & mask;
+            while (table[slot] != 0) {
+                if (table[slot] == value) {
+                    return true;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return false;
+        }
+
+        int size() {
+            return size;
+        }
+
+        private static int mix(long value) {
+            long h = value * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32));
+        }
+    }
+}
@@ -16,6 +16,8 @@
 
 package com.unionhole.zrag.util;
 
+import io.milvus.orm.iterator.QueryIterator;
+import io.milvus.response.QueryResultsWrapper;
 import io.milvus.v2.client.MilvusClientV2;
 import io.milvus.v2.service.collection.request.CreateCollectionReq;
 import io.milvus.v2.service.collection.request.DescribeCollectionReq;
@@ -24,11 +26,13 @@ import io.milvus.v2.service.collection.request.HasCollectionReq;
 import io.milvus.v2.service.collection.request.LoadCollectionReq;
 import io.milvus.v2.service.index.request.CreateIndexReq;
 import io.milvus.v2.service.vector.request.DeleteReq;
+import io.milvus.v2.service.vector.request.QueryIteratorReq;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
 import java.util.*;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
 /**
@@ -52,6 +56,14 @@ public class MilvusLLMUtils {
     private static final String CREATED_AT_FIELD = "created_at";
     private static final String UPDATED_AT_FIELD = "updated_at";
     
+    private static final int DEFAULT_ITERATOR_BATCH_SIZE = 500;
+    
+    /**
+     * 片段数据的默认投影字段（不含向量）
+     */
+    public static final List<String> CHUNK_OUTPUT_FIELDS = Collections.unmodifiableList(Arrays.asList(
+            ID_FIELD, FILE_ID_FIELD, TENANT_ID_FIELD, CHUNK_ID_FIELD, TEXT_FIELD, METADATA_FIELD, CREATED_AT_FIELD));
+    
     /**
      * 创建Milvus集合
      * @param collectionName 集合名称
@@ -595,24 +607,207 @@ public class MilvusLLMUtils {
      * @return 查询结果
      */
     public List<Map<String, Object>> queryAll(String collectionName, int limit) {
+        List<Map<String, Object>> results = new ArrayList<>();
+        iterateRows(collectionName, CHUNK_OUTPUT_FIELDS, null, DEFAULT_ITERATOR_BATCH_SIZE, 0, limit, row -> {
+            Map<String, Object> result = new HashMap<>();
+            result.put("id", row.get(ID_FIELD));
+            result.put("text", row.get(TEXT_FIELD) != null ? row.get(TEXT_FIELD).toString() : "");
+            result.put("metadata", row.get(METADATA_FIELD) != null ? row.get(METADATA_FIELD).toString() : "{}");
+            result.put(FILE_ID_FIELD, row.get(FILE_ID_FIELD));
+            result.put(CHUNK_ID_FIELD, row.get(CHUNK_ID_FIELD));
+            result.put(TENANT_ID_FIELD, row.get(TENANT_ID_FIELD));
+            results.add(result);
+            return true;
+        });
+        return results;
+    }
+    
+    /**
+     * 使用查询迭代器流式遍历集合数据
+     * 按批次从服务端拉取，内存占用只与批次大小相关，与集合规模无关
+     * @param collectionName 集合名称
+     * @param outputFields 输出字段（投影）
+     * @param filter 过滤表达式，为空时遍历全部数据
+     * @param batchSize 每批拉取数量
+     * @param offset 跳过的行数
+     * @param limit 最多返回的行数，小于等于0表示不限制
+     * @param consumer 行处理器，返回false时提前结束遍历
+     * @return 实际处理的行数
+     * @throws RuntimeException 客户端未初始化或遍历中途失败，此时已处理的行不完整
+     */
+    public long iterateRows(String collectionName, List<String> outputFields, String filter, int batchSize,
+                            long offset, long limit, Predicate<Map<String, Object>> consumer) {
+        if (milvusClient == null) {
+            log.error("Milvus客户端未初始化");
+            throw new IllegalStateException("Milvus客户端未初始化");
+        }
+        
+        QueryIterator iterator = null;
+        long processed = 0;
+        try {
+            loadCollection(collectionName);
+            
+            QueryIteratorReq.QueryIteratorReqBuilder<?, ?> builder = QueryIteratorReq.builder()
+                    .collectionName(collectionName)
+                    .outputFields(outputFields)
+                    .expr(filter == null || filter.isEmpty() ? ID_FIELD + " >= 0" : filter)
+                    .batchSize(batchSize);
+            if (offset > 0) {
+                builder.offset(offset);
+            }
+            if (limit > 0) {
+                builder.limit(limit);
+            }
+            iterator = milvusClient.queryIterator(builder.build());
+            
+            while (true) {
+                List<QueryResultsWrapper.RowRecord> batch = iterator.next();
+                if (batch == null || batch.isEmpty()) {
+                    break;
+                }
+                for (QueryResultsWrapper.RowRecord record : batch) {
+                    processed++;
+                    if (!consumer.test(record.getFieldValues())) {
+                        log.debug("遍历提前结束: collection={}, 已处理 {} 行", collectionName, processed);
+                        return processed;
+                    }
+                }
+            }
+            
+            log.debug("遍历Milvus数据完成: collection={}, filter={}, 共 {} 行", collectionName, filter, processed);
+            return processed;
+        } catch (Exception e) {
+            log.error("遍历Milvus数据失败: collection={}, filter={}, 已处理 {} 行", collectionName, filter, processed, e);
+            throw new RuntimeException("遍历Milvus数据失败: " + e.getMessage(), e);
+        } finally {
+            if (iterator != null) {
+                iterator.close();
+            }
+        }
+    }
+    
+    /**
+     * 统计满足条件的行数
+     * @param collectionName 集合名称
+     * @param filter 过滤表达式，为空时统计全部数据
+     * @return 行数，失败返回-1
+     */
+    public long countRows(String collectionName, String filter) {
         try {
             if (milvusClient == null) {
                 log.error("Milvus客户端未初始化");
-                return new ArrayList<>();
+                return -1;
             }
             
-            // 加载集合
-            loadCollection(collectionName);
+            io.milvus.v2.service.vector.response.QueryResp response = milvusClient.query(
+                    io.milvus.v2.service.vector.request.QueryReq.builder()
+                            .collectionName(collectionName)
+                            .filter(filter == null || filter.isEmpty() ? ID_FIELD + " >= 0" : filter)
+                            .outputFields(Collections.singletonList("count(*)"))
+                            .build());
             
-            // 查询参数 - 暂时简化处理
-            log.info("查询功能需要根据新SDK实现");
-            return new ArrayList<>();
+            if (response.getQueryResults() == null || response.getQueryResults().isEmpty()) {
+                return 0;
+            }
+            Object count = response.getQueryResults().get(0).getEntity().get("count(*)");
+            return count instanceof Number ? ((Number) count).longValue() : Long.parseLong(String.valueOf(count));
         } catch (Exception e) {
-            log.error("查询Milvus数据失败", e);
-            return new ArrayList<>();
+            log.error("统计Milvus数据失败: collection={}, filter={}", collectionName, filter, e);
+            return -1;
         }
     }
     
+    /**
+     * 删除满足条件的行
+     * @param collectionName 集合名称
+     * @param filter 过滤表达式，不能为空
+     * @return 是否删除成功
+     */
+    public boolean deleteRows(String collectionName, String filter) {
+        if (filter == null || filter.isEmpty()) {
+            throw new IllegalArgumentException("删除条件不能为空");
+        }
+        try {
+            if (milvusClient == null) {
+                log.error("Milvus客户端未初始化");
+                return false;
+            }
+            
+            milvusClient.delete(DeleteReq.builder()
+                    .collectionName(collectionName)
+                    .filter(filter)
+                    .build());
+            
+            log.info("Milvus数据删除完成: collection={}, filter={}", collectionName, filter);
+            return true;
+        } catch (Exception e) {
+            log.error("删除Milvus数据失败: collection={}, filter={}", collectionName, filter, e);
+            return false;
+        }
+    }
+    
+    /**
+     * 构建片段过滤表达式
+     * @param tenantId 租户ID（可选）
+     * @param fileId 文件ID（可选）
+     * @param keyword 内容关键词（可选）
+     * @return 过滤表达式，无条件时返回null
+     */
+    public String buildChunkFilter(String tenantId, String fileId, String keyword) {
+        List<String> conditions = new ArrayList<>();
+        if (tenantId != null && !tenantId.isEmpty()) {
+            conditions.add(String.format("%s == '%s'", TENANT_ID_FIELD, escapeFilterValue(tenantId)));
+        }
+        if (fileId != null && !fileId.isEmpty()) {
+            conditions.add(String.format("%s == '%s'", FILE_ID_FIELD, escapeFilterValue(fileId)));
+        }
+        if (keyword != null && !keyword.trim().isEmpty()) {
+            conditions.add(String.format("%s like '%%%s%%'", TEXT_FIELD,
+                    escapeFilterValue(escapeLikePattern(keyword.trim()))));
+        }
+        return conditions.isEmpty() ? null : String.join(" and ", conditions);
+    }
+    
+    /**
+     * 解析元数据字段
+     * 元数据以JSON字符串写入JSON字段，读取时可能需要解两层
+     * @param metadata 原始元数据值
+     * @return 元数据Map
+     */
+    public Map<String, Object> parseMetadata(Object metadata) {
+        try {
+            if (metadata == null) {
+                return new HashMap<>();
+            }
+            com.google.gson.JsonElement element = metadata instanceof com.google.gson.JsonElement
+                    ? (com.google.gson.JsonElement) metadata
+                    : com.google.gson.JsonParser.parseString(metadata.toString());
+            if (element.isJsonPrimitive() && element.getAsJsonPrimitive().isString()) {
+                element = com.google.gson.JsonParser.parseString(element.getAsString());
+            }
+            if (!element.isJsonObject()) {
+                return new HashMap<>();
+            }
+            @SuppressWarnings("unchecked")
+            Map<String, Object> result = new com.google.gson.Gson().fromJson(element, Map.class);
+            return result;
+        } catch (Exception e) {
+            log.debug("解析元数据失败: {}", metadata);
+            return new HashMap<>();
+        }
+    }
+    
+    private String escapeFilterValue(String value) {
+        return value.replace("\\", "\\\\").replace("'", "\\'");
+    }
+    
+    /**
+     * 转义LIKE模式中的通配符，使关键词中的 % 和 _ 按字面匹配
+     */
+    private String escapeLikePattern(String value) {
+        return value.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+    }
+    
     /**
      * 删除集合
      * @param collectionName 集合名称
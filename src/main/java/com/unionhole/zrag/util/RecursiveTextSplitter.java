@@ -0,0 +1,373 @@
+package com.unionhole.zrag.util;
+
+import dev.langchain4j.data.document.Document;
+import dev.langchain4j.data.document.DocumentSplitter;
+import dev.langchain4j.data.document.Metadata;
+import dev.langchain4j.data.segment.TextSegment;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 基于偏移量的递归文本分割器
+ * 按 自定义分隔符 → 段落 → 换行 → 句子（含中文句末标点）→ 分句 → 空格 → 按长度硬切 的顺序递归切分，
+ * 切分过程只记录原文中的偏移量，不复制子串；相邻小片再按块大小合并，块之间按片重叠。
+ * 块大小可以按字符数或按嵌入模型的token数计量（见 {@link SizeEstimator}），每个小片只计量一次。
+ * 分割结果以 {@link TextSpan} 引用原文，只在生成 TextSegment 时才创建字符串
+ */
+public class RecursiveTextSplitter implements DocumentSplitter {
+
+    /** 默认分隔符层级，分隔符保留在前一片的末尾 */
+    private static final String[][] DEFAULT_LEVELS = {
+            {"\n\n"},
+            {"\n"},
+            {"。", "！", "？", "；", "!", "?", ";", ". "},
+            {"，", "、", "：", ", "},
+            {" "}
+    };
+
+    /** 计算块间重叠起点时可用的边界字符，按优先级排列 */
+    private static final String[] OVERLAP_BOUNDARIES = {"\n。！？；!?;", "，、：,", " "};
+
+    /** 按字符数计量 */
+    public static final SizeEstimator CHARACTERS = (text, start, end) -> end - start;
+
+    /** 硬切时一个计量单位最多对应的字符数，限制二分查找的范围 */
+    private static final int MAX_CHARS_PER_UNIT = 8;
+
+    private final int maxSize;
+    private final int overlapSize;
+    private final SizeEstimator estimator;
+    private final String[][] levels;
+
+    /**
+     * 文本长度的计量方式
+     */
+    public interface SizeEstimator {
+        /**
+         * @param text 原文
+         * @param start 起始偏移（含）
+         * @param end 结束偏移（不含）
+         * @return [start, end) 的长度
+         */
+        int size(CharSequence text, int start, int end);
+    }
+
+    /**
+     * 引用原文一段区间的字符序列
+     */
+    public static class TextSpan implements CharSequence {
+        private final CharSequence source;
+        private final int start;
+        private final int end;
+
+        TextSpan(CharSequence source, int start, int end) {
+            this.source = source;
+            this.start = start;
+            this.end = end;
+        }
+
+        public int getStart() {
+            return start;
+        }
+
+        public int getEnd() {
+            return end;
+        }
+
+        @Override
+        public int length() {
+            return end - start;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return source.charAt(start + index);
+        }
+
+        @Override
+        public CharSequence subSequence(int from, int to) {
+            return new TextSpan(source, start + from, start + to);
+        }
+
+        @Override
+        public String toString() {
+            return source.subSequence(start, end).toString();
+        }
+    }
+
+    /**
+     * @param maxChars 块大小（字符数）
+     * @param overlapChars 块之间的重叠字符数
+     * @param customSeparators 自定义分隔符，优先于默认分隔符使用
+     */
+    public RecursiveTextSplitter(int maxChars, int overlapChars, String... customSeparators) {
+        this(maxChars, overlapChars, CHARACTERS, customSeparators);
+    }
+
+    /**
+     * @param maxSize 块大小
+     * @param overlapSize 块之间的重叠大小
+     * @param estimator 块大小和重叠大小的计量方式
+     * @param customSeparators 自定义分隔符，优先于默认分隔符使用
+     */
+    public RecursiveTextSplitter(int maxSize, int overlapSize, SizeEstimator estimator, String... customSeparators) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("块大小必须大于0: " + maxSize);
+        }
+        this.maxSize = maxSize;
+        this.overlapSize = Math.max(0, Math.min(overlapSize, maxSize / 2));
+        this.estimator = estimator;
+        List<String> custom = new ArrayList<>();
+        if (customSeparators != null) {
+            for (String separator : customSeparators) {
+                if (separator != null && !separator.isEmpty()) {
+                    custom.add(separator);
+                }
+            }
+        }
+        if (custom.isEmpty()) {
+            this.levels = DEFAULT_LEVELS;
+        } else {
+            this.levels = new String[DEFAULT_LEVELS.length + 1][];
+            this.levels[0] = custom.toArray(new String[0]);
+            System.arraycopy(DEFAULT_LEVELS, 0, this.levels, 1, DEFAULT_LEVELS.length);
+        }
+    }
+
+    @Override
+    public List<TextSegment> split(Document document) {
+        List<TextSpan> spans = splitSpans(document.text());
+        List<TextSegment> segments = new ArrayList<>(spans.size());
+        for (int i = 0; i < spans.size(); i++) {
+            Metadata metadata = document.metadata().copy().add("index", String.valueOf(i));
+            segments.add(TextSegment.from(spans.get(i).toString(), metadata));
+        }
+        return segments;
+    }
+
+    /**
+     * 分割文本，结果引用原文
+     * @param text 文本
+     * @return 按原文顺序排列的块，已去掉首尾空白
+     */
+    public List<TextSpan> splitSpans(CharSequence text) {
+        List<TextSpan> spans = new ArrayList<>();
+        if (text == null || text.length() == 0) {
+            return spans;
+        }
+        int capacity = Math.max(16, text.length() / Math.max(1, maxSize / 4));
+        IntList boundaries = new IntList(capacity);
+        IntList sizes = new IntList(capacity);
+        boundaries.add(0);
+        splitRange(text, 0, text.length(), 0, boundaries, sizes);
+        merge(text, boundaries, sizes, spans);
+        return spans;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public int getOverlapSize() {
+        return overlapSize;
+    }
+
+    /**
+     * 把 [start, end) 切成不超过块大小的连续小片，记录每片的结束偏移和大小
+     */
+    private void splitRange(CharSequence text, int start, int end, int level, IntList boundaries, IntList sizes) {
+        int size = estimator.size(text, start, end);
+        if (size <= maxSize) {
+            boundaries.add(end);
+            sizes.add(size);
+            return;
+        }
+        if (level >= levels.length) {
+            hardSplit(text, start, end, boundaries, sizes);
+            return;
+        }
+        String[] separators = levels[level];
+        int pieceStart = start;
+        int i = start;
+        while (i < end) {
+            int matched = matchAt(text, i, end, separators);
+            if (matched > 0) {
+                int cut = i + matched;
+                if (cut < end) {
+                    splitRange(text, pieceStart, cut, level + 1, boundaries, sizes);
+                    pieceStart = cut;
+                }
+                i = cut;
+            } else {
+                i++;
+            }
+        }
+        splitRange(text, pieceStart, end, level + 1, boundaries, sizes);
+    }
+
+    /**
+     * 没有可用分隔符时按块大小硬切，不拆开代理对；按token计量时二分查找不超过块大小的最远切点
+     */
+    private void hardSplit(CharSequence text, int start, int end, IntList boundaries, IntList sizes) {
+        int pos = start;
+        while (pos < end) {
+            int cut;
+            int size;
+            if (estimator == CHARACTERS) {
+                cut = Math.min(end, pos + maxSize);
+                size = cut - pos;
+            } else {
+                int low = pos + 1;
+                int high = (int) Math.min(end, (long) pos + (long) maxSize * MAX_CHARS_PER_UNIT);
+                while (low < high) {
+                    int mid = (low + high + 1) >>> 1;
+                    if (estimator.size(text, pos, mid) <= maxSize) {
+                        low = mid;
+                    } else {
+                        high = mid - 1;
+                    }
+                }
+                cut = low;
+                size = -1;
+            }
+            if (cut < end && cut - pos > 1
+                    && Character.isLowSurrogate(text.charAt(cut)) && Character.isHighSurrogate(text.charAt(cut - 1))) {
+                cut--;
+                size = -1;
+            }
+            boundaries.add(cut);
+            sizes.add(size >= 0 ? size : estimator.size(text, pos, cut));
+            pos = cut;
+        }
+    }
+
+    /**
+     * 返回在 pos 处匹配到的分隔符长度，没有匹配返回0
+     */
+    private static int matchAt(CharSequence text, int pos, int end, String[] separators) {
+        char c = text.charAt(pos);
+        for (String separator : separators) {
+            int length = separator.length();
+            if (separator.charAt(0) != c || pos + length > end) {
+                continue;
+            }
+            int k = 1;
+            while (k < length && text.charAt(pos + k) == separator.charAt(k)) {
+                k++;
+            }
+            if (k == length) {
+                return length;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * 贪心合并相邻小片，块的大小按小片大小累加；下一块从上一块末尾不超过重叠大小的若干小片开始，
+     * 小片比重叠大小大时在重叠范围内找句子或分句边界作为下一块的起点
+     */
+    private void merge(CharSequence text, IntList boundaries, IntList sizes, List<TextSpan> spans) {
+        int pieces = boundaries.size() - 1;
+        long[] prefix = new long[pieces + 1];
+        for (int p = 0; p < pieces; p++) {
+            prefix[p + 1] = prefix[p] + sizes.get(p);
+        }
+
+        int i = 0;
+        int chunkStart = boundaries.get(0);
+        // 块起点落在上一片内部时，这部分重叠文本的大小
+        int headSize = 0;
+        while (i < pieces) {
+            int j = i + 1;
+            while (j < pieces && headSize + prefix[j + 1] - prefix[i] <= maxSize) {
+                j++;
+            }
+            int chunkEnd = boundaries.get(j);
+            addSpan(text, chunkStart, chunkEnd, spans);
+            if (j >= pieces) {
+                break;
+            }
+
+            int next = j;
+            while (next - 1 > i && prefix[j] - prefix[next - 1] <= overlapSize) {
+                next--;
+            }
+            // 重叠部分加上下一片超出块大小时减少重叠，避免生成被上一块完全包含的块
+            while (next < j && prefix[j + 1] - prefix[next] > maxSize) {
+                next++;
+            }
+            if (next < j) {
+                chunkStart = boundaries.get(next);
+                headSize = 0;
+            } else {
+                int limit = Math.min(overlapSize, maxSize - sizes.get(j));
+                long chunkSize = headSize + prefix[j] - prefix[i];
+                chunkStart = overlapStart(text, chunkStart, chunkEnd, chunkSize, limit);
+                headSize = chunkStart < chunkEnd ? estimator.size(text, chunkStart, chunkEnd) : 0;
+            }
+            i = next;
+        }
+    }
+
+    /**
+     * 在上一块末尾找重叠起点：按上一块的字符与计量单位之比换算出重叠范围，
+     * 在范围内找最靠前的句子边界，其次是分句、空格边界，重叠大小超出 limit 时向后移动，都没有时不重叠
+     */
+    private int overlapStart(CharSequence text, int chunkStart, int chunkEnd, long chunkSize, int limit) {
+        if (limit <= 0 || chunkSize <= 0) {
+            return chunkEnd;
+        }
+        double charsPerUnit = (double) (chunkEnd - chunkStart) / chunkSize;
+        int lower = Math.max(chunkStart + 1, chunkEnd - (int) Math.ceil(limit * charsPerUnit));
+        for (String ends : OVERLAP_BOUNDARIES) {
+            for (int p = Math.max(1, lower); p < chunkEnd; p++) {
+                if (ends.indexOf(text.charAt(p - 1)) >= 0
+                        && (estimator == CHARACTERS || estimator.size(text, p, chunkEnd) <= limit)) {
+                    return p;
+                }
+            }
+        }
+        return chunkEnd;
+    }
+
+    private static void addSpan(CharSequence text, int start, int end, List<TextSpan> spans) {
+        while (start < end && Character.isWhitespace(text.charAt(start))) {
+            start++;
+        }
+        while (end > start && Character.isWhitespace(text.charAt(end - 1))) {
+            end--;
+        }
+        if (start < end) {
+            spans.add(new TextSpan(text, start, end));
+        }
+    }
+
+    /**
+     * 基本类型的整数列表，避免切分大文档时装箱
+     */
+    private static class IntList {
+        private int[] values;
+        private int size;
+
+        IntList(int capacity) {
+            values = new int[capacity];
+        }
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        int get(int index) {
+            return values[index];
+        }
+
+        int size() {
+            return size;
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package com.unionhole.zrag.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 流分发工具类
+ * 源流只读取一次，按块同时交给多个分支流，读取时计算SHA-256摘要；
+ * 每个分支最多缓存 queueChunks 个块，分支读得慢时读取方等待，内存占用为 分支数 × 缓存块数 × 块大小。
+ * 分支关闭后不再向其投递，不影响其他分支
+ */
+public class StreamTee {
+
+    private static final Object END_OF_STREAM = new Object();
+    /** 等待分支读取或投递时检查关闭、失败状态的间隔 */
+    private static final long POLL_MS = 100;
+
+    private final InputStream source;
+    private final int chunkSize;
+    private final MessageDigest digest;
+    private final List<Branch> branches = new ArrayList<>();
+    private long bytesRead;
+
+    /**
+     * @param source 源流
+     * @param branchCount 分支数
+     * @param chunkSize 每次从源流读取的块大小
+     * @param queueChunks 每个分支最多缓存的块数
+     */
+    public StreamTee(InputStream source, int branchCount, int chunkSize, int queueChunks) {
+        this.source = source;
+        this.chunkSize = Math.max(1, chunkSize);
+        try {
+            this.digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256不可用", e);
+        }
+        for (int i = 0; i < branchCount; i++) {
+            branches.add(new Branch(Math.max(1, queueChunks)));
+        }
+    }
+
+    /**
+     * 第 index 个分支，读取方读完或放弃时应关闭
+     */
+    public InputStream branch(int index) {
+        return branches.get(index);
+    }
+
+    /**
+     * 读取整个源流并分发给各分支，所有分支都已关闭时仍读完源流以完成摘要
+     * @return 读取的字节数
+     * @throws IOException 读取源流失败，各分支读取时会收到同一个异常
+     */
+    public long pump() throws IOException {
+        try {
+            while (true) {
+                byte[] buffer = new byte[chunkSize];
+                int length = readChunk(buffer);
+                if (length <= 0) {
+                    break;
+                }
+                byte[] chunk = length == chunkSize ? buffer : Arrays.copyOf(buffer, length);
+                digest.update(chunk);
+                bytesRead += length;
+                for (Branch branch : branches) {
+                    branch.offer(chunk);
+                }
+            }
+            for (Branch branch : branches) {
+                branch.offer(END_OF_STREAM);
+            }
+            return bytesRead;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            InterruptedIOException interrupted = new InterruptedIOException("流分发被中断");
+            abort(interrupted);
+            throw interrupted;
+        } catch (IOException e) {
+            abort(e);
+            throw e;
+        }
+    }
+
+    /**
+     * 中止分发，各分支读完已缓存的块后抛出该异常
+     */
+    public void abort(IOException cause) {
+        for (Branch branch : branches) {
+            branch.failure = cause;
+        }
+    }
+
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    /**
+     * 源流内容的SHA-256十六进制摘要，须在 {@link #pump()} 完成后调用
+     */
+    public String sha256Hex() {
+        return HashUtils.toHex(digest.digest());
+    }
+
+    private int readChunk(byte[] buffer) throws IOException {
+        int length = 0;
+        while (length < buffer.length) {
+            int n = source.read(buffer, length, buffer.length - length);
+            if (n < 0) {
+                break;
+            }
+            length += n;
+        }
+        return length;
+    }
+
+    /**
+     * 从块队列读取的分支流
+     */
+    private static class Branch extends InputStream {
+        private final BlockingQueue<Object> queue;
+        private volatile boolean closed;
+        private volatile IOException failure;
+        private byte[] current;
+        private int position;
+        private boolean finished;
+
+        Branch(int capacity) {
+            this.queue = new ArrayBlockingQueue<>(capacity);
+        }
+
+        void offer(Object item) throws InterruptedException {
+            while (!closed && failure == null && !queue.offer(item, POLL_MS, TimeUnit.MILLISECONDS)) {
+                // 队列已满，等待读取方
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            int n = read(one, 0, 1);
+            return n < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (current == null || position >= current.length) {
+                if (finished) {
+                    return -1;
+                }
+                if (closed) {
+                    throw new IOException("流已关闭");
+                }
+                Object item;
+                try {
+                    item = queue.poll(POLL_MS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("读取被中断");
+                }
+                if (item == null) {
+                    if (failure != null) {
+                        throw failure;
+                    }
+                } else if (item == END_OF_STREAM) {
+                    finished = true;
+                    return -1;
+                } else {
+                    current = (byte[]) item;
+                    position = 0;
+                }
+            }
+            int n = Math.min(len, current.length - position);
+            System.arraycopy(current, position, b, off, n);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return current == null ? 0 : current.length - position;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            queue.clear();
+        }
+    }
+}
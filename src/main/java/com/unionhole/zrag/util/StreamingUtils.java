@@ -6,6 +6,7 @@ import org.slf4j.LoggerFactory;
 import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 import java.io.IOException;
+import java.util.concurrent.CancellationException;
 import java.util.function.Consumer;
 
 /**
@@ -19,11 +20,19 @@ public class StreamingUtils {
      * 发送流式响应
      */
     public static void sendStreamingResponse(SseEmitter emitter, StreamingResponse response) {
+        if (emitter instanceof CancellableSseEmitter && ((CancellableSseEmitter) emitter).isCancelled()) {
+            // 客户端已断开或超时，中止后续处理
+            throw new CancellationException("流式请求已取消");
+        }
         try {
             emitter.send(response);
             log.debug("发送流式响应: type={}, content={}", response.getType(), response.getContent());
         } catch (IOException e) {
             log.error("发送流式响应失败", e);
+            if (emitter instanceof CancellableSseEmitter) {
+                // 客户端已断开，后续发送直接中止
+                ((CancellableSseEmitter) emitter).cancel();
+            }
             emitter.completeWithError(e);
         }
     }
@@ -56,6 +65,13 @@ public class StreamingUtils {
         sendStreamingResponse(emitter, StreamingResponse.generation(content));
     }
     
+    /**
+     * 发送回答片段
+     */
+    public static void sendToken(SseEmitter emitter, String content) {
+        sendStreamingResponse(emitter, StreamingResponse.token(content));
+    }
+    
     /**
      * 发送最终答案
      */
@@ -0,0 +1,374 @@
+package com.unionhole.zrag.util;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 文本解码工具类
+ * 在有限长度的字节样本上检测编码（BOM、UTF-16、UTF-8、GB18030，最后按Windows-1252），
+ * 整个文件只解码一次；清理控制字符、合并空白与统计中文字符比例在同一次遍历中完成。
+ * 源代码等依赖缩进的文本可以保留空白和换行，只去掉回车、BOM和控制字符
+ */
+public class TextDecoder {
+
+    /** 编码检测的样本字节数 */
+    private static final int SAMPLE_BYTES = 64 * 1024;
+    private static final char REPLACEMENT_CHAR = '\uFFFD';
+    private static final Charset GB18030 = Charset.forName("GB18030");
+    private static final Charset WINDOWS_1252 = Charset.forName("windows-1252");
+
+    private TextDecoder() {
+    }
+
+    /**
+     * 解码并清理后的文本及其统计信息
+     */
+    public static class DecodedText {
+        private final String text;
+        private final Charset charset;
+        private final int hanChars;
+        private final int letterChars;
+        private final int replacementChars;
+        private final int controlChars;
+
+        DecodedText(String text, Charset charset, int hanChars, int letterChars, int replacementChars, int controlChars) {
+            this.text = text;
+            this.charset = charset;
+            this.hanChars = hanChars;
+            this.letterChars = letterChars;
+            this.replacementChars = replacementChars;
+            this.controlChars = controlChars;
+        }
+
+        public String getText() {
+            return text;
+        }
+
+        public Charset getCharset() {
+            return charset;
+        }
+
+        public int getHanChars() {
+            return hanChars;
+        }
+
+        public int getReplacementChars() {
+            return replacementChars;
+        }
+
+        public int getControlChars() {
+            return controlChars;
+        }
+
+        /**
+         * 是否包含中文字符
+         */
+        public boolean containsChinese() {
+            return hanChars > 0;
+        }
+
+        /**
+         * 中文字符在字母类字符中占比超过30%
+         */
+        public boolean isChinese() {
+            return letterChars > 0 && (double) hanChars / letterChars > 0.3;
+        }
+
+        /**
+         * 解码时出现无法识别的字节（替换字符超过1%或多于10个），多半是编码判断错误或二进制内容
+         */
+        public boolean isGarbled() {
+            return replacementChars > 10 || (text.length() > 0 && replacementChars * 100 > text.length());
+        }
+    }
+
+    /**
+     * 检测编码、解码并清理文本
+     * @param bytes 文件字节
+     * @return 解码结果
+     */
+    public static DecodedText decode(byte[] bytes) {
+        return decode(bytes, false);
+    }
+
+    /**
+     * 检测编码、解码并清理文本
+     * @param bytes 文件字节
+     * @param keepWhitespace 是否原样保留空格、制表符和空行（源代码的缩进和行号依赖它们）
+     * @return 解码结果
+     */
+    public static DecodedText decode(byte[] bytes, boolean keepWhitespace) {
+        Charset charset = detectCharset(bytes);
+        int bomLength = bomLength(bytes, charset);
+        CharBuffer chars = decode(bytes, bomLength, charset);
+        return normalize(chars, charset, keepWhitespace);
+    }
+
+    /**
+     * 在样本上检测编码
+     * @param bytes 文件字节
+     * @return 检测到的编码
+     */
+    public static Charset detectCharset(byte[] bytes) {
+        if (bytes.length >= 3 && (bytes[0] & 0xFF) == 0xEF && (bytes[1] & 0xFF) == 0xBB && (bytes[2] & 0xFF) == 0xBF) {
+            return StandardCharsets.UTF_8;
+        }
+        if (bytes.length >= 2) {
+            if ((bytes[0] & 0xFF) == 0xFF && (bytes[1] & 0xFF) == 0xFE) {
+                return StandardCharsets.UTF_16LE;
+            }
+            if ((bytes[0] & 0xFF) == 0xFE && (bytes[1] & 0xFF) == 0xFF) {
+                return StandardCharsets.UTF_16BE;
+            }
+        }
+
+        int sample = Math.min(bytes.length, SAMPLE_BYTES);
+        Charset utf16 = detectUtf16WithoutBom(bytes, sample);
+        if (utf16 != null) {
+            return utf16;
+        }
+        if (isValidUtf8(bytes, sample)) {
+            return StandardCharsets.UTF_8;
+        }
+        if (isValidGb18030(bytes, sample)) {
+            return GB18030;
+        }
+        return WINDOWS_1252;
+    }
+
+    /**
+     * 生成用于日志的文本预览，只处理前 maxLength 个字符
+     * @param text 文本
+     * @param maxLength 最大长度
+     * @return 预览文本
+     */
+    public static String preview(String text, int maxLength) {
+        if (text == null || text.isEmpty()) {
+            return "[空文本]";
+        }
+        int end = Math.min(text.length(), maxLength);
+        StringBuilder preview = new StringBuilder(end + 3);
+        int replacements = 0;
+        for (int i = 0; i < end; i++) {
+            char c = text.charAt(i);
+            if (c == REPLACEMENT_CHAR) {
+                replacements++;
+            } else if (c == '\uFEFF') {
+                continue;
+            } else if (Character.isISOControl(c)) {
+                preview.append(' ');
+            } else {
+                preview.append(c);
+            }
+        }
+        if (replacements * 10 > end) {
+            return "[检测到乱码，长度: " + text.length() + " 字符]";
+        }
+        if (text.length() > maxLength) {
+            preview.append("...");
+        }
+        return preview.toString().trim();
+    }
+
+    private static int bomLength(byte[] bytes, Charset charset) {
+        if (charset == StandardCharsets.UTF_8 && bytes.length >= 3
+                && (bytes[0] & 0xFF) == 0xEF && (bytes[1] & 0xFF) == 0xBB && (bytes[2] & 0xFF) == 0xBF) {
+            return 3;
+        }
+        if ((charset == StandardCharsets.UTF_16LE || charset == StandardCharsets.UTF_16BE) && bytes.length >= 2
+                && ((bytes[0] & 0xFF) == 0xFF || (bytes[0] & 0xFF) == 0xFE)
+                && ((bytes[1] & 0xFF) == 0xFE || (bytes[1] & 0xFF) == 0xFF)) {
+            return 2;
+        }
+        return 0;
+    }
+
+    private static CharBuffer decode(byte[] bytes, int offset, Charset charset) {
+        try {
+            return charset.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE)
+                    .decode(ByteBuffer.wrap(bytes, offset, bytes.length - offset));
+        } catch (CharacterCodingException e) {
+            // REPLACE 模式下不会抛出
+            throw new IllegalStateException("文本解码失败: " + charset, e);
+        }
+    }
+
+    /**
+     * 单次遍历：去掉BOM、替换字符和控制字符，连续空格合并为一个，空行最多保留一个，同时统计字符类别；
+     * keepWhitespace 时空白和换行原样保留
+     */
+    private static DecodedText normalize(CharBuffer chars, Charset charset, boolean keepWhitespace) {
+        int length = chars.remaining();
+        StringBuilder text = new StringBuilder(length);
+        int hanChars = 0;
+        int letterChars = 0;
+        int replacementChars = 0;
+        int controlChars = 0;
+        int newLines = 0;
+        boolean pendingSpace = false;
+
+        for (int i = 0; i < length; i++) {
+            char c = chars.get(i);
+            if (keepWhitespace && (c == '\n' || c == '\t' || Character.isSpaceChar(c))) {
+                text.append(c);
+                continue;
+            }
+            if (c == '\n') {
+                pendingSpace = false;
+                if (text.length() > 0 && newLines < 2) {
+                    text.append('\n');
+                }
+                newLines++;
+                continue;
+            }
+            if (c == '\r' || c == '\uFEFF') {
+                continue;
+            }
+            if (c == REPLACEMENT_CHAR) {
+                replacementChars++;
+                continue;
+            }
+            if (c == '\t' || c == ' ' || Character.isSpaceChar(c)) {
+                pendingSpace = true;
+                continue;
+            }
+            if (Character.isISOControl(c)) {
+                controlChars++;
+                pendingSpace = true;
+                continue;
+            }
+
+            if (pendingSpace && newLines == 0 && text.length() > 0) {
+                text.append(' ');
+            }
+            pendingSpace = false;
+            newLines = 0;
+            text.append(c);
+
+            if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(chars.get(i + 1))) {
+                char low = chars.get(++i);
+                text.append(low);
+                int codePoint = Character.toCodePoint(c, low);
+                letterChars++;
+                if (codePoint >= 0x20000 && codePoint <= 0x3134F) {
+                    hanChars++;
+                }
+            } else if ((c >= 0x4E00 && c <= 0x9FFF) || (c >= 0x3400 && c <= 0x4DBF)) {
+                hanChars++;
+                letterChars++;
+            } else if (Character.isLetter(c)) {
+                letterChars++;
+            }
+        }
+
+        int end = text.length();
+        while (end > 0 && text.charAt(end - 1) == '\n') {
+            end--;
+        }
+        text.setLength(end);
+        return new DecodedText(text.toString(), charset, hanChars, letterChars, replacementChars, controlChars);
+    }
+
+    /**
+     * 没有BOM的UTF-16：ASCII字符的高字节为0，零字节集中在奇数或偶数位置
+     */
+    private static Charset detectUtf16WithoutBom(byte[] bytes, int sample) {
+        int pairs = sample / 2;
+        if (pairs < 4) {
+            return null;
+        }
+        int evenZeros = 0;
+        int oddZeros = 0;
+        for (int i = 0; i + 1 < sample; i += 2) {
+            if (bytes[i] == 0) {
+                evenZeros++;
+            }
+            if (bytes[i + 1] == 0) {
+                oddZeros++;
+            }
+        }
+        if (oddZeros > pairs * 0.4 && evenZeros < pairs * 0.05) {
+            return StandardCharsets.UTF_16LE;
+        }
+        if (evenZeros > pairs * 0.4 && oddZeros < pairs * 0.05) {
+            return StandardCharsets.UTF_16BE;
+        }
+        return null;
+    }
+
+    /**
+     * 按UTF-8编码规则校验样本，样本末尾被截断的多字节序列视为有效
+     */
+    private static boolean isValidUtf8(byte[] bytes, int sample) {
+        int i = 0;
+        while (i < sample) {
+            int b = bytes[i] & 0xFF;
+            int continuation;
+            if (b < 0x80) {
+                i++;
+                continue;
+            } else if (b >= 0xC2 && b <= 0xDF) {
+                continuation = 1;
+            } else if (b >= 0xE0 && b <= 0xEF) {
+                continuation = 2;
+            } else if (b >= 0xF0 && b <= 0xF4) {
+                continuation = 3;
+            } else {
+                return false;
+            }
+            for (int k = 1; k <= continuation; k++) {
+                if (i + k >= sample) {
+                    return sample < bytes.length;
+                }
+                if ((bytes[i + k] & 0xC0) != 0x80) {
+                    return false;
+                }
+            }
+            i += continuation + 1;
+        }
+        return true;
+    }
+
+    /**
+     * 按GB18030（兼容GBK、GB2312）编码规则校验样本
+     */
+    private static boolean isValidGb18030(byte[] bytes, int sample) {
+        int i = 0;
+        while (i < sample) {
+            int b = bytes[i] & 0xFF;
+            if (b < 0x80) {
+                i++;
+                continue;
+            }
+            if (b == 0x80 || b == 0xFF) {
+                return false;
+            }
+            if (i + 1 >= sample) {
+                return sample < bytes.length;
+            }
+            int b2 = bytes[i + 1] & 0xFF;
+            if (b2 >= 0x40 && b2 <= 0xFE && b2 != 0x7F) {
+                i += 2;
+            } else if (b2 >= 0x30 && b2 <= 0x39) {
+                if (i + 3 >= sample) {
+                    return sample < bytes.length;
+                }
+                int b3 = bytes[i + 2] & 0xFF;
+                int b4 = bytes[i + 3] & 0xFF;
+                if (b3 < 0x81 || b3 > 0xFE || b4 < 0x30 || b4 > 0x39) {
+                    return false;
+                }
+                i += 4;
+            } else {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,54 @@
+package com.unionhole.zrag.util;
+
+import com.knuddels.jtokkit.Encodings;
+import com.knuddels.jtokkit.api.Encoding;
+import com.knuddels.jtokkit.api.EncodingResult;
+import com.knuddels.jtokkit.api.EncodingType;
+
+/**
+ * Token计数工具类
+ * 使用 jtokkit 的 cl100k_base 编码（OpenAI 系模型的分词方式）计数；
+ * 对通义千问、Ollama 等模型作为近似估算，误差在预算余量之内
+ */
+public class TokenCounter {
+
+    private static final Encoding ENCODING = Encodings.newLazyEncodingRegistry().getEncoding(EncodingType.CL100K_BASE);
+
+    private TokenCounter() {
+    }
+
+    /**
+     * 计算文本的token数
+     * @param text 文本
+     * @return token数
+     */
+    public static int count(String text) {
+        if (text == null || text.isEmpty()) {
+            return 0;
+        }
+        return ENCODING.countTokensOrdinary(text);
+    }
+
+    /**
+     * 截断文本到指定token数以内
+     * @param text 文本
+     * @param maxTokens 最大token数
+     * @return 截断后的文本，未超出时原样返回
+     */
+    public static String truncate(String text, int maxTokens) {
+        if (text == null || text.isEmpty() || maxTokens <= 0) {
+            return "";
+        }
+        EncodingResult result = ENCODING.encodeOrdinary(text, maxTokens);
+        if (!result.isTruncated()) {
+            return text;
+        }
+        String truncated = ENCODING.decode(result.getTokens());
+        // 截断点可能落在多字节字符中间，去掉解码出的替换字符
+        int end = truncated.length();
+        while (end > 0 && truncated.charAt(end - 1) == '�') {
+            end--;
+        }
+        return truncated.substring(0, end);
+    }
+}
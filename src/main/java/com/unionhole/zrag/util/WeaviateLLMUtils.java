@@ -18,7 +18,11 @@ package com.unionhole.zrag.util;
 
 import io.weaviate.client.WeaviateClient;
 import io.weaviate.client.base.Result;
+import io.weaviate.client.v1.batch.model.BatchDeleteResponse;
+import io.weaviate.client.v1.batch.model.ObjectGetResponse;
 import io.weaviate.client.v1.data.model.WeaviateObject;
+import io.weaviate.client.v1.filters.Operator;
+import io.weaviate.client.v1.filters.WhereFilter;
 import io.weaviate.client.v1.schema.model.DataType;
 import io.weaviate.client.v1.schema.model.Property;
 import io.weaviate.client.v1.schema.model.WeaviateClass;
@@ -66,10 +70,13 @@ public class WeaviateLLMUtils {
                                     .dataType(Arrays.asList(DataType.TEXT))
                                     .description("文档文本内容")
                                     .build(),
+                            // 元数据键随文档类型变化，按JSON文本存储，GraphQL查询时无需子字段选择
                             Property.builder()
                                     .name("metadata")
-                                    .dataType(Arrays.asList(DataType.OBJECT))
-                                    .description("文档元数据")
+                                    .dataType(Arrays.asList(DataType.TEXT))
+                                    .description("文档元数据（JSON）")
+                                    .indexFilterable(false)
+                                    .indexSearchable(false)
                                     .build()
                     ))
                     .build();
@@ -121,6 +128,30 @@ public class WeaviateLLMUtils {
         }
     }
 
+    /**
+     * 获取类中某个属性的数据类型
+     * @param className 类名
+     * @param propertyName 属性名
+     * @return 数据类型，类或属性不存在时返回null
+     */
+    public String getPropertyDataType(String className, String propertyName) {
+        if (weaviateClient == null) {
+            log.error("Weaviate客户端未初始化");
+            return null;
+        }
+        Result<WeaviateClass> result = weaviateClient.schema().classGetter().withClassName(className).run();
+        if (result.hasErrors() || result.getResult() == null || result.getResult().getProperties() == null) {
+            return null;
+        }
+        for (Property property : result.getResult().getProperties()) {
+            if (property.getName().equals(propertyName) && property.getDataType() != null
+                    && !property.getDataType().isEmpty()) {
+                return property.getDataType().get(0);
+            }
+        }
+        return null;
+    }
+
     /**
      * 添加对象到Weaviate
      * @param className 类名
@@ -136,24 +167,12 @@ public class WeaviateLLMUtils {
                 return false;
             }
 
-            // 转换Float[]为float[]
-            float[] vectorArray = new float[vector.length];
-            for (int i = 0; i < vector.length; i++) {
-                vectorArray[i] = vector[i];
-            }
-
-            // 转换float[]为Float[]
-            Float[] vectorFloatArray = new Float[vectorArray.length];
-            for (int i = 0; i < vectorArray.length; i++) {
-                vectorFloatArray[i] = vectorArray[i];
-            }
-
             // 使用Weaviate客户端添加对象
             Result<WeaviateObject> result = weaviateClient.data().creator()
                     .withClassName(className)
                     .withID(objectId)
                     .withProperties(properties)
-                    .withVector(vectorFloatArray)
+                    .withVector(vector)
                     .run();
 
             if (result.hasErrors()) {
@@ -169,6 +188,105 @@ public class WeaviateLLMUtils {
         }
     }
 
+    /**
+     * 批量添加对象到Weaviate
+     * 使用Weaviate批量导入API，一次请求写入多个对象
+     * @param objects 待写入的对象（需包含className、id、properties、vector）
+     * @return 写入成功的对象数量
+     */
+    public int batchAddObjects(List<WeaviateObject> objects) {
+        try {
+            if (weaviateClient == null) {
+                log.error("Weaviate客户端未初始化");
+                return 0;
+            }
+            if (objects == null || objects.isEmpty()) {
+                return 0;
+            }
+
+            Result<ObjectGetResponse[]> result = weaviateClient.batch().objectsBatcher()
+                    .withObjects(objects.toArray(new WeaviateObject[0]))
+                    .run();
+
+            if (result.hasErrors()) {
+                log.error("批量添加对象到Weaviate失败: {}", result.getError());
+                return 0;
+            }
+
+            int successCount = 0;
+            for (ObjectGetResponse response : result.getResult()) {
+                if (response.getResult() != null && response.getResult().getErrors() != null) {
+                    log.warn("Weaviate对象写入失败: id={}, errors={}", response.getId(), response.getResult().getErrors());
+                } else {
+                    successCount++;
+                }
+            }
+
+            log.debug("批量添加对象到Weaviate完成: {}/{}", successCount, objects.size());
+            return successCount;
+        } catch (Exception e) {
+            log.error("批量添加对象到Weaviate失败", e);
+            return 0;
+        }
+    }
+
+    /**
+     * 基于游标分页查询对象
+     * 使用after游标按id顺序遍历，不返回向量
+     * @param className 类名
+     * @param limit 每页数量
+     * @param afterId 上一页最后一个对象的id（首页传null）
+     * @return 当前页对象
+     */
+    public List<WeaviateObject> listObjects(String className, int limit, String afterId) {
+        try {
+            if (weaviateClient == null) {
+                log.error("Weaviate客户端未初始化");
+                return new ArrayList<>();
+            }
+
+            String after = afterId != null ? String.format(", after: \"%s\"", afterId) : "";
+            String query = String.format("{ Get { %s(limit: %d%s) { _additional { id } text metadata } } }",
+                    className, limit, after);
+            Result<io.weaviate.client.v1.graphql.model.GraphQLResponse> result = weaviateClient.graphQL().raw()
+                    .withQuery(query)
+                    .run();
+
+            checkGraphQLResult(result);
+
+            // 解析GraphQL结果
+            @SuppressWarnings("unchecked")
+            Map<String, Object> data = (Map<String, Object>) result.getResult().getData();
+            @SuppressWarnings("unchecked")
+            Map<String, Object> get = (Map<String, Object>) data.get("Get");
+            @SuppressWarnings("unchecked")
+            List<Map<String, Object>> objects = (List<Map<String, Object>>) get.get(className);
+
+            List<WeaviateObject> weaviateObjects = new ArrayList<>();
+            if (objects != null) {
+                for (Map<String, Object> obj : objects) {
+                    @SuppressWarnings("unchecked")
+                    Map<String, Object> additional = (Map<String, Object>) obj.get("_additional");
+
+                    Map<String, Object> properties = new HashMap<>();
+                    properties.put("text", obj.get("text"));
+                    properties.put("metadata", obj.get("metadata"));
+
+                    weaviateObjects.add(WeaviateObject.builder()
+                            .className(className)
+                            .id((String) additional.get("id"))
+                            .properties(properties)
+                            .build());
+                }
+            }
+
+            return weaviateObjects;
+        } catch (Exception e) {
+            log.error("分页查询Weaviate对象失败", e);
+            throw new RuntimeException("分页查询Weaviate对象失败: " + e.getMessage(), e);
+        }
+    }
+
     /**
      * 查询对象
      * @param className 类名
@@ -188,10 +306,7 @@ public class WeaviateLLMUtils {
                     .withQuery(query)
                     .run();
 
-            if (result.hasErrors()) {
-                log.error("查询Weaviate对象失败: {}", result.getError());
-                return new ArrayList<>();
-            }
+            checkGraphQLResult(result);
 
             // 解析GraphQL结果
             @SuppressWarnings("unchecked")
@@ -238,7 +353,100 @@ public class WeaviateLLMUtils {
             return weaviateObjects;
         } catch (Exception e) {
             log.error("查询Weaviate对象失败", e);
-            return new ArrayList<>();
+            throw new RuntimeException("查询Weaviate对象失败: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * 基于nearVector的向量近邻搜索
+     * 由Weaviate服务端HNSW索引完成检索，只返回距离而不回传对象向量
+     * @param className 类名
+     * @param vector 查询向量
+     * @param limit 返回数量
+     * @param maxDistance 最大距离阈值（为null时不限制）
+     * @return 搜索结果，每项包含id、distance、text、metadata
+     */
+    public List<Map<String, Object>> searchNearVector(String className, float[] vector, int limit, Double maxDistance) {
+        try {
+            if (weaviateClient == null) {
+                log.error("Weaviate客户端未初始化");
+                return new ArrayList<>();
+            }
+
+            // 构建nearVector参数
+            StringBuilder nearVector = new StringBuilder(vector.length * 12 + 32);
+            nearVector.append("nearVector: { vector: [");
+            for (int i = 0; i < vector.length; i++) {
+                if (i > 0) {
+                    nearVector.append(',');
+                }
+                nearVector.append(vector[i]);
+            }
+            nearVector.append(']');
+            if (maxDistance != null) {
+                nearVector.append(", distance: ").append(maxDistance);
+            }
+            nearVector.append(" }");
+
+            String query = String.format("{ Get { %s(%s, limit: %d) { _additional { id distance } text metadata } } }",
+                    className, nearVector, limit);
+            Result<io.weaviate.client.v1.graphql.model.GraphQLResponse> result = weaviateClient.graphQL().raw()
+                    .withQuery(query)
+                    .run();
+
+            checkGraphQLResult(result);
+
+            // 解析GraphQL结果
+            @SuppressWarnings("unchecked")
+            Map<String, Object> data = (Map<String, Object>) result.getResult().getData();
+            @SuppressWarnings("unchecked")
+            Map<String, Object> get = (Map<String, Object>) data.get("Get");
+            @SuppressWarnings("unchecked")
+            List<Map<String, Object>> objects = (List<Map<String, Object>>) get.get(className);
+
+            List<Map<String, Object>> results = new ArrayList<>();
+            if (objects != null) {
+                for (Map<String, Object> obj : objects) {
+                    try {
+                        @SuppressWarnings("unchecked")
+                        Map<String, Object> additional = (Map<String, Object>) obj.get("_additional");
+                        Object distance = additional.get("distance");
+
+                        Map<String, Object> item = new HashMap<>();
+                        item.put("id", additional.get("id"));
+                        item.put("distance", distance instanceof Number ? ((Number) distance).doubleValue() : null);
+                        item.put("text", obj.get("text"));
+                        item.put("metadata", obj.get("metadata"));
+                        results.add(item);
+                    } catch (Exception e) {
+                        log.warn("解析Weaviate搜索结果失败", e);
+                    }
+                }
+            }
+
+            log.debug("Weaviate nearVector搜索完成: {} 条结果", results.size());
+            return results;
+        } catch (Exception e) {
+            log.error("Weaviate nearVector搜索失败", e);
+            throw new RuntimeException("Weaviate nearVector搜索失败: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * 检查GraphQL请求结果，请求失败或响应中带有错误时抛出异常
+     * GraphQL查询出错时服务端仍返回200，错误信息在响应的errors字段中
+     */
+    private void checkGraphQLResult(Result<io.weaviate.client.v1.graphql.model.GraphQLResponse> result) {
+        if (result.hasErrors()) {
+            throw new IllegalStateException(String.valueOf(result.getError()));
+        }
+        io.weaviate.client.v1.graphql.model.GraphQLError[] errors = result.getResult().getErrors();
+        if (errors != null && errors.length > 0) {
+            StringBuilder message = new StringBuilder("GraphQL错误:");
+            for (io.weaviate.client.v1.graphql.model.GraphQLError error : errors) {
+                message.append(' ').append(error.getMessage());
+            }
+            throw new IllegalStateException(message.toString());
         }
     }
 
@@ -274,6 +482,60 @@ public class WeaviateLLMUtils {
         }
     }
 
+    /**
+     * 按过滤条件批量删除类中的所有对象
+     * Weaviate单次批量删除有数量上限，循环执行直到没有匹配对象
+     * @param className 类名
+     * @return 删除的对象数量，失败返回-1
+     */
+    public long deleteAllObjects(String className) {
+        try {
+            if (weaviateClient == null) {
+                log.error("Weaviate客户端未初始化");
+                return -1;
+            }
+
+            WhereFilter matchAll = WhereFilter.builder()
+                    .path(new String[]{"id"})
+                    .operator(Operator.Like)
+                    .valueText("*")
+                    .build();
+
+            long deleted = 0;
+            while (true) {
+                Result<BatchDeleteResponse> result = weaviateClient.batch().objectsBatchDeleter()
+                        .withClassName(className)
+                        .withWhere(matchAll)
+                        .withOutput("minimal")
+                        .run();
+
+                if (result.hasErrors()) {
+                    log.error("批量删除Weaviate对象失败: {}", result.getError());
+                    return -1;
+                }
+
+                BatchDeleteResponse.Results results = result.getResult().getResults();
+                long successful = results != null && results.getSuccessful() != null ? results.getSuccessful() : 0;
+                long failed = results != null && results.getFailed() != null ? results.getFailed() : 0;
+                deleted += successful;
+
+                if (failed > 0) {
+                    log.error("批量删除Weaviate对象部分失败: 成功 {}, 失败 {}", successful, failed);
+                    return -1;
+                }
+                if (successful == 0 || results.getLimit() == null || successful < results.getLimit()) {
+                    break;
+                }
+            }
+
+            log.info("批量删除Weaviate对象完成: {} 条", deleted);
+            return deleted;
+        } catch (Exception e) {
+            log.error("批量删除Weaviate对象失败", e);
+            return -1;
+        }
+    }
+
     /**
      * 删除类
      * @param className 类名
@@ -0,0 +1,207 @@
+package com.unionhole.zrag.util;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * 分窗口输出文本的SAX内容处理器
+ * 解析过程中累积文本，达到窗口大小后在最近的段落或句子边界切出一个窗口交给下游处理，
+ * 缓冲区只保留不足一个窗口的剩余文本，内存占用与窗口大小成正比而与文档大小无关。
+ * 空白和缩进按提取结果原样保留（只去掉回车和控制字符），各窗口首尾相接即为完整文本。
+ * 提取字符数达到上限或被取消时抛出异常中止解析
+ */
+public class WindowedTextContentHandler extends DefaultHandler {
+
+    /** 结束时需要换行的块级元素 */
+    private static final Set<String> BLOCK_ELEMENTS = new HashSet<>(Arrays.asList(
+            "p", "div", "br", "li", "tr", "h1", "h2", "h3", "h4", "h5", "h6",
+            "title", "pre", "blockquote", "table", "ul", "ol", "dd", "dt"));
+
+    private static final String SENTENCE_ENDS = "。！？；.!?;";
+
+    private final int windowChars;
+    private final long maxChars;
+    private final Consumer<String> windowConsumer;
+    private final StringBuilder buffer = new StringBuilder();
+
+    private long totalChars;
+    private long acceptedChars;
+    private int windowCount;
+    private boolean limitReached;
+    private volatile boolean cancelled;
+
+    /**
+     * 提取字符数达到上限
+     */
+    public static class LimitReachedException extends SAXException {
+        private static final long serialVersionUID = 1L;
+
+        public LimitReachedException(long maxChars) {
+            super("提取的文本超过上限: " + maxChars + " 字符");
+        }
+    }
+
+    /**
+     * @param windowChars 窗口大小（字符数）
+     * @param windowConsumer 窗口文本的接收者
+     */
+    public WindowedTextContentHandler(int windowChars, Consumer<String> windowConsumer) {
+        this(windowChars, -1, windowConsumer);
+    }
+
+    /**
+     * @param windowChars 窗口大小（字符数）
+     * @param maxChars 最多提取的字符数，小于等于0表示不限制
+     * @param windowConsumer 窗口文本的接收者
+     */
+    public WindowedTextContentHandler(int windowChars, long maxChars, Consumer<String> windowConsumer) {
+        this.windowChars = Math.max(1000, windowChars);
+        this.maxChars = maxChars;
+        this.windowConsumer = windowConsumer;
+    }
+
+    @Override
+    public void characters(char[] ch, int start, int length) throws SAXException {
+        if (cancelled || Thread.currentThread().isInterrupted()) {
+            throw new SAXException("解析已取消");
+        }
+        for (int i = start; i < start + length; i++) {
+            if (maxChars > 0 && acceptedChars >= maxChars) {
+                limitReached = true;
+                flush();
+                throw new LimitReachedException(maxChars);
+            }
+            append(ch[i]);
+            acceptedChars++;
+        }
+        if (buffer.length() >= windowChars) {
+            emitWindow();
+        }
+    }
+
+    @Override
+    public void ignorableWhitespace(char[] ch, int start, int length) throws SAXException {
+        characters(ch, start, length);
+    }
+
+    @Override
+    public void startElement(String uri, String localName, String qName, Attributes attributes) {
+        if (BLOCK_ELEMENTS.contains(localName)) {
+            newLine();
+        }
+    }
+
+    @Override
+    public void endElement(String uri, String localName, String qName) {
+        if (BLOCK_ELEMENTS.contains(localName)) {
+            newLine();
+        }
+    }
+
+    @Override
+    public void endDocument() throws SAXException {
+        flush();
+    }
+
+    /**
+     * 输出缓冲区中剩余的文本
+     */
+    public void flush() {
+        String rest = buffer.toString();
+        buffer.setLength(0);
+        if (!rest.trim().isEmpty()) {
+            emit(rest);
+        }
+    }
+
+    public long getTotalChars() {
+        return totalChars;
+    }
+
+    public int getWindowCount() {
+        return windowCount;
+    }
+
+    /**
+     * 是否因达到字符上限而截断
+     */
+    public boolean isLimitReached() {
+        return limitReached;
+    }
+
+    /**
+     * 取消解析，下一次收到文本时中止
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * 追加字符：去掉回车和控制字符，空白、缩进和换行原样保留，代码和Markdown的结构不受影响
+     */
+    private void append(char c) {
+        if (c == '\r' || (Character.isISOControl(c) && c != '\n' && c != '\t')) {
+            return;
+        }
+        buffer.append(c);
+    }
+
+    /**
+     * 块级元素的边界：文本没有以换行结束时补一个换行
+     */
+    private void newLine() {
+        int length = buffer.length();
+        if (length > 0 && buffer.charAt(length - 1) != '\n') {
+            buffer.append('\n');
+        }
+    }
+
+    /**
+     * 在窗口范围内优先按段落、其次按句子切分，都找不到时按窗口大小硬切
+     */
+    private void emitWindow() {
+        while (buffer.length() >= windowChars) {
+            int cut = buffer.lastIndexOf("\n", windowChars);
+            if (cut < windowChars / 2) {
+                cut = lastSentenceEnd(windowChars);
+            }
+            if (cut < windowChars / 2) {
+                cut = windowChars - 1;
+            }
+            if (cut + 1 < buffer.length() && Character.isLowSurrogate(buffer.charAt(cut + 1))
+                    && Character.isHighSurrogate(buffer.charAt(cut))) {
+                cut--;
+            }
+            String window = buffer.substring(0, cut + 1);
+            buffer.delete(0, cut + 1);
+            if (!window.trim().isEmpty()) {
+                emit(window);
+            }
+        }
+    }
+
+    private int lastSentenceEnd(int limit) {
+        for (int i = Math.min(limit, buffer.length()) - 1; i >= 0; i--) {
+            if (SENTENCE_ENDS.indexOf(buffer.charAt(i)) >= 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void emit(String window) {
+        totalChars += window.length();
+        windowCount++;
+        windowConsumer.accept(window);
+    }
+}
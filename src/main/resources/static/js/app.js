@@ -537,7 +537,17 @@ class ZRAGApp {
                 this.updateReferencesPanel(null, content);
                 console.log('[DOCUMENT_DETAILS] 处理完成');
                 break;
+            case 'token':
+                // 模型逐个返回的回答片段，到达即显示
+                this.appendAnswerToken(aiBubble, content);
+                break;
             case 'answer':
+                if (aiBubble.streamedAnswer !== undefined) {
+                    // 已通过token流式显示，用完整回答收尾
+                    this.finishStreamedAnswer(aiBubble, content);
+                    this.setChatInputEnabled(true);
+                    break;
+                }
                 console.log(`[ANSWER] 准备逐字显示内容: ${content.substring(0, 50)}...`);
                 // 最终答案，移除loading状态并实现逐字显示
                 this.displayAnswerWithStreaming(aiBubble, content);
@@ -562,6 +572,36 @@ class ZRAGApp {
         }
     }
 
+    appendAnswerToken(aiBubble, token) {
+        let textContainer = aiBubble.querySelector('.answer-content');
+        if (aiBubble.streamedAnswer === undefined) {
+            aiBubble.streamedAnswer = '';
+            const statusContainer = aiBubble.querySelector('.status-container');
+            if (statusContainer) {
+                statusContainer.innerHTML = '';
+            }
+            if (!textContainer) {
+                textContainer = document.createElement('div');
+                aiBubble.appendChild(textContainer);
+            }
+            textContainer.className = 'answer-content typing';
+        }
+        aiBubble.streamedAnswer += token;
+        textContainer.innerHTML = this.renderMarkdown(aiBubble.streamedAnswer);
+        this.scrollToBottom();
+    }
+
+    finishStreamedAnswer(aiBubble, content) {
+        const textContainer = aiBubble.querySelector('.answer-content');
+        if (textContainer) {
+            textContainer.innerHTML = this.renderMarkdown(content || aiBubble.streamedAnswer);
+            textContainer.classList.remove('typing');
+        }
+        aiBubble.querySelectorAll('.loading').forEach(element => element.remove());
+        delete aiBubble.streamedAnswer;
+        this.scrollToBottom();
+    }
+
     displayAnswerWithStreaming(aiBubble, content) {
         console.log('开始逐字显示，内容长度:', content.length);
 
@@ -1577,7 +1617,7 @@ class ZRAGApp {
                     <div class="chunk-meta">
                         <span class="chunk-id">${chunk.id}</span>
                         <span class="chunk-source">来源: ${chunk.source}</span>
-                        <span class="chunk-similarity">相似度: ${(chunk.similarity * 100).toFixed(1)}%</span>
+                        ${chunk.similarity != null ? `<span class="chunk-similarity">相似度: ${(chunk.similarity * 100).toFixed(1)}%</span>` : ''}
                     </div>
                     <div class="chunk-actions">
                         <button class="btn btn-sm btn-secondary" onclick="app.viewChunk('${chunk.id}')">
@@ -1086,7 +1086,17 @@ class StockApp extends ZRAGApp {
                 this.updateReferencesPanel(null, content);
                 console.log('[DOCUMENT_DETAILS] 处理完成');
                 break;
+            case 'token':
+                // 模型逐个返回的回答片段，到达即显示
+                this.appendAnswerToken(aiBubble, content);
+                break;
             case 'answer':
+                if (aiBubble.streamedAnswer !== undefined) {
+                    // 已通过token流式显示，用完整回答收尾
+                    this.finishStreamedAnswer(aiBubble, content);
+                    this.setChatInputEnabled(true);
+                    break;
+                }
                 console.log(`[ANSWER] 准备逐字显示内容: ${content.substring(0, 50)}...`);
                 // 最终答案，移除loading状态并实现逐字显示
                 this.displayAnswerWithStreaming(aiBubble, content);
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2025 james-zou
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.unionhole.zrag.service;
+
+import com.unionhole.zrag.util.CodeChunker;
+import com.unionhole.zrag.util.RecursiveTextSplitter;
+import dev.langchain4j.data.document.DocumentSplitter;
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.model.output.Response;
+import dev.langchain4j.store.embedding.EmbeddingStore;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Import;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.test.context.junit.jupiter.SpringJUnitConfig;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * 代码文件经完整入库流程（解析、分割、向量化、存储）后保留缩进、符号层级和文件内行号
+ */
+@SpringJUnitConfig(DocumentServiceCodeIngestTest.TestConfig.class)
+class DocumentServiceCodeIngestTest {
+
+    @Configuration
+    @Import({DocumentService.class, SmartDocumentSplitterService.class, SemanticChunker.class,
+            TikaDocumentParserService.class, ParallelDocumentExtractor.class})
+    static class TestConfig {
+
+        @Bean
+        RecursiveTextSplitter.SizeEstimator splitterSizeEstimator() {
+            return RecursiveTextSplitter.CHARACTERS;
+        }
+
+        @Bean
+        DocumentSplitter documentSplitter() {
+            return new RecursiveTextSplitter(1000, 100);
+        }
+
+        @Bean
+        DocumentSplitter chineseDocumentSplitter() {
+            return new RecursiveTextSplitter(1000, 100);
+        }
+
+        @Bean
+        DocumentSplitter codeDocumentSplitter() {
+            return new CodeChunker(1000, 100);
+        }
+    }
+
+    @MockBean
+    private EmbeddingModel embeddingModel;
+
+    @MockBean
+    private EmbeddingStore<TextSegment> embeddingStore;
+
+    @MockBean
+    private MinioStorageService minioStorageService;
+
+    @MockBean
+    private LexicalIndexService lexicalIndexService;
+
+    @MockBean
+    private SemanticAnswerCache answerCache;
+
+    @MockBean
+    private RetrievalCache retrievalCache;
+
+    @Autowired
+    private DocumentService documentService;
+
+    @Test
+    void pythonFileKeepsIndentationSymbolsAndFileLineNumbers() {
+        // 超过一个Tika窗口（20000字符），窗口切分会截断声明并让行号从窗口开头重新计算
+        StringBuilder source = new StringBuilder("import os\n\n");
+        for (int c = 0; c < 40; c++) {
+            source.append("class Svc").append(c).append(":\n");
+            for (int m = 0; m < 8; m++) {
+                source.append("    def method").append(m).append("(self, x):\n")
+                        .append("        if x:\n")
+                        .append("            return x + ").append(m).append("\n")
+                        .append("        return None\n\n");
+            }
+        }
+        String text = source.toString();
+        String[] lines = text.split("\n", -1);
+        assertTrue(text.length() > 20000);
+
+        when(embeddingModel.embed(any(TextSegment.class)))
+                .thenReturn(Response.from(Embedding.from(new float[]{1.0f})));
+        when(embeddingStore.add(any(Embedding.class), any(TextSegment.class))).thenReturn("id");
+
+        MockMultipartFile file = new MockMultipartFile("file", "service.py", "text/x-python",
+                text.getBytes(StandardCharsets.UTF_8));
+        documentService.processDocumentWithMetadata(file, "file-1", "default_tenant");
+
+        ArgumentCaptor<TextSegment> captor = ArgumentCaptor.forClass(TextSegment.class);
+        verify(embeddingStore, atLeastOnce()).add(any(Embedding.class), captor.capture());
+        List<TextSegment> segments = captor.getAllValues();
+
+        boolean nestedSymbol = false;
+        for (TextSegment segment : segments) {
+            assertEquals("python", segment.metadata().get("language"));
+            int startLine = Integer.parseInt(segment.metadata().get("start_line"));
+            int endLine = Integer.parseInt(segment.metadata().get("end_line"));
+            String[] segmentLines = segment.text().split("\n", -1);
+            assertEquals(lines[startLine - 1].trim(), segmentLines[0].trim(), "start_line " + startLine);
+            assertEquals(lines[endLine - 1], segmentLines[segmentLines.length - 1], "end_line " + endLine);
+            String symbols = segment.metadata().get("symbols");
+            if (symbols != null) {
+                for (String symbol : symbols.split(",")) {
+                    assertTrue(symbol.startsWith("Svc"), "方法应带有所属类名: " + symbol);
+                    // Svc25 之后的类位于第二个Tika窗口
+                    nestedSymbol |= symbol.matches("Svc(2[5-9]|3\\d)\\.method\\d");
+                }
+            }
+        }
+        assertTrue(nestedSymbol, "第二个Tika窗口中的方法应带有所属类名");
+        assertTrue(segments.stream().anyMatch(s -> s.text().contains("\n        if x:\n            return x + 1")),
+                "缩进应原样保留");
+    }
+}
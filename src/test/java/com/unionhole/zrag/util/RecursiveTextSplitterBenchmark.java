@@ -0,0 +1,149 @@
+package com.unionhole.zrag.util;
+
+import dev.langchain4j.data.document.Document;
+import dev.langchain4j.data.document.DocumentSplitter;
+import dev.langchain4j.data.document.splitter.DocumentSplitters;
+import dev.langchain4j.data.segment.TextSegment;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * RecursiveTextSplitter 与 LangChain4j DocumentSplitters.recursive 的分割耗时对比，
+ * 语料分为中文长文和代码两类，块大小和重叠均按字符数计量。
+ * 运行：先执行 mvn test-compile，再以测试类路径运行本类的 main 方法
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RecursiveTextSplitterBenchmark {
+
+    private static final String[] CHINESE_SENTENCES = {
+            "检索增强生成系统先将文档切分为若干片段，再为每个片段计算向量并写入向量数据库。",
+            "查询时先召回候选片段，然后根据相关性重排，最后把排名靠前的片段交给大模型生成回答！",
+            "片段过长会稀释语义，片段过短又会丢失上下文，因此块大小需要结合嵌入模型的上下文长度确定？",
+            "中文文本没有空格分词，分割器需要识别句号、问号、感叹号、分号等句末标点；",
+            "相邻片段之间保留一定的重叠，可以避免关键信息恰好落在切分边界上，",
+            "同时重叠过大会增加存储和向量化的开销。"
+    };
+
+    private static final String CODE_TEMPLATE =
+            "/**\n"
+            + " * 订单处理服务 %d\n"
+            + " */\n"
+            + "public class OrderService%d {\n"
+            + "\n"
+            + "    private final OrderRepository repository;\n"
+            + "\n"
+            + "    public OrderService%d(OrderRepository repository) {\n"
+            + "        this.repository = repository;\n"
+            + "    }\n"
+            + "\n"
+            + "    public Order submit(String customerId, List<Item> items) {\n"
+            + "        if (items == null || items.isEmpty()) {\n"
+            + "            throw new IllegalArgumentException(\"订单不能为空\");\n"
+            + "        }\n"
+            + "        long total = 0;\n"
+            + "        for (Item item : items) {\n"
+            + "            total += item.getPrice() * item.getQuantity();\n"
+            + "        }\n"
+            + "        Order order = new Order(customerId, items, total);\n"
+            + "        return repository.save(order);\n"
+            + "    }\n"
+            + "}\n"
+            + "\n";
+
+    @Param({"chinese", "code"})
+    private String corpus;
+
+    @Param({"20000", "200000"})
+    private int length;
+
+    @Param({"500"})
+    private int maxSegmentSize;
+
+    @Param({"50"})
+    private int maxOverlapSize;
+
+    private Document document;
+    private DocumentSplitter recursiveTextSplitter;
+    private DocumentSplitter langchain4jSplitter;
+
+    @Setup
+    public void setUp() {
+        document = Document.from("code".equals(corpus) ? codeCorpus(length) : chineseCorpus(length));
+        recursiveTextSplitter = new RecursiveTextSplitter(maxSegmentSize, maxOverlapSize);
+        langchain4jSplitter = DocumentSplitters.recursive(maxSegmentSize, maxOverlapSize);
+    }
+
+    @Benchmark
+    public List<TextSegment> recursiveTextSplitter() {
+        return recursiveTextSplitter.split(document);
+    }
+
+    @Benchmark
+    public List<RecursiveTextSplitter.TextSpan> recursiveTextSplitterSpans() {
+        return ((RecursiveTextSplitter) recursiveTextSplitter).splitSpans(document.text());
+    }
+
+    @Benchmark
+    public List<TextSegment> langchain4jRecursive() {
+        return langchain4jSplitter.split(document);
+    }
+
+    /**
+     * 由固定句子循环拼接的中文语料，每四句换行、每八句分段
+     */
+    static String chineseCorpus(int length) {
+        StringBuilder text = new StringBuilder(length + 128);
+        int sentence = 0;
+        while (text.length() < length) {
+            text.append(CHINESE_SENTENCES[sentence % CHINESE_SENTENCES.length]);
+            sentence++;
+            if (sentence % 8 == 0) {
+                text.append("\n\n");
+            } else if (sentence % 4 == 0) {
+                text.append('\n');
+            }
+        }
+        return text.toString();
+    }
+
+    /**
+     * 由相同结构的Java类循环拼接的代码语料
+     */
+    static String codeCorpus(int length) {
+        StringBuilder text = new StringBuilder(length + CODE_TEMPLATE.length());
+        int index = 0;
+        while (text.length() < length) {
+            text.append(String.format(CODE_TEMPLATE, index, index, index));
+            index++;
+        }
+        return text.toString();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(RecursiveTextSplitterBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}